@@ -0,0 +1,229 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.cache.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Keys ordered by the time they expire, so that an expiry sweep only visits the keys which are due,
+ * instead of every entry of the cache.
+ * <p>
+ * Deadlines are rounded up to the resolution of the queue, and the keys of one rounded deadline share
+ * a bucket. Rescheduling a key on access only moves it to another bucket when its rounded deadline
+ * changes. A key is never returned before its deadline, and at most one resolution after it.
+ * </p>
+ * <p>
+ * The keys are spread over stripes by their hash, each guarded by a lock of its own, so that threads
+ * scheduling different keys rarely wait for each other. Only {@link #pollDue(long)} visits all the
+ * stripes, locking one at a time.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class ExpiryQueue<K>
+{
+   private final long resolution;
+   
+   private final Stripe<K>[] stripes;
+   private final int stripeMask;
+   
+   /**
+    * A queue of a single stripe, for callers which already guard it with a lock of their own.
+    *
+    * @param resolution the precision of the deadlines in milliseconds
+    */
+   public ExpiryQueue(long resolution)
+   {
+      this(resolution, 1);
+   }
+   
+   /**
+    * @param resolution       the precision of the deadlines in milliseconds
+    * @param concurrencyLevel the number of threads expected to schedule keys at once, rounded up to a power of two
+    */
+   public ExpiryQueue(long resolution, int concurrencyLevel)
+   {
+      if(resolution <= 0)
+         throw new IllegalArgumentException("resolution must be positive: " + resolution);
+      if(concurrencyLevel <= 0)
+         throw new IllegalArgumentException("concurrency level must be positive: " + concurrencyLevel);
+      this.resolution = resolution;
+      int stripeCount = 1;
+      while(stripeCount < concurrencyLevel)
+         stripeCount <<= 1;
+      this.stripes = newStripes(stripeCount);
+      for(int i = 0; i < stripeCount; i++)
+         stripes[i] = new Stripe<K>();
+      this.stripeMask = stripeCount - 1;
+   }
+   
+   @SuppressWarnings("unchecked")
+   private static <K> Stripe<K>[] newStripes(int count)
+   {
+      return (Stripe<K>[]) new Stripe<?>[count];
+   }
+   
+   /**
+    * Schedules the key to expire at the deadline, replacing its previous deadline.
+    */
+   public void schedule(K key, long deadline)
+   {
+      // round up, so that a key is never due early
+      Long tick = Long.valueOf(deadline / resolution + (deadline % resolution > 0 ? 1 : 0));
+      stripeFor(key).schedule(key, tick);
+   }
+   
+   public void cancel(K key)
+   {
+      stripeFor(key).cancel(key);
+   }
+   
+   /**
+    * Removes and returns the keys whose deadline has passed, earliest first.
+    */
+   public List<K> pollDue(long now)
+   {
+      Long end = Long.valueOf(now / resolution + 1);
+      TreeMap<Long, List<K>> due = new TreeMap<Long, List<K>>();
+      for(Stripe<K> stripe : stripes)
+         stripe.pollDue(end, due);
+      if(due.isEmpty())
+         return new ArrayList<K>(0);
+      List<K> keys = new ArrayList<K>();
+      for(List<K> bucket : due.values())
+         keys.addAll(bucket);
+      return keys;
+   }
+   
+   public int size()
+   {
+      int size = 0;
+      for(Stripe<K> stripe : stripes)
+         size += stripe.size();
+      return size;
+   }
+   
+   public void clear()
+   {
+      for(Stripe<K> stripe : stripes)
+         stripe.clear();
+   }
+   
+   private Stripe<K> stripeFor(K key)
+   {
+      // spread the hash, so that keys which only differ in their high bits don't share a stripe
+      int h = key.hashCode();
+      h ^= (h >>> 20) ^ (h >>> 12);
+      h ^= (h >>> 7) ^ (h >>> 4);
+      return stripes[h & stripeMask];
+   }
+   
+   private static class Stripe<K>
+   {
+      /**
+       * The keys by rounded deadline
+       */
+      private final TreeMap<Long, Set<K>> buckets = new TreeMap<Long, Set<K>>();
+      
+      /**
+       * The rounded deadline of each key
+       */
+      private final Map<K, Long> ticks = new HashMap<K, Long>();
+      
+      synchronized void schedule(K key, Long tick)
+      {
+         Long previous = ticks.put(key, tick);
+         if(tick.equals(previous))
+            return;
+         if(previous != null)
+            removeFromBucket(previous, key);
+         Set<K> bucket = buckets.get(tick);
+         if(bucket == null)
+         {
+            bucket = new LinkedHashSet<K>();
+            buckets.put(tick, bucket);
+         }
+         bucket.add(key);
+      }
+      
+      synchronized void cancel(K key)
+      {
+         Long tick = ticks.remove(key);
+         if(tick != null)
+            removeFromBucket(tick, key);
+      }
+      
+      /**
+       * Moves the keys whose rounded deadline is before <code>end</code> to <code>due</code>
+       */
+      synchronized void pollDue(Long end, TreeMap<Long, List<K>> due)
+      {
+         SortedMap<Long, Set<K>> head = buckets.headMap(end);
+         Iterator<Map.Entry<Long, Set<K>>> it = head.entrySet().iterator();
+         while(it.hasNext())
+         {
+            Map.Entry<Long, Set<K>> bucket = it.next();
+            List<K> keys = due.get(bucket.getKey());
+            if(keys == null)
+            {
+               keys = new ArrayList<K>(bucket.getValue().size());
+               due.put(bucket.getKey(), keys);
+            }
+            for(K key : bucket.getValue())
+            {
+               ticks.remove(key);
+               keys.add(key);
+            }
+            it.remove();
+         }
+      }
+      
+      synchronized int size()
+      {
+         return ticks.size();
+      }
+      
+      synchronized void clear()
+      {
+         buckets.clear();
+         ticks.clear();
+      }
+      
+      private void removeFromBucket(Long tick, K key)
+      {
+         Set<K> bucket = buckets.get(tick);
+         if(bucket == null)
+            return;
+         bucket.remove(key);
+         if(bucket.isEmpty())
+            buckets.remove(tick);
+      }
+   }
+}
@@ -31,7 +31,6 @@ import org.jboss.logging.Logger;
 import javax.ejb.NoSuchEJBException;
 import java.io.Serializable;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -50,6 +49,11 @@ public class SimplePassivatingCache<T extends Identifiable & Serializable> imple
    
    private final Map<Object, Entry> cache;
    
+   /**
+    * The keys of the ready entries, by the time they become idle. Guarded by the cache.
+    */
+   private final ExpiryQueue<Object> idleQueue = new ExpiryQueue<Object>(100);
+   
    private int sessionTimeout = -1;
    private String name;
    
@@ -95,27 +99,33 @@ public class SimplePassivatingCache<T extends Identifiable & Serializable> imple
                   if(Thread.currentThread().isInterrupted())
                      return;
                   
-                  long then = System.currentTimeMillis() - sessionTimeout * 1000;
-                  Iterator<Entry> it = cache.values().iterator();
-                  while(it.hasNext())
+                  // only visit the entries which are due
+                  long now = System.currentTimeMillis();
+                  long then = now - sessionTimeout * 1000;
+                  for(Object key : idleQueue.pollDue(now))
                   {
-                     Entry entry = it.next();
-                     if(then >= entry.lastUsed && entry.state != EntryState.IN_USE)
+                     Entry entry = cache.get(key);
+                     // an entry in use is scheduled again when it is released
+                     if(entry == null || entry.state == EntryState.IN_USE)
+                        continue;
+                     if(then < entry.lastUsed)
+                     {
+                        scheduleIdle(key, entry);
+                        continue;
+                     }
+                     // TODO: can passivate?
+                     try
+                     {
+                        passivationManager.prePassivate(entry.obj);
+                     }
+                     catch(Throwable t)
                      {
-                        // TODO: can passivate?
-                        try
-                        {
-                           passivationManager.prePassivate(entry.obj);
-                        }
-                        catch(Throwable t)
-                        {
-                           log.warn("pre passivate failed for " + entry.obj, t);
-                        }
-                        
-                        store.store(entry.obj);
-                        
-                        it.remove();
+                        log.warn("pre passivate failed for " + entry.obj, t);
                      }
+                     
+                     store.store(entry.obj);
+                     
+                     cache.remove(key);
                   }
                }
             }
@@ -137,6 +147,16 @@ public class SimplePassivatingCache<T extends Identifiable & Serializable> imple
       this.cache = new HashMap<Object, Entry>();
    }
    
+   /**
+    * Schedules the entry to be passivated once it has been idle for the session timeout.
+    * Must be called with the cache locked.
+    */
+   private void scheduleIdle(Object key, Entry entry)
+   {
+      if(sessionTimeout > 0)
+         idleQueue.schedule(key, entry.lastUsed + sessionTimeout * 1000L);
+   }
+   
    /**
     * Activate an entry and put it back in the cache.
     * <p/>
@@ -155,6 +175,7 @@ public class SimplePassivatingCache<T extends Identifiable & Serializable> imple
       
       Entry entry = new Entry(obj);
       cache.put(key, entry);
+      scheduleIdle(key, entry);
       return entry;
    }
    
@@ -166,6 +187,7 @@ public class SimplePassivatingCache<T extends Identifiable & Serializable> imple
       synchronized (cache)
       {
          cache.put(obj.getId(), entry);
+         scheduleIdle(obj.getId(), entry);
       }
       return obj;
    }
@@ -217,6 +239,7 @@ public class SimplePassivatingCache<T extends Identifiable & Serializable> imple
          store.store(entry.obj);
          
          cache.remove(key);
+         idleQueue.cancel(key);
       }
    }
    
@@ -255,6 +278,7 @@ public class SimplePassivatingCache<T extends Identifiable & Serializable> imple
             throw new IllegalStateException("entry " + entry + " is not in use");
          entry.state = EntryState.READY;
          entry.lastUsed = System.currentTimeMillis();
+         scheduleIdle(key, entry);
       }
    }
    
@@ -265,6 +289,7 @@ public class SimplePassivatingCache<T extends Identifiable & Serializable> imple
       synchronized (cache)
       {
          entry = cache.remove(key);
+         idleQueue.cancel(key);
          if(entry == null)
          {
             entry = activate(key);
@@ -0,0 +1,97 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.cache.simple;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The last use and size of every passivated session, so that expired sessions can be found without
+ * reading their state.
+ * <p>
+ * The index is only kept in memory. The store directory is unique to each run, and purged when it is
+ * created, so no session state file outlives the index of its run.
+ * </p>
+ * @version $Revision: $
+ */
+class PassivationIndex
+{
+   /**
+    * An indexed session
+    */
+   static class Entry
+   {
+      final Object id;
+      final long lastUsed;
+      final long size;
+
+      Entry(Object id, long lastUsed, long size)
+      {
+         this.id = id;
+         this.lastUsed = lastUsed;
+         this.size = size;
+      }
+   }
+
+   private final Map<Object, Entry> entries = new HashMap<Object, Entry>();
+
+   synchronized void put(Object id, long lastUsed, long size)
+   {
+      entries.put(id, new Entry(id, lastUsed, size));
+   }
+
+   synchronized void remove(Object id)
+   {
+      entries.remove(id);
+   }
+
+   synchronized Entry get(Object id)
+   {
+      return entries.get(id);
+   }
+
+   synchronized int size()
+   {
+      return entries.size();
+   }
+
+   /**
+    * @return the ids of the sessions last used before the given time
+    */
+   synchronized List<Object> getLastUsedBefore(long time)
+   {
+      List<Object> ids = new ArrayList<Object>();
+      for (Entry entry : entries.values())
+      {
+         if (entry.lastUsed < time)
+            ids.add(entry.id);
+      }
+      return ids;
+   }
+
+   synchronized void clear()
+   {
+      entries.clear();
+   }
+}
@@ -0,0 +1,344 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.cache.simple;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.jboss.ejb3.cache.legacy.StatefulBeanContext;
+import org.jboss.logging.Logger;
+
+/**
+ * Passivates evicted contexts on threads of its own, so that the thread which evicted a context
+ * doesn't serialize and write it while it holds cache locks.
+ * <p>
+ * Contexts are queued by id, so that a context which is asked for again before it has been written
+ * can be taken back with {@link #cancel(Object)} at the cost of a map lookup. A context which is
+ * being written can't be taken back, {@link #awaitPassivation(Object)} waits until it can be activated.
+ * </p>
+ * <p>
+ * The queue is bounded by its capacity: once more contexts are queued, {@link #throttle()} makes the
+ * calling thread passivate queued contexts itself, outside of any cache lock, until the workers have
+ * caught up.
+ * </p>
+ * <p>
+ * A context which can't be passivated is handed back to the {@link Passivator}, so that it isn't lost.
+ * The error is thrown to the thread which passivated the context in {@link #throttle()} or {@link #drain()},
+ * and logged by the workers.
+ * </p>
+ * @version $Revision: $
+ */
+public class PassivationPipeline
+{
+   private static final Logger log = Logger.getLogger(PassivationPipeline.class);
+
+   /**
+    * Writes a context to the passivation store
+    */
+   public interface Passivator
+   {
+      void passivate(StatefulBeanContext ctx);
+
+      /**
+       * Called when {@link #passivate(StatefulBeanContext)} failed, before the context can be waited for
+       * with {@link PassivationPipeline#awaitPassivation(Object)}, so that it can be put back where it
+       * will be found.
+       */
+      void passivationFailed(StatefulBeanContext ctx, RuntimeException e);
+   }
+
+   private final String name;
+   private final int capacity;
+   private final int threadCount;
+   private final Passivator passivator;
+
+   /**
+    * The contexts waiting to be passivated, by id, in the order they were added
+    */
+   private final LinkedHashMap<Object, StatefulBeanContext> queued = new LinkedHashMap<Object, StatefulBeanContext>();
+
+   /**
+    * The ids of the contexts being passivated
+    */
+   private final Set<Object> inFlight = new HashSet<Object>();
+
+   private final List<Thread> workers = new ArrayList<Thread>();
+   private boolean running;
+
+   /**
+    * @param name        the name of the worker threads
+    * @param capacity    the number of queued contexts above which adding threads passivate themselves
+    * @param threadCount the number of worker threads
+    * @param passivator  writes the contexts
+    */
+   public PassivationPipeline(String name, int capacity, int threadCount, Passivator passivator)
+   {
+      if (capacity <= 0)
+         throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+      if (threadCount <= 0)
+         throw new IllegalArgumentException("Thread count must be positive: " + threadCount);
+      this.name = name;
+      this.capacity = capacity;
+      this.threadCount = threadCount;
+      this.passivator = passivator;
+   }
+
+   public synchronized void start()
+   {
+      if (running)
+         return;
+      running = true;
+      for (int i = 0; i < threadCount; i++)
+      {
+         Thread worker = new Thread(new Worker(), name + " #" + i);
+         worker.setDaemon(true);
+         workers.add(worker);
+         worker.start();
+      }
+   }
+
+   /**
+    * Stops the workers, discarding the queued contexts, and waits for the contexts being passivated
+    */
+   public void stop()
+   {
+      List<Thread> stopped;
+      synchronized (this)
+      {
+         running = false;
+         queued.clear();
+         notifyAll();
+         stopped = new ArrayList<Thread>(workers);
+         workers.clear();
+      }
+      boolean interrupted = false;
+      for (Thread worker : stopped)
+      {
+         while (worker.isAlive())
+         {
+            try
+            {
+               worker.join();
+            }
+            catch (InterruptedException e)
+            {
+               interrupted = true;
+            }
+         }
+      }
+      if (interrupted)
+         Thread.currentThread().interrupt();
+   }
+
+   /**
+    * Queues the context for passivation. Never blocks, so that it can be called with cache locks held.
+    */
+   public synchronized void add(StatefulBeanContext ctx)
+   {
+      queued.put(ctx.getId(), ctx);
+      notifyAll();
+   }
+
+   /**
+    * Takes the context back if it is still queued. Never blocks.
+    *
+    * @return the context, or null if it isn't queued
+    */
+   public synchronized StatefulBeanContext cancel(Object id)
+   {
+      return queued.remove(id);
+   }
+
+   /**
+    * Waits until the context is no longer being passivated, so that it can be activated
+    */
+   public synchronized void awaitPassivation(Object id)
+   {
+      boolean interrupted = false;
+      while (inFlight.contains(id))
+      {
+         try
+         {
+            wait();
+         }
+         catch (InterruptedException e)
+         {
+            interrupted = true;
+         }
+      }
+      if (interrupted)
+         Thread.currentThread().interrupt();
+   }
+
+   /**
+    * Passivates queued contexts on the calling thread while more than the capacity are queued.
+    * Must not be called with cache locks held.
+    *
+    * @throws RuntimeException if a context couldn't be passivated
+    */
+   public void throttle()
+   {
+      while (true)
+      {
+         StatefulBeanContext ctx;
+         synchronized (this)
+         {
+            if (queued.size() <= capacity)
+               return;
+            ctx = take();
+         }
+         RuntimeException e = passivate(ctx);
+         if (e != null)
+            throw e;
+      }
+   }
+
+   /**
+    * Passivates all the queued contexts, helping the workers with the calling thread, and waits until
+    * none is being passivated. Must not be called with cache locks held.
+    *
+    * @throws RuntimeException if a context couldn't be passivated, leaving the remaining contexts to the workers
+    */
+   public void drain()
+   {
+      while (true)
+      {
+         StatefulBeanContext ctx;
+         synchronized (this)
+         {
+            if (queued.isEmpty())
+            {
+               awaitIdle();
+               return;
+            }
+            ctx = take();
+         }
+         RuntimeException e = passivate(ctx);
+         if (e != null)
+            throw e;
+      }
+   }
+
+   public synchronized int getQueuedCount()
+   {
+      return queued.size();
+   }
+
+   public int getCapacity()
+   {
+      return capacity;
+   }
+
+   /**
+    * Takes the eldest queued context and marks it in flight. Called with the monitor held.
+    */
+   private StatefulBeanContext take()
+   {
+      Iterator<StatefulBeanContext> it = queued.values().iterator();
+      StatefulBeanContext ctx = it.next();
+      it.remove();
+      inFlight.add(ctx.getId());
+      return ctx;
+   }
+
+   private void awaitIdle()
+   {
+      boolean interrupted = false;
+      while (!inFlight.isEmpty())
+      {
+         try
+         {
+            wait();
+         }
+         catch (InterruptedException e)
+         {
+            interrupted = true;
+         }
+      }
+      if (interrupted)
+         Thread.currentThread().interrupt();
+   }
+
+   /**
+    * @return the exception the passivator threw, or null if the context was passivated
+    */
+   private RuntimeException passivate(StatefulBeanContext ctx)
+   {
+      try
+      {
+         synchronized (ctx)
+         {
+            passivator.passivate(ctx);
+         }
+         return null;
+      }
+      catch (RuntimeException e)
+      {
+         // still in flight, so that nobody looks for the context before it is back
+         passivator.passivationFailed(ctx, e);
+         return e;
+      }
+      finally
+      {
+         synchronized (this)
+         {
+            inFlight.remove(ctx.getId());
+            notifyAll();
+         }
+      }
+   }
+
+   private class Worker implements Runnable
+   {
+      public void run()
+      {
+         while (true)
+         {
+            StatefulBeanContext ctx;
+            synchronized (PassivationPipeline.this)
+            {
+               while (running && queued.isEmpty())
+               {
+                  try
+                  {
+                     PassivationPipeline.this.wait();
+                  }
+                  catch (InterruptedException e)
+                  {
+                     return;
+                  }
+               }
+               if (!running)
+                  return;
+               ctx = take();
+            }
+            RuntimeException e = passivate(ctx);
+            if (e != null)
+               log.error("problem passivating " + ctx.getId(), e);
+         }
+      }
+   }
+}
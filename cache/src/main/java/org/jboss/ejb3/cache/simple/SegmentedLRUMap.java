@@ -0,0 +1,505 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.cache.simple;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded, least recently used ordered map which can be used by many threads at once.
+ * <p>
+ * The entries are spread over a fixed number of segments by the hash of their key. Each segment
+ * keeps its entries in access order, like an access ordered {@link java.util.LinkedHashMap}, and is
+ * guarded by a lock of its own, so that threads using different entries rarely wait for each other,
+ * even though every access reorders its segment.
+ * </p>
+ * <p>
+ * The map as a whole is bounded: once it holds more than <code>maxSize</code> entries, the least
+ * recently used entry of the segment which has just grown is offered to the {@link EvictionPolicy},
+ * which decides whether it may be removed. Since the keys are spread evenly over the segments, this
+ * closely approximates evicting the least recently used entry of the whole map, without a clock or
+ * a lock shared by all the accesses. As with
+ * {@link java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)}, an entry which may not be
+ * removed stops the eviction, and the map stays above <code>maxSize</code>.
+ * </p>
+ * @version $Revision$
+ */
+public class SegmentedLRUMap<K, V>
+{
+   /**
+    * Default number of segments
+    */
+   public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+   /**
+    * Decides whether the least recently used entry may be evicted from a full map
+    */
+   public interface EvictionPolicy<K, V>
+   {
+      /**
+       * Called with the lock of the segment of the entry held.
+       *
+       * @return true if the entry may be removed from the map
+       */
+      boolean evict(K key, V value);
+   }
+
+   /**
+    * Decides, for each entry visited by {@link SegmentedLRUMap#sweep(Sweeper)}, whether it is to be removed
+    */
+   public interface Sweeper<K, V>
+   {
+      /**
+       * Called with the lock of the segment of the entry held.
+       *
+       * @return true if the entry is to be removed from the map
+       */
+      boolean remove(K key, V value);
+   }
+
+   /**
+    * Provides the value of a key which isn't in the map
+    */
+   public interface Loader<K, V>
+   {
+      /**
+       * Called with the lock of the segment of the key held.
+       *
+       * @return the value, which is then put in the map, or null if the key has no value
+       */
+      V load(K key);
+   }
+
+   private final Segment<K, V>[] segments;
+   private final int segmentMask;
+   private final int maxSize;
+   private final EvictionPolicy<K, V> evictionPolicy;
+   private final AtomicInteger size = new AtomicInteger();
+
+   /**
+    * @param maxSize          the number of entries above which entries are evicted, negative for no limit
+    * @param concurrencyLevel the number of threads expected to use the map at once, rounded up to a power of two
+    * @param evictionPolicy   decides whether the least recently used entry may be evicted from a full map
+    */
+   public SegmentedLRUMap(int maxSize, int concurrencyLevel, EvictionPolicy<K, V> evictionPolicy)
+   {
+      if (concurrencyLevel <= 0)
+         throw new IllegalArgumentException("Concurrency level must be positive: " + concurrencyLevel);
+      int segmentCount = 1;
+      while (segmentCount < concurrencyLevel)
+         segmentCount <<= 1;
+      @SuppressWarnings("unchecked")
+      Segment<K, V>[] segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+      for (int i = 0; i < segmentCount; i++)
+         segments[i] = new Segment<K, V>(this);
+      this.segments = segments;
+      this.segmentMask = segmentCount - 1;
+      this.maxSize = maxSize;
+      this.evictionPolicy = evictionPolicy;
+   }
+
+   public SegmentedLRUMap(int maxSize, EvictionPolicy<K, V> evictionPolicy)
+   {
+      this(maxSize, DEFAULT_CONCURRENCY_LEVEL, evictionPolicy);
+   }
+
+   /**
+    * Returns the value of the key, which becomes the most recently used entry
+    */
+   public V get(K key)
+   {
+      return segmentFor(key).get(key);
+   }
+
+   /**
+    * Puts the value, which becomes the most recently used entry, and evicts entries if the map is full
+    *
+    * @return the previous value of the key, or null
+    */
+   public V put(K key, V value)
+   {
+      int index = indexFor(key);
+      V previous = segments[index].put(key, value);
+      evict(index, key);
+      return previous;
+   }
+
+   /**
+    * Returns the value of the key, loading it with the lock of the segment of the key held if it
+    * isn't in the map, so that the key can't be put in the mean time.
+    *
+    * @return the value, or null if the key isn't in the map and the loader returned null
+    */
+   public V get(K key, Loader<K, V> loader)
+   {
+      int index = indexFor(key);
+      Segment<K, V> segment = segments[index];
+      V value;
+      boolean loaded = false;
+      synchronized (segment)
+      {
+         value = segment.getLocked(key);
+         if (value == null)
+         {
+            value = loader.load(key);
+            if (value != null)
+            {
+               segment.putLocked(key, value);
+               loaded = true;
+            }
+         }
+      }
+      if (loaded)
+         evict(index, key);
+      return value;
+   }
+
+   /**
+    * Puts the value, which becomes the most recently used entry, if the key isn't in the map, without
+    * evicting entries. Used to put back an evicted entry which couldn't be disposed of, which would
+    * otherwise be offered to the eviction policy again right away.
+    *
+    * @return true if the value was put
+    */
+   public boolean restore(K key, V value)
+   {
+      Segment<K, V> segment = segmentFor(key);
+      synchronized (segment)
+      {
+         if (segment.map.containsKey(key))
+            return false;
+         segment.putLocked(key, value);
+         return true;
+      }
+   }
+
+   public V remove(K key)
+   {
+      return segmentFor(key).remove(key);
+   }
+
+   /**
+    * Visits each entry, from the least to the most recently used one of each segment, locking one segment at a time
+    */
+   public void sweep(Sweeper<K, V> sweeper)
+   {
+      for (Segment<K, V> segment : segments)
+         segment.sweep(sweeper);
+   }
+
+   /**
+    * Visits the entry of the key, if there is one, with its segment locked
+    *
+    * @return true if the sweeper removed the entry
+    */
+   public boolean sweep(K key, Sweeper<K, V> sweeper)
+   {
+      return segmentFor(key).sweep(key, sweeper);
+   }
+
+   /**
+    * Returns the values, one segment at a time
+    */
+   public List<V> values()
+   {
+      List<V> values = new ArrayList<V>(size());
+      for (Segment<K, V> segment : segments)
+         segment.copyValues(values);
+      return values;
+   }
+
+   public int size()
+   {
+      return size.get();
+   }
+
+   public boolean isEmpty()
+   {
+      return size() == 0;
+   }
+
+   public void clear()
+   {
+      for (Segment<K, V> segment : segments)
+         segment.clear();
+   }
+
+   public int getMaxSize()
+   {
+      return maxSize;
+   }
+
+   private Segment<K, V> segmentFor(Object key)
+   {
+      return segments[indexFor(key)];
+   }
+
+   private int indexFor(Object key)
+   {
+      // spread the hash, so that keys which only differ in their high bits don't share a segment
+      int h = key.hashCode();
+      h ^= (h >>> 20) ^ (h >>> 12);
+      h ^= (h >>> 7) ^ (h >>> 4);
+      return h & segmentMask;
+   }
+
+   /**
+    * Evicts least recently used entries until the map is no longer full, or until the policy refuses to
+    * evict an entry. Entries are evicted from the segment at <code>index</code> first, then from the
+    * following segments if it runs out of entries. The entry of <code>key</code> is never evicted,
+    * since it has just been used.
+    */
+   private void evict(int index, K key)
+   {
+      if (maxSize < 0)
+         return;
+      for (int i = 0; i < segments.length && size.get() > maxSize; i++)
+      {
+         if (!segments[(index + i) & segmentMask].evict(key))
+            return;
+      }
+   }
+
+   /**
+    * An entry, linked to the entries used before and after it in its segment
+    */
+   private static class Node<K, V>
+   {
+      final K key;
+      V value;
+      Node<K, V> previous;
+      Node<K, V> next;
+
+      Node(K key, V value)
+      {
+         this.key = key;
+         this.value = value;
+      }
+   }
+
+   /**
+    * The entries of the keys of one hash range, in access order
+    */
+   private static class Segment<K, V>
+   {
+      final SegmentedLRUMap<K, V> owner;
+      final HashMap<K, Node<K, V>> map = new HashMap<K, Node<K, V>>();
+
+      /**
+       * The least and the most recently used entries
+       */
+      Node<K, V> head;
+      Node<K, V> tail;
+
+      Segment(SegmentedLRUMap<K, V> owner)
+      {
+         this.owner = owner;
+      }
+
+      V get(K key)
+      {
+         synchronized (this)
+         {
+            return getLocked(key);
+         }
+      }
+
+      V getLocked(K key)
+      {
+         Node<K, V> node = map.get(key);
+         if (node == null)
+            return null;
+         touch(node);
+         return node.value;
+      }
+
+      V put(K key, V value)
+      {
+         synchronized (this)
+         {
+            return putLocked(key, value);
+         }
+      }
+
+      V putLocked(K key, V value)
+      {
+         Node<K, V> node = map.get(key);
+         if (node != null)
+         {
+            V previous = node.value;
+            node.value = value;
+            touch(node);
+            return previous;
+         }
+         node = new Node<K, V>(key, value);
+         map.put(key, node);
+         owner.size.incrementAndGet();
+         link(node);
+         return null;
+      }
+
+      V remove(K key)
+      {
+         synchronized (this)
+         {
+            Node<K, V> node = map.remove(key);
+            if (node == null)
+               return null;
+            unlink(node);
+            return node.value;
+         }
+      }
+
+      /**
+       * Offers the eldest entry of the segment to the eviction policy
+       *
+       * @return false if the policy refused to evict the eldest entry, else true
+       */
+      boolean evict(K exclude)
+      {
+         synchronized (this)
+         {
+            Node<K, V> node = head;
+            // another thread may have evicted in the mean time
+            while (node != null && owner.size.get() > owner.maxSize)
+            {
+               Node<K, V> next = node.next;
+               if (node.key.equals(exclude))
+               {
+                  node = next;
+                  continue;
+               }
+               if (!owner.evictionPolicy.evict(node.key, node.value))
+                  return false;
+               map.remove(node.key);
+               unlink(node);
+               node = next;
+            }
+            return true;
+         }
+      }
+
+      void sweep(Sweeper<K, V> sweeper)
+      {
+         synchronized (this)
+         {
+            Node<K, V> node = head;
+            while (node != null)
+            {
+               Node<K, V> next = node.next;
+               if (sweeper.remove(node.key, node.value))
+               {
+                  map.remove(node.key);
+                  unlink(node);
+               }
+               node = next;
+            }
+         }
+      }
+
+      boolean sweep(K key, Sweeper<K, V> sweeper)
+      {
+         synchronized (this)
+         {
+            Node<K, V> node = map.get(key);
+            if (node == null || !sweeper.remove(node.key, node.value))
+               return false;
+            map.remove(node.key);
+            unlink(node);
+            return true;
+         }
+      }
+
+      void copyValues(List<V> values)
+      {
+         synchronized (this)
+         {
+            for (Node<K, V> node = head; node != null; node = node.next)
+               values.add(node.value);
+         }
+      }
+
+      void clear()
+      {
+         synchronized (this)
+         {
+            owner.size.addAndGet(-map.size());
+            map.clear();
+            head = null;
+            tail = null;
+         }
+      }
+
+      /**
+       * Makes the node the most recently used entry. Called with the lock held.
+       */
+      private void touch(Node<K, V> node)
+      {
+         if (node == tail)
+            return;
+         detach(node);
+         link(node);
+      }
+
+      /**
+       * Appends the node as the most recently used entry
+       */
+      private void link(Node<K, V> node)
+      {
+         node.previous = tail;
+         node.next = null;
+         if (tail == null)
+            head = node;
+         else
+            tail.next = node;
+         tail = node;
+      }
+
+      /**
+       * Removes the node from the list, without updating the size
+       */
+      private void detach(Node<K, V> node)
+      {
+         if (node.previous == null)
+            head = node.next;
+         else
+            node.previous.next = node.next;
+         if (node.next == null)
+            tail = node.previous;
+         else
+            node.next.previous = node.previous;
+         node.previous = null;
+         node.next = null;
+      }
+
+      /**
+       * Removes the node of an entry removed from the map
+       */
+      private void unlink(Node<K, V> node)
+      {
+         detach(node);
+         owner.size.decrementAndGet();
+      }
+   }
+}
@@ -26,24 +26,20 @@ import org.jboss.ejb3.annotation.CacheConfig;
 import org.jboss.ejb3.annotation.PersistenceManager;
 import org.jboss.ejb3.cache.AbstractLegacyCache;
 import org.jboss.ejb3.cache.StatefulCache;
+import org.jboss.ejb3.cache.impl.ExpiryQueue;
 import org.jboss.ejb3.cache.legacy.EJBContainer;
 import org.jboss.ejb3.cache.legacy.StatefulBeanContext;
 import org.jboss.ejb3.cache.legacy.StatefulContainer;
 import org.jboss.ejb3.cache.persistence.PersistenceManagerFactory;
 import org.jboss.ejb3.cache.persistence.PersistenceManagerFactoryRegistry;
+import org.jboss.ejb3.effigy.InterceptorEffigy;
 import org.jboss.ejb3.effigy.SessionBeanEffigy;
 import org.jboss.ejb3.effigy.StatefulTimeoutEffigy;
 import org.jboss.logging.Logger;
 
 import javax.ejb.EJBException;
 import javax.ejb.NoSuchEJBException;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Comment
@@ -67,52 +63,58 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
    private int createCount = 0;
    private int passivatedCount = 0;
    private int removeCount = 0;
+   private int passivationQueueCapacity = 100;
+   private int passivationThreadCount = 1;
    
-   private Queue<StatefulBeanContext> passivationQueue = new LinkedBlockingQueue<StatefulBeanContext>();
+   /**
+    * Whether destroying a bean runs no pre-destroy callbacks, so that expired
+    * passivated beans can be removed without activating them
+    */
+   private boolean expireWithoutActivation;
+   
+   /**
+    * The keys of the cached contexts by the time they become idle, and by the time they
+    * are removed, so that the timeout tasks only visit the contexts which are due. Striped
+    * like the cache map, since every request reschedules its context.
+    */
+   private final ExpiryQueue<Object> idleQueue = new ExpiryQueue<Object>(1000, SegmentedLRUMap.DEFAULT_CONCURRENCY_LEVEL);
+   private final ExpiryQueue<Object> removalQueue = new ExpiryQueue<Object>(1000, SegmentedLRUMap.DEFAULT_CONCURRENCY_LEVEL);
+   
+   /**
+    * Passivates the evicted contexts off the request threads, see EJBTHREE-1549
+    */
+   private PassivationPipeline passivations;
 
-   protected class CacheMap extends LinkedHashMap<Object, StatefulBeanContext>
+   /**
+    * The cached contexts, least recently used first. Lookups only lock the segment of the
+    * context, so concurrent requests for different sessions don't wait for each other.
+    */
+   protected class CacheMap extends SegmentedLRUMap<Object, StatefulBeanContext>
    {
-      private static final long serialVersionUID = 4514182777643616159L;
-
       public CacheMap()
       {
-         super(maxSize, 0.75F, true);
-      }
-      
-      public CacheMap(Map<? extends Object, ? extends StatefulBeanContext> original)
-      {
-         super(original);
-      }
-
-      @Override
-      public boolean removeEldestEntry(Map.Entry<Object, StatefulBeanContext> entry)
-      {
-         boolean removeIt = size() > maxSize;
-         if (removeIt)
+         super(maxSize, new SegmentedLRUMap.EvictionPolicy<Object, StatefulBeanContext>()
          {
-            StatefulBeanContext centry = (StatefulBeanContext) entry.getValue();
-            synchronized (centry)
+            public boolean evict(Object key, StatefulBeanContext centry)
             {
-               if (centry.getCanPassivate())
+               synchronized (centry)
                {
-                  passivate(centry);
-                  // its ok to evict because bean will be passivated.
-               }
-               else
-               {
-                  centry.markForPassivation();
-                  
-                  if (!centry.isInUse())
+                  if (centry.getCanPassivate())
                   {
-                     // Can't passivate but not in use means a child bean is 
-                     // in use.
-                     // It's not ok to evict because bean will not be passivated
-                     removeIt = false;
+                     // the pipeline writes the bean once the segment lock is released
+                     passivations.add(centry);
+                     // its ok to evict because bean will be passivated.
+                     return true;
                   }
-               }               
+                  centry.markForPassivation();
+
+                  // Can't passivate but not in use means a child bean is
+                  // in use.
+                  // It's not ok to evict because bean will not be passivated
+                  return centry.isInUse();
+               }
             }
-         }
-         return removeIt;
+         });
       }
    }
    
@@ -156,38 +158,18 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
                // Invoke pre-removal callback
                this.preRemoval();
                
-               long now = System.currentTimeMillis();
+               final long now = System.currentTimeMillis();
                
-               synchronized (cacheMap)
+               if (!running) return;
+               sweepDue(removalQueue, removalTimeout, now, new SegmentedLRUMap.Sweeper<Object, StatefulBeanContext>()
                {
-                  if (!running) return;
-                   
-                  Iterator<Entry<Object, StatefulBeanContext>> it = cacheMap.entrySet().iterator();
-                  while (it.hasNext())
+                  public boolean remove(Object key, StatefulBeanContext centry)
                   {
-                     Entry<Object, StatefulBeanContext> entry = it.next();
-                     StatefulBeanContext centry = entry.getValue();
-                     if (now - centry.lastUsed() >= removalTimeout)
-                     {
-                        synchronized (centry)
-                        {                                                                    
-                           it.remove();
-                        }
-                     }
-                  }                  
-               }
-               
-               List<StatefulBeanContext> beans = pm.getPassivatedBeans();  
-               Iterator<StatefulBeanContext> it = beans.iterator();
-               while (it.hasNext())
-               {       
-                  StatefulBeanContext centry = it.next();
-                  if (now - centry.lastUsed() >= removalTimeout)
-                  {
-                     get(centry.getId(), false);
-                     remove(centry.getId());
+                     return running && now - centry.lastUsed() >= removalTimeout;
                   }
-               }
+               });
+               
+               removeExpiredPassivated(now - removalTimeout + 1);
                
                // Invoke post-removal callback
                this.postRemoval();
@@ -250,17 +232,18 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
                 * operation, so copy the contents quickly and 
                 * perform passivation off a queue.
                 */
-               synchronized (cacheMap)
+               if (!running) return;
+               
+               final boolean trace = log.isTraceEnabled();
+               final long now = System.currentTimeMillis();
+               sweepDue(idleQueue, sessionTimeout * 1000, now, new SegmentedLRUMap.Sweeper<Object, StatefulBeanContext>()
                {
-                  if (!running) return;
-                  
-                  boolean trace = log.isTraceEnabled();
-                  Iterator<Entry<Object, StatefulBeanContext>> it = cacheMap.entrySet().iterator();
-                  long now = System.currentTimeMillis();
-                  while (it.hasNext())
+                  public boolean remove(Object key, StatefulBeanContext centry)
                   {
-                     Entry<Object, StatefulBeanContext> entry = it.next();
-                     StatefulBeanContext centry = entry.getValue();
+                     if (!running)
+                     {
+                        return false;
+                     }
                      if (now - centry.lastUsed() >= sessionTimeout * 1000)
                      {
                         synchronized (centry)
@@ -269,11 +252,11 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
                            {
                               if (!centry.getCanRemoveFromCache())
                               {
-                                 passivationQueue.add(centry);
+                                 passivations.add(centry);
                               }
                               else if (trace)
                               {
-                                 log.trace("Removing " + entry.getKey() + " from cache");
+                                 log.trace("Removing " + key + " from cache");
                               }
                            }
                            else
@@ -283,7 +266,7 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
                            }
                            // its ok to evict because it will be passivated
                            // or we determined above that we can remove it
-                           it.remove();
+                           return true;
                         }
                      }
                      else if (trace)
@@ -291,16 +274,14 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
                         log.trace("Not passivating; id=" + centry.getId() +
                               " only inactive " + Math.max(0, now - centry.lastUsed()) + " ms");
                      }
-                  }                  
-               }
+                     return false;
+                  }
+               });
                
                prePassivationCompleted();
                
-               StatefulBeanContext ctx;
-               while ((ctx = passivationQueue.poll()) != null)
-               {  
-                  passivate(ctx);
-               }
+               // help the pipeline workers, so that everything selected is passivated when we're done
+               passivations.drain();
                
                // Make internal callback that we're done
                this.passivationCompleted();
@@ -316,21 +297,36 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
 
    public void initialize(EJBContainer container) throws Exception
    {
-      this.container = (StatefulContainer) container;
       Advisor advisor = container.getAdvisor();
-      cacheMap = new CacheMap();
       PersistenceManager pmConfig = (PersistenceManager) advisor.resolveAnnotation(PersistenceManager.class);
       EJBContainer ejbContainer = (EJBContainer)container;
       String pmConfigValue = pmConfig.value();
       PersistenceManagerFactoryRegistry pmFactoryRegistry = ejbContainer.getDeployment()
             .getPersistenceManagerFactoryRegistry();
       PersistenceManagerFactory pmFactory = pmFactoryRegistry.getPersistenceManagerFactory(pmConfigValue);
-      this.pm = pmFactory.createPersistenceManager();
+      StatefulSessionPersistenceManager pm = pmFactory.createPersistenceManager();
       pm.initialize(container);
       CacheConfig config = (CacheConfig) advisor.resolveAnnotation(CacheConfig.class);
-      maxSize = config.maxSize();
-      sessionTimeout = config.idleTimeoutSeconds();
-      removalTimeout = config.removalTimeoutSeconds() * 1000;
+      initialize((StatefulContainer) container, pm, config.maxSize(), config.idleTimeoutSeconds(),
+            config.removalTimeoutSeconds() * 1000);
+   }
+
+   /**
+    * Initializes the cache with its configuration resolved.
+    *
+    * @param pm                   the initialized persistence manager the contexts are passivated to
+    * @param idleTimeoutSeconds   the idle time after which contexts are passivated
+    * @param removalTimeoutMillis the idle time after which contexts are removed, 0 for never, overridden
+    *                             by the stateful timeout of the bean
+    */
+   protected void initialize(StatefulContainer container, StatefulSessionPersistenceManager pm, int maxSize,
+         long idleTimeoutSeconds, long removalTimeoutMillis)
+   {
+      this.container = container;
+      this.pm = pm;
+      this.maxSize = maxSize;
+      sessionTimeout = idleTimeoutSeconds;
+      removalTimeout = removalTimeoutMillis;
       SessionBeanEffigy effigy = this.container.getEffigy();
       if(effigy != null)
       {
@@ -345,6 +341,24 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
                removalTimeout = 1;
          }
       }
+      expireWithoutActivation = effigy != null && !hasPreDestroys(effigy);
+      // the cache map is bounded by the configured max size
+      cacheMap = new CacheMap();
+      passivations = new PassivationPipeline("SFSB Passivation Worker - " + container.getObjectName().getCanonicalName(),
+            passivationQueueCapacity, passivationThreadCount, new PassivationPipeline.Passivator()
+            {
+               public void passivate(StatefulBeanContext ctx)
+               {
+                  SimpleStatefulCache.this.passivate(ctx);
+               }
+
+               public void passivationFailed(StatefulBeanContext ctx, RuntimeException e)
+               {
+                  // keep the session cached, as if it had never been evicted
+                  if (cacheMap.restore(ctx.getId(), ctx))
+                     scheduleExpiry(ctx.getId());
+               }
+            });
       log = Logger.getLogger(getClass().getName() + "." + container.getEjbName());
       log.debug("Initializing SimpleStatefulCache with maxSize: " +maxSize + " timeout: " +sessionTimeout +
               " for " +container.getObjectName().getCanonicalName() );
@@ -361,6 +375,7 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
    public void start()
    {
       running = true;
+      passivations.start();
       timeoutTask.start();
       
       if (removalTask != null)
@@ -369,21 +384,21 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
 
    public void stop()
    {
-      synchronized (cacheMap)
+      running = false;
+      timeoutTask.interrupt();
+      if (removalTask != null)
+         removalTask.interrupt();
+      cacheMap.clear();
+      idleQueue.clear();
+      removalQueue.clear();
+      passivations.stop();
+      try
       {
-         running = false;
-         timeoutTask.interrupt();
-         if (removalTask != null)
-            removalTask.interrupt();
-         cacheMap.clear();
-         try
-         {
-            pm.destroy();
-         }
-         catch (Exception e)
-         {
-            throw new RuntimeException(e);
-         }
+         pm.destroy();
+      }
+      catch (Exception e)
+      {
+         throw new RuntimeException(e);
       }
    }
 
@@ -405,6 +420,137 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
       }
    }
 
+   /**
+    * Offers the contexts which are due in the queue to the sweeper, one at a time with the segment
+    * of the context locked. The contexts the sweeper keeps are scheduled again for their last use
+    * plus the timeout, since they may have been used since they were scheduled.
+    */
+   private void sweepDue(final ExpiryQueue<Object> queue, final long timeout, long now,
+         final SegmentedLRUMap.Sweeper<Object, StatefulBeanContext> sweeper)
+   {
+      SegmentedLRUMap.Sweeper<Object, StatefulBeanContext> rescheduling = new SegmentedLRUMap.Sweeper<Object, StatefulBeanContext>()
+      {
+         public boolean remove(Object key, StatefulBeanContext centry)
+         {
+            if (sweeper.remove(key, centry))
+               return true;
+            queue.schedule(key, centry.lastUsed() + timeout);
+            return false;
+         }
+      };
+      for (Object key : queue.pollDue(now))
+      {
+         if (!running)
+            return;
+         // contexts which left the cache in the mean time are dropped from the queue here
+         cacheMap.sweep(key, rescheduling);
+      }
+   }
+   
+   /**
+    * Schedules the expiry of a context which has just been used.
+    */
+   private void scheduleExpiry(Object key)
+   {
+      long now = System.currentTimeMillis();
+      idleQueue.schedule(key, now + sessionTimeout * 1000);
+      if (removalTimeout > 0)
+         removalQueue.schedule(key, now + removalTimeout);
+   }
+   
+   /**
+    * Removes the passivated beans last used before the given time. If destroying the bean
+    * runs no callbacks, their state is just deleted. Otherwise they are activated and destroyed
+    * one by one on the calling thread at low priority, without going through the cache map,
+    * so that the recently used beans aren't evicted to make room for them.
+    */
+   protected void removeExpiredPassivated(long lastUsedBefore)
+   {
+      // the index of the persistence manager knows which sessions expired, without loading them
+      List<Object> expired = pm.getExpiredPassivatedIds(lastUsedBefore);
+      if (expired.isEmpty())
+         return;
+      if (expireWithoutActivation)
+      {
+         for (Object id : expired)
+         {
+            if (!running)
+               return;
+            // passivation and activation hold the pm lock too, so the bean can't be used
+            // while it is deleted. It may have been activated, or passivated again, since
+            // the ids were taken, in which case it is left alone.
+            synchronized (pm)
+            {
+               if (!pm.removePassivatedIfExpired(id, lastUsedBefore))
+                  continue;
+            }
+            if (log.isTraceEnabled())
+            {
+               log.trace("Removing expired passivated context " + id);
+            }
+            --passivatedCount;
+            ++removeCount;
+         }
+         return;
+      }
+      
+      Thread current = Thread.currentThread();
+      int priority = current.getPriority();
+      current.setPriority(Thread.MIN_PRIORITY);
+      try
+      {
+         for (Object id : expired)
+         {
+            if (!running)
+               return;
+            StatefulBeanContext ctx;
+            synchronized (pm)
+            {
+               // null if it has been activated in the mean time
+               ctx = pm.activateSession(id);
+            }
+            if (ctx == null)
+               continue;
+            --passivatedCount;
+            if (log.isTraceEnabled())
+            {
+               log.trace("Destroying expired passivated context " + id);
+            }
+            if (!ctx.isRemoved())
+               container.destroy(ctx);
+            ++removeCount;
+         }
+      }
+      finally
+      {
+         current.setPriority(priority);
+      }
+   }
+   
+   /**
+    * @return true if the bean or one of its interceptors has pre-destroy callbacks
+    */
+   private static boolean hasPreDestroys(SessionBeanEffigy effigy)
+   {
+      if (isNotEmpty(effigy.getPreDestroys()))
+         return true;
+      Iterable<InterceptorEffigy> interceptors = effigy.getAllInterceptors();
+      if (interceptors != null)
+      {
+         for (InterceptorEffigy interceptor : interceptors)
+         {
+            if (isNotEmpty(interceptor.getPreDestroys()))
+               return true;
+         }
+      }
+      return false;
+   }
+   
+   private static boolean isNotEmpty(Iterable<?> iterable)
+   {
+      return iterable != null && iterable.iterator().hasNext();
+   }
+
    public StatefulBeanContext create()
    {
       return create(null, null);
@@ -420,13 +566,12 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
          {
             log.trace("Caching context " + ctx.getId() + " of type " + ctx.getClass());
          }
-         synchronized (cacheMap)
-         {
-            cacheMap.put(ctx.getId(), ctx);
-            ctx.setInUse(true);
-            //ctx.lastUsed = System.currentTimeMillis();
-         }
+         cacheMap.put(ctx.getId(), ctx);
+         ctx.setInUse(true);
+         //ctx.lastUsed = System.currentTimeMillis();
+         scheduleExpiry(ctx.getId());
          ++createCount;
+         passivations.throttle();
       }
       catch (EJBException e)
       {
@@ -448,45 +593,30 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
    
    public StatefulBeanContext get(Object key, boolean markInUse) throws EJBException
    {
-      StatefulBeanContext entry = null;
-      synchronized (cacheMap)
-      {
-         entry = cacheMap.get(key);
-      }
+      StatefulBeanContext entry = cacheMap.get(key);
       if(entry == null)
       {
-         // TODO: optimize
-         synchronized (cacheMap)
+         // the passivation is canceled with the segment of the key locked, so that
+         // the context can't be evicted to the pipeline in the mean time
+         entry = cacheMap.get(key, new SegmentedLRUMap.Loader<Object, StatefulBeanContext>()
          {
-            entry = cacheMap.get(key);
-            if(entry == null)
+            public StatefulBeanContext load(Object id)
             {
-               Iterator<StatefulBeanContext> i = passivationQueue.iterator();
-               while(i.hasNext())
-               {
-                  StatefulBeanContext ctx = i.next();
-                  if(ctx.getId().equals(key))
-                  {
-                     boolean passivationCanceled = passivationQueue.remove(ctx);
-                     if(passivationCanceled)
-                     {
-                        entry = ctx;
-                        cacheMap.put(key, entry);
-                     }
-                     break;
-                  }
-               }
+               return passivations.cancel(id);
             }
+         });
+         if (entry != null)
+         {
+            scheduleExpiry(key);
          }
       }
       if (entry == null)
       {
+         // too late to cancel, wait for the write to finish before activating
+         passivations.awaitPassivation(key);
          synchronized(pm)
          {
-            synchronized (cacheMap)
-            {
-               entry = cacheMap.get(key);
-            }
+            entry = cacheMap.get(key);
             if(entry == null)
             {
                entry = pm.activateSession(key);
@@ -503,12 +633,11 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
                   log.trace("Caching activated context " + entry.getId() + " of type " + entry.getClass());
                }
                
-               synchronized (cacheMap)
-               {
-                  cacheMap.put(key, entry);
-               }
+               cacheMap.put(key, entry);
+               scheduleExpiry(key);
             }
          }
+         passivations.throttle();
       }
       
       // Now we know entry isn't null
@@ -538,6 +667,7 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
       {
          ctx.setInUse(false);
          //ctx.lastUsed = System.currentTimeMillis();
+         scheduleExpiry(ctx.getId());
          if (ctx.isMarkedForPassivation())
          {
             passivate(ctx);
@@ -565,10 +695,9 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
       
       if (ctx.getCanRemoveFromCache())
       {
-         synchronized (cacheMap)
-         {
-            cacheMap.remove(key);
-         }
+         cacheMap.remove(key);
+         idleQueue.cancel(key);
+         removalQueue.cancel(key);
       }
    }
 
@@ -579,7 +708,7 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
 
    public int getTotalSize()
    {
-      return getCacheSize() + getPassivatedCount();
+      return getCacheSize() + passivations.getQueuedCount() + getPassivatedCount();
    }
    
    public int getCreateCount()
@@ -653,4 +782,31 @@ public class SimpleStatefulCache extends AbstractLegacyCache implements Stateful
    {
       this.removalTask = removalTask;
    }
+
+   protected int getPassivationQueueCapacity()
+   {
+      return passivationQueueCapacity;
+   }
+
+   /**
+    * Sets the number of evicted contexts which may wait for passivation before the request
+    * threads evicting more contexts passivate them themselves. Must be set before initialize.
+    */
+   protected void setPassivationQueueCapacity(int passivationQueueCapacity)
+   {
+      this.passivationQueueCapacity = passivationQueueCapacity;
+   }
+
+   protected int getPassivationThreadCount()
+   {
+      return passivationThreadCount;
+   }
+
+   /**
+    * Sets the number of threads passivating evicted contexts. Must be set before initialize.
+    */
+   protected void setPassivationThreadCount(int passivationThreadCount)
+   {
+      this.passivationThreadCount = passivationThreadCount;
+   }
 }
@@ -91,6 +91,12 @@ public class StatefulSessionFilePersistenceManager implements StatefulSessionPer
     */
    private boolean purgeEnabled = true;
 
+   /**
+    * The last use of the passivated sessions, so that expired sessions
+    * can be found without reading their state files.
+    */
+   private final PassivationIndex index = new PassivationIndex();
+
    /**
     * Set the sub-directory name under the server data directory
     * where session data will be stored.
@@ -226,6 +232,8 @@ public class StatefulSessionFilePersistenceManager implements StatefulSessionPer
 
       log.debug("Purging all session data in: " + storeDir);
 
+      index.clear();
+
       File[] sessions = storeDir.listFiles();
       for (int i = 0; i < sessions.length; i++)
       {
@@ -292,20 +300,7 @@ public class StatefulSessionFilePersistenceManager implements StatefulSessionPer
       StatefulBeanContext bean = null;
       try
       {
-         FileInputStream fis = FISAction.open(file);
-         // todo need to rewrite SessionObjectInputStream to support EJB3 classes
-         ObjectInputStream in;
-
-         in = new JBossObjectInputStream(new BufferedInputStream(fis));
-         try
-         {
-            bean = (StatefulBeanContext) in.readObject();
-         }
-         finally
-         {
-            fis.close();
-            in.close();
-         }
+         bean = readState(file);
       }
       catch (EJBException e)
       {
@@ -323,6 +318,24 @@ public class StatefulSessionFilePersistenceManager implements StatefulSessionPer
       return bean;
    }
    
+   private StatefulBeanContext readState(File file) throws Exception
+   {
+      FileInputStream fis = FISAction.open(file);
+      // todo need to rewrite SessionObjectInputStream to support EJB3 classes
+      ObjectInputStream in;
+
+      in = new JBossObjectInputStream(new BufferedInputStream(fis));
+      try
+      {
+         return (StatefulBeanContext) in.readObject();
+      }
+      finally
+      {
+         fis.close();
+         in.close();
+      }
+   }
+   
    public List<StatefulBeanContext> getPassivatedBeans()
    {
       List beans = new LinkedList();
@@ -332,21 +345,7 @@ public class StatefulSessionFilePersistenceManager implements StatefulSessionPer
       {
          try
          {
-            ObjectInputStream in;
-            
-            FileInputStream fis = FISAction.open(file);
-   
-            in = new JBossObjectInputStream(new BufferedInputStream(fis));
-            try
-            {
-               StatefulBeanContext bean = (StatefulBeanContext) in.readObject();
-               beans.add(bean);
-            }
-            finally
-            {
-               fis.close();
-               in.close();
-            }
+            beans.add(readState(file));
          }
          catch (Exception e)
          {
@@ -407,12 +406,36 @@ public class StatefulSessionFilePersistenceManager implements StatefulSessionPer
          throw new EJBException("Could not passivate; failed to save state", e);
       }
 
+      index.put(ctx.getId(), ctx.lastUsed(), file.length());
+
       if (debug)
       {
          log.debug("Passivation complete; id=" + ctx.getId());
       }
    }
 
+   /**
+    * Returns the ids of the passivated sessions last used before the given time,
+    * from the index, without reading their state files.
+    */
+   public List<Object> getExpiredPassivatedIds(long lastUsedBefore)
+   {
+      return index.getLastUsedBefore(lastUsedBefore);
+   }
+
+   /**
+    * Removes the saved state file of the given session, if the index still has it last used
+    * before the given time.
+    */
+   public boolean removePassivatedIfExpired(Object id, long lastUsedBefore)
+   {
+      PassivationIndex.Entry entry = index.get(id);
+      if (entry == null || entry.lastUsed >= lastUsedBefore)
+         return false;
+      removePassivated(id);
+      return true;
+   }
+
    /**
     * Removes the saved state file (if any) for the given session id.
     */
@@ -420,6 +443,8 @@ public class StatefulSessionFilePersistenceManager implements StatefulSessionPer
    {
       boolean debug = log.isDebugEnabled();
 
+      index.remove(id);
+
       File file = getFile(id);
 
       // only attempt to delete if the file exists
@@ -55,11 +55,25 @@ public interface StatefulSessionPersistenceManager
    
    List<StatefulBeanContext> getPassivatedBeans();
 
+   /**
+    * Returns the ids of the passivated sessions last used before the given time,
+    * without restoring their state.
+    */
+   List<Object> getExpiredPassivatedIds(long lastUsedBefore);
+
    /**
     * Removes the saved state file (if any) for the given session id.
     */
    void removePassivated(Object id);
 
+   /**
+    * Removes the saved state of the given session, if it is still passivated and was last used
+    * before the given time.
+    *
+    * @return true if the state was removed
+    */
+   boolean removePassivatedIfExpired(Object id, long lastUsedBefore);
+
    void destroy() throws Exception;
 
    public void initialize(Container container) throws Exception;
@@ -0,0 +1,121 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.cache.impl;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the ordering of keys by their expiry
+ *
+ * @version $Revision: $
+ */
+public class ExpiryQueueUnitTestCase extends TestCase
+{
+   public void testPollDue()
+   {
+      ExpiryQueue<String> queue = new ExpiryQueue<String>(10);
+      queue.schedule("c", 300);
+      queue.schedule("a", 100);
+      queue.schedule("b", 200);
+      
+      assertTrue(queue.pollDue(99).isEmpty());
+      List<String> due = queue.pollDue(200);
+      assertEquals(2, due.size());
+      assertEquals("a", due.get(0));
+      assertEquals("b", due.get(1));
+      assertEquals(1, queue.size());
+      // polled keys are gone
+      assertTrue(queue.pollDue(200).isEmpty());
+   }
+   
+   /**
+    * Deadlines are rounded up, a key is never due before its deadline
+    */
+   public void testResolution()
+   {
+      ExpiryQueue<String> queue = new ExpiryQueue<String>(100);
+      queue.schedule("a", 101);
+      assertTrue(queue.pollDue(150).isEmpty());
+      assertTrue(queue.pollDue(199).isEmpty());
+      assertEquals(1, queue.pollDue(200).size());
+   }
+   
+   /**
+    * Scheduling a key again replaces its deadline
+    */
+   public void testReschedule()
+   {
+      ExpiryQueue<String> queue = new ExpiryQueue<String>(10);
+      queue.schedule("a", 100);
+      queue.schedule("b", 100);
+      queue.schedule("a", 500);
+      assertEquals(2, queue.size());
+      
+      List<String> due = queue.pollDue(100);
+      assertEquals(1, due.size());
+      assertEquals("b", due.get(0));
+      
+      queue.schedule("a", 50);
+      due = queue.pollDue(100);
+      assertEquals(1, due.size());
+      assertEquals("a", due.get(0));
+      assertTrue(queue.pollDue(1000).isEmpty());
+   }
+   
+   public void testCancel()
+   {
+      ExpiryQueue<String> queue = new ExpiryQueue<String>(10);
+      queue.schedule("a", 100);
+      queue.schedule("b", 100);
+      queue.cancel("a");
+      queue.cancel("c");
+      assertEquals(1, queue.size());
+      List<String> due = queue.pollDue(100);
+      assertEquals(1, due.size());
+      assertEquals("b", due.get(0));
+   }
+   
+   /**
+    * The due keys of all the stripes are returned together, earliest first
+    */
+   public void testStripes()
+   {
+      ExpiryQueue<Integer> queue = new ExpiryQueue<Integer>(10, 16);
+      for(int i = 99; i >= 0; i--)
+         queue.schedule(i, 1000 + i * 10);
+      assertEquals(100, queue.size());
+      
+      List<Integer> due = queue.pollDue(1495);
+      assertEquals(50, due.size());
+      for(int i = 0; i < 50; i++)
+         assertEquals(Integer.valueOf(i), due.get(i));
+      assertEquals(50, queue.size());
+      
+      queue.cancel(60);
+      assertEquals(49, queue.size());
+      queue.clear();
+      assertEquals(0, queue.size());
+      assertTrue(queue.pollDue(10000).isEmpty());
+   }
+}
@@ -0,0 +1,143 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.cache.impl;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb3.cache.Identifiable;
+import org.jboss.ejb3.cache.ObjectStore;
+import org.jboss.ejb3.cache.PassivationManager;
+import org.jboss.ejb3.cache.StatefulObjectFactory;
+
+/**
+ * Tests of the idle sweep of the {@link SimplePassivatingCache}
+ *
+ * @version $Revision: $
+ */
+public class SimplePassivatingCacheUnitTestCase extends TestCase
+{
+   private static class MockSession implements Identifiable, Serializable
+   {
+      private static final long serialVersionUID = 1L;
+      
+      private static int nextId;
+      
+      private final Integer id = nextId++;
+      
+      public Serializable getId()
+      {
+         return id;
+      }
+   }
+   
+   /**
+    * Keeps the passivated sessions in memory
+    */
+   private static class MockStore implements ObjectStore<MockSession>
+   {
+      private final Map<Object, MockSession> stored = new HashMap<Object, MockSession>();
+      
+      public synchronized MockSession load(Object key)
+      {
+         return stored.remove(key);
+      }
+      
+      public synchronized void store(MockSession obj)
+      {
+         stored.put(obj.getId(), obj);
+      }
+      
+      synchronized boolean contains(MockSession obj)
+      {
+         return stored.containsKey(obj.getId());
+      }
+   }
+   
+   private final MockStore store = new MockStore();
+   
+   private SimplePassivatingCache<MockSession> cache(int sessionTimeout)
+   {
+      PassivationManager<MockSession> passivationManager = new PassivationManager<MockSession>()
+      {
+         public void postActivate(MockSession obj)
+         {
+         }
+         
+         public void prePassivate(MockSession obj)
+         {
+         }
+      };
+      SimplePassivatingCache<MockSession> cache = new SimplePassivatingCache<MockSession>(passivationManager, store);
+      cache.setName("test");
+      cache.setSessionTimeout(sessionTimeout);
+      cache.setStatefulObjectFactory(new StatefulObjectFactory<MockSession>()
+      {
+         public MockSession createInstance()
+         {
+            return new MockSession();
+         }
+         
+         public void destroyInstance(MockSession obj)
+         {
+         }
+      });
+      return cache;
+   }
+   
+   /**
+    * A session idle for the session timeout is passivated, a session which keeps being used isn't
+    */
+   public void testIdleSweep() throws Exception
+   {
+      SimplePassivatingCache<MockSession> cache = cache(1);
+      cache.start();
+      try
+      {
+         MockSession idle = cache.create();
+         cache.release(idle);
+         MockSession touched = cache.create();
+         cache.release(touched);
+         // the touched session is never idle for more than a fraction of the timeout
+         long giveUp = System.currentTimeMillis() + 10000;
+         while(!store.contains(idle) && System.currentTimeMillis() < giveUp)
+         {
+            assertSame(touched, cache.get(touched.getId()));
+            cache.release(touched);
+            Thread.sleep(50);
+         }
+         assertTrue("idle session was not passivated", store.contains(idle));
+         assertFalse("used session was passivated", store.contains(touched));
+         
+         // the passivated session is activated again on use
+         assertSame(idle, cache.get(idle.getId()));
+         assertFalse(store.contains(idle));
+      }
+      finally
+      {
+         cache.stop();
+      }
+   }
+}
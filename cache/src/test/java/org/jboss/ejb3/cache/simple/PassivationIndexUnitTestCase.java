@@ -0,0 +1,66 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.cache.simple;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the index of passivated sessions
+ *
+ * @version $Revision: $
+ */
+public class PassivationIndexUnitTestCase extends TestCase
+{
+   public void testExpired() throws Exception
+   {
+      PassivationIndex index = new PassivationIndex();
+      index.put("a", 100, 10);
+      index.put("b", 200, 20);
+      index.put("c", 300, 30);
+      index.remove("b");
+
+      List<Object> expired = index.getLastUsedBefore(300);
+      assertEquals(1, expired.size());
+      assertEquals("a", expired.get(0));
+      assertEquals(2, index.getLastUsedBefore(301).size());
+      assertEquals(30, index.get("c").size);
+   }
+
+   /**
+    * A session passivated again is indexed with its latest use
+    */
+   public void testPassivatedAgain() throws Exception
+   {
+      PassivationIndex index = new PassivationIndex();
+      index.put("a", 100, 10);
+      index.put("a", 200, 15);
+      assertEquals(1, index.size());
+      assertEquals(0, index.getLastUsedBefore(200).size());
+      assertEquals(15, index.get("a").size);
+
+      index.clear();
+      assertEquals(0, index.size());
+      assertNull(index.get("a"));
+   }
+}
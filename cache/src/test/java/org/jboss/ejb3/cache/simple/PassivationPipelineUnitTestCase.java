@@ -0,0 +1,275 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.cache.simple;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb3.cache.legacy.StatefulBeanContext;
+
+/**
+ * Tests of the asynchronous passivation of evicted contexts
+ *
+ * @version $Revision: $
+ */
+public class PassivationPipelineUnitTestCase extends TestCase
+{
+   private static StatefulBeanContext context(final Object id)
+   {
+      return (StatefulBeanContext) Proxy.newProxyInstance(StatefulBeanContext.class.getClassLoader(),
+            new Class<?>[] {StatefulBeanContext.class}, new InvocationHandler()
+            {
+               public Object invoke(Object proxy, Method method, Object[] args)
+               {
+                  if (method.getName().equals("getId"))
+                     return id;
+                  if (method.getName().equals("toString"))
+                     return "context " + id;
+                  if (method.getName().equals("hashCode"))
+                     return System.identityHashCode(proxy);
+                  if (method.getName().equals("equals"))
+                     return proxy == args[0];
+                  throw new UnsupportedOperationException(method.getName());
+               }
+            });
+   }
+
+   /**
+    * Records the passivated contexts, optionally blocking until released, and fails to passivate
+    * the contexts in <code>failing</code>
+    */
+   private static class RecordingPassivator implements PassivationPipeline.Passivator
+   {
+      final List<Object> passivated = new ArrayList<Object>();
+      final List<String> threads = new ArrayList<String>();
+      final List<Object> failed = new ArrayList<Object>();
+      final Set<Object> failing = new HashSet<Object>();
+      final CountDownLatch started = new CountDownLatch(1);
+      volatile CountDownLatch release;
+
+      public void passivate(StatefulBeanContext ctx)
+      {
+         started.countDown();
+         synchronized (this)
+         {
+            if (failing.contains(ctx.getId()))
+               throw new IllegalStateException("can't passivate " + ctx.getId());
+         }
+         CountDownLatch latch = release;
+         if (latch != null)
+         {
+            try
+            {
+               latch.await();
+            }
+            catch (InterruptedException e)
+            {
+               throw new RuntimeException(e);
+            }
+         }
+         synchronized (this)
+         {
+            passivated.add(ctx.getId());
+            threads.add(Thread.currentThread().getName());
+         }
+      }
+
+      public synchronized void passivationFailed(StatefulBeanContext ctx, RuntimeException e)
+      {
+         failed.add(ctx.getId());
+      }
+   }
+
+   public void testWorkersPassivate() throws Exception
+   {
+      RecordingPassivator passivator = new RecordingPassivator();
+      PassivationPipeline pipeline = new PassivationPipeline("worker", 10, 2, passivator);
+      pipeline.start();
+      try
+      {
+         for (int i = 0; i < 5; i++)
+            pipeline.add(context(i));
+         pipeline.drain();
+         assertEquals(0, pipeline.getQueuedCount());
+         synchronized (passivator)
+         {
+            assertEquals(5, passivator.passivated.size());
+         }
+      }
+      finally
+      {
+         pipeline.stop();
+      }
+   }
+
+   /**
+    * A queued context is taken back without being passivated
+    */
+   public void testCancel()
+   {
+      RecordingPassivator passivator = new RecordingPassivator();
+      PassivationPipeline pipeline = new PassivationPipeline("worker", 10, 1, passivator);
+      StatefulBeanContext ctx = context("a");
+      pipeline.add(ctx);
+      pipeline.add(context("b"));
+      assertSame(ctx, pipeline.cancel("a"));
+      assertNull(pipeline.cancel("a"));
+      assertEquals(1, pipeline.getQueuedCount());
+
+      pipeline.drain();
+      assertEquals(1, passivator.passivated.size());
+      assertEquals("b", passivator.passivated.get(0));
+   }
+
+   /**
+    * Once the workers fall behind, the adding thread passivates the eldest contexts itself
+    */
+   public void testThrottle()
+   {
+      RecordingPassivator passivator = new RecordingPassivator();
+      // not started, so nothing is passivated by the workers
+      PassivationPipeline pipeline = new PassivationPipeline("worker", 2, 1, passivator);
+      for (int i = 0; i < 5; i++)
+         pipeline.add(context(i));
+      pipeline.throttle();
+      assertEquals(2, pipeline.getQueuedCount());
+      assertEquals(3, passivator.passivated.size());
+      assertEquals(0, passivator.passivated.get(0));
+      assertEquals(Thread.currentThread().getName(), passivator.threads.get(0));
+   }
+
+   /**
+    * A context being written can't be canceled, but can be waited for
+    */
+   public void testAwaitPassivation() throws Exception
+   {
+      RecordingPassivator passivator = new RecordingPassivator();
+      passivator.release = new CountDownLatch(1);
+      PassivationPipeline pipeline = new PassivationPipeline("worker", 10, 1, passivator);
+      pipeline.start();
+      try
+      {
+         pipeline.add(context("a"));
+         assertTrue(passivator.started.await(5, TimeUnit.SECONDS));
+         assertNull(pipeline.cancel("a"));
+
+         final CountDownLatch done = new CountDownLatch(1);
+         final PassivationPipeline p = pipeline;
+         new Thread()
+         {
+            public void run()
+            {
+               p.awaitPassivation("a");
+               done.countDown();
+            }
+         }.start();
+         assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+
+         passivator.release.countDown();
+         assertTrue(done.await(5, TimeUnit.SECONDS));
+         synchronized (passivator)
+         {
+            assertEquals("a", passivator.passivated.get(0));
+         }
+      }
+      finally
+      {
+         pipeline.stop();
+      }
+   }
+
+   /**
+    * A context which can't be passivated is handed back, and the error is thrown to the thread which
+    * passivated it
+    */
+   public void testPassivationFailure()
+   {
+      RecordingPassivator passivator = new RecordingPassivator();
+      passivator.failing.add(0);
+      PassivationPipeline pipeline = new PassivationPipeline("worker", 1, 1, passivator);
+      for (int i = 0; i < 3; i++)
+         pipeline.add(context(i));
+      try
+      {
+         pipeline.throttle();
+         fail("passivation failure was not thrown");
+      }
+      catch (IllegalStateException expected)
+      {
+      }
+      assertEquals(1, passivator.failed.size());
+      assertEquals(0, passivator.failed.get(0));
+      assertTrue(passivator.passivated.isEmpty());
+      // the remaining contexts are still queued
+      assertEquals(2, pipeline.getQueuedCount());
+
+      pipeline.throttle();
+      assertEquals(1, passivator.passivated.size());
+      assertEquals(1, passivator.failed.size());
+   }
+
+   /**
+    * A context the workers can't passivate is handed back before it can be waited for
+    */
+   public void testWorkerPassivationFailure() throws Exception
+   {
+      RecordingPassivator passivator = new RecordingPassivator();
+      passivator.failing.add("a");
+      passivator.release = new CountDownLatch(1);
+      PassivationPipeline pipeline = new PassivationPipeline("worker", 10, 1, passivator);
+      pipeline.start();
+      try
+      {
+         pipeline.add(context("a"));
+         pipeline.add(context("b"));
+         assertTrue(passivator.started.await(5, TimeUnit.SECONDS));
+         pipeline.awaitPassivation("a");
+         synchronized (passivator)
+         {
+            assertEquals(1, passivator.failed.size());
+            assertEquals("a", passivator.failed.get(0));
+         }
+
+         // the workers carry on with the next context
+         passivator.release.countDown();
+         pipeline.drain();
+         synchronized (passivator)
+         {
+            assertEquals(1, passivator.passivated.size());
+            assertEquals("b", passivator.passivated.get(0));
+         }
+      }
+      finally
+      {
+         pipeline.stop();
+      }
+   }
+}
@@ -0,0 +1,232 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.cache.simple;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests the {@link SegmentedLRUMap}
+ *
+ * @version $Revision: $
+ */
+public class SegmentedLRUMapUnitTestCase extends TestCase
+{
+   /**
+    * Records the evicted keys, and refuses to evict the keys in <code>pinned</code>
+    */
+   private static class RecordingPolicy implements SegmentedLRUMap.EvictionPolicy<Integer, String>
+   {
+      final List<Integer> evicted = new ArrayList<Integer>();
+      final Set<Integer> pinned = new HashSet<Integer>();
+
+      public synchronized boolean evict(Integer key, String value)
+      {
+         if (pinned.contains(key))
+            return false;
+         evicted.add(key);
+         return true;
+      }
+   }
+
+   /**
+    * The least recently used entry of the segment is evicted first
+    */
+   public void testEvictsLeastRecentlyUsed()
+   {
+      RecordingPolicy policy = new RecordingPolicy();
+      SegmentedLRUMap<Integer, String> map = new SegmentedLRUMap<Integer, String>(10, 1, policy);
+      for (int i = 0; i < 10; i++)
+         map.put(i, "v" + i);
+      // 0 and 1 become the most recently used
+      assertEquals("v0", map.get(0));
+      assertEquals("v1", map.get(1));
+
+      map.put(10, "v10");
+      map.put(11, "v11");
+      assertEquals(10, map.size());
+      assertEquals(2, policy.evicted.size());
+      assertEquals(Integer.valueOf(2), policy.evicted.get(0));
+      assertEquals(Integer.valueOf(3), policy.evicted.get(1));
+      assertNull(map.get(2));
+      assertEquals("v0", map.get(0));
+   }
+
+   /**
+    * An entry which may not be evicted stops the eviction, and the map grows beyond its max size
+    */
+   public void testRefusedEviction()
+   {
+      RecordingPolicy policy = new RecordingPolicy();
+      policy.pinned.add(0);
+      SegmentedLRUMap<Integer, String> map = new SegmentedLRUMap<Integer, String>(2, 1, policy);
+      map.put(0, "v0");
+      map.put(1, "v1");
+      map.put(2, "v2");
+      assertEquals(3, map.size());
+      assertTrue(policy.evicted.isEmpty());
+
+      policy.pinned.clear();
+      map.put(3, "v3");
+      assertEquals(2, map.size());
+      assertEquals(Integer.valueOf(0), policy.evicted.get(0));
+      assertEquals(Integer.valueOf(1), policy.evicted.get(1));
+   }
+
+   /**
+    * The map as a whole stays bounded, whichever segments the entries end up in
+    */
+   public void testBoundedOverSegments()
+   {
+      RecordingPolicy policy = new RecordingPolicy();
+      SegmentedLRUMap<Integer, String> map = new SegmentedLRUMap<Integer, String>(5, 16, policy);
+      for (int i = 0; i < 100; i++)
+      {
+         map.put(i, "v" + i);
+         assertTrue(map.size() <= 5);
+         assertEquals("v" + i, map.get(i));
+      }
+      assertEquals(5, map.size());
+      assertEquals(95, policy.evicted.size());
+   }
+
+   /**
+    * Sweeping removes the entries the sweeper selects, and a loader fills in missing keys
+    */
+   public void testSweepAndLoad()
+   {
+      SegmentedLRUMap<Integer, String> map = new SegmentedLRUMap<Integer, String>(-1, new RecordingPolicy());
+      for (int i = 0; i < 100; i++)
+         map.put(i, "v" + i);
+      map.sweep(new SegmentedLRUMap.Sweeper<Integer, String>()
+      {
+         public boolean remove(Integer key, String value)
+         {
+            return key % 2 == 0;
+         }
+      });
+      assertEquals(50, map.size());
+      assertNull(map.get(2));
+      assertEquals("v3", map.get(3));
+
+      SegmentedLRUMap.Loader<Integer, String> loader = new SegmentedLRUMap.Loader<Integer, String>()
+      {
+         public String load(Integer key)
+         {
+            return key == 2 ? "loaded" : null;
+         }
+      };
+      assertEquals("loaded", map.get(2, loader));
+      assertEquals("loaded", map.get(2));
+      assertNull(map.get(4, loader));
+      assertEquals(51, map.size());
+
+      map.clear();
+      assertTrue(map.isEmpty());
+      assertTrue(map.values().isEmpty());
+   }
+
+   /**
+    * A single key can be swept, without visiting the other entries
+    */
+   public void testSweepKey()
+   {
+      SegmentedLRUMap<Integer, String> map = new SegmentedLRUMap<Integer, String>(-1, new RecordingPolicy());
+      map.put(1, "v1");
+      map.put(2, "v2");
+      final List<Integer> visited = new ArrayList<Integer>();
+      SegmentedLRUMap.Sweeper<Integer, String> sweeper = new SegmentedLRUMap.Sweeper<Integer, String>()
+      {
+         public boolean remove(Integer key, String value)
+         {
+            visited.add(key);
+            return true;
+         }
+      };
+      assertTrue(map.sweep(1, sweeper));
+      assertFalse(map.sweep(3, sweeper));
+      assertEquals(1, visited.size());
+      assertNull(map.get(1));
+      assertEquals("v2", map.get(2));
+      assertEquals(1, map.size());
+   }
+
+   /**
+    * An evicted entry can be put back without evicting others, unless its key has been put again
+    */
+   public void testRestore()
+   {
+      RecordingPolicy policy = new RecordingPolicy();
+      SegmentedLRUMap<Integer, String> map = new SegmentedLRUMap<Integer, String>(2, 1, policy);
+      map.put(0, "v0");
+      map.put(1, "v1");
+      map.put(2, "v2");
+      assertEquals(Integer.valueOf(0), policy.evicted.get(0));
+
+      assertTrue(map.restore(0, "v0"));
+      assertEquals(3, map.size());
+      assertEquals(1, policy.evicted.size());
+      assertFalse(map.restore(1, "other"));
+      assertEquals("v1", map.get(1));
+
+      // the restored entry became the most recently used
+      map.put(3, "v3");
+      assertEquals(2, map.size());
+      assertEquals(Integer.valueOf(2), policy.evicted.get(1));
+      assertEquals(Integer.valueOf(0), policy.evicted.get(2));
+   }
+
+   /**
+    * The size stays within bounds while many threads use the map
+    */
+   public void testConcurrentUse() throws Exception
+   {
+      final SegmentedLRUMap<Integer, String> map = new SegmentedLRUMap<Integer, String>(1000, new RecordingPolicy());
+      Thread[] threads = new Thread[8];
+      for (int t = 0; t < threads.length; t++)
+      {
+         final int offset = t * 10000;
+         threads[t] = new Thread()
+         {
+            public void run()
+            {
+               for (int i = 0; i < 10000; i++)
+               {
+                  map.put(offset + i, "v");
+                  map.get(offset + i / 2);
+                  if (i % 3 == 0)
+                     map.remove(offset + i);
+               }
+            }
+         };
+         threads[t].start();
+      }
+      for (Thread thread : threads)
+         thread.join();
+      assertTrue("Size " + map.size() + " exceeds max size", map.size() <= 1000);
+      assertEquals(map.size(), map.values().size());
+   }
+}
@@ -0,0 +1,505 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.cache.simple;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ejb.EJBException;
+import javax.ejb.NoSuchEJBException;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.jboss.ejb3.cache.legacy.Container;
+import org.jboss.ejb3.cache.legacy.StatefulBeanContext;
+import org.jboss.ejb3.cache.legacy.StatefulContainer;
+import org.jboss.ejb3.effigy.SessionBeanEffigy;
+
+/**
+ * Tests of the {@link SimpleStatefulCache} passivating to a persistence manager kept in memory
+ *
+ * @version $Revision: $
+ */
+public class SimpleStatefulCacheUnitTestCase extends TestCase
+{
+   private final List<Object> destroyed = new ArrayList<Object>();
+   private final MockPersistenceManager pm = new MockPersistenceManager();
+   private SessionBeanEffigy effigy;
+   private int nextId;
+
+   /**
+    * A context which can be passivated while it isn't in use
+    */
+   private class MockContext implements StatefulBeanContext
+   {
+      private final Integer id = nextId++;
+      private boolean inUse;
+      private boolean removed;
+      private boolean canRemoveFromCache = true;
+      private long lastUsed = System.currentTimeMillis();
+
+      public Serializable getId()
+      {
+         return id;
+      }
+
+      public boolean getCanPassivate()
+      {
+         return !inUse;
+      }
+
+      public boolean getCanRemoveFromCache()
+      {
+         return canRemoveFromCache;
+      }
+
+      public StatefulContainer getContainer()
+      {
+         return container;
+      }
+
+      public StatefulBeanContext getUltimateContainedIn()
+      {
+         return this;
+      }
+
+      public boolean isInUse()
+      {
+         return inUse;
+      }
+
+      public boolean isMarkedForPassivation()
+      {
+         return false;
+      }
+
+      public boolean isMarkedForReplication()
+      {
+         return false;
+      }
+
+      public boolean isRemoved()
+      {
+         return removed;
+      }
+
+      public long lastUsed()
+      {
+         return lastUsed;
+      }
+
+      public void markForPassivation()
+      {
+      }
+
+      public void postActivate()
+      {
+      }
+
+      public void prePassivate()
+      {
+      }
+
+      public void setInUse(boolean inUse)
+      {
+         this.inUse = inUse;
+         lastUsed = System.currentTimeMillis();
+      }
+
+      public void setMarkedForReplication(boolean markForReplication)
+      {
+      }
+
+      public String toString()
+      {
+         return "context " + id;
+      }
+   }
+
+   /**
+    * Keeps the passivated contexts in memory, and records what is done with them
+    */
+   private static class MockPersistenceManager implements StatefulSessionPersistenceManager
+   {
+      final Map<Object, StatefulBeanContext> passivated = new LinkedHashMap<Object, StatefulBeanContext>();
+      final List<Object> activated = new ArrayList<Object>();
+      final List<Object> removed = new ArrayList<Object>();
+      volatile RuntimeException failure;
+      /**
+       * Run once the expired ids have been taken, before they are removed
+       */
+      Runnable afterExpiredIds;
+
+      public StatefulBeanContext activateSession(Object id)
+      {
+         StatefulBeanContext ctx = passivated.remove(id);
+         if (ctx != null)
+            activated.add(id);
+         return ctx;
+      }
+
+      public void passivateSession(StatefulBeanContext ctx)
+      {
+         if (failure != null)
+            throw failure;
+         passivated.put(ctx.getId(), ctx);
+      }
+
+      public List<StatefulBeanContext> getPassivatedBeans()
+      {
+         return new ArrayList<StatefulBeanContext>(passivated.values());
+      }
+
+      public List<Object> getExpiredPassivatedIds(long lastUsedBefore)
+      {
+         List<Object> expired = new ArrayList<Object>();
+         for (StatefulBeanContext ctx : passivated.values())
+         {
+            if (ctx.lastUsed() < lastUsedBefore)
+               expired.add(ctx.getId());
+         }
+         if (afterExpiredIds != null)
+            afterExpiredIds.run();
+         return expired;
+      }
+
+      public boolean removePassivatedIfExpired(Object id, long lastUsedBefore)
+      {
+         StatefulBeanContext ctx = passivated.get(id);
+         if (ctx == null || ctx.lastUsed() >= lastUsedBefore)
+            return false;
+         removePassivated(id);
+         return true;
+      }
+
+      public void removePassivated(Object id)
+      {
+         if (passivated.remove(id) != null)
+            removed.add(id);
+      }
+
+      public void destroy()
+      {
+      }
+
+      public void initialize(Container container)
+      {
+      }
+   }
+
+   private final StatefulContainer container = (StatefulContainer) Proxy.newProxyInstance(
+         StatefulContainer.class.getClassLoader(), new Class<?>[] {StatefulContainer.class}, new InvocationHandler()
+         {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Exception
+            {
+               String name = method.getName();
+               if (name.equals("create"))
+                  return new MockContext();
+               if (name.equals("destroy"))
+               {
+                  StatefulBeanContext ctx = (StatefulBeanContext) args[0];
+                  ((MockContext) ctx).removed = true;
+                  destroyed.add(ctx.getId());
+                  return null;
+               }
+               if (name.equals("getEffigy"))
+                  return effigy;
+               if (name.equals("getEjbName"))
+                  return "MockBean";
+               if (name.equals("getObjectName"))
+                  return new ObjectName("jboss.j2ee:service=EJB3,name=MockBean");
+               if (name.equals("getClassloader"))
+                  return SimpleStatefulCacheUnitTestCase.class.getClassLoader();
+               throw new UnsupportedOperationException(name);
+            }
+         });
+
+   /**
+    * @param preDestroys the pre-destroy callbacks of the bean
+    */
+   private static SessionBeanEffigy effigy(final Method... preDestroys)
+   {
+      return (SessionBeanEffigy) Proxy.newProxyInstance(SessionBeanEffigy.class.getClassLoader(),
+            new Class<?>[] {SessionBeanEffigy.class}, new InvocationHandler()
+            {
+               public Object invoke(Object proxy, Method method, Object[] args)
+               {
+                  if (method.getName().equals("getPreDestroys"))
+                     return preDestroys.length == 0 ? Collections.<Method>emptyList() : Arrays.asList(preDestroys);
+                  return null;
+               }
+            });
+   }
+
+   /**
+    * A cache of one context, whose passivations are only run by the request threads, once two
+    * contexts are queued
+    */
+   private SimpleStatefulCache cache()
+   {
+      SimpleStatefulCache cache = new SimpleStatefulCache();
+      cache.setPassivationQueueCapacity(1);
+      cache.initialize(container, pm, 1, 300, 0);
+      return cache;
+   }
+
+   /**
+    * A started cache of up to ten contexts, whose timeout tasks sweep the expired contexts
+    */
+   private SimpleStatefulCache startedCache(long idleTimeoutSeconds, long removalTimeoutMillis)
+   {
+      SimpleStatefulCache cache = new SimpleStatefulCache();
+      cache.initialize(container, pm, 10, idleTimeoutSeconds, removalTimeoutMillis);
+      cache.start();
+      return cache;
+   }
+
+   /**
+    * Uses a cached context, and releases it
+    */
+   private static void touch(SimpleStatefulCache cache, StatefulBeanContext ctx)
+   {
+      assertSame(ctx, cache.get(ctx.getId()));
+      cache.release(ctx);
+   }
+
+   private boolean isPassivated(StatefulBeanContext ctx)
+   {
+      synchronized (pm)
+      {
+         return pm.passivated.containsKey(ctx.getId());
+      }
+   }
+
+   /**
+    * Creates and releases a context
+    */
+   private static StatefulBeanContext createReleased(SimpleStatefulCache cache)
+   {
+      StatefulBeanContext ctx = cache.create();
+      cache.release(ctx);
+      return ctx;
+   }
+
+   /**
+    * A context which can't be passivated stays cached, and the error reaches the request which passivated it
+    */
+   public void testPassivationFailure()
+   {
+      SimpleStatefulCache cache = cache();
+      StatefulBeanContext first = createReleased(cache);
+      createReleased(cache);
+      pm.failure = new EJBException("disk full");
+      try
+      {
+         // evicts the second context, after which the first one is passivated by this thread
+         cache.create();
+         fail("passivation failure was not thrown");
+      }
+      catch (EJBException expected)
+      {
+         assertSame(pm.failure, expected);
+      }
+      assertEquals(0, cache.getPassivatedCount());
+      assertSame(first, cache.get(first.getId()));
+      assertTrue(pm.activated.isEmpty());
+
+      pm.failure = null;
+      cache.release(first);
+      createReleased(cache);
+      assertEquals(1, cache.getPassivatedCount());
+   }
+
+   /**
+    * Passivates a first context, leaving a second one queued for passivation and a third one cached
+    *
+    * @return the passivated context
+    */
+   private static StatefulBeanContext passivateFirst(SimpleStatefulCache cache)
+   {
+      StatefulBeanContext first = createReleased(cache);
+      createReleased(cache);
+      createReleased(cache);
+      assertEquals(1, cache.getPassivatedCount());
+      assertEquals(1, cache.getCacheSize());
+      return first;
+   }
+
+   /**
+    * Without pre-destroy callbacks, expired passivated contexts are deleted without being activated
+    */
+   public void testExpireWithoutActivation() throws Exception
+   {
+      effigy = effigy();
+      SimpleStatefulCache cache = cache();
+      StatefulBeanContext first = passivateFirst(cache);
+
+      cache.removeExpiredPassivated(first.lastUsed());
+      assertTrue(pm.removed.isEmpty());
+
+      cache.removeExpiredPassivated(first.lastUsed() + 1);
+      assertEquals(Collections.singletonList(first.getId()), pm.removed);
+      assertTrue(pm.activated.isEmpty());
+      assertTrue(destroyed.isEmpty());
+      assertEquals(0, cache.getPassivatedCount());
+      assertEquals(1, cache.getRemoveCount());
+   }
+
+   /**
+    * An expired passivated context which is activated after the expired ids were taken is left alone
+    */
+   public void testExpireWithoutActivationWhileActivated() throws Exception
+   {
+      effigy = effigy();
+      final SimpleStatefulCache cache = cache();
+      final StatefulBeanContext first = passivateFirst(cache);
+      pm.afterExpiredIds = new Runnable()
+      {
+         public void run()
+         {
+            pm.afterExpiredIds = null;
+            assertSame(first, cache.get(first.getId()));
+         }
+      };
+
+      cache.removeExpiredPassivated(first.lastUsed() + 1);
+      assertEquals(Collections.singletonList(first.getId()), pm.activated);
+      assertTrue(pm.removed.isEmpty());
+      assertTrue(destroyed.isEmpty());
+      assertEquals(0, cache.getRemoveCount());
+   }
+
+   /**
+    * With pre-destroy callbacks, expired passivated contexts are activated and destroyed, without
+    * going through the cache, so that no live context is evicted
+    */
+   public void testExpireWithActivation() throws Exception
+   {
+      effigy = effigy(Object.class.getMethod("toString"));
+      SimpleStatefulCache cache = cache();
+      StatefulBeanContext first = passivateFirst(cache);
+
+      cache.removeExpiredPassivated(first.lastUsed() + 1);
+      assertEquals(Collections.singletonList(first.getId()), pm.activated);
+      assertEquals(Collections.singletonList(first.getId()), destroyed);
+      assertTrue(pm.removed.isEmpty());
+      assertEquals(0, cache.getPassivatedCount());
+      assertEquals(1, cache.getRemoveCount());
+      // the cached context and the queued one are left alone
+      assertEquals(1, cache.getCacheSize());
+      assertEquals(2, cache.getTotalSize());
+   }
+
+   /**
+    * Without an effigy the callbacks are unknown, so expired passivated contexts are activated and destroyed
+    */
+   public void testExpireWithoutEffigy() throws Exception
+   {
+      effigy = null;
+      SimpleStatefulCache cache = cache();
+      StatefulBeanContext first = passivateFirst(cache);
+
+      cache.removeExpiredPassivated(first.lastUsed() + 1);
+      assertEquals(Collections.singletonList(first.getId()), pm.activated);
+      assertEquals(Collections.singletonList(first.getId()), destroyed);
+      assertEquals(0, cache.getPassivatedCount());
+      assertEquals(1, cache.getRemoveCount());
+      assertEquals(1, cache.getCacheSize());
+   }
+
+   /**
+    * The idle timeout task passivates a context once it has been idle for the idle timeout, and leaves
+    * alone a context which keeps being used
+    */
+   public void testIdleSweep() throws Exception
+   {
+      SimpleStatefulCache cache = startedCache(1, 0);
+      try
+      {
+         StatefulBeanContext idle = cache.create();
+         ((MockContext) idle).canRemoveFromCache = false;
+         cache.release(idle);
+         StatefulBeanContext touched = createReleased(cache);
+         // the touched context is never idle for more than a fraction of the timeout
+         long giveUp = System.currentTimeMillis() + 10000;
+         while (!isPassivated(idle) && System.currentTimeMillis() < giveUp)
+         {
+            touch(cache, touched);
+            Thread.sleep(50);
+         }
+         assertTrue("idle context was not passivated", isPassivated(idle));
+         assertFalse("used context was passivated", isPassivated(touched));
+         assertEquals(1, cache.getCacheSize());
+         touch(cache, touched);
+         assertTrue(pm.activated.isEmpty());
+      }
+      finally
+      {
+         cache.stop();
+      }
+   }
+
+   /**
+    * The removal timeout task removes a context once it has been idle for the removal timeout, and
+    * leaves alone a context which keeps being used
+    */
+   public void testRemovalSweep() throws Exception
+   {
+      SimpleStatefulCache cache = startedCache(300, 1000);
+      try
+      {
+         StatefulBeanContext idle = createReleased(cache);
+         StatefulBeanContext touched = createReleased(cache);
+         long giveUp = System.currentTimeMillis() + 10000;
+         while (cache.getCacheSize() > 1 && System.currentTimeMillis() < giveUp)
+         {
+            touch(cache, touched);
+            Thread.sleep(50);
+         }
+         assertEquals("idle context was not removed", 1, cache.getCacheSize());
+         touch(cache, touched);
+         try
+         {
+            cache.get(idle.getId());
+            fail("removed context was found");
+         }
+         catch (NoSuchEJBException expected)
+         {
+            // good
+         }
+         assertTrue(pm.passivated.isEmpty());
+      }
+      finally
+      {
+         cache.stop();
+      }
+   }
+}
@@ -0,0 +1,196 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.cache.simple.benchmark;
+
+import org.jboss.ejb3.cache.simple.SegmentedLRUMap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of the {@link SegmentedLRUMap} with that of a synchronized, access
+ * ordered {@link LinkedHashMap}, the cache map SimpleStatefulCache used before, with many threads
+ * looking up, creating and removing sessions concurrently.
+ * <p>
+ * Not run as part of the build. Run the <code>main</code> method, optionally passing the number
+ * of threads, the max size of the cache and the number of operations per thread.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class SegmentedLRUMapBenchmark
+{
+   /**
+    * The operations of a cache map
+    */
+   private interface CacheMap
+   {
+      Object get(Integer key);
+
+      void put(Integer key, Object value);
+
+      void remove(Integer key);
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+      final int maxSize = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+      final int operationsPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+
+      for (int round = 0; round < 3; round++)
+      {
+         System.out.println("Round " + round + ", " + threads + " threads, max size " + maxSize + ", "
+               + operationsPerThread + " operations per thread");
+         run("synchronized LinkedHashMap", synchronizedMap(maxSize), threads, maxSize, operationsPerThread);
+         run("SegmentedLRUMap", segmentedMap(maxSize), threads, maxSize, operationsPerThread);
+      }
+   }
+
+   private static CacheMap synchronizedMap(final int maxSize)
+   {
+      final Map<Integer, Object> map = new LinkedHashMap<Integer, Object>(maxSize, 0.75F, true)
+      {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Integer, Object> eldest)
+         {
+            return size() > maxSize;
+         }
+      };
+      return new CacheMap()
+      {
+         public Object get(Integer key)
+         {
+            synchronized (map)
+            {
+               return map.get(key);
+            }
+         }
+
+         public void put(Integer key, Object value)
+         {
+            synchronized (map)
+            {
+               map.put(key, value);
+            }
+         }
+
+         public void remove(Integer key)
+         {
+            synchronized (map)
+            {
+               map.remove(key);
+            }
+         }
+      };
+   }
+
+   private static CacheMap segmentedMap(final int maxSize)
+   {
+      final SegmentedLRUMap<Integer, Object> map = new SegmentedLRUMap<Integer, Object>(maxSize,
+            new SegmentedLRUMap.EvictionPolicy<Integer, Object>()
+            {
+               public boolean evict(Integer key, Object value)
+               {
+                  return true;
+               }
+            });
+      return new CacheMap()
+      {
+         public Object get(Integer key)
+         {
+            return map.get(key);
+         }
+
+         public void put(Integer key, Object value)
+         {
+            map.put(key, value);
+         }
+
+         public void remove(Integer key)
+         {
+            map.remove(key);
+         }
+      };
+   }
+
+   private static void run(final String name, final CacheMap map, final int threads, final int maxSize,
+         final int operationsPerThread) throws InterruptedException
+   {
+      final Object value = new Object();
+      // twice as many sessions as fit in the cache, so that puts evict
+      final int sessions = maxSize * 2;
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(threads);
+      for (int i = 0; i < threads; i++)
+      {
+         final long seed = i;
+         new Thread(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  final Random random = new Random(seed);
+                  start.await();
+                  for (int j = 0; j < operationsPerThread; j++)
+                  {
+                     final Integer key = random.nextInt(sessions);
+                     // mostly lookups, as with requests to existing sessions
+                     final int operation = random.nextInt(100);
+                     if (operation < 80)
+                     {
+                        if (map.get(key) == null)
+                           map.put(key, value);
+                     }
+                     else if (operation < 95)
+                        map.put(key, value);
+                     else
+                        map.remove(key);
+                  }
+               }
+               catch (InterruptedException e)
+               {
+                  Thread.currentThread().interrupt();
+               }
+               finally
+               {
+                  done.countDown();
+               }
+            }
+         }).start();
+      }
+      final long begin = System.nanoTime();
+      start.countDown();
+      done.await();
+      final long elapsed = System.nanoTime() - begin;
+
+      final long operations = (long) threads * operationsPerThread;
+      System.out.println(String.format("  %-28s %8d ms, %12.0f ops/s", name,
+            TimeUnit.NANOSECONDS.toMillis(elapsed), operations / (elapsed / 1e9)));
+   }
+}
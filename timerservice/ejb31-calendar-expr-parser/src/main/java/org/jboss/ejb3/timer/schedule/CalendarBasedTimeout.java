@@ -28,6 +28,8 @@ import org.jboss.ejb3.timer.schedule.attribute.Minute;
 import org.jboss.ejb3.timer.schedule.attribute.Month;
 import org.jboss.ejb3.timer.schedule.attribute.Second;
 import org.jboss.ejb3.timer.schedule.attribute.Year;
+import org.jboss.ejb3.timer.schedule.util.CalendarUtil;
+import org.jboss.ejb3.timer.schedule.util.ZoneOffsetCache;
 import org.jboss.logging.Logger;
 
 import javax.ejb.ScheduleExpression;
@@ -50,12 +52,26 @@ public class CalendarBasedTimeout {
      */
     private static Logger logger = Logger.getLogger(CalendarBasedTimeout.class);
 
+    /**
+     * Returned by {@link #getNextTimeout(long)} if there are no more timeouts
+     */
+    public static final long NO_MORE_TIMEOUTS = Long.MIN_VALUE;
+
+    private static final int SECONDS_PER_MINUTE = 60;
+
+    private static final int SECONDS_PER_HOUR = 60 * SECONDS_PER_MINUTE;
+
     /**
      * The {@link ScheduleExpression} from which this {@link CalendarBasedTimeout}
      * was created
      */
     private ScheduleExpression scheduleExpression;
 
+    /**
+     * The normalized key of the {@link #scheduleExpression}
+     */
+    private ScheduleExpressionKey scheduleKey;
+
     /**
      * The {@link Second} created out of the {@link ScheduleExpression#getSecond()} value
      */
@@ -102,6 +118,21 @@ public class CalendarBasedTimeout {
      */
     private TimeZone timezone;
 
+    /**
+     * The cached offsets of the {@link #timezone}
+     */
+    private ZoneOffsetCache zoneOffsets;
+
+    /**
+     * The {@link ScheduleExpression#getStart()} in milli seconds, or {@link Long#MIN_VALUE} if there's no start
+     */
+    private long startTime = Long.MIN_VALUE;
+
+    /**
+     * The {@link ScheduleExpression#getEnd()} in milli seconds, or {@link Long#MAX_VALUE} if there's no end
+     */
+    private long endTime = Long.MAX_VALUE;
+
     /**
      * Creates a {@link CalendarBasedTimeout} from the passed <code>schedule</code>.
      * <p>
@@ -125,6 +156,7 @@ public class CalendarBasedTimeout {
         // so that any subsequent changes after the CalendarBasedTimeout construction,
         // do not affect this internal schedule expression.
         this.scheduleExpression = this.clone(schedule);
+        this.scheduleKey = new ScheduleExpressionKey(this.scheduleExpression);
 
         // Start parsing the values in the ScheduleExpression
         this.second = new Second(schedule.getSecond());
@@ -155,6 +187,13 @@ public class CalendarBasedTimeout {
         } else {
             this.timezone = TimeZone.getDefault();
         }
+        this.zoneOffsets = ZoneOffsetCache.forTimeZone(this.timezone);
+        if (this.scheduleExpression.getStart() != null) {
+            this.startTime = this.scheduleExpression.getStart().getTime();
+        }
+        if (this.scheduleExpression.getEnd() != null) {
+            this.endTime = this.scheduleExpression.getEnd().getTime();
+        }
 
         // Now that we have parsed the values from the ScheduleExpression,
         // determine and set the first timeout (relative to the current time)
@@ -170,10 +209,13 @@ public class CalendarBasedTimeout {
     }
 
     /**
+     * Returns the first timeout relative to the time when this {@link CalendarBasedTimeout} was created.
+     * The returned {@link Calendar} is a copy, so changing it doesn't affect this {@link CalendarBasedTimeout}.
+     *
      * @return
      */
     public Calendar getFirstTimeout() {
-        return this.firstTimeout;
+        return this.firstTimeout == null ? null : this.copy(this.firstTimeout);
     }
 
 
@@ -227,6 +269,11 @@ public class CalendarBasedTimeout {
     /**
      * Returns the original {@link ScheduleExpression} from which this {@link CalendarBasedTimeout}
      * was created.
+     * <p>
+     * A {@link CalendarBasedTimeout} may be shared between timers (see {@link CalendarBasedTimeoutCache}),
+     * so the returned {@link ScheduleExpression} must not be modified. Use {@link #copyScheduleExpression()}
+     * to hand out the schedule to code which may change it.
+     * </p>
      *
      * @return
      */
@@ -234,6 +281,26 @@ public class CalendarBasedTimeout {
         return this.scheduleExpression;
     }
 
+    /**
+     * Returns a new copy of the {@link ScheduleExpression} from which this {@link CalendarBasedTimeout}
+     * was created.
+     *
+     * @return
+     */
+    public ScheduleExpression copyScheduleExpression() {
+        return this.clone(this.scheduleExpression);
+    }
+
+    /**
+     * Returns the normalized key of the {@link ScheduleExpression} from which this {@link CalendarBasedTimeout}
+     * was created. Equivalent schedule expressions have equal keys.
+     *
+     * @return
+     */
+    public ScheduleExpressionKey getScheduleKey() {
+        return this.scheduleKey;
+    }
+
     public Calendar getNextTimeout(Calendar currentCal) {
         if (this.noMoreTimeouts(currentCal)) {
             return null;
@@ -287,6 +354,165 @@ public class CalendarBasedTimeout {
         return nextCal;
     }
 
+    /**
+     * Returns the next timeout after the passed instant.
+     * <p>
+     * This computes the timeouts of {@link #getNextTimeout(Calendar)}, but does so on the local time
+     * in the timezone of the schedule, in milli seconds, using the cached offsets of the timezone. Other
+     * than {@link #getNextTimeout(Calendar)}, it doesn't create any objects.
+     * </p>
+     * <p>
+     * Local times which occur twice, because the clocks are set back, time out at their first occurrence
+     * after <code>currentTimeInMillis</code>. Local times which don't exist, because the clocks are set forward,
+     * time out at the time they are shifted to by the gap (for example 02:30 times out at 03:30, if the clocks
+     * are set forward from 02:00 to 03:00).
+     * </p>
+     *
+     * @param currentTimeInMillis The instant, in milli seconds since the epoch, after which the next timeout
+     *                            is to be computed
+     * @return The next timeout in milli seconds since the epoch, or {@link #NO_MORE_TIMEOUTS} if there are
+     *         no more timeouts
+     */
+    public long getNextTimeout(long currentTimeInMillis) {
+        final ZoneOffsetCache zone = this.zoneOffsets;
+        if (currentTimeInMillis > this.endTime
+                || CalendarUtil.getYear(floorDiv(zone.toLocalMillis(currentTimeInMillis), CalendarUtil.MILLIS_PER_DAY)) > Year.MAX_YEAR) {
+            return NO_MORE_TIMEOUTS;
+        }
+        final long base;
+        if (currentTimeInMillis < this.startTime) {
+            base = this.startTime;
+        } else {
+            // the start of the next second
+            final long next = currentTimeInMillis + 1000;
+            base = next - floorMod(zone.toLocalMillis(next), 1000);
+        }
+        final long localBase = zone.toLocalMillis(base);
+        // the milli seconds are only ever non zero if starting at the schedule start
+        final long millis = floorMod(localBase, 1000);
+        final long epochDay = floorDiv(localBase, CalendarUtil.MILLIS_PER_DAY);
+        int year = CalendarUtil.getYear(epochDay);
+        int month = CalendarUtil.getMonth(epochDay);
+        int dayOfMonth = CalendarUtil.getDayOfMonth(epochDay);
+        int secondOfDay = (int) (floorMod(localBase, CalendarUtil.MILLIS_PER_DAY) / 1000);
+        for (; ; ) {
+            final int nextYear = this.year.getFirstMatchFrom(year);
+            if (nextYear < 0 || nextYear > Year.MAX_YEAR) {
+                return NO_MORE_TIMEOUTS;
+            }
+            if (nextYear != year) {
+                year = nextYear;
+                month = Calendar.JANUARY;
+                dayOfMonth = 1;
+                secondOfDay = 0;
+            }
+            final int nextMonth = this.month.getFirstMatchFrom(month);
+            if (nextMonth < 0) {
+                year++;
+                month = Calendar.JANUARY;
+                dayOfMonth = 1;
+                secondOfDay = 0;
+                continue;
+            }
+            if (nextMonth != month) {
+                month = nextMonth;
+                dayOfMonth = 1;
+                secondOfDay = 0;
+            }
+            final long firstDayOfMonth = CalendarUtil.toEpochDay(year, month, 1);
+            final long days = this.getMatchingDaysOfMonth(CalendarUtil.getLastDateOfMonth(year, month),
+                    CalendarUtil.getDayOfWeek(firstDayOfMonth));
+            final long nextDays = dayOfMonth < Long.SIZE ? days & (-1L << dayOfMonth) : 0;
+            if (nextDays == 0) {
+                // no more matching days in this month
+                if (month == Calendar.DECEMBER) {
+                    year++;
+                    month = Calendar.JANUARY;
+                } else {
+                    month++;
+                }
+                dayOfMonth = 1;
+                secondOfDay = 0;
+                continue;
+            }
+            final int nextDayOfMonth = Long.numberOfTrailingZeros(nextDays);
+            if (nextDayOfMonth != dayOfMonth) {
+                dayOfMonth = nextDayOfMonth;
+                secondOfDay = 0;
+            }
+            final int nextSecondOfDay = this.getFirstMatchingSecondOfDay(secondOfDay);
+            if (nextSecondOfDay < 0) {
+                // no more matching times on this day
+                dayOfMonth++;
+                secondOfDay = 0;
+                continue;
+            }
+            final long localTimeout = (firstDayOfMonth + dayOfMonth - 1) * CalendarUtil.MILLIS_PER_DAY
+                    + nextSecondOfDay * 1000L + millis;
+            final long timeout = zone.toEpochMillis(localTimeout, base);
+            return timeout > this.endTime ? NO_MORE_TIMEOUTS : timeout;
+        }
+    }
+
+    /**
+     * Returns the days of the passed month which match the day-of-month and day-of-week of the schedule,
+     * as a bit mask in which bit <code>n</code> is set if day <code>n</code> matches
+     */
+    private long getMatchingDaysOfMonth(int lastDateOfMonth, int dayOfWeekOfFirst) {
+        if (this.isDayOfMonthWildcard()) {
+            return this.dayOfWeek.getMatchingDaysOfMonth(lastDateOfMonth, dayOfWeekOfFirst);
+        }
+        if (this.isDayOfWeekWildcard()) {
+            return this.dayOfMonth.getMatchingDaysOfMonth(lastDateOfMonth, dayOfWeekOfFirst);
+        }
+        // both day-of-month and day-of-week are *non-wildcards*, either of them has to match
+        return this.dayOfMonth.getMatchingDaysOfMonth(lastDateOfMonth, dayOfWeekOfFirst)
+                | this.dayOfWeek.getMatchingDaysOfMonth(lastDateOfMonth, dayOfWeekOfFirst);
+    }
+
+    /**
+     * Returns the first second of a day, at or after <code>secondOfDay</code>, which matches the
+     * hour, minute and second of the schedule, or -1 if there's none
+     */
+    private int getFirstMatchingSecondOfDay(int secondOfDay) {
+        final int currentHour = secondOfDay / SECONDS_PER_HOUR;
+        final int currentMinute = secondOfDay % SECONDS_PER_HOUR / SECONDS_PER_MINUTE;
+        final int hour = this.hour.getFirstMatchFrom(currentHour);
+        if (hour < 0) {
+            return -1;
+        }
+        if (hour == currentHour) {
+            int minute = this.minute.getFirstMatchFrom(currentMinute);
+            if (minute == currentMinute) {
+                final int second = this.second.getFirstMatchFrom(secondOfDay % SECONDS_PER_MINUTE);
+                if (second >= 0) {
+                    return hour * SECONDS_PER_HOUR + minute * SECONDS_PER_MINUTE + second;
+                }
+                minute = this.minute.getFirstMatchFrom(currentMinute + 1);
+            }
+            if (minute >= 0) {
+                return hour * SECONDS_PER_HOUR + minute * SECONDS_PER_MINUTE + this.second.getFirst();
+            }
+            // no more matching minutes in this hour
+            final int nextHour = this.hour.getFirstMatchFrom(currentHour + 1);
+            if (nextHour < 0) {
+                return -1;
+            }
+            return nextHour * SECONDS_PER_HOUR + this.minute.getFirst() * SECONDS_PER_MINUTE + this.second.getFirst();
+        }
+        return hour * SECONDS_PER_HOUR + this.minute.getFirst() * SECONDS_PER_MINUTE + this.second.getFirst();
+    }
+
+    private static long floorDiv(long dividend, long divisor) {
+        final long quotient = dividend / divisor;
+        return (dividend % divisor < 0) ? quotient - 1 : quotient;
+    }
+
+    private static long floorMod(long dividend, long divisor) {
+        final long remainder = dividend % divisor;
+        return remainder < 0 ? remainder + divisor : remainder;
+    }
+
     private Calendar computeNextSecond(Calendar currentCal) {
         if (this.noMoreTimeouts(currentCal)) {
             return null;
@@ -0,0 +1,188 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timer.schedule;
+
+import javax.ejb.ScheduleExpression;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of {@link CalendarBasedTimeout}s, keyed by the {@link ScheduleExpressionKey}
+ * of their schedule expression.
+ * <p>
+ * A {@link CalendarBasedTimeout} doesn't change once it's created, hence timers with equivalent
+ * schedule expressions can share one instance, instead of each of them parsing the schedule
+ * expression and holding its own copy of the parsed attributes.
+ * </p>
+ * <p>
+ * The cache holds at most <code>maxSize</code> entries and evicts the least recently used entry
+ * when it's full. Evicted {@link CalendarBasedTimeout}s stay valid for the timers which
+ * already use them.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class CalendarBasedTimeoutCache {
+
+    /**
+     * Default maximum number of cached {@link CalendarBasedTimeout}s
+     */
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    private final int maxSize;
+
+    /**
+     * The cached timeouts in access order. All access is guarded by the map's monitor.
+     */
+    private final LinkedHashMap<ScheduleExpressionKey, CalendarBasedTimeout> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong parses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a {@link CalendarBasedTimeoutCache} holding at most {@link #DEFAULT_MAX_SIZE} entries
+     */
+    public CalendarBasedTimeoutCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Creates a {@link CalendarBasedTimeoutCache}
+     *
+     * @param maxSize The maximum number of cached entries. 0 disables caching
+     */
+    public CalendarBasedTimeoutCache(final int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Max size cannot be negative: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<ScheduleExpressionKey, CalendarBasedTimeout>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ScheduleExpressionKey, CalendarBasedTimeout> eldest) {
+                if (this.size() > CalendarBasedTimeoutCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the {@link CalendarBasedTimeout} for the passed <code>schedule</code>, parsing the
+     * schedule only if there's no cached {@link CalendarBasedTimeout} for an equivalent schedule.
+     * <p>
+     * The returned instance is shared and its {@link CalendarBasedTimeout#getScheduleExpression()}
+     * must not be modified.
+     * </p>
+     *
+     * @param schedule The schedule
+     * @return
+     * @throws IllegalArgumentException If <code>schedule</code> is null or isn't a valid schedule expression
+     */
+    public CalendarBasedTimeout getCalendarTimeout(ScheduleExpression schedule) {
+        ScheduleExpressionKey key = new ScheduleExpressionKey(schedule);
+        synchronized (this.cache) {
+            CalendarBasedTimeout cached = this.cache.get(key);
+            if (cached != null) {
+                this.hits.incrementAndGet();
+                return cached;
+            }
+        }
+        // parse outside of the lock. Invalid schedules throw here and don't get cached
+        CalendarBasedTimeout calendarTimeout = new CalendarBasedTimeout(schedule);
+        this.parses.incrementAndGet();
+        synchronized (this.cache) {
+            // another thread may have parsed the same schedule in the mean time. Prefer
+            // the cached one, so that all timers share the same instance.
+            CalendarBasedTimeout cached = this.cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            if (this.maxSize > 0) {
+                this.cache.put(key, calendarTimeout);
+            }
+        }
+        return calendarTimeout;
+    }
+
+    /**
+     * Removes all the cached entries
+     */
+    public void clear() {
+        synchronized (this.cache) {
+            this.cache.clear();
+        }
+    }
+
+    /**
+     * Returns the number of cached entries
+     *
+     * @return
+     */
+    public int getSize() {
+        synchronized (this.cache) {
+            return this.cache.size();
+        }
+    }
+
+    /**
+     * Returns the maximum number of cached entries
+     *
+     * @return
+     */
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * Returns the number of {@link #getCalendarTimeout(ScheduleExpression)} calls which were served from the cache
+     *
+     * @return
+     */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * Returns the number of schedule expressions which were parsed, i.e. the number of cache misses
+     * of valid schedule expressions
+     *
+     * @return
+     */
+    public long getParseCount() {
+        return this.parses.get();
+    }
+
+    /**
+     * Returns the number of entries which were evicted, since the cache was full
+     *
+     * @return
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timer.schedule;
+
+import javax.ejb.ScheduleExpression;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * An immutable, normalized form of a {@link ScheduleExpression}, which can be used as a key
+ * for schedules.
+ * <p>
+ * Two {@link ScheduleExpressionKey}s are equal if their schedule expressions only differ in the
+ * case of the attribute values, or in leading, trailing or repeated white spaces within them.
+ * Such schedule expressions are equivalent, since the parser ignores the case of the aliases
+ * and treats any run of white spaces the same way. The timezone id is only trimmed, and a blank
+ * timezone is treated as no timezone. The start and end dates are part of the key.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public final class ScheduleExpressionKey {
+
+    private final String second;
+
+    private final String minute;
+
+    private final String hour;
+
+    private final String dayOfWeek;
+
+    private final String dayOfMonth;
+
+    private final String month;
+
+    private final String year;
+
+    private final String timezone;
+
+    /**
+     * The start in milli seconds, or {@link Long#MIN_VALUE} if there's no start
+     */
+    private final long start;
+
+    /**
+     * The end in milli seconds, or {@link Long#MAX_VALUE} if there's no end
+     */
+    private final long end;
+
+    private final int hashCode;
+
+    /**
+     * Creates a {@link ScheduleExpressionKey} out of the current values of the passed <code>schedule</code>
+     *
+     * @param schedule The schedule
+     * @throws IllegalArgumentException If <code>schedule</code> is null
+     */
+    public ScheduleExpressionKey(ScheduleExpression schedule) {
+        if (schedule == null) {
+            throw new IllegalArgumentException("Cannot create " + this.getClass().getName()
+                    + " from a null schedule expression");
+        }
+        this.second = normalize(schedule.getSecond());
+        this.minute = normalize(schedule.getMinute());
+        this.hour = normalize(schedule.getHour());
+        this.dayOfWeek = normalize(schedule.getDayOfWeek());
+        this.dayOfMonth = normalize(schedule.getDayOfMonth());
+        this.month = normalize(schedule.getMonth());
+        this.year = normalize(schedule.getYear());
+        String tz = schedule.getTimezone();
+        this.timezone = tz == null || tz.trim().isEmpty() ? null : tz.trim();
+        Date startDate = schedule.getStart();
+        this.start = startDate == null ? Long.MIN_VALUE : startDate.getTime();
+        Date endDate = schedule.getEnd();
+        this.end = endDate == null ? Long.MAX_VALUE : endDate.getTime();
+
+        int h = hash(this.second);
+        h = 31 * h + hash(this.minute);
+        h = 31 * h + hash(this.hour);
+        h = 31 * h + hash(this.dayOfWeek);
+        h = 31 * h + hash(this.dayOfMonth);
+        h = 31 * h + hash(this.month);
+        h = 31 * h + hash(this.year);
+        h = 31 * h + hash(this.timezone);
+        h = 31 * h + (int) (this.start ^ (this.start >>> 32));
+        h = 31 * h + (int) (this.end ^ (this.end >>> 32));
+        this.hashCode = h;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ScheduleExpressionKey)) {
+            return false;
+        }
+        ScheduleExpressionKey other = (ScheduleExpressionKey) obj;
+        return this.hashCode == other.hashCode
+                && this.start == other.start
+                && this.end == other.end
+                && same(this.second, other.second)
+                && same(this.minute, other.minute)
+                && same(this.hour, other.hour)
+                && same(this.dayOfWeek, other.dayOfWeek)
+                && same(this.dayOfMonth, other.dayOfMonth)
+                && same(this.month, other.month)
+                && same(this.year, other.year)
+                && same(this.timezone, other.timezone);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hashCode;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("[second=").append(this.second);
+        sb.append(", minute=").append(this.minute);
+        sb.append(", hour=").append(this.hour);
+        sb.append(", dayOfWeek=").append(this.dayOfWeek);
+        sb.append(", dayOfMonth=").append(this.dayOfMonth);
+        sb.append(", month=").append(this.month);
+        sb.append(", year=").append(this.year);
+        sb.append(", timezone=").append(this.timezone);
+        if (this.start != Long.MIN_VALUE) {
+            sb.append(", start=").append(new Date(this.start));
+        }
+        if (this.end != Long.MAX_VALUE) {
+            sb.append(", end=").append(new Date(this.end));
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+
+    /**
+     * Lower cases the passed attribute value, trims it and replaces each run of white spaces
+     * within it by a single space
+     */
+    private static String normalize(String value) {
+        if (value == null) {
+            return null;
+        }
+        String trimmed = value.trim();
+        StringBuilder sb = null;
+        boolean inWhitespace = false;
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (isWhitespace(c)) {
+                if (sb == null) {
+                    sb = new StringBuilder(trimmed.length()).append(trimmed, 0, i);
+                }
+                inWhitespace = true;
+                continue;
+            }
+            if (sb != null) {
+                if (inWhitespace) {
+                    sb.append(' ');
+                }
+                sb.append(c);
+            }
+            inWhitespace = false;
+        }
+        return (sb == null ? trimmed : sb.toString()).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns true if the passed character is one of the white spaces matched by the
+     * <code>\s</code> regular expression, which the parser uses to split values
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static int hash(String value) {
+        return value == null ? 0 : value.hashCode();
+    }
+
+    private static boolean same(String s1, String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+}
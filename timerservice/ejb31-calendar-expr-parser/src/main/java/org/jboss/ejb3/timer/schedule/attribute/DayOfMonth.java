@@ -35,8 +35,6 @@ import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.regex.Pattern;
 
 /**
@@ -92,6 +90,28 @@ public class DayOfMonth extends IntegerBasedExpression {
      */
     public static final Integer MIN_DAY_OF_MONTH = -7;
 
+    /**
+     * The day of month corresponding to bit 0 of the day of month bit masks
+     */
+    private static final int OFFSET = MIN_DAY_OF_MONTH;
+
+    /**
+     * The absolute values compiled into a bit mask. Bit <code>n</code> is set if day
+     * <code>n + OFFSET</code> matches
+     */
+    private final long absoluteDaysOfMonth;
+
+    /**
+     * The start of each relative value, compiled at construction time. For a single relative value
+     * the start and end are the same.
+     */
+    private final RelativeDayOfMonth[] relativeStarts;
+
+    /**
+     * The end of each relative value, compiled at construction time
+     */
+    private final RelativeDayOfMonth[] relativeEnds;
+
     /**
      * A {@link DayOfMonth} can be represented as a {@link String} too (for example "1st", "Sun" etc...).
      * Internally, we map all allowed {@link String} values to their {@link Integer} equivalents.
@@ -145,6 +165,21 @@ public class DayOfMonth extends IntegerBasedExpression {
      */
     public DayOfMonth(String value) {
         super(value);
+        this.absoluteDaysOfMonth = this.toLongMask(OFFSET);
+        this.relativeStarts = new RelativeDayOfMonth[this.relativeValues.size()];
+        this.relativeEnds = new RelativeDayOfMonth[this.relativeValues.size()];
+        int i = 0;
+        for (ScheduleValue relativeValue : this.relativeValues) {
+            if (relativeValue instanceof RangeValue) {
+                RangeValue range = (RangeValue) relativeValue;
+                this.relativeStarts[i] = this.compile(range.getStart());
+                this.relativeEnds[i] = this.compile(range.getEnd());
+            } else {
+                this.relativeStarts[i] = this.compile(((SingleValue) relativeValue).getValue());
+                this.relativeEnds[i] = this.relativeStarts[i];
+            }
+            i++;
+        }
     }
 
     /**
@@ -172,19 +207,11 @@ public class DayOfMonth extends IntegerBasedExpression {
             return currentCal.get(Calendar.DAY_OF_MONTH);
         }
         int currentDayOfMonth = currentCal.get(Calendar.DAY_OF_MONTH);
-        SortedSet<Integer> eligibleDaysOfMonth = this.getEligibleDaysOfMonth(currentCal);
-        if (eligibleDaysOfMonth.isEmpty()) {
+        long eligibleDaysOfMonth = this.getEligibleDaysOfMonth(currentCal);
+        if (eligibleDaysOfMonth == 0) {
             return null;
         }
-        for (Integer hour : eligibleDaysOfMonth) {
-            if (currentDayOfMonth == hour) {
-                return currentDayOfMonth;
-            }
-            if (hour > currentDayOfMonth) {
-                return hour;
-            }
-        }
-        return eligibleDaysOfMonth.first();
+        return nextSetBit(eligibleDaysOfMonth, currentDayOfMonth - OFFSET) + OFFSET;
     }
 
     @Override
@@ -202,17 +229,21 @@ public class DayOfMonth extends IntegerBasedExpression {
         return true;
     }
 
-    private SortedSet<Integer> getEligibleDaysOfMonth(Calendar cal) {
+    /**
+     * Returns the days of month which match in the month of the passed calendar, as a bit
+     * mask in which bit <code>n</code> is set if day <code>n + OFFSET</code> matches
+     */
+    private long getEligibleDaysOfMonth(Calendar cal) {
         if (this.hasRelativeDayOfMonth() == false) {
-            return this.absoluteValues;
+            return this.absoluteDaysOfMonth;
         }
-        SortedSet<Integer> eligibleDaysOfMonth = new TreeSet<Integer>(this.absoluteValues);
+        long eligibleDaysOfMonth = this.absoluteDaysOfMonth;
         for (ScheduleValue relativeValue : this.relativeValues) {
             if (relativeValue instanceof SingleValue) {
                 SingleValue singleValue = (SingleValue) relativeValue;
                 String value = singleValue.getValue();
-                Integer absoluteDayOfMonth = this.getAbsoluteDayOfMonth(cal, value);
-                eligibleDaysOfMonth.add(absoluteDayOfMonth);
+                int absoluteDayOfMonth = this.getAbsoluteDayOfMonth(cal, value);
+                eligibleDaysOfMonth |= 1L << (absoluteDayOfMonth - OFFSET);
             } else if (relativeValue instanceof RangeValue) {
                 RangeValue range = (RangeValue) relativeValue;
                 String start = range.getStart();
@@ -237,8 +268,8 @@ public class DayOfMonth extends IntegerBasedExpression {
                 this.assertValid(dayOfMonthEnd);
 
                 // start and end are both the same. So it's just a single value
-                if (dayOfMonthStart == dayOfMonthEnd) {
-                    eligibleDaysOfMonth.add(dayOfMonthEnd);
+                if (dayOfMonthStart.intValue() == dayOfMonthEnd.intValue()) {
+                    eligibleDaysOfMonth |= 1L << (dayOfMonthEnd - OFFSET);
                     continue;
 
                 }
@@ -246,16 +277,16 @@ public class DayOfMonth extends IntegerBasedExpression {
                     // In range "x-y", if x is larger than y, the range is equivalent to
                     // "x-max, min-y", where max is the largest value of the corresponding attribute
                     // and min is the smallest.
-                    for (int i = dayOfMonthStart; i <= this.getMaxValue(); i++) {
-                        eligibleDaysOfMonth.add(i);
+                    for (int i = dayOfMonthStart; i <= MAX_DAY_OF_MONTH; i++) {
+                        eligibleDaysOfMonth |= 1L << (i - OFFSET);
                     }
-                    for (int i = this.getMinValue(); i <= dayOfMonthEnd; i++) {
-                        eligibleDaysOfMonth.add(i);
+                    for (int i = MIN_DAY_OF_MONTH; i <= dayOfMonthEnd; i++) {
+                        eligibleDaysOfMonth |= 1L << (i - OFFSET);
                     }
                 } else {
                     // just keep adding from range start to range end (both inclusive).
                     for (int i = dayOfMonthStart; i <= dayOfMonthEnd; i++) {
-                        eligibleDaysOfMonth.add(i);
+                        eligibleDaysOfMonth |= 1L << (i - OFFSET);
                     }
                 }
             }
@@ -382,11 +413,11 @@ public class DayOfMonth extends IntegerBasedExpression {
         if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
             return Calendar.SUNDAY;
         }
-        SortedSet<Integer> eligibleDaysOfMonth = this.getEligibleDaysOfMonth(cal);
-        if (eligibleDaysOfMonth.isEmpty()) {
+        long eligibleDaysOfMonth = this.getEligibleDaysOfMonth(cal);
+        if (eligibleDaysOfMonth == 0) {
             return null;
         }
-        return eligibleDaysOfMonth.first();
+        return Long.numberOfTrailingZeros(eligibleDaysOfMonth) + OFFSET;
     }
 
     @Override
@@ -401,4 +432,103 @@ public class DayOfMonth extends IntegerBasedExpression {
         }
         return null;
     }
+
+    /**
+     * Returns the days of a month which match this expression, as a bit mask in which bit <code>n</code>
+     * is set if day <code>n</code> of the month matches. Unlike {@link #getNextMatch(Calendar)}, this
+     * resolves the relative values without creating any objects.
+     *
+     * @param lastDateOfMonth  The number of days in the month
+     * @param dayOfWeekOfFirst The {@link Calendar#DAY_OF_WEEK} of the first day of the month
+     * @return
+     */
+    public long getMatchingDaysOfMonth(int lastDateOfMonth, int dayOfWeekOfFirst) {
+        final long daysOfMonth = bitRange(1, lastDateOfMonth);
+        if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
+            return daysOfMonth;
+        }
+        // shift the mask so that bit n is day n
+        long matchingDays = this.absoluteDaysOfMonth >>> -OFFSET;
+        for (int i = 0; i < this.relativeStarts.length; i++) {
+            int start = this.relativeStarts[i].resolve(lastDateOfMonth, dayOfWeekOfFirst);
+            int end = this.relativeEnds[i].resolve(lastDateOfMonth, dayOfWeekOfFirst);
+            if (start > end) {
+                // "x-y" with x larger than y is equivalent to "x-max, min-y"
+                matchingDays |= bitRange(start, MAX_DAY_OF_MONTH) | bitRange(MIN_DAY_OF_MONTH, end);
+            } else {
+                matchingDays |= bitRange(start, end);
+            }
+        }
+        return matchingDays & daysOfMonth;
+    }
+
+    private RelativeDayOfMonth compile(String value) {
+        String trimmedValue = value.trim();
+        if (this.isRelativeValue(trimmedValue) == false) {
+            Integer dayOfMonth = this.parseInt(trimmedValue);
+            this.assertValid(dayOfMonth);
+            return new RelativeDayOfMonth(RelativeDayOfMonth.ABSOLUTE, dayOfMonth, 0);
+        }
+        if (trimmedValue.equalsIgnoreCase("last")) {
+            return new RelativeDayOfMonth(RelativeDayOfMonth.FROM_LAST, 0, 0);
+        }
+        if (this.isValidNegativeDayOfMonth(trimmedValue)) {
+            return new RelativeDayOfMonth(RelativeDayOfMonth.FROM_LAST, Integer.parseInt(trimmedValue), 0);
+        }
+        String[] parts = trimmedValue.split("\\s+");
+        String ordinal = parts[0];
+        int dayOfWeek = DAY_OF_MONTH_ALIAS.get(parts[1].toLowerCase(Locale.ENGLISH));
+        if (ordinal.equalsIgnoreCase("last")) {
+            return new RelativeDayOfMonth(RelativeDayOfMonth.LAST_DAY_OF_WEEK, 0, dayOfWeek);
+        }
+        int weekNumber = ORDINAL_TO_WEEK_NUMBER_MAPPING.get(ordinal.toLowerCase(Locale.ENGLISH));
+        return new RelativeDayOfMonth(RelativeDayOfMonth.NTH_DAY_OF_WEEK, weekNumber, dayOfWeek);
+    }
+
+    /**
+     * A day of month value compiled for resolution against a month, given the number of days in
+     * the month and the day of week of its first day
+     */
+    private static final class RelativeDayOfMonth {
+
+        static final int ABSOLUTE = 0;
+
+        static final int FROM_LAST = 1;
+
+        static final int NTH_DAY_OF_WEEK = 2;
+
+        static final int LAST_DAY_OF_WEEK = 3;
+
+        private final int type;
+
+        /**
+         * The day of month, the (non positive) number of days relative to the last day, or the week number
+         */
+        private final int value;
+
+        private final int dayOfWeek;
+
+        RelativeDayOfMonth(int type, int value, int dayOfWeek) {
+            this.type = type;
+            this.value = value;
+            this.dayOfWeek = dayOfWeek;
+        }
+
+        int resolve(int lastDateOfMonth, int dayOfWeekOfFirst) {
+            switch (this.type) {
+                case FROM_LAST:
+                    return lastDateOfMonth + this.value;
+                case NTH_DAY_OF_WEEK:
+                    int date = 1 + (this.dayOfWeek - dayOfWeekOfFirst + 7) % 7 + (this.value - 1) * 7;
+                    // same as getAbsoluteDayOfMonth(Calendar, String): the last date of the month,
+                    // if the month doesn't have the nth day
+                    return date > lastDateOfMonth ? lastDateOfMonth : date;
+                case LAST_DAY_OF_WEEK:
+                    int dayOfWeekOfLast = (dayOfWeekOfFirst - 1 + lastDateOfMonth - 1) % 7 + 1;
+                    return lastDateOfMonth - (dayOfWeekOfLast - this.dayOfWeek + 7) % 7;
+                default:
+                    return this.value;
+            }
+        }
+    }
 }
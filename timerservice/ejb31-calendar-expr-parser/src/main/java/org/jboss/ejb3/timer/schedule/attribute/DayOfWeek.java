@@ -28,8 +28,6 @@ import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 /**
  * DayOfWeek
@@ -57,7 +55,16 @@ public class DayOfWeek extends IntegerBasedExpression {
 
     private static final int OFFSET = DAY_OF_WEEK_ALIAS.get("sun") - Calendar.SUNDAY;
 
-    private SortedSet<Integer> offsetAdjustedDaysOfWeek = new TreeSet<Integer>();
+    /**
+     * The offset adjusted absolute values compiled into a bit mask. Bit <code>n</code> is set
+     * if the {@link Calendar#DAY_OF_WEEK} <code>n</code> matches
+     */
+    private final int dayOfWeekMask;
+
+    /**
+     * The bit mask matching each {@link Calendar#DAY_OF_WEEK}
+     */
+    private static final int ALL_DAYS_OF_WEEK = (int) bitRange(Calendar.SUNDAY, Calendar.SATURDAY);
 
     public DayOfWeek(String value) {
         super(value);
@@ -67,13 +74,7 @@ public class DayOfWeek extends IntegerBasedExpression {
                 this.absoluteValues.add(new Integer(0));
             }
         }
-        if (OFFSET != 0) {
-            for (Integer dayOfWeek : this.absoluteValues) {
-                this.offsetAdjustedDaysOfWeek.add(dayOfWeek - OFFSET);
-            }
-        } else {
-            this.offsetAdjustedDaysOfWeek = this.absoluteValues;
-        }
+        this.dayOfWeekMask = this.toIntMask(OFFSET);
     }
 
 
@@ -92,7 +93,10 @@ public class DayOfWeek extends IntegerBasedExpression {
         if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
             return Calendar.SUNDAY;
         }
-        return this.offsetAdjustedDaysOfWeek.first();
+        if (this.dayOfWeekMask == 0) {
+            throw new IllegalStateException("There are no valid days of week for expression: " + this.origValue);
+        }
+        return Integer.numberOfTrailingZeros(this.dayOfWeekMask);
     }
 
 
@@ -138,15 +142,31 @@ public class DayOfWeek extends IntegerBasedExpression {
         if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
             return currentCal.get(Calendar.DAY_OF_WEEK);
         }
-        int currentDayOfWeek = currentCal.get(Calendar.DAY_OF_WEEK);
-        for (Integer dayOfWeek : this.offsetAdjustedDaysOfWeek) {
-            if (currentDayOfWeek == dayOfWeek) {
-                return currentDayOfWeek;
-            }
-            if (dayOfWeek > currentDayOfWeek) {
-                return dayOfWeek;
+        if (this.dayOfWeekMask == 0) {
+            throw new IllegalStateException("There are no valid days of week for expression: " + this.origValue);
+        }
+        return nextSetBit(this.dayOfWeekMask, currentCal.get(Calendar.DAY_OF_WEEK));
+    }
+
+    /**
+     * Returns the days of a month which match this expression, as a bit mask in which bit <code>n</code>
+     * is set if day <code>n</code> of the month matches.
+     *
+     * @param lastDateOfMonth  The number of days in the month
+     * @param dayOfWeekOfFirst The {@link Calendar#DAY_OF_WEEK} of the first day of the month
+     * @return
+     */
+    public long getMatchingDaysOfMonth(int lastDateOfMonth, int dayOfWeekOfFirst) {
+        final int daysOfWeek = this.scheduleExpressionType == ScheduleExpressionType.WILDCARD ? ALL_DAYS_OF_WEEK
+                : this.dayOfWeekMask;
+        // the days among the first seven days of the month which match, bit 0 being the first day
+        long week = 0;
+        for (int i = 0; i < 7; i++) {
+            if ((daysOfWeek & (1 << ((dayOfWeekOfFirst - 1 + i) % 7 + 1))) != 0) {
+                week |= 1L << i;
             }
         }
-        return this.offsetAdjustedDaysOfWeek.first();
+        final long days = week | week << 7 | week << 14 | week << 21 | week << 28;
+        return (days << 1) & bitRange(1, lastDateOfMonth);
     }
 }
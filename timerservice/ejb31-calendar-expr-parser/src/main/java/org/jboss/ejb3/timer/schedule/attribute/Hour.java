@@ -56,6 +56,11 @@ public class Hour extends IntegerBasedExpression {
      */
     public static final Integer MIN_HOUR = 0;
 
+    /**
+     * The absolute values compiled into a bit mask. Bit <code>n</code> is set if hour <code>n</code> matches
+     */
+    private final long hourMask;
+
     /**
      * Creates a {@link Hour} by parsing the passed {@link String} <code>value</code>
      * <p>
@@ -71,13 +76,17 @@ public class Hour extends IntegerBasedExpression {
      */
     public Hour(String value) {
         super(value);
+        this.hourMask = this.toLongMask(0);
     }
 
     public int getFirst() {
         if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
             return 0;
         }
-        return this.absoluteValues.first();
+        if (this.hourMask == 0) {
+            throw new IllegalStateException("There are no valid hours for expression: " + this.origValue);
+        }
+        return Long.numberOfTrailingZeros(this.hourMask);
     }
 
     /**
@@ -124,18 +133,23 @@ public class Hour extends IntegerBasedExpression {
         if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
             return currentCal.get(Calendar.HOUR_OF_DAY);
         }
-        if (this.absoluteValues.isEmpty()) {
+        if (this.hourMask == 0) {
             return null;
         }
-        int currentHour = currentCal.get(Calendar.HOUR_OF_DAY);
-        for (Integer hour : this.absoluteValues) {
-            if (currentHour == hour) {
-                return currentHour;
-            }
-            if (hour > currentHour) {
-                return hour;
-            }
+        return nextSetBit(this.hourMask, currentCal.get(Calendar.HOUR_OF_DAY));
+    }
+
+    /**
+     * Returns the first hour, at or after the passed <code>hour</code>, which matches this expression.
+     * Unlike {@link #getNextMatch(Calendar)}, this doesn't wrap around.
+     *
+     * @param hour The hour to start from
+     * @return The matching hour, or -1 if none at or after <code>hour</code> matches
+     */
+    public int getFirstMatchFrom(int hour) {
+        if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
+            return hour <= MAX_HOUR ? hour : -1;
         }
-        return this.absoluteValues.first();
+        return nextSetBitOrNone(this.hourMask, hour);
     }
 }
@@ -215,4 +215,103 @@ public abstract class IntegerBasedExpression {
 
     public abstract boolean isRelativeValue(String value);
 
+    /**
+     * Compiles the absolute values into a bit mask, in which bit <code>n</code> is set if
+     * the value <code>n + offset</code> is one of the absolute values.
+     *
+     * @param offset The value corresponding to bit 0
+     * @return
+     */
+    protected long toLongMask(int offset) {
+        long mask = 0;
+        for (Integer value : this.absoluteValues) {
+            mask |= 1L << (value - offset);
+        }
+        return mask;
+    }
+
+    /**
+     * Compiles the absolute values into a bit mask, in which bit <code>n</code> is set if
+     * the value <code>n + offset</code> is one of the absolute values.
+     *
+     * @param offset The value corresponding to bit 0
+     * @return
+     */
+    protected int toIntMask(int offset) {
+        int mask = 0;
+        for (Integer value : this.absoluteValues) {
+            mask |= 1 << (value - offset);
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the index of the first bit set in <code>mask</code> at or after <code>fromIndex</code>.
+     * If there is none, wraps around and returns the index of the lowest bit set in <code>mask</code>.
+     *
+     * @param mask      The bit mask. Must not be 0
+     * @param fromIndex The index to start from
+     * @return
+     */
+    protected static int nextSetBit(long mask, int fromIndex) {
+        final long candidates = fromIndex >= Long.SIZE ? 0 : mask & (-1L << Math.max(fromIndex, 0));
+        return Long.numberOfTrailingZeros(candidates != 0 ? candidates : mask);
+    }
+
+    /**
+     * Returns the index of the first bit set in <code>mask</code> at or after <code>fromIndex</code>.
+     * If there is none, wraps around and returns the index of the lowest bit set in <code>mask</code>.
+     *
+     * @param mask      The bit mask. Must not be 0
+     * @param fromIndex The index to start from
+     * @return
+     */
+    protected static int nextSetBit(int mask, int fromIndex) {
+        final int candidates = fromIndex >= Integer.SIZE ? 0 : mask & (-1 << Math.max(fromIndex, 0));
+        return Integer.numberOfTrailingZeros(candidates != 0 ? candidates : mask);
+    }
+
+    /**
+     * Returns the index of the first bit set in <code>mask</code> at or after <code>fromIndex</code>.
+     * Unlike {@link #nextSetBit(long, int)}, this doesn't wrap around.
+     *
+     * @param mask      The bit mask
+     * @param fromIndex The index to start from
+     * @return The index of the bit, or -1 if no bit is set at or after <code>fromIndex</code>
+     */
+    protected static int nextSetBitOrNone(long mask, int fromIndex) {
+        final long candidates = fromIndex >= Long.SIZE ? 0 : mask & (-1L << Math.max(fromIndex, 0));
+        return candidates == 0 ? -1 : Long.numberOfTrailingZeros(candidates);
+    }
+
+    /**
+     * Returns the index of the first bit set in <code>mask</code> at or after <code>fromIndex</code>.
+     * Unlike {@link #nextSetBit(int, int)}, this doesn't wrap around.
+     *
+     * @param mask      The bit mask
+     * @param fromIndex The index to start from
+     * @return The index of the bit, or -1 if no bit is set at or after <code>fromIndex</code>
+     */
+    protected static int nextSetBitOrNone(int mask, int fromIndex) {
+        final int candidates = fromIndex >= Integer.SIZE ? 0 : mask & (-1 << Math.max(fromIndex, 0));
+        return candidates == 0 ? -1 : Integer.numberOfTrailingZeros(candidates);
+    }
+
+    /**
+     * Returns a bit mask with the bits <code>from</code> to <code>to</code> (both inclusive) set.
+     * Bits outside of 0 to 63 are ignored.
+     *
+     * @param from The first bit to set
+     * @param to   The last bit to set
+     * @return
+     */
+    protected static long bitRange(int from, int to) {
+        from = Math.max(from, 0);
+        to = Math.min(to, Long.SIZE - 1);
+        if (from > to) {
+            return 0;
+        }
+        return (-1L << from) & (-1L >>> (Long.SIZE - 1 - to));
+    }
+
 }
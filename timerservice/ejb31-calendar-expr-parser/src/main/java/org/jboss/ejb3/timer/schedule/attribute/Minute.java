@@ -25,7 +25,6 @@ import org.jboss.ejb3.timer.schedule.value.ScheduleExpressionType;
 
 import javax.ejb.ScheduleExpression;
 import java.util.Calendar;
-import java.util.SortedSet;
 
 /**
  * Represents the value of a minute constructed out of a {@link ScheduleExpression#getMinute()}
@@ -58,6 +57,11 @@ public class Minute extends IntegerBasedExpression {
      */
     public static final Integer MIN_MINUTE = 0;
 
+    /**
+     * The absolute values compiled into a bit mask. Bit <code>n</code> is set if minute <code>n</code> matches
+     */
+    private final long minuteMask;
+
     /**
      * Creates a {@link Minute} by parsing the passed {@link String} <code>value</code>
      * <p>
@@ -73,17 +77,17 @@ public class Minute extends IntegerBasedExpression {
      */
     public Minute(String value) {
         super(value);
+        this.minuteMask = this.toLongMask(0);
     }
 
     public int getFirst() {
         if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
             return 0;
         }
-        SortedSet<Integer> eligibleMinutes = this.getEligibleMinutes();
-        if (eligibleMinutes.isEmpty()) {
+        if (this.minuteMask == 0) {
             throw new IllegalStateException("There are no valid minutes for expression: " + this.origValue);
         }
-        return eligibleMinutes.first();
+        return Long.numberOfTrailingZeros(this.minuteMask);
     }
 
     /**
@@ -127,26 +131,27 @@ public class Minute extends IntegerBasedExpression {
         }
     }
 
-    private SortedSet<Integer> getEligibleMinutes() {
-        return this.absoluteValues;
-    }
-
     public Integer getNextMatch(Calendar currentCal) {
         if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
             return currentCal.get(Calendar.MINUTE);
         }
-        if (this.absoluteValues.isEmpty()) {
+        if (this.minuteMask == 0) {
             return null;
         }
-        int currentMinute = currentCal.get(Calendar.MINUTE);
-        for (Integer minute : this.absoluteValues) {
-            if (currentMinute == minute) {
-                return currentMinute;
-            }
-            if (minute > currentMinute) {
-                return minute;
-            }
+        return nextSetBit(this.minuteMask, currentCal.get(Calendar.MINUTE));
+    }
+
+    /**
+     * Returns the first minute, at or after the passed <code>minute</code>, which matches this expression.
+     * Unlike {@link #getNextMatch(Calendar)}, this doesn't wrap around.
+     *
+     * @param minute The minute to start from
+     * @return The matching minute, or -1 if none at or after <code>minute</code> matches
+     */
+    public int getFirstMatchFrom(int minute) {
+        if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
+            return minute <= MAX_MINUTE ? minute : -1;
         }
-        return this.absoluteValues.first();
+        return nextSetBitOrNone(this.minuteMask, minute);
     }
 }
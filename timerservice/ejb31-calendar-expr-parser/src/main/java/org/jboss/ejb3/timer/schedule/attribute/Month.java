@@ -27,8 +27,6 @@ import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 /**
  * Month
@@ -62,17 +60,15 @@ public class Month extends IntegerBasedExpression {
 
     private static final int OFFSET = MONTH_ALIAS.get("jan") - Calendar.JANUARY;
 
-    private SortedSet<Integer> offsetAdjustedMonths = new TreeSet<Integer>();
+    /**
+     * The offset adjusted absolute values compiled into a bit mask. Bit <code>n</code> is set
+     * if the {@link Calendar#MONTH} <code>n</code> matches
+     */
+    private final int monthMask;
 
     public Month(String value) {
         super(value);
-        if (OFFSET != 0) {
-            for (Integer month : this.absoluteValues) {
-                this.offsetAdjustedMonths.add(month - OFFSET);
-            }
-        } else {
-            this.offsetAdjustedMonths = this.absoluteValues;
-        }
+        this.monthMask = this.toIntMask(OFFSET);
     }
 
     @Override
@@ -123,28 +119,33 @@ public class Month extends IntegerBasedExpression {
         if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
             return currentCal.get(Calendar.MONTH);
         }
-        if (this.offsetAdjustedMonths.isEmpty()) {
+        if (this.monthMask == 0) {
             return null;
         }
-        int currentMonth = currentCal.get(Calendar.MONTH);
-        for (Integer month : this.offsetAdjustedMonths) {
-            if (currentMonth == month) {
-                return currentMonth;
-            }
-            if (month > currentMonth) {
-                return month;
-            }
+        return nextSetBit(this.monthMask, currentCal.get(Calendar.MONTH));
+    }
+
+    /**
+     * Returns the first month, at or after the passed <code>month</code>, which matches this expression.
+     * Unlike {@link #getNextMatch(Calendar)}, this doesn't wrap around.
+     *
+     * @param month The month (as in {@link Calendar#MONTH}) to start from
+     * @return The matching month, or -1 if none at or after <code>month</code> matches
+     */
+    public int getFirstMatchFrom(int month) {
+        if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
+            return month <= Calendar.DECEMBER ? month : -1;
         }
-        return this.offsetAdjustedMonths.first();
+        return nextSetBitOrNone(this.monthMask, month);
     }
 
     public Integer getFirstMatch() {
         if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
             return Calendar.JANUARY;
         }
-        if (this.offsetAdjustedMonths.isEmpty()) {
+        if (this.monthMask == 0) {
             throw new IllegalStateException("There are no valid seconds for expression: " + this.origValue);
         }
-        return this.offsetAdjustedMonths.first();
+        return Integer.numberOfTrailingZeros(this.monthMask);
     }
 }
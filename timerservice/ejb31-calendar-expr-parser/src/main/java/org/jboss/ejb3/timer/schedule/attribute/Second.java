@@ -57,6 +57,11 @@ public class Second extends IntegerBasedExpression {
      */
     public static final Integer MIN_SECOND = 0;
 
+    /**
+     * The absolute values compiled into a bit mask. Bit <code>n</code> is set if second <code>n</code> matches
+     */
+    private final long secondMask;
+
     /**
      * Creates a {@link Second} by parsing the passed {@link String} <code>value</code>
      * <p>
@@ -72,36 +77,41 @@ public class Second extends IntegerBasedExpression {
      */
     public Second(String value) {
         super(value);
+        this.secondMask = this.toLongMask(0);
     }
 
-
     public Integer getNextMatch(Calendar currentCal) {
         if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
             return currentCal.get(Calendar.SECOND);
         }
-        if (this.absoluteValues.isEmpty()) {
+        if (this.secondMask == 0) {
             return null;
         }
-        int currentSecond = currentCal.get(Calendar.SECOND);
-        for (Integer second : this.absoluteValues) {
-            if (currentSecond == second) {
-                return currentSecond;
-            }
-            if (second > currentSecond) {
-                return second;
-            }
+        return nextSetBit(this.secondMask, currentCal.get(Calendar.SECOND));
+    }
+
+    /**
+     * Returns the first second, at or after the passed <code>second</code>, which matches this expression.
+     * Unlike {@link #getNextMatch(Calendar)}, this doesn't wrap around.
+     *
+     * @param second The second to start from
+     * @return The matching second, or -1 if none at or after <code>second</code> matches
+     */
+    public int getFirstMatchFrom(int second) {
+        if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
+            return second <= MAX_SECOND ? second : -1;
         }
-        return this.absoluteValues.first();
+        return nextSetBitOrNone(this.secondMask, second);
     }
 
     public int getFirst() {
         if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
             return 0;
         }
-        if (this.absoluteValues.isEmpty()) {
+        if (this.secondMask == 0) {
             throw new IllegalStateException("There are no valid seconds for expression: " + this.origValue);
         }
-        return this.absoluteValues.first();
+        return Long.numberOfTrailingZeros(this.secondMask);
     }
 
     /**
@@ -24,6 +24,7 @@ package org.jboss.ejb3.timer.schedule.attribute;
 import org.jboss.ejb3.timer.schedule.value.ScheduleExpressionType;
 
 import javax.ejb.ScheduleExpression;
+import java.util.BitSet;
 import java.util.Calendar;
 
 /**
@@ -56,6 +57,11 @@ public class Year extends IntegerBasedExpression {
     // That's the reason we have set it to 1000 here.
     public static final Integer MIN_YEAR = 1000;
 
+    /**
+     * The absolute values compiled into a bit set. Bit <code>n</code> is set if year
+     * <code>n + MIN_YEAR</code> matches
+     */
+    private final BitSet years = new BitSet();
 
     /**
      * Creates a {@link Year} by parsing the passed {@link String} <code>value</code>
@@ -71,6 +77,9 @@ public class Year extends IntegerBasedExpression {
      */
     public Year(String value) {
         super(value);
+        for (Integer year : this.absoluteValues) {
+            this.years.set(year - MIN_YEAR);
+        }
     }
 
     /**
@@ -118,18 +127,28 @@ public class Year extends IntegerBasedExpression {
         if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
             return currentCal.get(Calendar.YEAR);
         }
-        if (this.absoluteValues.isEmpty()) {
+        if (this.years.isEmpty()) {
             return null;
         }
-        int currentYear = currentCal.get(Calendar.YEAR);
-        for (Integer year : this.absoluteValues) {
-            if (currentYear == year) {
-                return currentYear;
-            }
-            if (year > currentYear) {
-                return year;
-            }
+        int next = this.years.nextSetBit(Math.max(currentCal.get(Calendar.YEAR) - MIN_YEAR, 0));
+        if (next < 0) {
+            next = this.years.nextSetBit(0);
+        }
+        return next + MIN_YEAR;
+    }
+
+    /**
+     * Returns the first year, at or after the passed <code>year</code>, which matches this expression.
+     * Unlike {@link #getNextMatch(Calendar)}, this doesn't wrap around.
+     *
+     * @param year The year to start from
+     * @return The matching year, or -1 if none at or after <code>year</code> matches
+     */
+    public int getFirstMatchFrom(int year) {
+        if (this.scheduleExpressionType == ScheduleExpressionType.WILDCARD) {
+            return year;
         }
-        return this.absoluteValues.first();
+        int next = this.years.nextSetBit(Math.max(year - MIN_YEAR, 0));
+        return next < 0 ? -1 : next + MIN_YEAR;
     }
 }
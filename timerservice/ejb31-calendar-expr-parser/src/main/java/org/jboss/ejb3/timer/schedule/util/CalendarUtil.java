@@ -32,6 +32,20 @@ import java.util.GregorianCalendar;
  */
 public class CalendarUtil {
 
+    /**
+     * Number of milli seconds in a day
+     */
+    public static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * Number of days in a 400 year cycle of the Gregorian calendar
+     */
+    private static final int DAYS_PER_ERA = 146097;
+
+    /**
+     * Days from 0000-03-01 to 1970-01-01
+     */
+    private static final int DAYS_0000_TO_1970 = 719468;
 
     /**
      * Returns the last date of the month represented by the passed <code>cal</code>
@@ -100,4 +114,104 @@ public class CalendarUtil {
         return tmpCal.get(Calendar.DATE);
     }
 
+    /**
+     * Returns the number of days from 1970-01-01 to the passed date of the proleptic Gregorian calendar
+     *
+     * @param year       The year
+     * @param month      The month, as in {@link Calendar#MONTH}
+     * @param dayOfMonth The day of month, starting at 1
+     * @return
+     */
+    public static long toEpochDay(int year, int month, int dayOfMonth) {
+        // count the years from March, so that the leap day is the last day of the year
+        final int m = month + 1;
+        final long y = m <= 2 ? year - 1 : year;
+        final long era = (y >= 0 ? y : y - 399) / 400;
+        final long yearOfEra = y - era * 400;
+        final long dayOfYear = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5 + dayOfMonth - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * DAYS_PER_ERA + dayOfEra - DAYS_0000_TO_1970;
+    }
+
+    /**
+     * Returns the year of the day <code>epochDay</code> days after 1970-01-01
+     *
+     * @param epochDay The number of days from 1970-01-01
+     * @return
+     */
+    public static int getYear(long epochDay) {
+        final int date = toDate(epochDay);
+        return date >> 9;
+    }
+
+    /**
+     * Returns the month, as in {@link Calendar#MONTH}, of the day <code>epochDay</code> days after 1970-01-01
+     *
+     * @param epochDay The number of days from 1970-01-01
+     * @return
+     */
+    public static int getMonth(long epochDay) {
+        return ((toDate(epochDay) >> 5) & 0xF) - 1;
+    }
+
+    /**
+     * Returns the day of month of the day <code>epochDay</code> days after 1970-01-01
+     *
+     * @param epochDay The number of days from 1970-01-01
+     * @return
+     */
+    public static int getDayOfMonth(long epochDay) {
+        return toDate(epochDay) & 0x1F;
+    }
+
+    /**
+     * Returns the {@link Calendar#DAY_OF_WEEK} of the day <code>epochDay</code> days after 1970-01-01
+     *
+     * @param epochDay The number of days from 1970-01-01
+     * @return
+     */
+    public static int getDayOfWeek(long epochDay) {
+        // 1970-01-01 was a Thursday
+        final long daysFromThursday = epochDay % 7;
+        return (int) ((daysFromThursday + 11) % 7) + Calendar.SUNDAY;
+    }
+
+    /**
+     * Returns the number of days in the passed month
+     *
+     * @param year  The year
+     * @param month The month, as in {@link Calendar#MONTH}
+     * @return
+     */
+    public static int getLastDateOfMonth(int year, int month) {
+        switch (month) {
+            case Calendar.FEBRUARY:
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case Calendar.APRIL:
+            case Calendar.JUNE:
+            case Calendar.SEPTEMBER:
+            case Calendar.NOVEMBER:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * Returns the date of the day <code>epochDay</code> days after 1970-01-01, packed in an int as
+     * <code>year &lt;&lt; 9 | month (1 - 12) &lt;&lt; 5 | day of month</code>
+     */
+    private static int toDate(long epochDay) {
+        final long days = epochDay + DAYS_0000_TO_1970;
+        final long era = (days >= 0 ? days : days - DAYS_PER_ERA + 1) / DAYS_PER_ERA;
+        final long dayOfEra = days - era * DAYS_PER_ERA;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final long mp = (5 * dayOfYear + 2) / 153;
+        final int dayOfMonth = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        final int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        final int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+        return year << 9 | month << 5 | dayOfMonth;
+    }
+
 }
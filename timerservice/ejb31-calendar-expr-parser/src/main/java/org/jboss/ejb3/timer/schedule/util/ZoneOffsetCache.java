@@ -0,0 +1,235 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timer.schedule.util;
+
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the offsets of a {@link TimeZone} from UTC, and converts between instants and local
+ * (wall clock) times of the time zone.
+ * <p>
+ * The offsets are cached per UTC day, along with the instant of a transition within that day (if any).
+ * Once a day is cached, looking up an offset neither creates objects nor calls into the {@link TimeZone}.
+ * The cache assumes that a time zone has at most one transition within 48 hours, which holds for
+ * all the time zones shipped with the JDK.
+ * </p>
+ * <p>
+ * Local times are represented as the milli seconds since 1970-01-01T00:00 local time, i.e. an
+ * instant plus the offset in effect at that instant.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public final class ZoneOffsetCache {
+
+    /**
+     * The caches, shared by all the schedules of a time zone
+     */
+    private static final ConcurrentMap<String, ZoneOffsetCache> CACHES = new ConcurrentHashMap<String, ZoneOffsetCache>();
+
+    /**
+     * Number of days cached per time zone. Must be a power of 2
+     */
+    private static final int CACHE_SIZE = 1024;
+
+    /**
+     * No instant is further from a local time than this
+     */
+    private static final long MAX_OFFSET = CalendarUtil.MILLIS_PER_DAY;
+
+    private final TimeZone timeZone;
+
+    /**
+     * The cached days, indexed by the day modulo {@link #CACHE_SIZE}. Entries are immutable, hence
+     * can be read and replaced without synchronization.
+     */
+    private final Day[] days = new Day[CACHE_SIZE];
+
+    private ZoneOffsetCache(TimeZone timeZone) {
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * Returns the cache for the passed time zone
+     *
+     * @param timeZone The time zone
+     * @return
+     */
+    public static ZoneOffsetCache forTimeZone(TimeZone timeZone) {
+        if (timeZone == null) {
+            throw new IllegalArgumentException("Time zone cannot be null");
+        }
+        ZoneOffsetCache cache = CACHES.get(timeZone.getID());
+        if (cache != null && cache.timeZone.hasSameRules(timeZone)) {
+            return cache;
+        }
+        ZoneOffsetCache newCache = new ZoneOffsetCache((TimeZone) timeZone.clone());
+        if (cache == null) {
+            cache = CACHES.putIfAbsent(timeZone.getID(), newCache);
+            if (cache != null && cache.timeZone.hasSameRules(timeZone)) {
+                return cache;
+            }
+        }
+        // a custom time zone using the ID of another one, don't share its cache
+        return newCache;
+    }
+
+    /**
+     * Returns the time zone of this cache
+     *
+     * @return
+     */
+    public TimeZone getTimeZone() {
+        return (TimeZone) this.timeZone.clone();
+    }
+
+    /**
+     * Returns the offset from UTC, in milli seconds, at the passed instant
+     *
+     * @param epochMillis The instant
+     * @return
+     */
+    public int getOffset(long epochMillis) {
+        final long day = floorDiv(epochMillis, CalendarUtil.MILLIS_PER_DAY);
+        final int index = (int) (day & (CACHE_SIZE - 1));
+        Day entry = this.days[index];
+        if (entry == null || entry.day != day) {
+            entry = this.load(day);
+            this.days[index] = entry;
+        }
+        if (entry.transition == Day.UNRELIABLE) {
+            return this.timeZone.getOffset(epochMillis);
+        }
+        return epochMillis < entry.transition ? entry.offsetBefore : entry.offsetAfter;
+    }
+
+    /**
+     * Returns the local time at the passed instant
+     *
+     * @param epochMillis The instant
+     * @return The milli seconds since 1970-01-01T00:00 local time
+     */
+    public long toLocalMillis(long epochMillis) {
+        return epochMillis + this.getOffset(epochMillis);
+    }
+
+    /**
+     * Returns the first instant, not before <code>notBefore</code>, at which the local time is
+     * <code>localMillis</code>.
+     * <p>
+     * A local time which occurs twice, because the clocks are set back, is resolved to its first
+     * occurrence, unless that's before <code>notBefore</code>. A local time which doesn't exist,
+     * because the clocks are set forward, is shifted forward by the length of the gap, same as a
+     * lenient {@link java.util.Calendar} does.
+     * </p>
+     *
+     * @param localMillis The milli seconds since 1970-01-01T00:00 local time
+     * @param notBefore   The instant before which the earlier of two occurrences isn't used
+     * @return
+     */
+    public long toEpochMillis(long localMillis, long notBefore) {
+        final int offsetBefore = this.getOffset(localMillis - MAX_OFFSET);
+        final int offsetAfter = this.getOffset(localMillis + MAX_OFFSET);
+        final long before = localMillis - offsetBefore;
+        if (offsetBefore == offsetAfter) {
+            return before;
+        }
+        final long after = localMillis - offsetAfter;
+        final boolean beforeValid = this.getOffset(before) == offsetBefore;
+        final boolean afterValid = this.getOffset(after) == offsetAfter;
+        if (beforeValid && afterValid) {
+            // an overlap, the clocks were set back
+            final long first = Math.min(before, after);
+            return first >= notBefore ? first : Math.max(before, after);
+        }
+        if (beforeValid) {
+            return before;
+        }
+        if (afterValid) {
+            return after;
+        }
+        // a gap, the clocks were set forward
+        return before;
+    }
+
+    private Day load(long day) {
+        final long start = day * CalendarUtil.MILLIS_PER_DAY;
+        final long end = start + CalendarUtil.MILLIS_PER_DAY - 1;
+        final int offsetBefore = this.timeZone.getOffset(start);
+        final int offsetAfter = this.timeZone.getOffset(end);
+        if (offsetBefore == offsetAfter) {
+            return new Day(day, offsetBefore, Long.MAX_VALUE, offsetAfter);
+        }
+        // find the first milli second with the new offset
+        long low = start;
+        long high = end;
+        while (high - low > 1) {
+            final long middle = low + (high - low) / 2;
+            if (this.timeZone.getOffset(middle) == offsetBefore) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        if (this.timeZone.getOffset(high) != offsetAfter) {
+            // more than one transition on this day
+            return new Day(day, offsetBefore, Day.UNRELIABLE, offsetAfter);
+        }
+        return new Day(day, offsetBefore, high, offsetAfter);
+    }
+
+    private static long floorDiv(long dividend, long divisor) {
+        final long quotient = dividend / divisor;
+        return (dividend % divisor < 0) ? quotient - 1 : quotient;
+    }
+
+    /**
+     * The offsets of a UTC day
+     */
+    private static final class Day {
+
+        /**
+         * Marks a day whose offsets aren't cached
+         */
+        static final long UNRELIABLE = Long.MIN_VALUE;
+
+        final long day;
+
+        final int offsetBefore;
+
+        /**
+         * The first instant at which <code>offsetAfter</code> is in effect
+         */
+        final long transition;
+
+        final int offsetAfter;
+
+        Day(long day, int offsetBefore, long transition, int offsetAfter) {
+            this.day = day;
+            this.offsetBefore = offsetBefore;
+            this.transition = transition;
+            this.offsetAfter = offsetAfter;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timer.schedule.benchmark;
+
+import org.jboss.ejb3.timer.schedule.CalendarBasedTimeout;
+import org.jboss.ejb3.timer.schedule.CalendarBasedTimeoutCache;
+
+import javax.ejb.ScheduleExpression;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares creating a {@link CalendarBasedTimeout} per timer with sharing them through a
+ * {@link CalendarBasedTimeoutCache}, for many timers using a few distinct schedule expressions.
+ * Reports the time taken, the number of parsed schedules and the heap retained by the timeouts.
+ * <p>
+ * Not run as part of the build. Run the <code>main</code> method, optionally passing the number
+ * of timers and the number of distinct schedule expressions.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class CalendarBasedTimeoutCacheBenchmark {
+
+    private static final String[][] SCHEDULES = {
+            {"0", "0", "2", "*", "*", "*"},
+            {"0", "*/15", "*", "*", "*", "*"},
+            {"0", "0", "8-17", "Mon-Fri", "*", "*"},
+            {"30", "0", "0", "*", "Last", "*"},
+            {"0", "0,30", "9", "*", "1st Mon", "Jan-Jun"},
+            {"0", "0", "*/4", "Sat, Sun", "*", "*"},
+            {"0", "5", "23", "*", "-3", "*"},
+            {"0", "0", "12", "Wed", "*", "Nov"},
+    };
+
+    public static void main(String[] args) throws Exception {
+        final int timers = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        final int distinct = args.length > 1 ? Integer.parseInt(args[1]) : SCHEDULES.length;
+
+        final ScheduleExpression[] schedules = new ScheduleExpression[timers];
+        for (int i = 0; i < timers; i++) {
+            schedules[i] = schedule(i % distinct, i / distinct);
+        }
+        for (int round = 0; round < 3; round++) {
+            System.out.println("Round " + round + ", " + timers + " timers, " + distinct + " distinct schedules");
+            runUncached(schedules);
+            runCached(schedules);
+        }
+    }
+
+    private static void runUncached(final ScheduleExpression[] schedules) {
+        final long heapBefore = usedHeap();
+        final long begin = System.nanoTime();
+        CalendarBasedTimeout[] timeouts = new CalendarBasedTimeout[schedules.length];
+        for (int i = 0; i < schedules.length; i++) {
+            timeouts[i] = new CalendarBasedTimeout(schedules[i]);
+        }
+        final long elapsed = System.nanoTime() - begin;
+        final long retained = usedHeap() - heapBefore;
+        report("uncached", elapsed, schedules.length, retained, timeouts.length);
+    }
+
+    private static void runCached(final ScheduleExpression[] schedules) {
+        final CalendarBasedTimeoutCache cache = new CalendarBasedTimeoutCache();
+        final long heapBefore = usedHeap();
+        final long begin = System.nanoTime();
+        CalendarBasedTimeout[] timeouts = new CalendarBasedTimeout[schedules.length];
+        for (int i = 0; i < schedules.length; i++) {
+            timeouts[i] = cache.getCalendarTimeout(schedules[i]);
+        }
+        final long elapsed = System.nanoTime() - begin;
+        final long retained = usedHeap() - heapBefore;
+        report("cached", elapsed, cache.getParseCount(), retained, timeouts.length);
+    }
+
+    private static void report(String name, long elapsed, long parses, long retained, int timers) {
+        System.out.println(String.format("  %-10s %6d ms, %8d parses, %10d bytes retained (%d bytes per timer)", name,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), parses, retained, retained / timers));
+    }
+
+    /**
+     * Creates the <code>index</code>th schedule, written in one of a few equivalent ways
+     * depending on <code>variant</code>
+     */
+    private static ScheduleExpression schedule(int index, int variant) {
+        String[] values = SCHEDULES[index % SCHEDULES.length];
+        ScheduleExpression schedule = new ScheduleExpression();
+        schedule.second(spell(values[0], variant)).minute(spell(values[1], variant)).hour(spell(values[2], variant))
+                .dayOfWeek(spell(values[3], variant)).dayOfMonth(spell(values[4], variant)).month(spell(values[5], variant));
+        if (index >= SCHEDULES.length) {
+            // more distinct schedules than the predefined ones
+            schedule.year(String.valueOf(2100 + index / SCHEDULES.length));
+        }
+        return schedule;
+    }
+
+    private static String spell(String value, int variant) {
+        switch (variant % 3) {
+            case 1:
+                return value.toUpperCase();
+            case 2:
+                return " " + value + " ";
+            default:
+                return value;
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timer.schedule.test;
+
+import junit.framework.Assert;
+import org.jboss.ejb3.timer.schedule.attribute.DayOfMonth;
+import org.jboss.ejb3.timer.schedule.attribute.DayOfWeek;
+import org.jboss.ejb3.timer.schedule.attribute.Hour;
+import org.jboss.ejb3.timer.schedule.attribute.Minute;
+import org.jboss.ejb3.timer.schedule.attribute.Month;
+import org.jboss.ejb3.timer.schedule.attribute.Second;
+import org.jboss.ejb3.timer.schedule.attribute.Year;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Tests the next match lookups of the schedule attributes, at the edges of their bit masks
+ *
+ * @version $Revision: $
+ */
+public class AttributeNextMatchTestCase {
+
+    @Test
+    public void testSecond() {
+        Second second = new Second("0, 30, 59");
+        Assert.assertEquals(0, second.getFirst());
+        Assert.assertEquals(Integer.valueOf(30), second.getNextMatch(calendar(2011, Calendar.JANUARY, 1, 0, 0, 1)));
+        Assert.assertEquals(Integer.valueOf(59), second.getNextMatch(calendar(2011, Calendar.JANUARY, 1, 0, 0, 59)));
+
+        second = new Second("*/20");
+        Assert.assertEquals(Integer.valueOf(40), second.getNextMatch(calendar(2011, Calendar.JANUARY, 1, 0, 0, 21)));
+        // wraps around to the first match
+        Assert.assertEquals(Integer.valueOf(0), second.getNextMatch(calendar(2011, Calendar.JANUARY, 1, 0, 0, 41)));
+    }
+
+    @Test
+    public void testMinuteAndHour() {
+        Minute minute = new Minute("50-10");
+        Assert.assertEquals(0, minute.getFirst());
+        Assert.assertEquals(Integer.valueOf(50), minute.getNextMatch(calendar(2011, Calendar.JANUARY, 1, 0, 11, 0)));
+        Assert.assertEquals(Integer.valueOf(59), minute.getNextMatch(calendar(2011, Calendar.JANUARY, 1, 0, 59, 0)));
+
+        Hour hour = new Hour("23");
+        Assert.assertEquals(23, hour.getFirst());
+        Assert.assertEquals(Integer.valueOf(23), hour.getNextMatch(calendar(2011, Calendar.JANUARY, 1, 0, 0, 0)));
+        Assert.assertEquals(Integer.valueOf(23), hour.getNextMatch(calendar(2011, Calendar.JANUARY, 1, 23, 0, 0)));
+    }
+
+    @Test
+    public void testMonthAndDayOfWeek() {
+        Month month = new Month("Nov-Feb");
+        Assert.assertEquals(Integer.valueOf(Calendar.JANUARY), month.getFirstMatch());
+        Assert.assertEquals(Integer.valueOf(Calendar.NOVEMBER), month.getNextMatch(calendar(2011, Calendar.MARCH, 1, 0, 0, 0)));
+        Assert.assertEquals(Integer.valueOf(Calendar.DECEMBER), month.getNextMatch(calendar(2011, Calendar.DECEMBER, 1, 0, 0, 0)));
+
+        // 7 is sunday too
+        DayOfWeek dayOfWeek = new DayOfWeek("5-7");
+        Assert.assertEquals(Calendar.SUNDAY, dayOfWeek.getFirst());
+        // 2011-01-03 is a monday
+        Assert.assertEquals(Integer.valueOf(Calendar.FRIDAY), dayOfWeek.getNextMatch(calendar(2011, Calendar.JANUARY, 3, 0, 0, 0)));
+        Assert.assertEquals(Integer.valueOf(Calendar.SATURDAY), dayOfWeek.getNextMatch(calendar(2011, Calendar.JANUARY, 8, 0, 0, 0)));
+    }
+
+    @Test
+    public void testDayOfMonth() {
+        DayOfMonth dayOfMonth = new DayOfMonth("31");
+        Assert.assertEquals(Integer.valueOf(31), dayOfMonth.getNextMatch(calendar(2011, Calendar.JANUARY, 1, 0, 0, 0)));
+
+        dayOfMonth = new DayOfMonth("1, Last");
+        Assert.assertEquals(Integer.valueOf(28), dayOfMonth.getNextMatch(calendar(2011, Calendar.FEBRUARY, 2, 0, 0, 0)));
+        Assert.assertEquals(Integer.valueOf(1), dayOfMonth.getFirstMatch(calendar(2011, Calendar.FEBRUARY, 2, 0, 0, 0)));
+
+        dayOfMonth = new DayOfMonth("-2-Last");
+        Assert.assertEquals(Integer.valueOf(27), dayOfMonth.getNextMatch(calendar(2012, Calendar.FEBRUARY, 2, 0, 0, 0)));
+        Assert.assertEquals(Integer.valueOf(29), dayOfMonth.getNextMatch(calendar(2012, Calendar.FEBRUARY, 29, 0, 0, 0)));
+
+        dayOfMonth = new DayOfMonth("2nd Tue");
+        Assert.assertEquals(Integer.valueOf(11), dayOfMonth.getNextMatch(calendar(2011, Calendar.JANUARY, 1, 0, 0, 0)));
+    }
+
+    @Test
+    public void testYear() {
+        Year year = new Year("2011, 2013-2014, 9999");
+        Assert.assertEquals(Integer.valueOf(2011), year.getNextMatch(calendar(2010, Calendar.JANUARY, 1, 0, 0, 0)));
+        Assert.assertEquals(Integer.valueOf(2013), year.getNextMatch(calendar(2012, Calendar.JANUARY, 1, 0, 0, 0)));
+        Assert.assertEquals(Integer.valueOf(9999), year.getNextMatch(calendar(2015, Calendar.JANUARY, 1, 0, 0, 0)));
+    }
+
+    private static Calendar calendar(int year, int month, int day, int hour, int minute, int second) {
+        return new GregorianCalendar(year, month, day, hour, minute, second);
+    }
+}
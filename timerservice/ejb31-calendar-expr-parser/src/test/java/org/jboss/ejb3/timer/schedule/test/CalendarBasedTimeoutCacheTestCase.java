@@ -0,0 +1,141 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timer.schedule.test;
+
+import junit.framework.Assert;
+import org.jboss.ejb3.timer.schedule.CalendarBasedTimeout;
+import org.jboss.ejb3.timer.schedule.CalendarBasedTimeoutCache;
+import org.jboss.ejb3.timer.schedule.ScheduleExpressionKey;
+import org.junit.Test;
+
+import javax.ejb.ScheduleExpression;
+import java.util.Date;
+
+/**
+ * Tests the {@link CalendarBasedTimeoutCache} and the {@link ScheduleExpressionKey}
+ *
+ * @version $Revision: $
+ */
+public class CalendarBasedTimeoutCacheTestCase {
+
+    /**
+     * Tests that schedules which only differ in case and white spaces have equal keys
+     */
+    @Test
+    public void testEquivalentSchedulesHaveEqualKeys() {
+        ScheduleExpression schedule = new ScheduleExpression().second("0").minute("0, 30").hour("8-17")
+                .dayOfWeek("Mon-Fri").dayOfMonth("1st Mon").month("*").year("*").timezone("America/New_York");
+        ScheduleExpression equivalent = new ScheduleExpression().second(" 0 ").minute("0,\t 30").hour("8-17")
+                .dayOfWeek("MON-fri").dayOfMonth("1ST   mon").month("*").year("*").timezone(" America/New_York ");
+
+        ScheduleExpressionKey key = new ScheduleExpressionKey(schedule);
+        Assert.assertEquals("Keys of equivalent schedules are not equal", key, new ScheduleExpressionKey(equivalent));
+        Assert.assertEquals("Hash codes of equivalent schedules are not equal", key.hashCode(),
+                new ScheduleExpressionKey(equivalent).hashCode());
+
+        // blank and no timezone are the same
+        Assert.assertEquals(new ScheduleExpressionKey(new ScheduleExpression()),
+                new ScheduleExpressionKey(new ScheduleExpression().timezone("  ")));
+    }
+
+    /**
+     * Tests that each attribute, the start, the end and the timezone are part of the key
+     */
+    @Test
+    public void testDifferentSchedulesHaveDifferentKeys() {
+        ScheduleExpressionKey key = new ScheduleExpressionKey(new ScheduleExpression());
+
+        Assert.assertFalse(key.equals(new ScheduleExpressionKey(new ScheduleExpression().second("1"))));
+        Assert.assertFalse(key.equals(new ScheduleExpressionKey(new ScheduleExpression().minute("1"))));
+        Assert.assertFalse(key.equals(new ScheduleExpressionKey(new ScheduleExpression().hour("1"))));
+        Assert.assertFalse(key.equals(new ScheduleExpressionKey(new ScheduleExpression().dayOfWeek("1"))));
+        Assert.assertFalse(key.equals(new ScheduleExpressionKey(new ScheduleExpression().dayOfMonth("1"))));
+        Assert.assertFalse(key.equals(new ScheduleExpressionKey(new ScheduleExpression().month("1"))));
+        Assert.assertFalse(key.equals(new ScheduleExpressionKey(new ScheduleExpression().year("2020"))));
+        Assert.assertFalse(key.equals(new ScheduleExpressionKey(new ScheduleExpression().timezone("UTC"))));
+        Assert.assertFalse(key.equals(new ScheduleExpressionKey(new ScheduleExpression().start(new Date(1000)))));
+        Assert.assertFalse(key.equals(new ScheduleExpressionKey(new ScheduleExpression().end(new Date(1000)))));
+        // timezone ids are case sensitive
+        Assert.assertFalse(new ScheduleExpressionKey(new ScheduleExpression().timezone("UTC")).equals(
+                new ScheduleExpressionKey(new ScheduleExpression().timezone("utc"))));
+    }
+
+    /**
+     * Tests that equivalent schedules share the same {@link CalendarBasedTimeout} and are parsed once
+     */
+    @Test
+    public void testSharing() {
+        CalendarBasedTimeoutCache cache = new CalendarBasedTimeoutCache(10);
+        CalendarBasedTimeout first = cache.getCalendarTimeout(new ScheduleExpression().hour("*/2").dayOfWeek("Sun"));
+        CalendarBasedTimeout second = cache.getCalendarTimeout(new ScheduleExpression().hour(" */2").dayOfWeek("SUN"));
+
+        Assert.assertSame("Equivalent schedules don't share the calendar timeout", first, second);
+        Assert.assertEquals(1, cache.getParseCount());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getSize());
+
+        // the cached timeout isn't affected by changes to the schedule passed to the cache
+        ScheduleExpression schedule = new ScheduleExpression().minute("15");
+        CalendarBasedTimeout calendarTimeout = cache.getCalendarTimeout(schedule);
+        schedule.minute("45");
+        Assert.assertEquals("15", calendarTimeout.getScheduleExpression().getMinute());
+        Assert.assertNotSame(calendarTimeout, cache.getCalendarTimeout(schedule));
+    }
+
+    /**
+     * Tests that the least recently used entry is evicted once the cache is full
+     */
+    @Test
+    public void testEviction() {
+        CalendarBasedTimeoutCache cache = new CalendarBasedTimeoutCache(2);
+        CalendarBasedTimeout zero = cache.getCalendarTimeout(new ScheduleExpression().minute("0"));
+        CalendarBasedTimeout one = cache.getCalendarTimeout(new ScheduleExpression().minute("1"));
+        // use "0", so that "1" becomes the least recently used one
+        Assert.assertSame(zero, cache.getCalendarTimeout(new ScheduleExpression().minute("0")));
+        cache.getCalendarTimeout(new ScheduleExpression().minute("2"));
+
+        Assert.assertEquals(2, cache.getSize());
+        Assert.assertEquals(1, cache.getEvictionCount());
+        Assert.assertSame(zero, cache.getCalendarTimeout(new ScheduleExpression().minute("0")));
+        Assert.assertNotSame("Least recently used entry was not evicted", one,
+                cache.getCalendarTimeout(new ScheduleExpression().minute("1")));
+        Assert.assertEquals(4, cache.getParseCount());
+    }
+
+    /**
+     * Tests that invalid schedules are rejected every time and never cached
+     */
+    @Test
+    public void testInvalidScheduleIsNotCached() {
+        CalendarBasedTimeoutCache cache = new CalendarBasedTimeoutCache(10);
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.getCalendarTimeout(new ScheduleExpression().hour("25"));
+                Assert.fail("Invalid schedule was accepted");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertEquals(0, cache.getParseCount());
+    }
+}
@@ -27,6 +27,7 @@ import org.junit.Test;
 
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.TimeZone;
 
 /**
  * Tests {@link CalendarUtil}
@@ -293,4 +294,28 @@ public class CalendarUtilTestCase {
 
     }
 
+    /**
+     * Tests the epoch day based date arithmetic against a {@link GregorianCalendar}, for every day
+     * from 1583 (the first full year of the Gregorian calendar) to 9999
+     */
+    @Test
+    public void testEpochDays() {
+        Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        cal.clear();
+        cal.set(1583, Calendar.JANUARY, 1);
+        long epochDay = cal.getTimeInMillis() / CalendarUtil.MILLIS_PER_DAY;
+        while (cal.get(Calendar.YEAR) <= 9999) {
+            int year = cal.get(Calendar.YEAR);
+            int month = cal.get(Calendar.MONTH);
+            int dayOfMonth = cal.get(Calendar.DAY_OF_MONTH);
+            Assert.assertEquals(epochDay, CalendarUtil.toEpochDay(year, month, dayOfMonth));
+            Assert.assertEquals(year, CalendarUtil.getYear(epochDay));
+            Assert.assertEquals(month, CalendarUtil.getMonth(epochDay));
+            Assert.assertEquals(dayOfMonth, CalendarUtil.getDayOfMonth(epochDay));
+            Assert.assertEquals(cal.get(Calendar.DAY_OF_WEEK), CalendarUtil.getDayOfWeek(epochDay));
+            Assert.assertEquals(cal.getActualMaximum(Calendar.DAY_OF_MONTH), CalendarUtil.getLastDateOfMonth(year, month));
+            cal.add(Calendar.DAY_OF_MONTH, 1);
+            epochDay++;
+        }
+    }
 }
@@ -0,0 +1,418 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timer.schedule.test;
+
+import junit.framework.Assert;
+import org.jboss.ejb3.timer.schedule.CalendarBasedTimeout;
+import org.jboss.ejb3.timer.schedule.attribute.DayOfMonth;
+import org.jboss.ejb3.timer.schedule.attribute.DayOfWeek;
+import org.jboss.ejb3.timer.schedule.attribute.Hour;
+import org.jboss.ejb3.timer.schedule.attribute.Minute;
+import org.jboss.ejb3.timer.schedule.attribute.Month;
+import org.jboss.ejb3.timer.schedule.attribute.Second;
+import org.jboss.ejb3.timer.schedule.attribute.Year;
+import org.junit.Test;
+
+import javax.ejb.ScheduleExpression;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Differential tests of {@link CalendarBasedTimeout#getNextTimeout(long)} against a brute force search,
+ * over random schedules, time zones and instants.
+ * <p>
+ * The brute force search checks the local times one second after the other, and has to find exactly the
+ * timeout computed by {@link CalendarBasedTimeout#getNextTimeout(long)}. A local time which occurs twice,
+ * because the clocks are set back, times out at its first occurrence after the current time, and a local
+ * time which doesn't exist, because the clocks are set forward, is shifted forward by the length of the gap.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class NextTimeoutDifferentialTestCase {
+
+    private static final String[] TIMEZONE_IDS = TimeZone.getAvailableIDs();
+
+    private static final long FROM = new GregorianCalendar(1990, Calendar.JANUARY, 1).getTimeInMillis();
+
+    private static final long TO = new GregorianCalendar(2035, Calendar.JANUARY, 1).getTimeInMillis();
+
+    private static final String[] DAYS_OF_WEEK = {"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"};
+
+    private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct",
+            "Nov", "Dec"};
+
+    private static final String[] ORDINALS = {"1st", "2nd", "3rd", "4th", "5th", "Last"};
+
+    /**
+     * Compares the timeouts at random instants
+     */
+    @Test
+    public void testRandomInstants() {
+        this.compare(new Random(20101018L), 50000, false);
+    }
+
+    /**
+     * Compares the timeouts at random instants just before the clocks are set back or forward
+     */
+    @Test
+    public void testAroundTransitions() {
+        this.compare(new Random(20101019L), 20000, true);
+    }
+
+    /**
+     * Tests that a schedule which repeatedly times out gets the sequence of timeouts the brute force search finds
+     */
+    @Test
+    public void testSuccessiveTimeouts() {
+        Random random = new Random(20101020L);
+        for (int i = 0; i < 500; i++) {
+            TimeZone timezone = TimeZone.getTimeZone(TIMEZONE_IDS[random.nextInt(TIMEZONE_IDS.length)]);
+            ScheduleExpression schedule = this.randomSchedule(random, timezone);
+            CalendarBasedTimeout timeout = new CalendarBasedTimeout(schedule);
+            long current = FROM + (long) (random.nextDouble() * (TO - FROM));
+            for (int j = 0; j < 50; j++) {
+                long next = timeout.getNextTimeout(current);
+                this.assertNextTimeout(timeout, timezone, current, next);
+                if (next == CalendarBasedTimeout.NO_MORE_TIMEOUTS) {
+                    break;
+                }
+                current = next;
+            }
+        }
+    }
+
+    /**
+     * Tests the timeouts of a daily schedule on the days the clocks are set forward and back
+     */
+    @Test
+    public void testDaylightSavingTime() {
+        TimeZone timezone = TimeZone.getTimeZone("America/New_York");
+        ScheduleExpression schedule = new ScheduleExpression().second("0").minute("30").hour("1-2").timezone(timezone.getID());
+        CalendarBasedTimeout timeout = new CalendarBasedTimeout(schedule);
+
+        // 2011-03-13, 02:00 EST is set forward to 03:00 EDT, hence 02:30 doesn't exist
+        long timeoutAt0130 = timeout.getNextTimeout(this.toMillis(timezone, 2011, Calendar.MARCH, 13, 0, 0));
+        Assert.assertEquals(this.toMillis(timezone, 2011, Calendar.MARCH, 13, 1, 30), timeoutAt0130);
+        long timeoutAfter0130 = timeout.getNextTimeout(timeoutAt0130);
+        Assert.assertEquals("02:30 EST should have been shifted to 03:30 EDT", timeoutAt0130 + 3600 * 1000L, timeoutAfter0130);
+        Assert.assertEquals(3, this.toCalendar(timeoutAfter0130, timezone).get(Calendar.HOUR_OF_DAY));
+        Assert.assertEquals(this.toMillis(timezone, 2011, Calendar.MARCH, 14, 1, 30), timeout.getNextTimeout(timeoutAfter0130));
+
+        // 2011-11-06, 02:00 EDT is set back to 01:00 EST, hence 01:30 occurs twice
+        long firstTimeout = timeout.getNextTimeout(this.toMillis(timezone, 2011, Calendar.NOVEMBER, 6, 0, 0));
+        Assert.assertEquals("01:30 EDT", 1320557400000L, firstTimeout);
+        long secondTimeout = timeout.getNextTimeout(firstTimeout);
+        Assert.assertEquals("02:30 EST", 1320564600000L, secondTimeout);
+        // starting in the second 01:00 to 02:00 hour, 01:30 times out in that hour
+        Assert.assertEquals("01:30 EST", 1320561000000L, timeout.getNextTimeout(1320559200000L));
+    }
+
+    private void compare(Random random, int count, boolean aroundTransitions) {
+        int compared = 0;
+        while (compared < count) {
+            TimeZone timezone = TimeZone.getTimeZone(TIMEZONE_IDS[random.nextInt(TIMEZONE_IDS.length)]);
+            long current = FROM + (long) (random.nextDouble() * (TO - FROM));
+            if (aroundTransitions) {
+                long transition = this.nextTransition(timezone, current);
+                if (transition < 0) {
+                    // no daylight saving time in this time zone
+                    continue;
+                }
+                // up to a day before the transition
+                current = transition - (long) (random.nextDouble() * 24 * 3600 * 1000);
+            }
+            if (random.nextBoolean()) {
+                current -= current % 1000;
+            }
+            ScheduleExpression schedule = this.randomSchedule(random, timezone);
+            CalendarBasedTimeout timeout = new CalendarBasedTimeout(schedule);
+
+            this.assertNextTimeout(timeout, timezone, current, timeout.getNextTimeout(current));
+            compared++;
+        }
+    }
+
+    private void assertNextTimeout(CalendarBasedTimeout timeout, TimeZone timezone, long current, long next) {
+        long expected = this.bruteForceNextTimeout(timeout.getScheduleExpression(), timezone, current);
+        if (next != expected) {
+            Assert.fail(timeout.getScheduleExpression() + " in " + timezone.getID() + " after " + new Date(current)
+                    + " (" + current + "): expected " + this.toString(expected) + ", but was " + this.toString(next));
+        }
+    }
+
+    private String toString(long timeout) {
+        return timeout == CalendarBasedTimeout.NO_MORE_TIMEOUTS ? "no more timeouts" : new Date(timeout) + " (" + timeout + ")";
+    }
+
+    /**
+     * Returns the next timeout of the schedule after <code>current</code>, found by checking the local times
+     * one second after the other, from the start of the next second (or from the start of the schedule).
+     * Years, months, days, hours and minutes which don't match are skipped as a whole.
+     */
+    private long bruteForceNextTimeout(ScheduleExpression schedule, TimeZone timezone, long current) {
+        if (schedule.getEnd() != null && current > schedule.getEnd().getTime()) {
+            return CalendarBasedTimeout.NO_MORE_TIMEOUTS;
+        }
+        long first;
+        if (schedule.getStart() != null && current < schedule.getStart().getTime()) {
+            first = schedule.getStart().getTime();
+        } else {
+            first = current - current % 1000 + 1000;
+        }
+        // the local time, with the fields of a UTC calendar
+        Calendar local = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        local.setTimeInMillis(first + timezone.getOffset(first));
+        // the years after the ones in the random schedules repeat every 400 years, weekdays included
+        int lastYear = Math.min(Year.MAX_YEAR, Math.max(local.get(Calendar.YEAR), 2040) + 400);
+        Second second = new Second(schedule.getSecond());
+        Minute minute = new Minute(schedule.getMinute());
+        Hour hour = new Hour(schedule.getHour());
+        Month month = new Month(schedule.getMonth());
+        Year year = new Year(schedule.getYear());
+        DayOfMonth dayOfMonth = new DayOfMonth(schedule.getDayOfMonth());
+        DayOfWeek dayOfWeek = new DayOfWeek(schedule.getDayOfWeek());
+        for (; ; ) {
+            if (local.get(Calendar.YEAR) > lastYear) {
+                return CalendarBasedTimeout.NO_MORE_TIMEOUTS;
+            }
+            if (!this.matches(year.getNextMatch(local), local.get(Calendar.YEAR))) {
+                this.skip(local, Calendar.YEAR);
+            } else if (!this.matches(month.getNextMatch(local), local.get(Calendar.MONTH))) {
+                this.skip(local, Calendar.MONTH);
+            } else if (!this.matchesDay(schedule, dayOfMonth, dayOfWeek, local)) {
+                this.skip(local, Calendar.DAY_OF_MONTH);
+            } else if (!this.matches(hour.getNextMatch(local), local.get(Calendar.HOUR_OF_DAY))) {
+                this.skip(local, Calendar.HOUR_OF_DAY);
+            } else if (!this.matches(minute.getNextMatch(local), local.get(Calendar.MINUTE))) {
+                this.skip(local, Calendar.MINUTE);
+            } else if (!this.matches(second.getNextMatch(local), local.get(Calendar.SECOND))) {
+                this.skip(local, Calendar.SECOND);
+            } else {
+                break;
+            }
+        }
+        long timeout = this.toInstant(local, timezone, first);
+        return schedule.getEnd() != null && timeout > schedule.getEnd().getTime() ? CalendarBasedTimeout.NO_MORE_TIMEOUTS : timeout;
+    }
+
+    /**
+     * Moves the local time to the start of the next <code>field</code>, keeping the milli seconds, which are
+     * only ever non zero if starting at the start of the schedule
+     */
+    private void skip(Calendar local, int field) {
+        // falls through, to clear the smaller fields
+        switch (field) {
+            case Calendar.YEAR:
+                local.set(Calendar.MONTH, Calendar.JANUARY);
+            case Calendar.MONTH:
+                local.set(Calendar.DAY_OF_MONTH, 1);
+            case Calendar.DAY_OF_MONTH:
+                local.set(Calendar.HOUR_OF_DAY, 0);
+            case Calendar.HOUR_OF_DAY:
+                local.set(Calendar.MINUTE, 0);
+            case Calendar.MINUTE:
+                local.set(Calendar.SECOND, 0);
+        }
+        local.add(field, 1);
+    }
+
+    /**
+     * Returns the first instant, not before <code>notBefore</code>, at which the local time is the one of
+     * <code>local</code>, or the instant it is shifted to if it doesn't exist
+     */
+    private long toInstant(Calendar local, TimeZone timezone, long notBefore) {
+        long localMillis = local.getTimeInMillis();
+        long day = 24 * 3600 * 1000L;
+        long earlier = localMillis - timezone.getOffset(localMillis - day);
+        long later = localMillis - timezone.getOffset(localMillis + day);
+        boolean earlierExists = earlier + timezone.getOffset(earlier) == localMillis;
+        boolean laterExists = later + timezone.getOffset(later) == localMillis;
+        if (earlierExists && laterExists) {
+            long first = Math.min(earlier, later);
+            return first >= notBefore ? first : Math.max(earlier, later);
+        }
+        if (earlierExists) {
+            return earlier;
+        }
+        if (laterExists) {
+            return later;
+        }
+        // the clocks were set forward, a lenient calendar shifts the local time by the length of the gap
+        Calendar lenient = new GregorianCalendar(timezone);
+        lenient.clear();
+        lenient.set(local.get(Calendar.YEAR), local.get(Calendar.MONTH), local.get(Calendar.DAY_OF_MONTH),
+                local.get(Calendar.HOUR_OF_DAY), local.get(Calendar.MINUTE), local.get(Calendar.SECOND));
+        lenient.set(Calendar.MILLISECOND, local.get(Calendar.MILLISECOND));
+        return lenient.getTimeInMillis();
+    }
+
+    private boolean matchesDay(ScheduleExpression schedule, DayOfMonth dayOfMonth, DayOfWeek dayOfWeek, Calendar cal) {
+        boolean dayOfMonthMatch = this.matches(dayOfMonth.getNextMatch(cal), cal.get(Calendar.DAY_OF_MONTH));
+        boolean dayOfWeekMatch = this.matches(dayOfWeek.getNextMatch(cal), cal.get(Calendar.DAY_OF_WEEK));
+        if (schedule.getDayOfMonth().equals("*")) {
+            return dayOfWeekMatch;
+        }
+        if (schedule.getDayOfWeek().equals("*")) {
+            return dayOfMonthMatch;
+        }
+        return dayOfMonthMatch || dayOfWeekMatch;
+    }
+
+    private boolean matches(Integer nextMatch, int value) {
+        return nextMatch != null && nextMatch == value;
+    }
+
+    private ScheduleExpression randomSchedule(Random random, TimeZone timezone) {
+        ScheduleExpression schedule = new ScheduleExpression();
+        schedule.second(this.randomValue(random, 59, 0.2, null));
+        schedule.minute(this.randomValue(random, 59, 0.3, null));
+        schedule.hour(this.randomValue(random, 23, 0.4, null));
+        schedule.dayOfWeek(random.nextInt(3) > 0 ? "*" : this.randomDayOfWeek(random));
+        schedule.dayOfMonth(random.nextInt(3) > 0 ? "*" : this.randomDayOfMonth(random));
+        schedule.month(this.randomValue(random, 12, 0.6, MONTHS));
+        switch (random.nextInt(10)) {
+            case 0:
+                schedule.year(String.valueOf(1995 + random.nextInt(40)));
+                break;
+            case 1:
+                int from = 1995 + random.nextInt(40);
+                schedule.year(from + "-" + (from + random.nextInt(5)));
+                break;
+            default:
+                schedule.year("*");
+        }
+        schedule.timezone(timezone.getID());
+        if (random.nextInt(10) == 0) {
+            schedule.start(new Date(FROM + (long) (random.nextDouble() * (TO - FROM))));
+        }
+        if (random.nextInt(10) == 0) {
+            schedule.end(new Date(FROM + (long) (random.nextDouble() * (TO - FROM))));
+        }
+        return schedule;
+    }
+
+    /**
+     * Returns a random value of an attribute with values from 0 (or 1 for months) to <code>max</code>
+     */
+    private String randomValue(Random random, int max, double wildcardProbability, String[] aliases) {
+        int min = aliases == null ? 0 : 1;
+        if (random.nextDouble() < wildcardProbability) {
+            return "*";
+        }
+        switch (random.nextInt(aliases == null ? 4 : 3)) {
+            case 0:
+                return this.alias(min + random.nextInt(max - min + 1), aliases);
+            case 1:
+                StringBuilder list = new StringBuilder();
+                int size = 1 + random.nextInt(4);
+                for (int i = 0; i < size; i++) {
+                    if (i > 0) {
+                        list.append(", ");
+                    }
+                    list.append(this.alias(min + random.nextInt(max - min + 1), aliases));
+                }
+                return list.toString();
+            case 2:
+                // may as well be a range wrapping around
+                return this.alias(min + random.nextInt(max - min + 1), aliases) + "-"
+                        + this.alias(min + random.nextInt(max - min + 1), aliases);
+            default:
+                return (random.nextBoolean() ? "*" : String.valueOf(random.nextInt(max / 2))) + "/"
+                        + (1 + random.nextInt(max / 2));
+        }
+    }
+
+    private String alias(int value, String[] aliases) {
+        return aliases == null || value > aliases.length ? String.valueOf(value) : aliases[value - 1];
+    }
+
+    private String randomDayOfWeek(Random random) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return DAYS_OF_WEEK[random.nextInt(7)];
+            case 1:
+                return DAYS_OF_WEEK[random.nextInt(7)] + ", " + random.nextInt(8);
+            default:
+                return DAYS_OF_WEEK[random.nextInt(7)] + "-" + DAYS_OF_WEEK[random.nextInt(7)];
+        }
+    }
+
+    private String randomDayOfMonth(Random random) {
+        switch (random.nextInt(6)) {
+            case 0:
+                return String.valueOf(1 + random.nextInt(31));
+            case 1:
+                return (1 + random.nextInt(31)) + ", " + (1 + random.nextInt(31));
+            case 2:
+                int start = 1 + random.nextInt(31);
+                return start + "-" + (start + random.nextInt(32 - start));
+            case 3:
+                return random.nextBoolean() ? "Last" : String.valueOf(-1 - random.nextInt(7));
+            case 4:
+                return ORDINALS[random.nextInt(ORDINALS.length)] + " " + DAYS_OF_WEEK[random.nextInt(7)];
+            default:
+                return (1 + random.nextInt(10)) + "-Last";
+        }
+    }
+
+    /**
+     * Returns the first instant after <code>instant</code>, and within a year, at which the offset of the
+     * time zone changes, or -1 if there is none
+     */
+    private long nextTransition(TimeZone timezone, long instant) {
+        int offset = timezone.getOffset(instant);
+        long day = 24 * 3600 * 1000L;
+        for (long t = instant + day; t < instant + 366 * day; t += day) {
+            if (timezone.getOffset(t) != offset) {
+                long low = t - day;
+                long high = t;
+                while (high - low > 1) {
+                    long middle = low + (high - low) / 2;
+                    if (timezone.getOffset(middle) == offset) {
+                        low = middle;
+                    } else {
+                        high = middle;
+                    }
+                }
+                return high;
+            }
+        }
+        return -1;
+    }
+
+    private Calendar toCalendar(long instant, TimeZone timezone) {
+        Calendar cal = new GregorianCalendar(timezone);
+        cal.setTimeInMillis(instant);
+        return cal;
+    }
+
+    private long toMillis(TimeZone timezone, int year, int month, int dayOfMonth, int hour, int minute) {
+        Calendar cal = new GregorianCalendar(timezone);
+        cal.clear();
+        cal.set(year, month, dayOfMonth, hour, minute, 0);
+        return cal.getTimeInMillis();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.api;
+
+import javax.ejb.ScheduleExpression;
+import javax.ejb.TimerConfig;
+import java.util.Date;
+
+/**
+ * Describes a timer to be created through {@link TimerService#createTimers(java.util.List)}. A definition
+ * is either a single action, an interval or a calendar timer, as created through the corresponding
+ * <code>create*Timer</code> methods of {@link javax.ejb.TimerService}.
+ *
+ * @version $Revision: $
+ */
+public final class TimerDefinition {
+
+    private final Date expiration;
+
+    private final long intervalDuration;
+
+    private final ScheduleExpression schedule;
+
+    private final TimerConfig timerConfig;
+
+    private TimerDefinition(final Date expiration, final long intervalDuration, final ScheduleExpression schedule,
+                            final TimerConfig timerConfig) {
+        this.expiration = expiration;
+        this.intervalDuration = intervalDuration;
+        this.schedule = schedule;
+        // like javax.ejb.TimerService#createCalendarTimer(ScheduleExpression), no config means a persistent timer without info
+        this.timerConfig = timerConfig == null ? new TimerConfig() : timerConfig;
+    }
+
+    /**
+     * Defines a single action timer
+     *
+     * @param expiration  The time at which the timeout occurs
+     * @param timerConfig The info and persistence of the timer. May be null
+     * @return
+     * @throws IllegalArgumentException If <code>expiration</code> is null or negative
+     */
+    public static TimerDefinition singleAction(final Date expiration, final TimerConfig timerConfig) {
+        return interval(expiration, 0, timerConfig);
+    }
+
+    /**
+     * Defines an interval timer
+     *
+     * @param initialExpiration The time at which the first timeout occurs
+     * @param intervalDuration  The milli seconds between the timeouts. 0 defines a single action timer
+     * @param timerConfig       The info and persistence of the timer. May be null
+     * @return
+     * @throws IllegalArgumentException If <code>initialExpiration</code> is null or negative, or
+     *                                  <code>intervalDuration</code> is negative
+     */
+    public static TimerDefinition interval(final Date initialExpiration, final long intervalDuration,
+                                           final TimerConfig timerConfig) {
+        if (initialExpiration == null) {
+            throw new IllegalArgumentException("Initial expiration cannot be null");
+        }
+        if (initialExpiration.getTime() < 0) {
+            throw new IllegalArgumentException("Initial expiration cannot be negative: " + initialExpiration.getTime());
+        }
+        if (intervalDuration < 0) {
+            throw new IllegalArgumentException("Interval duration cannot be negative: " + intervalDuration);
+        }
+        return new TimerDefinition(initialExpiration, intervalDuration, null, timerConfig);
+    }
+
+    /**
+     * Defines a calendar timer
+     *
+     * @param schedule    The schedule of the timer
+     * @param timerConfig The info and persistence of the timer. May be null
+     * @return
+     * @throws IllegalArgumentException If <code>schedule</code> is null
+     */
+    public static TimerDefinition calendar(final ScheduleExpression schedule, final TimerConfig timerConfig) {
+        if (schedule == null) {
+            throw new IllegalArgumentException("Schedule cannot be null");
+        }
+        return new TimerDefinition(null, 0, schedule, timerConfig);
+    }
+
+    /**
+     * @return True if this defines a calendar timer, false if it defines a single action or an interval timer
+     */
+    public boolean isCalendarTimer() {
+        return this.schedule != null;
+    }
+
+    /**
+     * @return The time of the first timeout, or null for a calendar timer
+     */
+    public Date getExpiration() {
+        return this.expiration;
+    }
+
+    /**
+     * @return The milli seconds between the timeouts. 0 for a single action or a calendar timer
+     */
+    public long getIntervalDuration() {
+        return this.intervalDuration;
+    }
+
+    /**
+     * @return The schedule, or null if this doesn't define a calendar timer
+     */
+    public ScheduleExpression getSchedule() {
+        return this.schedule;
+    }
+
+    /**
+     * @return
+     */
+    public TimerConfig getTimerConfig() {
+        return this.timerConfig;
+    }
+}
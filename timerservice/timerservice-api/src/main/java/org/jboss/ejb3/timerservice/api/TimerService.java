@@ -24,6 +24,7 @@ package org.jboss.ejb3.timerservice.api;
 import javax.ejb.ScheduleExpression;
 import javax.ejb.TimerConfig;
 import java.lang.reflect.Method;
+import java.util.List;
 
 /**
  * TimerService
@@ -36,5 +37,34 @@ public interface TimerService extends javax.ejb.TimerService {
     Timer loadAutoTimer(ScheduleExpression schedule, Method timeoutMethod);
 
     Timer loadAutoTimer(ScheduleExpression schedule, TimerConfig timerConfig, Method timeoutMethod);
+
+    /**
+     * Creates a timer for each of the passed definitions. This is equivalent to calling the corresponding
+     * <code>create*Timer</code> method for each definition, except that the timers are persisted and
+     * scheduled together.
+     *
+     * @param definitions The timers to create
+     * @return The created timers, in the order of <code>definitions</code>
+     * @throws IllegalArgumentException If <code>definitions</code> is null or contains null. No timer is created then
+     * @throws IllegalStateException    If this method was invoked during a lifecycle callback on a non-singleton EJB
+     */
+    List<Timer> createTimers(List<TimerDefinition> definitions);
+
+    /**
+     * Cancels all the active timers of the timed object
+     *
+     * @return The number of cancelled timers
+     * @throws IllegalStateException If this method was invoked during a lifecycle callback on a non-singleton EJB
+     */
+    int cancelTimers();
+
+    /**
+     * Cancels the active timers of the timed object which are accepted by the passed <code>filter</code>
+     *
+     * @param filter Selects the timers to cancel by their info
+     * @return The number of cancelled timers
+     * @throws IllegalStateException If this method was invoked during a lifecycle callback on a non-singleton EJB
+     */
+    int cancelTimers(TimerInfoFilter filter);
 }
 
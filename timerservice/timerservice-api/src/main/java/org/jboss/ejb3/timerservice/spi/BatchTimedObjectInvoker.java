@@ -0,0 +1,56 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.spi;
+
+import javax.ejb.Timer;
+import java.util.List;
+
+/**
+ * A {@link BatchTimedObjectInvoker} can deliver the timeouts of several timers of its timed object
+ * in a single invocation.
+ * <p>
+ * A timer service which supports batched delivery groups the timers of the timed object which expire
+ * within a short window, and passes them to {@link #callTimeouts(List)}, instead of calling
+ * {@link #callTimeout(Timer)} once for each of them. The invoker is expected to acquire the target and
+ * run the invocation (along with its transaction) once for the whole batch.
+ * </p>
+ * <p>
+ * Timers which need a specific timeout method, like auto timers, are never batched.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public interface BatchTimedObjectInvoker extends TimedObjectInvoker
+{
+
+   /**
+    * Invokes the timeout method on the TimedObject once for each of the passed timers, in the
+    * order of the list, within a single invocation.
+    * <p>
+    *   If this method throws an exception, none of the timeouts is considered delivered. The timer
+    *   service then retries each of the timers on its own, through {@link #callTimeout(Timer)}.
+    * </p>
+    *
+    * @param timers The timers whose timeout occurred. Never empty
+    */
+   void callTimeouts(List<Timer> timers) throws Exception;
+}
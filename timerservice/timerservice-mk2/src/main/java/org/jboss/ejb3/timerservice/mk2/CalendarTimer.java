@@ -36,7 +36,7 @@ import javax.ejb.Timer;
 import javax.ejb.TimerHandle;
 import java.io.Serializable;
 import java.lang.reflect.Method;
-import java.util.Calendar;
+import java.util.Date;
 
 /**
  * Represents a {@link Timer} which is created out a calendar expression
@@ -105,15 +105,18 @@ public class CalendarTimer extends TimerImpl {
      */
     public CalendarTimer(String id, TimerServiceImpl timerService, CalendarBasedTimeout calendarTimeout,
                          Serializable info, boolean persistent, Method timeoutMethod) {
-        super(id, timerService, calendarTimeout.getFirstTimeout() == null ? null : calendarTimeout.getFirstTimeout()
-                .getTime(), 0, info, persistent);
-        this.calendarTimeout = calendarTimeout;
+        // the calendar timeout may be shared with other timers, so compute the first timeout
+        // (from "now") of this timer, rather than using the one computed when the calendar
+        // timeout was created
+        this(id, timerService, calendarTimeout, calendarTimeout.getNextTimeout(System.currentTimeMillis()), info, persistent,
+                timeoutMethod);
+    }
 
-        // compute the next timeout (from "now")
-        Calendar nextTimeout = this.calendarTimeout.getNextTimeout();
-        if (nextTimeout != null) {
-            this.nextExpiration = nextTimeout.getTime();
-        }
+    private CalendarTimer(String id, TimerServiceImpl timerService, CalendarBasedTimeout calendarTimeout, long firstTimeout,
+                          Serializable info, boolean persistent, Method timeoutMethod) {
+        super(id, timerService, firstTimeout == CalendarBasedTimeout.NO_MORE_TIMEOUTS ? null : new Date(firstTimeout), 0,
+                info, persistent);
+        this.calendarTimeout = calendarTimeout;
         // set this as an auto-timer if the passed timeout method name
         // is not null
         if (timeoutMethod != null) {
@@ -130,9 +133,9 @@ public class CalendarTimer extends TimerImpl {
      */
     public CalendarTimer(CalendarTimerEntity persistedCalendarTimer, TimerServiceImpl timerService) {
         super(persistedCalendarTimer, timerService);
-        this.calendarTimeout = persistedCalendarTimer.getCalendarTimeout();
+        this.calendarTimeout = timerService.getCalendarTimeout(persistedCalendarTimer.getScheduleExpression());
         // set the next expiration (which will be available in the persistent state)
-        this.nextExpiration = persistedCalendarTimer.getNextDate();
+        this.nextExpiration = toMillis(persistedCalendarTimer.getNextDate());
         // auto-timer related attributes
         if (persistedCalendarTimer.isAutoTimer()) {
             this.autoTimer = true;
@@ -153,13 +156,17 @@ public class CalendarTimer extends TimerImpl {
     @Override
     public ScheduleExpression getSchedule() throws IllegalStateException, NoSuchObjectLocalException, EJBException {
         this.assertTimerState();
-        return this.calendarTimeout.getScheduleExpression();
+        // the schedule expression of the calendar timeout is shared, so hand out a copy
+        return this.calendarTimeout.copyScheduleExpression();
     }
 
     /**
      * This method is similar to {@link #getSchedule()}, except that this method does <i>not</i> check the timer state
      * and hence does <i>not</i> throw either {@link IllegalStateException} or {@link NoSuchObjectLocalException}
      * or {@link EJBException}.
+     * <p>
+     * The returned {@link ScheduleExpression} may be shared with other timers and must not be modified.
+     * </p>
      *
      * @return
      */
@@ -225,17 +232,10 @@ public class CalendarTimer extends TimerImpl {
      */
     @Override
     public boolean equals(Object obj) {
-        if (obj == null) {
-            return false;
-        }
-        if (this.handle == null) {
-            return false;
-        }
         if (!(obj instanceof CalendarTimer)) {
             return false;
         }
-        CalendarTimer otherTimer = (CalendarTimer) obj;
-        return this.handle.equals(otherTimer.getTimerHandle());
+        return super.equals(obj);
     }
 
 
@@ -0,0 +1,53 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2;
+
+/**
+ * Decides how the timeouts of an interval or calendar timer, which were missed while the
+ * server was down or the timer service couldn't keep up, are caught up with.
+ * <p>
+ * Single action timers always fire once, however late they are.
+ * </p>
+ *
+ * @version $Revision: $
+ * @see TimerServiceImpl#setCatchUpPolicy(CatchUpPolicy)
+ */
+public enum CatchUpPolicy {
+
+    /**
+     * The missed timeouts fire once, right away. The timer then continues with its next
+     * timeout after the current time.
+     */
+    FIRE_ONCE,
+
+    /**
+     * Each of the missed timeouts fires, one after the other, but no more often than the
+     * catch-up interval of the timer service. Any further timeouts which are missed while
+     * catching up are skipped.
+     */
+    FIRE_ALL,
+
+    /**
+     * The missed timeouts don't fire. The timer continues with its next timeout after the current time.
+     */
+    SKIP
+}
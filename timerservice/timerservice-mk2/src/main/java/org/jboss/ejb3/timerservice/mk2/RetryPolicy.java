@@ -0,0 +1,152 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2;
+
+import java.util.Random;
+
+/**
+ * Decides when, and how often, a timeout whose timeout method failed is retried.
+ * <p>
+ * The retries are scheduled on the scheduler of the timer service, so no thread is held while a
+ * retry is waiting. The delay before retry <code>n</code> is <code>initialDelay * multiplier^(n-1)</code>,
+ * capped at <code>maxDelay</code>, and then shortened by up to the <code>jitter</code> fraction of itself
+ * at random, so that timers which failed together don't all retry at the same moment.
+ * </p>
+ * <p>
+ * The timer is in {@link TimerState#RETRY_TIMEOUT} until the timeout succeeds or the retries are
+ * used up. Regular timeouts of the timer which fire in the mean time are skipped.
+ * </p>
+ *
+ * @version $Revision: $
+ * @see TimerServiceImpl#setRetryPolicy(RetryPolicy)
+ */
+public final class RetryPolicy {
+
+    /**
+     * Retries a failed timeout once, right away, as required by the EJB specification
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(1, 0, 1, 0, 0);
+
+    private final int maxAttempts;
+
+    private final long initialDelay;
+
+    private final double multiplier;
+
+    private final long maxDelay;
+
+    private final double jitter;
+
+    private final Random random = new Random();
+
+    /**
+     * Creates a {@link RetryPolicy}
+     *
+     * @param maxAttempts  The maximum number of retries of a failed timeout. 0 disables retries
+     * @param initialDelay The delay (in milli seconds) before the first retry
+     * @param multiplier   The factor each delay is multiplied with to get the next one. At least 1
+     * @param maxDelay     The maximum delay (in milli seconds) before a retry
+     * @param jitter       The fraction, between 0 and 1, by which a delay is randomly shortened
+     */
+    public RetryPolicy(final int maxAttempts, final long initialDelay, final double multiplier, final long maxDelay,
+                       final double jitter) {
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException("Max attempts cannot be negative: " + maxAttempts);
+        }
+        if (initialDelay < 0) {
+            throw new IllegalArgumentException("Initial delay cannot be negative: " + initialDelay);
+        }
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("Multiplier must be at least 1: " + multiplier);
+        }
+        if (maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Max delay " + maxDelay + " is less than the initial delay " + initialDelay);
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1: " + jitter);
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.multiplier = multiplier;
+        this.maxDelay = maxDelay;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Creates a {@link RetryPolicy} which doubles the delay after each retry, with 20% jitter
+     *
+     * @param maxAttempts  The maximum number of retries of a failed timeout
+     * @param initialDelay The delay (in milli seconds) before the first retry
+     * @param maxDelay     The maximum delay (in milli seconds) before a retry
+     * @return
+     */
+    public static RetryPolicy exponentialBackoff(final int maxAttempts, final long initialDelay, final long maxDelay) {
+        return new RetryPolicy(maxAttempts, initialDelay, 2, maxDelay, 0.2);
+    }
+
+    /**
+     * Returns the delay before a retry
+     *
+     * @param attempt The number of the retry, starting at 1
+     * @return The delay in milli seconds
+     */
+    public long getDelay(final int attempt) {
+        if (attempt < 1) {
+            throw new IllegalArgumentException("Attempt must be positive: " + attempt);
+        }
+        final double delay = Math.min(this.initialDelay * Math.pow(this.multiplier, attempt - 1), this.maxDelay);
+        if (this.jitter == 0) {
+            return (long) delay;
+        }
+        final double random;
+        synchronized (this.random) {
+            random = this.random.nextDouble();
+        }
+        return (long) (delay * (1 - this.jitter * random));
+    }
+
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    public long getInitialDelay() {
+        return this.initialDelay;
+    }
+
+    public double getMultiplier() {
+        return this.multiplier;
+    }
+
+    public long getMaxDelay() {
+        return this.maxDelay;
+    }
+
+    public double getJitter() {
+        return this.jitter;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy[maxAttempts=" + this.maxAttempts + ", initialDelay=" + this.initialDelay + ", multiplier="
+                + this.multiplier + ", maxDelay=" + this.maxDelay + ", jitter=" + this.jitter + "]";
+    }
+}
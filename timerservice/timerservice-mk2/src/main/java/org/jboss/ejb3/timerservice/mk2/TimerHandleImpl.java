@@ -96,7 +96,7 @@ public class TimerHandleImpl implements TimerHandle {
             }
         }
         org.jboss.ejb3.timerservice.api.Timer timer = this.service.getTimer(this);
-        if (timer != null && timer.isActive() == false) {
+        if (timer == null || timer.isActive() == false) {
             throw new NoSuchObjectLocalException("Timer for handle: " + this + " is not active");
         }
         return timer;
@@ -23,7 +23,9 @@ package org.jboss.ejb3.timerservice.mk2;
 
 import org.jboss.ejb3.timerservice.api.Timer;
 import org.jboss.ejb3.timerservice.api.TimerService;
+import org.jboss.ejb3.timerservice.mk2.persistence.MarshalledTimerInfo;
 import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
+import org.jboss.ejb3.timerservice.mk2.scheduler.ScheduledTimeout;
 import org.jboss.ejb3.timerservice.mk2.task.TimerTask;
 import org.jboss.ejb3.timerservice.spi.TimedObjectInvoker;
 import org.jboss.logging.Logger;
@@ -33,16 +35,12 @@ import javax.ejb.NoMoreTimeoutsException;
 import javax.ejb.NoSuchObjectLocalException;
 import javax.ejb.ScheduleExpression;
 import javax.ejb.TimerHandle;
-import javax.transaction.Status;
-import javax.transaction.Synchronization;
 import javax.transaction.Transaction;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectStreamClass;
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Implementation of EJB3.1 {@link Timer}
@@ -57,9 +55,23 @@ public class TimerImpl implements Timer {
     private static final Logger logger = Logger.getLogger(TimerImpl.class);
 
     /**
-     * Unique id for this timer instance
+     * The value of the date fields which are not set
      */
-    protected final String id;
+    public static final long NO_DATE = Long.MIN_VALUE;
+
+    private static final AtomicReferenceFieldUpdater<TimerImpl, ScheduledTimeout> scheduledTimeoutUpdater = AtomicReferenceFieldUpdater
+            .newUpdater(TimerImpl.class, ScheduledTimeout.class, "scheduledTimeout");
+
+    /**
+     * Unique id for this timer instance. Null if the id is held by {@link #uuid}
+     */
+    private final String id;
+
+    /**
+     * The id of a non-persistent timer whose id is a UUID, which takes a fraction of the memory of its
+     * string form. Null if the id is held by {@link #id}
+     */
+    private final UUID uuid;
 
     /**
      * The timer state
@@ -77,9 +89,9 @@ public class TimerImpl implements Timer {
     protected TimedObjectInvoker timedObjectInvoker;
 
     /**
-     * The info which was passed while creating the timer.
+     * The info which was passed while creating the timer. Null if there's no info
      */
-    protected Serializable info;
+    protected MarshalledTimerInfo info;
 
     /**
      * Indicates whether the timer is persistent
@@ -87,14 +99,15 @@ public class TimerImpl implements Timer {
     protected boolean persistent;
 
     /**
-     * A {@link TimerHandle} for this timer
+     * A {@link TimerHandle} for this timer, if it is persistent. The handles of non-persistent timers
+     * are created when asked for
      */
     protected TimerHandleImpl handle;
 
     /**
-     * The initial (first) expiry date of this timer
+     * The initial (first) expiry date of this timer, in milli seconds, or {@link #NO_DATE}
      */
-    protected Date initialExpiration;
+    protected long initialExpiration;
 
     /**
      * The duration in milli sec. between timeouts
@@ -102,20 +115,42 @@ public class TimerImpl implements Timer {
     protected long intervalDuration;
 
     /**
-     * Next expiry date of this timer
+     * Next expiry date of this timer, in milli seconds, or {@link #NO_DATE}
      */
-    protected Date nextExpiration;
+    protected long nextExpiration;
 
     /**
-     * The date of the previous run of this timer
+     * The date of the previous run of this timer, in milli seconds, or {@link #NO_DATE}
      */
-    protected Date previousRun;
+    protected long previousRun;
 
     /**
      * If the timer is persistent, then this represents its persistent state.
      */
     protected TimerEntity persistentState;
 
+    /**
+     * While catching up with missed timeouts through {@link CatchUpPolicy#FIRE_ALL}, the time up to which
+     * the missed timeouts fire. 0 if the timer isn't catching up. Volatile, since the timeout is scheduled
+     * by the thread which created or restored the timer, and then by the threads which run its timeouts.
+     */
+    volatile long catchUpUntil;
+
+    /**
+     * The number of retries of the failed timeout, while the timer is in {@link TimerState#RETRY_TIMEOUT}
+     */
+    protected int retryAttempts;
+
+    /**
+     * The time of the next retry of the failed timeout, in milli seconds, or {@link #NO_DATE}
+     */
+    protected long nextRetry = NO_DATE;
+
+    /**
+     * The currently scheduled timeout of this timer, if any
+     */
+    private volatile ScheduledTimeout scheduledTimeout;
+
     /**
      * Creates a {@link TimerImpl}
      *
@@ -147,19 +182,22 @@ public class TimerImpl implements Timer {
         assert service != null : "service is null";
         assert id != null : "id is null";
 
-        this.id = id;
+        this.uuid = persistent ? null : toUUID(id);
+        this.id = this.uuid == null ? id : null;
         this.timerService = service;
 
         this.timedObjectInvoker = service.getInvoker();
-        this.info = info;
+        this.info = MarshalledTimerInfo.forInfo(info);
         this.persistent = persistent;
-        this.initialExpiration = initialExpiry;
+        this.initialExpiration = toMillis(initialExpiry);
         this.intervalDuration = intervalDuration;
-        this.nextExpiration = nextEpiry;
-        this.previousRun = null;
+        this.nextExpiration = toMillis(nextEpiry);
+        this.previousRun = NO_DATE;
 
-        // create a timer handle for this timer
-        this.handle = new TimerHandleImpl(this.id, this.timedObjectInvoker.getTimedObjectId(), service);
+        if (persistent) {
+            // create a timer handle for this timer
+            this.handle = new TimerHandleImpl(id, this.timedObjectInvoker.getTimedObjectId(), service);
+        }
 
         setTimerState(TimerState.CREATED);
 
@@ -174,9 +212,12 @@ public class TimerImpl implements Timer {
     public TimerImpl(TimerEntity persistedTimer, TimerServiceImpl service) {
         this(persistedTimer.getId(), service, persistedTimer.getInitialDate(), persistedTimer.getInterval(),
                 persistedTimer.getNextDate(), null, true);
-        this.previousRun = persistedTimer.getPreviousRun();
+        this.previousRun = toMillis(persistedTimer.getPreviousRun());
         this.timerState = persistedTimer.getTimerState();
-        this.info = persistedTimer.getInfo();
+        this.retryAttempts = persistedTimer.getRetryAttempts();
+        this.nextRetry = toMillis(persistedTimer.getNextRetry());
+        // the info is only deserialized once it is asked for
+        this.info = persistedTimer.getMarshalledInfo();
     }
 
     /**
@@ -185,7 +226,45 @@ public class TimerImpl implements Timer {
      * @return
      */
     public String getId() {
-        return this.id;
+        return this.id != null ? this.id : this.uuid.toString();
+    }
+
+    /**
+     * Returns an object which identifies this timer among the timers of its timer service, and which,
+     * unlike the id returned by {@link #getId()}, is held by the timer rather than created on each call
+     *
+     * @return
+     * @see #toKey(String)
+     */
+    public Object getKey() {
+        return this.id != null ? this.id : this.uuid;
+    }
+
+    /**
+     * Returns the {@link #getKey() key} of the timer with the passed id
+     *
+     * @param id The id of the timer
+     * @return
+     */
+    static Object toKey(String id) {
+        final UUID uuid = toUUID(id);
+        return uuid == null ? id : uuid;
+    }
+
+    /**
+     * Returns the UUID whose string form is the passed id, or null if there's none
+     */
+    private static UUID toUUID(String id) {
+        // the canonical form of a UUID is 36 characters long
+        if (id.length() != 36) {
+            return null;
+        }
+        try {
+            final UUID uuid = UUID.fromString(id);
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
     /**
@@ -249,7 +328,10 @@ public class TimerImpl implements Timer {
      * @return
      */
     public TimerHandle getTimerHandle() {
-        return this.handle;
+        if (this.handle != null) {
+            return this.handle;
+        }
+        return new TimerHandleImpl(this.getId(), this.timedObjectInvoker.getTimedObjectId(), this.timerService);
     }
 
     /**
@@ -273,7 +355,7 @@ public class TimerImpl implements Timer {
         // make sure this call is allowed
         this.assertTimerState();
 
-        return this.info;
+        return this.getTimerInfo();
     }
 
     /**
@@ -284,6 +366,15 @@ public class TimerImpl implements Timer {
      * @return
      */
     public Serializable getTimerInfo() {
+        return this.info == null ? null : this.info.getInfo(this.timedObjectInvoker.getClassLoader());
+    }
+
+    /**
+     * Returns the info of this timer, without deserializing it if it hasn't been yet
+     *
+     * @return The info, or null if this timer has no info
+     */
+    public MarshalledTimerInfo getMarshalledInfo() {
         return this.info;
     }
 
@@ -296,10 +387,10 @@ public class TimerImpl implements Timer {
     public Date getNextTimeout() throws IllegalStateException, NoSuchObjectLocalException, NoMoreTimeoutsException, EJBException {
         // first check the validity of the timer state
         this.assertTimerState();
-        if (this.nextExpiration == null) {
+        if (this.nextExpiration == NO_DATE) {
             throw new NoMoreTimeoutsException("No more timeouts for timer " + this);
         }
-        return this.nextExpiration;
+        return new Date(this.nextExpiration);
     }
 
     /**
@@ -310,6 +401,15 @@ public class TimerImpl implements Timer {
      * @return
      */
     public Date getNextExpiration() {
+        return toDate(this.nextExpiration);
+    }
+
+    /**
+     * Returns the next expiration of this timer, like {@link #getNextExpiration()}, in milli seconds
+     *
+     * @return The next expiration, or {@link #NO_DATE} if there is none
+     */
+    public long getNextExpirationMillis() {
         return this.nextExpiration;
     }
 
@@ -319,7 +419,7 @@ public class TimerImpl implements Timer {
      * @param next The next scheduled timeout of this timer
      */
     public void setNextTimeout(Date next) {
-        this.nextExpiration = next;
+        this.nextExpiration = toMillis(next);
     }
 
     /**
@@ -340,11 +440,11 @@ public class TimerImpl implements Timer {
 
         // first check the validity of the timer state
         this.assertTimerState();
-        if (this.nextExpiration == null) {
+        if (this.nextExpiration == NO_DATE) {
             throw new NoMoreTimeoutsException("No more timeouts for timer " + this);
         }
         long currentTimeInMillis = System.currentTimeMillis();
-        long nextTimeoutInMillis = this.nextExpiration.getTime();
+        long nextTimeoutInMillis = this.nextExpiration;
 
         // if the next expiration is *not* in future and the repeat interval isn't
         // a positive number (i.e. no repeats) then there won't be any more timeouts.
@@ -379,7 +479,7 @@ public class TimerImpl implements Timer {
      * @return
      */
     public Date getInitialExpiration() {
-        return this.initialExpiration;
+        return toDate(this.initialExpiration);
     }
 
     /**
@@ -453,13 +553,49 @@ public class TimerImpl implements Timer {
         return timerState == TimerState.RETRY_TIMEOUT;
     }
 
+    /**
+     * Returns the number of retries of the failed timeout of this timer, 0 if the timer isn't in retry
+     *
+     * @return
+     */
+    public int getRetryAttempts() {
+        return this.retryAttempts;
+    }
+
+    /**
+     * Returns the {@link Date} of the next retry of the failed timeout of this timer
+     *
+     * @return The date, or null if no retry is pending
+     */
+    public Date getNextRetry() {
+        return toDate(this.nextRetry);
+    }
+
+    /**
+     * @return The time of the next retry, or {@link #NO_DATE} if no retry is pending
+     */
+    public long getNextRetryMillis() {
+        return this.nextRetry;
+    }
+
+    /**
+     * Sets the retry state of this timer
+     *
+     * @param attempts  The number of retries of the failed timeout, 0 once the timeout is no longer retried
+     * @param nextRetry The time of the next retry, or {@link #NO_DATE}
+     */
+    public void setRetry(int attempts, long nextRetry) {
+        this.retryAttempts = attempts;
+        this.nextRetry = nextRetry;
+    }
+
     /**
      * Returns the {@link Date} of the previous timeout of this timer
      *
      * @return
      */
     public Date getPreviousRun() {
-        return this.previousRun;
+        return toDate(this.previousRun);
     }
 
     /**
@@ -468,7 +604,25 @@ public class TimerImpl implements Timer {
      * @param previousRun
      */
     public void setPreviousRun(Date previousRun) {
-        this.previousRun = previousRun;
+        this.previousRun = toMillis(previousRun);
+    }
+
+    /**
+     * Sets the currently scheduled timeout of this timer
+     *
+     * @param scheduledTimeout The scheduled timeout. Null if none is scheduled
+     * @return The previously scheduled timeout, or null
+     */
+    ScheduledTimeout setScheduledTimeout(ScheduledTimeout scheduledTimeout) {
+        return scheduledTimeoutUpdater.getAndSet(this, scheduledTimeout);
+    }
+
+    protected static long toMillis(Date date) {
+        return date == null ? NO_DATE : date.getTime();
+    }
+
+    protected static Date toDate(long millis) {
+        return millis == NO_DATE ? null : new Date(millis);
     }
 
     /**
@@ -529,9 +683,11 @@ public class TimerImpl implements Timer {
             this.persistentState = this.createPersistentState();
         } else {
             // just refresh the fields which change in the persistent timer
-            this.persistentState.setNextDate(this.nextExpiration);
-            this.persistentState.setPreviousRun(this.previousRun);
+            this.persistentState.setNextDate(toDate(this.nextExpiration));
+            this.persistentState.setPreviousRun(toDate(this.previousRun));
             this.persistentState.setTimerState(this.timerState);
+            this.persistentState.setRetryAttempts(this.retryAttempts);
+            this.persistentState.setNextRetry(toDate(this.nextRetry));
         }
         return this.persistentState;
     }
@@ -581,26 +737,24 @@ public class TimerImpl implements Timer {
 
     /**
      * A {@link javax.ejb.Timer} is equal to another {@link javax.ejb.Timer} if their
-     * {@link TimerHandle}s are equal
+     * {@link TimerHandle}s are equal, that is, if they have the same id and timed object
      */
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
             return false;
         }
-        if (this.handle == null) {
-            return false;
-        }
         if (obj instanceof TimerImpl == false) {
             return false;
         }
         TimerImpl otherTimer = (TimerImpl) obj;
-        return this.handle.equals(otherTimer.getTimerHandle());
+        return this.getKey().equals(otherTimer.getKey())
+                && this.timedObjectInvoker.getTimedObjectId().equals(otherTimer.timedObjectInvoker.getTimedObjectId());
     }
 
     @Override
     public int hashCode() {
-        return this.handle.hashCode();
+        return this.getKey().hashCode();
     }
 
     /**
@@ -612,7 +766,7 @@ public class TimerImpl implements Timer {
         //TODO: Cache this
         StringBuilder sb = new StringBuilder();
         sb.append("[id=");
-        sb.append(this.id);
+        sb.append(this.getId());
         sb.append(" ");
         sb.append("timedObjectId=");
         if (this.timedObjectInvoker == null) {
@@ -631,13 +785,13 @@ public class TimerImpl implements Timer {
         sb.append(this.timerService);
         sb.append(" ");
         sb.append("initialExpiration=");
-        sb.append(this.initialExpiration);
+        sb.append(this.getInitialExpiration());
         sb.append(" ");
         sb.append("intervalDuration(in milli sec)=");
         sb.append(this.intervalDuration);
         sb.append(" ");
         sb.append("nextExpiration=");
-        sb.append(this.nextExpiration);
+        sb.append(this.getNextExpiration());
         sb.append(" ");
         sb.append("timerState=");
         sb.append(this.timerState);
@@ -647,102 +801,9 @@ public class TimerImpl implements Timer {
 
     private void registerTimerCancellationWithTx(Transaction tx) {
         try {
-            tx.registerSynchronization(new TimerCancellationTransactionSynchronization(this));
+            this.timerService.registerCancellationWithTx(tx, Collections.singletonList(this));
         } catch (Exception e) {
             throw new RuntimeException("Could not register with tx for timer cancellation: ", e);
         }
     }
-
-    private Serializable deserialize(byte[] bytes) {
-        if (bytes == null) {
-            return null;
-        }
-        try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-            ObjectInputStream ois = new ObjectInputStreamWithTCCL(bais);
-            return (Serializable) ois.readObject();
-        } catch (IOException ioe) {
-            throw new RuntimeException("Could not deserialize info in timer", ioe);
-        } catch (ClassNotFoundException cnfe) {
-            throw new RuntimeException("Could not deserialize info in timer", cnfe);
-        }
-    }
-
-    /**
-     * {@link ObjectInputStreamWithTCCL} during {@link #resolveClass(ObjectStreamClass)}
-     * first tries to resolve the class in the thread context classloader
-     * {@link Thread#getContextClassLoader()}. If it cannot resolve in the current context
-     * loader, it passes on the control to {@link ObjectInputStream} to resolve the class
-     */
-    private final class ObjectInputStreamWithTCCL extends ObjectInputStream {
-
-        public ObjectInputStreamWithTCCL(InputStream in) throws IOException {
-            super(in);
-        }
-
-        protected Class<?> resolveClass(ObjectStreamClass v) throws IOException, ClassNotFoundException {
-            String className = v.getName();
-            Class<?> resolvedClass = null;
-
-            logger.trace("Attempting to locate class [" + className + "]");
-
-            try {
-                resolvedClass = timedObjectInvoker.getClassLoader().loadClass(className);
-            } catch (ClassNotFoundException e) {
-                resolvedClass = getClass().getClassLoader().loadClass(className);
-            }
-            return resolvedClass;
-        }
-    }
-
-    private class TimerCancellationTransactionSynchronization implements Synchronization {
-
-        /**
-         * The timer being managed in the transaction
-         */
-        private TimerImpl timer;
-
-        public TimerCancellationTransactionSynchronization(TimerImpl timer) {
-            if (timer == null) {
-                throw new IllegalStateException("Timer cannot be null");
-            }
-            this.timer = timer;
-        }
-
-        @Override
-        public void afterCompletion(int status) {
-            if (status == Status.STATUS_COMMITTED) {
-                logger.debug("commit timer cancellation: " + this.timer);
-
-                TimerState timerState = this.timer.getState();
-                switch (timerState) {
-                    case CANCELED:
-                    case IN_TIMEOUT:
-                    case RETRY_TIMEOUT:
-                        this.timer.cancelTimeout();
-                        timerService.persistTimer(timer);
-                        break;
-
-                }
-            } else if (status == Status.STATUS_ROLLEDBACK) {
-                logger.debug("rollback timer cancellation: " + this.timer);
-
-                TimerState timerState = this.timer.getState();
-                switch (timerState) {
-                    case CANCELED:
-                        this.timer.setTimerState(TimerState.ACTIVE);
-                        break;
-
-                }
-
-            }
-        }
-
-        @Override
-        public void beforeCompletion() {
-            // TODO Auto-generated method stub
-
-        }
-
-    }
 }
@@ -0,0 +1,99 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2;
+
+import java.util.List;
+
+/**
+ * The outcome of restoring the timers of a timer service.
+ *
+ * @version $Revision: $
+ * @see TimerServiceImpl#restoreTimers(List)
+ */
+public class TimerRestoreReport {
+
+    private final String timedObjectId;
+
+    private final int restoredTimers;
+
+    private final int failedTimers;
+
+    private final int removedAutoTimers;
+
+    private final int createdAutoTimers;
+
+    private final long restoreTime;
+
+    /**
+     * @param timedObjectId     The timed object whose timers were restored
+     * @param restoredTimers    The number of persisted timers which were restored and started
+     * @param failedTimers      The number of persisted timers which could not be restored
+     * @param removedAutoTimers The number of persisted auto timers which were removed, since the timed object no longer declares them
+     * @param createdAutoTimers The number of auto timers which were newly created
+     * @param restoreTime       The time taken, in milli seconds
+     */
+    public TimerRestoreReport(final String timedObjectId, final int restoredTimers, final int failedTimers,
+                              final int removedAutoTimers, final int createdAutoTimers, final long restoreTime) {
+        this.timedObjectId = timedObjectId;
+        this.restoredTimers = restoredTimers;
+        this.failedTimers = failedTimers;
+        this.removedAutoTimers = removedAutoTimers;
+        this.createdAutoTimers = createdAutoTimers;
+        this.restoreTime = restoreTime;
+    }
+
+    public String getTimedObjectId() {
+        return this.timedObjectId;
+    }
+
+    public int getRestoredTimers() {
+        return this.restoredTimers;
+    }
+
+    public int getFailedTimers() {
+        return this.failedTimers;
+    }
+
+    public int getRemovedAutoTimers() {
+        return this.removedAutoTimers;
+    }
+
+    public int getCreatedAutoTimers() {
+        return this.createdAutoTimers;
+    }
+
+    /**
+     * Returns the time taken to restore the timers, in milli seconds
+     *
+     * @return
+     */
+    public long getRestoreTime() {
+        return this.restoreTime;
+    }
+
+    @Override
+    public String toString() {
+        return "Restored " + this.restoredTimers + " timers for timedObjectId: " + this.timedObjectId + " in "
+                + this.restoreTime + " ms (" + this.failedTimers + " failed, " + this.removedAutoTimers
+                + " auto timers removed, " + this.createdAutoTimers + " auto timers created)";
+    }
+}
@@ -21,17 +21,34 @@
  */
 package org.jboss.ejb3.timerservice.mk2;
 
+import org.jboss.ejb3.timer.schedule.CalendarBasedTimeoutCache;
+import org.jboss.ejb3.timerservice.mk2.dispatch.FairTimeoutDispatcher;
+import org.jboss.ejb3.timerservice.mk2.dispatch.TimeoutDispatcher;
+import org.jboss.ejb3.timerservice.mk2.metrics.TimerMetrics;
 import org.jboss.ejb3.timerservice.mk2.persistence.TimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimeoutScheduler;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
 import org.jboss.ejb3.timerservice.spi.ScheduleTimer;
 import org.jboss.ejb3.timerservice.spi.TimedObjectInvoker;
 import org.jboss.ejb3.timerservice.spi.TimerServiceFactory;
 import org.jboss.logging.Logger;
 
 import javax.ejb.TimerService;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implementation of {@link TimerServiceFactory}, responsible for
@@ -47,6 +64,12 @@ public class TimerServiceFactoryImpl implements TimerServiceFactory {
      */
     private static final Logger logger = Logger.getLogger(TimerServiceFactoryImpl.class);
 
+    /**
+     * Domain and key properties of the object names of the {@link TimerMetrics} MBeans. The <code>timedObjectId</code>
+     * key property, holding the quoted id of the timed object, completes the name.
+     */
+    public static final String METRICS_OBJECT_NAME_PREFIX = "jboss.ejb3:service=TimerService,type=TimerMetrics";
+
     /**
      * Entity manager factory for JPA backed persistence
      */
@@ -58,20 +81,61 @@ public class TimerServiceFactoryImpl implements TimerServiceFactory {
     private final TransactionManager transactionManager;
 
     /**
-     * Exceutor service for creating the scheduled timer tasks
+     * Hands the timeout tasks of all the timer services created by this factory to the executor. Unless passed
+     * in, a {@link FairTimeoutDispatcher}, which shares the executor fairly between the timed objects
+     */
+    private final TimeoutDispatcher dispatcher;
+
+    /**
+     * The scheduler shared by all the timer services created by this factory
+     */
+    private final TimeoutScheduler scheduler;
+
+    /**
+     * The parsed schedule expressions shared by the calendar timers of all the timer services created by this factory
+     */
+    private final CalendarBasedTimeoutCache calendarTimeoutCache;
+
+    /**
+     * The MBean server the {@link TimerMetrics} of the timer services are registered with, or null if they aren't
      */
-    private final ExecutorService executor;
+    private volatile MBeanServer mbeanServer;
 
     /**
-     * The timer to use
+     * Passed to the timer services, so that they register a single synchronization per transaction, or null
      */
-    private final Timer timer;
+    private volatile TransactionSynchronizationRegistry transactionSynchronizationRegistry;
 
     public TimerServiceFactoryImpl(final TimerPersistence timerPersistence, final TransactionManager transactionManager, final ExecutorService executor) {
+        this(timerPersistence, transactionManager, executor, new TimingWheelScheduler("EJB Timer Thread"));
+    }
+
+    public TimerServiceFactoryImpl(final TimerPersistence timerPersistence, final TransactionManager transactionManager, final ExecutorService executor,
+                                   final TimeoutScheduler scheduler) {
+        this(timerPersistence, transactionManager, executor, scheduler, new CalendarBasedTimeoutCache());
+    }
+
+    public TimerServiceFactoryImpl(final TimerPersistence timerPersistence, final TransactionManager transactionManager, final ExecutorService executor,
+                                   final TimeoutScheduler scheduler, final CalendarBasedTimeoutCache calendarTimeoutCache) {
+        this(timerPersistence, transactionManager, new FairTimeoutDispatcher(executor), scheduler, calendarTimeoutCache);
+    }
+
+    public TimerServiceFactoryImpl(final TimerPersistence timerPersistence, final TransactionManager transactionManager, final TimeoutDispatcher dispatcher,
+                                   final TimeoutScheduler scheduler, final CalendarBasedTimeoutCache calendarTimeoutCache) {
+        if (dispatcher == null) {
+            throw new IllegalArgumentException("Dispatcher cannot be null");
+        }
+        if (scheduler == null) {
+            throw new IllegalArgumentException("Scheduler cannot be null");
+        }
+        if (calendarTimeoutCache == null) {
+            throw new IllegalArgumentException("Calendar timeout cache cannot be null");
+        }
         this.timerPersistence = timerPersistence;
         this.transactionManager = transactionManager;
-        this.executor = executor;
-        this.timer = new Timer("EJB Timer Thread", true);
+        this.dispatcher = dispatcher;
+        this.scheduler = scheduler;
+        this.calendarTimeoutCache = calendarTimeoutCache;
     }
 
     /**
@@ -83,7 +147,9 @@ public class TimerServiceFactoryImpl implements TimerServiceFactory {
      */
     public TimerService createTimerService(TimedObjectInvoker invoker) {
         // create the timer service
-        TimerServiceImpl timerService = new TimerServiceImpl(timer, invoker, timerPersistence, transactionManager, executor);
+        TimerServiceImpl timerService = new TimerServiceImpl(scheduler, invoker, timerPersistence, transactionManager, dispatcher,
+                calendarTimeoutCache);
+        timerService.setTransactionSynchronizationRegistry(this.transactionSynchronizationRegistry);
 
         String timedObjectId = invoker.getTimedObjectId();
         // EJBTHREE-2209 I'm not too happy with this "fix". Ideally,
@@ -98,6 +164,7 @@ public class TimerServiceFactoryImpl implements TimerServiceFactory {
         }
         // register this new created timer service in our registry
         TimerServiceRegistry.registerTimerService(timerService);
+        this.registerMetrics(timerService);
         return timerService;
     }
 
@@ -114,18 +181,85 @@ public class TimerServiceFactoryImpl implements TimerServiceFactory {
      *
      */
     public void restoreTimerService(TimerService timerService, final List<ScheduleTimer> autoTimers) {
+        this.restore(timerService, autoTimers);
+    }
+
+    /**
+     * Restores the passed timer services, like {@link #restoreTimerService(TimerService, List)}
+     * does for a single timer service. The timer services are restored concurrently, using at most
+     * <code>maxThreads</code> threads.
+     * <p>
+     * This method returns once all the timer services have been restored. If any of them failed
+     * to restore, the failures are logged and the first one is thrown, after the others were restored.
+     * </p>
+     *
+     * @param timerServices The timer services to restore, along with the auto timers found in their deployments
+     * @param maxThreads    The maximum number of timer services to restore at the same time
+     * @return The restore reports of the timer services, in the iteration order of <code>timerServices</code>
+     */
+    public List<TimerRestoreReport> restoreTimerServices(final Map<TimerService, List<ScheduleTimer>> timerServices, final int maxThreads) {
+        if (maxThreads <= 0) {
+            throw new IllegalArgumentException("Max threads must be positive: " + maxThreads);
+        }
+        final List<TimerRestoreReport> reports = new ArrayList<TimerRestoreReport>(timerServices.size());
+        if (timerServices.isEmpty()) {
+            return reports;
+        }
+        final long start = System.currentTimeMillis();
+        final ExecutorService restoreExecutor = Executors.newFixedThreadPool(Math.min(maxThreads, timerServices.size()),
+                new RestoreThreadFactory());
+        try {
+            final List<Future<TimerRestoreReport>> futures = new ArrayList<Future<TimerRestoreReport>>(timerServices.size());
+            for (final Map.Entry<TimerService, List<ScheduleTimer>> entry : timerServices.entrySet()) {
+                futures.add(restoreExecutor.submit(new Callable<TimerRestoreReport>() {
+                    @Override
+                    public TimerRestoreReport call() {
+                        return restore(entry.getKey(), entry.getValue());
+                    }
+                }));
+            }
+            RuntimeException failure = null;
+            int timers = 0;
+            for (Future<TimerRestoreReport> future : futures) {
+                try {
+                    final TimerRestoreReport report = future.get();
+                    timers += report.getRestoredTimers();
+                    reports.add(report);
+                } catch (ExecutionException e) {
+                    logger.error("Could not restore timer service", e.getCause());
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                                : new RuntimeException(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while restoring timer services", e);
+                }
+            }
+            logger.debug("Restored " + timers + " timers of " + reports.size() + " timer services in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            if (failure != null) {
+                throw failure;
+            }
+            return reports;
+        } finally {
+            restoreExecutor.shutdownNow();
+        }
+    }
+
+    private TimerRestoreReport restore(TimerService timerService, final List<ScheduleTimer> autoTimers) {
         TimerServiceImpl mk2TimerService = (TimerServiceImpl) timerService;
         String timedObjectId = mk2TimerService.getInvoker().getTimedObjectId();
         // if the timer service is not registered (maybe it was unregistered when it
         // was suspended) then register it with the timer service registry
         if (!TimerServiceRegistry.isRegistered(timedObjectId)) {
             TimerServiceRegistry.registerTimerService(mk2TimerService);
+            this.registerMetrics(mk2TimerService);
         }
 
         logger.debug("Restoring timerservice for timedObjectId: " + timedObjectId);
         // restore the timers
-        mk2TimerService.restoreTimers(autoTimers);
-
+        return mk2TimerService.restoreTimers(autoTimers);
     }
 
     /**
@@ -158,7 +292,118 @@ public class TimerServiceFactoryImpl implements TimerServiceFactory {
             if (TimerServiceRegistry.isRegistered(timedObjectId)) {
                 TimerServiceRegistry.unregisterTimerService(timedObjectId);
             }
+            this.unregisterMetrics(timedObjectId);
+        }
+    }
+
+    /**
+     * Returns the instrumentation of the timeouts of the registered timer service of a timed object
+     *
+     * @param timedObjectId The id of the timed object
+     * @return The metrics, or null if no timer service of the timed object is registered
+     */
+    public TimerMetrics getTimerMetrics(final String timedObjectId) {
+        final TimerServiceImpl timerService = TimerServiceRegistry.getTimerService(timedObjectId);
+        return timerService == null ? null : timerService.getMetrics();
+    }
+
+    /**
+     * Sets the MBean server the {@link TimerMetrics} of the timer services are registered with, under
+     * {@link #METRICS_OBJECT_NAME_PREFIX}. The metrics are registered when their timer service is created
+     * or restored, and unregistered when it is suspended. Only the timer services created or restored
+     * afterwards are registered.
+     *
+     * @param mbeanServer The MBean server, or null to not register the metrics
+     */
+    public void setMBeanServer(final MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+
+    public MBeanServer getMBeanServer() {
+        return this.mbeanServer;
+    }
+
+    /**
+     * Sets the registry through which the timer services created afterwards complete the timers created and
+     * cancelled in a transaction with a single synchronization.
+     *
+     * @param transactionSynchronizationRegistry
+     *         The registry, or null
+     * @see TimerServiceImpl#setTransactionSynchronizationRegistry(TransactionSynchronizationRegistry)
+     */
+    public void setTransactionSynchronizationRegistry(final TransactionSynchronizationRegistry transactionSynchronizationRegistry) {
+        this.transactionSynchronizationRegistry = transactionSynchronizationRegistry;
+    }
+
+    public TransactionSynchronizationRegistry getTransactionSynchronizationRegistry() {
+        return this.transactionSynchronizationRegistry;
+    }
+
+    /**
+     * Returns the object name of the {@link TimerMetrics} MBean of a timed object
+     *
+     * @param timedObjectId The id of the timed object
+     * @return
+     */
+    public static ObjectName getMetricsObjectName(final String timedObjectId) throws JMException {
+        return new ObjectName(METRICS_OBJECT_NAME_PREFIX + ",timedObjectId=" + ObjectName.quote(timedObjectId));
+    }
+
+    private void registerMetrics(final TimerServiceImpl timerService) {
+        final MBeanServer server = this.mbeanServer;
+        if (server == null) {
+            return;
+        }
+        final String timedObjectId = timerService.getInvoker().getTimedObjectId();
+        try {
+            final ObjectName name = getMetricsObjectName(timedObjectId);
+            if (server.isRegistered(name)) {
+                // left behind by a timer service which was replaced without being suspended
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(timerService.getMetrics(), name);
+        } catch (JMException e) {
+            logger.warn("Could not register the timer metrics of timedObjectId: " + timedObjectId, e);
         }
     }
 
+    private void unregisterMetrics(final String timedObjectId) {
+        final MBeanServer server = this.mbeanServer;
+        if (server == null) {
+            return;
+        }
+        try {
+            final ObjectName name = getMetricsObjectName(timedObjectId);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.warn("Could not unregister the timer metrics of timedObjectId: " + timedObjectId, e);
+        }
+    }
+
+    /**
+     * Returns the {@link TimeoutDispatcher} shared by the timer services created by this factory,
+     * which keeps count of the skipped, coalesced and discarded timeouts
+     *
+     * @return
+     */
+    public TimeoutDispatcher getTimeoutDispatcher() {
+        return this.dispatcher;
+    }
+
+    /**
+     * Creates the daemon threads which restore timer services
+     */
+    private static final class RestoreThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "EJB Timer Restore Thread " + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
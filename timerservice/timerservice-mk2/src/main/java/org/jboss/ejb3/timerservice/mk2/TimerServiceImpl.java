@@ -24,12 +24,22 @@ package org.jboss.ejb3.timerservice.mk2;
 import org.jboss.ejb3.context.CurrentInvocationContext;
 import org.jboss.ejb3.context.spi.InvocationContext;
 import org.jboss.ejb3.timer.schedule.CalendarBasedTimeout;
+import org.jboss.ejb3.timer.schedule.CalendarBasedTimeoutCache;
+import org.jboss.ejb3.timer.schedule.ScheduleExpressionKey;
+import org.jboss.ejb3.timerservice.api.TimerDefinition;
+import org.jboss.ejb3.timerservice.api.TimerInfoFilter;
 import org.jboss.ejb3.timerservice.api.TimerService;
+import org.jboss.ejb3.timerservice.mk2.dispatch.TimeoutDispatcher;
+import org.jboss.ejb3.timerservice.mk2.metrics.TimerMetrics;
 import org.jboss.ejb3.timerservice.mk2.persistence.CalendarTimerEntity;
-import org.jboss.ejb3.timerservice.mk2.persistence.TimeoutMethod;
 import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
 import org.jboss.ejb3.timerservice.mk2.persistence.TimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.scheduler.JavaUtilTimerScheduler;
+import org.jboss.ejb3.timerservice.mk2.scheduler.ScheduledTimeout;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimeoutScheduler;
+import org.jboss.ejb3.timerservice.mk2.task.TimeoutBatcher;
 import org.jboss.ejb3.timerservice.mk2.task.TimerTask;
+import org.jboss.ejb3.timerservice.spi.BatchTimedObjectInvoker;
 import org.jboss.ejb3.timerservice.spi.ScheduleTimer;
 import org.jboss.ejb3.timerservice.spi.TimedObjectInvoker;
 import org.jboss.logging.Logger;
@@ -45,6 +55,7 @@ import javax.transaction.Synchronization;
 import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
@@ -55,16 +66,18 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 
 
 /**
@@ -79,6 +92,18 @@ public class TimerServiceImpl implements TimerService {
      */
     private static Logger logger = Logger.getLogger(TimerServiceImpl.class);
 
+    /**
+     * Default minimum time (in milli seconds) between the timeouts fired while catching up
+     * through {@link CatchUpPolicy#FIRE_ALL}
+     */
+    public static final long DEFAULT_CATCH_UP_INTERVAL = 1000;
+
+    /**
+     * A timeout which is late by more than this many milli seconds, when it's being scheduled,
+     * is considered missed
+     */
+    private static final long MISSED_TIMEOUT_TOLERANCE = 1000;
+
     /**
      * The {@link TimedObjectInvoker} which is responsible for invoking the timeout
      * method
@@ -96,53 +121,155 @@ public class TimerServiceImpl implements TimerService {
     private final TransactionManager transactionManager;
 
     /**
-     * For running timeout tasks
+     * Hands the timeout tasks to the executor which runs them
+     */
+    private final TimeoutDispatcher dispatcher;
+
+    /**
+     * Schedules the timeout tasks of the timers
+     */
+    private final TimeoutScheduler scheduler;
+
+    /**
+     * Cache of the parsed schedule expressions, which may be shared with other timer services
      */
-    private final ExecutorService executorService;
+    private final CalendarBasedTimeoutCache calendarTimeoutCache;
 
     /**
-     * The timer
+     * How the missed timeouts of interval and calendar timers are caught up with
      */
-    private final java.util.Timer timer;
+    private volatile CatchUpPolicy catchUpPolicy = CatchUpPolicy.FIRE_ONCE;
 
     /**
-     * All non-persistent timers which were created by this {@link TimerService}
+     * Minimum time (in milli seconds) between the timeouts fired through {@link CatchUpPolicy#FIRE_ALL}
      */
-    private final Map<TimerHandle, TimerImpl> nonPersistentTimers = new ConcurrentHashMap<TimerHandle, TimerImpl>();
+    private volatile long catchUpInterval = DEFAULT_CATCH_UP_INTERVAL;
 
-    private final Map<TimerHandle, TimerImpl> persistentWaitingOnTxCompletionTimers = new ConcurrentHashMap<TimerHandle, TimerImpl>();
+    /**
+     * When, and how often, failed timeouts are retried
+     */
+    private volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
 
     /**
-     * Holds the {@link Future} of each of the timer tasks that have been scheduled
+     * The scheduled retries of the timers whose timeout failed, by {@link TimerImpl#getKey() timer key}
      */
-    private final Map<TimerHandle, java.util.TimerTask> scheduledTimerFutures = new ConcurrentHashMap<TimerHandle, java.util.TimerTask>();
+    private final ConcurrentMap<Object, RetryTask> pendingRetries = new ConcurrentHashMap<Object, RetryTask>();
+
+    /**
+     * Groups the timeouts which are delivered in batches, or null if batched delivery is disabled
+     */
+    private volatile TimeoutBatcher timeoutBatcher;
+
+    /**
+     * Instrumentation of the timeouts of this timer service
+     */
+    private final TimerMetrics metrics;
+
+    /**
+     * All non-persistent timers which were created by this {@link TimerService}, by their {@link TimerImpl#getKey() key}.
+     * The scheduled timeouts are held by the timers themselves, so this is the only map entry of a non-persistent timer
+     */
+    private final Map<Object, TimerImpl> nonPersistentTimers = new ConcurrentHashMap<Object, TimerImpl>();
+
+    /**
+     * The live persistent timers of this {@link TimerService}, including the ones whose creating
+     * transaction hasn't completed yet. Timers are added when they are created or restored, and removed
+     * once they are cancelled or expire, or their creation is rolled back. The {@link TimerPersistence}
+     * is only read to restore the timers.
+     */
+    private final ConcurrentMap<TimerHandle, TimerImpl> persistentTimers = new ConcurrentHashMap<TimerHandle, TimerImpl>();
+
+    /**
+     * Keeps the {@link TimerTransactionSynchronization} of the current transaction, as a resource keyed
+     * by this timer service, or null if each creation and cancellation registers its own
+     */
+    private volatile TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+
+    /**
+     * Creates a {@link TimerServiceImpl} which schedules its timeouts through a {@link java.util.Timer}
+     *
+     * @see #TimerServiceImpl(TimeoutScheduler, TimedObjectInvoker, TimerPersistence, TransactionManager, ExecutorService)
+     */
+    public TimerServiceImpl(final java.util.Timer timer, TimedObjectInvoker invoker, final TimerPersistence timerPersistence, TransactionManager transactionManager,
+                            ExecutorService executor) {
+        this(new JavaUtilTimerScheduler(timer), invoker, timerPersistence, transactionManager, executor);
+    }
 
     /**
      * Creates a {@link TimerServiceImpl}
      *
+     * @param scheduler          The {@link TimeoutScheduler} which schedules the timeout tasks
      * @param invoker            The {@link TimedObjectInvoker} responsible for invoking the timeout method
      * @param timerPersistence   The persistent timer store
      * @param transactionManager Transaction manager responsible for managing the transactional timer service
      * @param executor           Executor service responsible for creating scheduled timer tasks
      * @throws IllegalArgumentException If either of the passed param is null
      */
-    public TimerServiceImpl(final java.util.Timer timer, TimedObjectInvoker invoker, final TimerPersistence timerPersistence, TransactionManager transactionManager,
+    public TimerServiceImpl(final TimeoutScheduler scheduler, TimedObjectInvoker invoker, final TimerPersistence timerPersistence, TransactionManager transactionManager,
                             ExecutorService executor) {
+        this(scheduler, invoker, timerPersistence, transactionManager, executor, new CalendarBasedTimeoutCache());
+    }
+
+    /**
+     * Creates a {@link TimerServiceImpl}
+     *
+     * @param scheduler            The {@link TimeoutScheduler} which schedules the timeout tasks
+     * @param invoker              The {@link TimedObjectInvoker} responsible for invoking the timeout method
+     * @param timerPersistence     The persistent timer store
+     * @param transactionManager   Transaction manager responsible for managing the transactional timer service
+     * @param executor             Executor service responsible for creating scheduled timer tasks
+     * @param calendarTimeoutCache The cache of parsed schedule expressions used for calendar timers
+     * @throws IllegalArgumentException If either of the passed param is null
+     */
+    public TimerServiceImpl(final TimeoutScheduler scheduler, TimedObjectInvoker invoker, final TimerPersistence timerPersistence, TransactionManager transactionManager,
+                            ExecutorService executor, final CalendarBasedTimeoutCache calendarTimeoutCache) {
+        this(scheduler, invoker, timerPersistence, transactionManager, createDispatcher(executor), calendarTimeoutCache);
+    }
+
+    /**
+     * Creates a {@link TimerServiceImpl}
+     *
+     * @param scheduler            The {@link TimeoutScheduler} which schedules the timeout tasks
+     * @param invoker              The {@link TimedObjectInvoker} responsible for invoking the timeout method
+     * @param timerPersistence     The persistent timer store
+     * @param transactionManager   Transaction manager responsible for managing the transactional timer service
+     * @param dispatcher           The {@link TimeoutDispatcher} which hands the timeout tasks to the executor. May be shared
+     *                             with other timer services
+     * @param calendarTimeoutCache The cache of parsed schedule expressions used for calendar timers
+     * @throws IllegalArgumentException If either of the passed param is null
+     */
+    public TimerServiceImpl(final TimeoutScheduler scheduler, TimedObjectInvoker invoker, final TimerPersistence timerPersistence, TransactionManager transactionManager,
+                            final TimeoutDispatcher dispatcher, final CalendarBasedTimeoutCache calendarTimeoutCache) {
+        if (scheduler == null) {
+            throw new IllegalArgumentException("Scheduler cannot be null");
+        }
         if (invoker == null) {
             throw new IllegalArgumentException("Invoker cannot be null");
         }
         if (transactionManager == null) {
             throw new IllegalArgumentException("Transaction manager cannot be null");
         }
-        if (executor == null) {
-            throw new IllegalArgumentException("Executor cannot be null");
+        if (dispatcher == null) {
+            throw new IllegalArgumentException("Dispatcher cannot be null");
+        }
+        if (calendarTimeoutCache == null) {
+            throw new IllegalArgumentException("Calendar timeout cache cannot be null");
         }
 
         this.invoker = invoker;
         this.timerPersistence = timerPersistence;
         this.transactionManager = transactionManager;
-        this.executorService = executor;
-        this.timer = timer;
+        this.dispatcher = dispatcher;
+        this.scheduler = scheduler;
+        this.calendarTimeoutCache = calendarTimeoutCache;
+        this.metrics = new TimerMetrics(this);
+    }
+
+    private static TimeoutDispatcher createDispatcher(final ExecutorService executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null");
+        }
+        return new TimeoutDispatcher(executor);
     }
 
     /**
@@ -301,6 +428,177 @@ public class TimerServiceImpl implements TimerService {
         return this.createCalendarTimer(schedule, timerConfig.getInfo(), timerConfig.isPersistent(), timeoutMethod);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The definitions are validated, and their schedules parsed, before any timer is created. The persistent
+     * timers are then written through a single {@link TimerPersistence#persistTimers(Collection)} call and,
+     * outside of a transaction, scheduled once they have all been written.
+     * </p>
+     */
+    @Override
+    public List<org.jboss.ejb3.timerservice.api.Timer> createTimers(List<TimerDefinition> definitions) {
+        if (this.isLifecycleCallbackInvocation() && !this.isSingletonBeanInvocation()) {
+            throw new IllegalStateException("Creation of timers is not allowed during lifecycle callback of non-singleton EJBs");
+        }
+        if (definitions == null) {
+            throw new IllegalArgumentException("Timer definitions cannot be null");
+        }
+        final CalendarBasedTimeout[] calendarTimeouts = new CalendarBasedTimeout[definitions.size()];
+        int i = 0;
+        for (TimerDefinition definition : definitions) {
+            if (definition == null) {
+                throw new IllegalArgumentException("Timer definition cannot be null");
+            }
+            if (definition.isCalendarTimer()) {
+                calendarTimeouts[i] = this.getCalendarTimeout(definition.getSchedule());
+            }
+            i++;
+        }
+
+        final Transaction tx = this.getTransaction();
+        final List<org.jboss.ejb3.timerservice.api.Timer> timers = new ArrayList<org.jboss.ejb3.timerservice.api.Timer>(definitions.size());
+        final List<TimerImpl> persistent = new ArrayList<TimerImpl>();
+        i = 0;
+        for (TimerDefinition definition : definitions) {
+            final String id = UUID.randomUUID().toString();
+            final TimerConfig timerConfig = definition.getTimerConfig();
+            final TimerImpl timer;
+            if (calendarTimeouts[i] != null) {
+                timer = new CalendarTimer(id, this, calendarTimeouts[i], timerConfig.getInfo(), timerConfig.isPersistent(), null);
+            } else {
+                timer = new TimerImpl(id, this, definition.getExpiration(), definition.getIntervalDuration(),
+                        timerConfig.getInfo(), timerConfig.isPersistent());
+            }
+            // the timer goes ACTIVE before it is first written, so that it is written only once
+            timer.setTimerState(TimerState.ACTIVE);
+            if (tx != null) {
+                try {
+                    this.getTransactionSynchronization(tx).addCreated(timer);
+                } catch (RollbackException e) {
+                    throw new EJBException(e);
+                } catch (SystemException e) {
+                    throw new EJBException(e);
+                }
+            }
+            if (timer.persistent) {
+                persistent.add(timer);
+            }
+            this.addTimer(timer);
+            timers.add(timer);
+            i++;
+        }
+        try {
+            this.persistTimers(persistent);
+        } catch (RuntimeException e) {
+            // none of the timers is created
+            for (org.jboss.ejb3.timerservice.api.Timer timer : timers) {
+                ((TimerImpl) timer).setTimerState(TimerState.CANCELED);
+                this.removeTimerFromIndex((TimerImpl) timer);
+            }
+            throw e;
+        }
+
+        // in a transaction, the timers are scheduled on commit
+        if (tx == null) {
+            for (org.jboss.ejb3.timerservice.api.Timer timer : timers) {
+                ((TimerImpl) timer).scheduleTimeout();
+            }
+        }
+        return timers;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int cancelTimers() {
+        return this.cancelTimers(null, "cancelTimers()");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int cancelTimers(TimerInfoFilter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("Filter cannot be null");
+        }
+        return this.cancelTimers(filter, "cancelTimers(TimerInfoFilter)");
+    }
+
+    /**
+     * Cancels the active timers accepted by the <code>filter</code>, or all of them if the filter is null.
+     * The persistent timers are removed through a single {@link TimerPersistence#removeTimers(Collection)}
+     * call, either right away or once the current transaction commits.
+     */
+    private int cancelTimers(TimerInfoFilter filter, String method) {
+        if (this.isLifecycleCallbackInvocation() && !this.isSingletonBeanInvocation()) {
+            throw new IllegalStateException(method
+                    + " method invocation is not allowed during lifecycle callback of non-singleton EJBs");
+        }
+        final List<TimerImpl> cancelled = new ArrayList<TimerImpl>();
+        this.cancelTimers(this.nonPersistentTimers.values(), filter, cancelled);
+        this.cancelTimers(this.persistentTimers.values(), filter, cancelled);
+        if (cancelled.isEmpty()) {
+            return 0;
+        }
+        final Transaction tx = this.getTransaction();
+        if (tx == null) {
+            this.completeCancellation(cancelled);
+        } else {
+            try {
+                this.registerCancellationWithTx(tx, cancelled);
+            } catch (Exception e) {
+                throw new RuntimeException("Could not register with tx for timer cancellation: ", e);
+            }
+        }
+        return cancelled.size();
+    }
+
+    private void cancelTimers(Collection<TimerImpl> timers, TimerInfoFilter filter, List<TimerImpl> cancelled) {
+        for (TimerImpl timer : timers) {
+            if (!timer.isActive()) {
+                continue;
+            }
+            if (filter != null && !filter.accept(timer.getTimerInfo())) {
+                continue;
+            }
+            timer.setTimerState(TimerState.CANCELED);
+            cancelled.add(timer);
+        }
+    }
+
+    /**
+     * Cancels the scheduled timeouts of the cancelled <code>timers</code>, and removes the persistent ones
+     */
+    private void completeCancellation(List<TimerImpl> timers) {
+        final List<TimerImpl> removed = new ArrayList<TimerImpl>(timers.size());
+        for (TimerImpl timer : timers) {
+            timer.cancelTimeout();
+            if (timer.persistent) {
+                this.updateIndex(timer);
+                removed.add(timer);
+            }
+        }
+        if (removed.isEmpty() || this.timerPersistence == null) {
+            return;
+        }
+        final List<TimerEntity> entities = new ArrayList<TimerEntity>(removed.size());
+        for (TimerImpl timer : removed) {
+            entities.add(timer.getPersistentState());
+        }
+        final long start = System.nanoTime();
+        try {
+            this.timerPersistence.removeTimers(entities);
+        } catch (Throwable t) {
+            this.setRollbackOnly();
+            throw new RuntimeException(t);
+        } finally {
+            this.metrics.recordPersistenceWrite(System.nanoTime() - start);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -311,23 +609,20 @@ public class TimerServiceImpl implements TimerService {
                     "getTimers() method invocation is not allowed during lifecycle callback of non-singleton EJBs");
         }
 
-        Set<Timer> activeTimers = new HashSet<Timer>();
+        List<Timer> activeTimers = new ArrayList<Timer>(this.nonPersistentTimers.size() + this.persistentTimers.size());
         // get all active non-persistent timers for this timerservice
         for (TimerImpl timer : this.nonPersistentTimers.values()) {
             if (timer != null && timer.isActive()) {
                 activeTimers.add(timer);
             }
         }
-        // get all active timers which are persistent, but haven't yet been
-        // persisted (waiting for tx to complete)
-        for (TimerImpl timer : this.persistentWaitingOnTxCompletionTimers.values()) {
-            if (timer != null && timer.isActive()) {
+        // now get all active persistent timers for this timerservice. A timer cancelled
+        // in a transaction which hasn't completed yet stays in the index, but isn't active
+        for (TimerImpl timer : this.persistentTimers.values()) {
+            if (timer.isActive()) {
                 activeTimers.add(timer);
             }
         }
-
-        // now get all active persistent timers for this timerservice
-        activeTimers.addAll(this.getActiveTimers());
         return activeTimers;
     }
 
@@ -392,8 +687,9 @@ public class TimerServiceImpl implements TimerService {
         if (schedule == null) {
             throw new IllegalArgumentException("schedule is null");
         }
-        // parse the passed schedule and create the calendar based timeout
-        CalendarBasedTimeout calendarTimeout = new CalendarBasedTimeout(schedule);
+        // get the calendar based timeout for the passed schedule. It's only parsed
+        // if there's no cached calendar timeout for an equivalent schedule
+        CalendarBasedTimeout calendarTimeout = this.getCalendarTimeout(schedule);
         // generate a id for the timer
         UUID uuid = UUID.randomUUID();
         // create the timer
@@ -420,9 +716,9 @@ public class TimerServiceImpl implements TimerService {
      */
     protected void addTimer(TimerImpl timer) {
         if (!timer.persistent) {
-            nonPersistentTimers.put(timer.getTimerHandle(), timer);
+            nonPersistentTimers.put(timer.getKey(), timer);
         } else {
-            this.persistentWaitingOnTxCompletionTimers.put(timer.getTimerHandle(), timer);
+            this.persistentTimers.put(timer.getTimerHandle(), timer);
         }
     }
 
@@ -435,23 +731,161 @@ public class TimerServiceImpl implements TimerService {
         return invoker;
     }
 
+    public CatchUpPolicy getCatchUpPolicy() {
+        return this.catchUpPolicy;
+    }
+
+    /**
+     * Sets how the missed timeouts of the interval and calendar timers of this timer service are caught up with.
+     * Defaults to {@link CatchUpPolicy#FIRE_ONCE}.
+     *
+     * @param catchUpPolicy The catch-up policy
+     */
+    public void setCatchUpPolicy(final CatchUpPolicy catchUpPolicy) {
+        if (catchUpPolicy == null) {
+            throw new IllegalArgumentException("Catch-up policy cannot be null");
+        }
+        this.catchUpPolicy = catchUpPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return this.retryPolicy;
+    }
+
+    /**
+     * Sets when, and how often, the failed timeouts of the timers of this timer service are retried.
+     * Defaults to {@link RetryPolicy#DEFAULT}, a single immediate retry.
+     *
+     * @param retryPolicy The retry policy
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        if (retryPolicy == null) {
+            throw new IllegalArgumentException("Retry policy cannot be null");
+        }
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Enables the batched delivery of timeouts: the timeouts of the timers of this timer service which fire
+     * within <code>window</code> milli seconds of each other are delivered together, through a single
+     * {@link BatchTimedObjectInvoker#callTimeouts(List)} invocation. Auto timers are never batched.
+     * <p>
+     * Batched delivery is disabled by default.
+     * </p>
+     *
+     * @param window       How long (in milli seconds) a batch collects timeouts after its first timeout fired
+     * @param maxBatchSize The maximum number of timeouts in a batch
+     * @throws IllegalStateException If the invoker of this timer service isn't a {@link BatchTimedObjectInvoker}
+     */
+    public void enableBatchedDelivery(final long window, final int maxBatchSize) {
+        if (!(this.invoker instanceof BatchTimedObjectInvoker)) {
+            throw new IllegalStateException("Cannot batch timeouts of timed object " + this.invoker.getTimedObjectId()
+                    + " since its invoker is not of type " + BatchTimedObjectInvoker.class);
+        }
+        this.timeoutBatcher = new TimeoutBatcher((BatchTimedObjectInvoker) this.invoker, this.scheduler, this.dispatcher,
+                this.metrics, window, maxBatchSize);
+    }
+
+    /**
+     * Disables the batched delivery of timeouts. The batches which are already collecting timeouts are
+     * still delivered.
+     */
+    public void disableBatchedDelivery() {
+        this.timeoutBatcher = null;
+    }
+
+    /**
+     * Sets the registry through which the timers created and cancelled in a transaction are completed by a
+     * single {@link Synchronization}. Without a registry, which is the default, each creation and cancellation
+     * registers its own synchronization with the transaction.
+     *
+     * @param transactionSynchronizationRegistry
+     *         The registry, or null
+     */
+    public void setTransactionSynchronizationRegistry(final TransactionSynchronizationRegistry transactionSynchronizationRegistry) {
+        this.transactionSynchronizationRegistry = transactionSynchronizationRegistry;
+    }
+
+    /**
+     * Returns the {@link TimeoutBatcher} which groups the timeouts delivered in batches
+     *
+     * @return The batcher, or null if batched delivery is disabled
+     */
+    public TimeoutBatcher getTimeoutBatcher() {
+        return this.timeoutBatcher;
+    }
+
+    /**
+     * Returns the instrumentation of the timeouts of this timer service
+     *
+     * @return
+     */
+    public TimerMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Returns the number of live timers of this timer service in each state. States without timers are left out.
+     * The counts are computed on each call.
+     *
+     * @return
+     */
+    public Map<TimerState, Integer> getTimerCountsByState() {
+        final Map<TimerState, Integer> counts = new EnumMap<TimerState, Integer>(TimerState.class);
+        countByState(this.nonPersistentTimers.values(), counts);
+        countByState(this.persistentTimers.values(), counts);
+        return counts;
+    }
+
+    private static void countByState(final Collection<TimerImpl> timers, final Map<TimerState, Integer> counts) {
+        for (TimerImpl timer : timers) {
+            final TimerState state = timer.getState();
+            final Integer count = counts.get(state);
+            counts.put(state, count == null ? 1 : count + 1);
+        }
+    }
+
+    public long getCatchUpInterval() {
+        return this.catchUpInterval;
+    }
+
+    /**
+     * Sets the minimum time between the timeouts fired through {@link CatchUpPolicy#FIRE_ALL}.
+     * Defaults to {@link #DEFAULT_CATCH_UP_INTERVAL}.
+     *
+     * @param catchUpInterval The minimum time in milli seconds
+     */
+    public void setCatchUpInterval(final long catchUpInterval) {
+        if (catchUpInterval < 0) {
+            throw new IllegalArgumentException("Catch-up interval cannot be negative: " + catchUpInterval);
+        }
+        this.catchUpInterval = catchUpInterval;
+    }
+
+    /**
+     * Returns the (possibly shared) {@link CalendarBasedTimeout} for the passed <code>schedule</code>
+     *
+     * @param schedule The schedule
+     * @return
+     * @throws IllegalArgumentException If the passed <code>schedule</code> isn't valid
+     */
+    CalendarBasedTimeout getCalendarTimeout(ScheduleExpression schedule) {
+        return this.calendarTimeoutCache.getCalendarTimeout(schedule);
+    }
+
     /**
      * Returns the {@link Timer} corresponding to the passed {@link TimerHandle}
      *
      * @param handle The {@link TimerHandle} for which the {@link Timer} is being looked for
      */
     public org.jboss.ejb3.timerservice.api.Timer getTimer(TimerHandle handle) {
-        TimerImpl timer = nonPersistentTimers.get(handle);
-        if (timer != null) {
-            return timer;
-        }
-        timer = this.persistentWaitingOnTxCompletionTimers.get(handle);
-        if (timer != null) {
-            return timer;
+        if (handle instanceof TimerHandleImpl) {
+            final TimerImpl timer = nonPersistentTimers.get(TimerImpl.toKey(((TimerHandleImpl) handle).getId()));
+            if (timer != null) {
+                return timer;
+            }
         }
-        TimerHandleImpl timerHandle = (TimerHandleImpl) handle;
-        return this.getPersistedTimer(timerHandle);
-
+        return this.persistentTimers.get(handle);
     }
 
     /**
@@ -471,10 +905,15 @@ public class TimerServiceImpl implements TimerService {
      */
     void removeTimer(TimerImpl timer) {
         if (!timer.persistent) {
-            nonPersistentTimers.remove(timer.getTimerHandle());
+            nonPersistentTimers.remove(timer.getKey());
         } else {
-            this.persistentWaitingOnTxCompletionTimers.remove(timer.getTimerHandle());
-            timerPersistence.removeTimer(timer.getPersistentState());
+            this.persistentTimers.remove(timer.getTimerHandle());
+            final long start = System.nanoTime();
+            try {
+                timerPersistence.removeTimer(timer.getPersistentState());
+            } finally {
+                this.metrics.recordPersistenceWrite(System.nanoTime() - start);
+            }
         }
     }
 
@@ -493,26 +932,89 @@ public class TimerServiceImpl implements TimerService {
         if (timer == null || !timer.persistent) {
             return;
         }
+        this.updateIndex(timer);
 
         // get the persistent entity from the timer
         final TimerEntity timerEntity = timer.getPersistentState();
+        //if timer persistence is disabled
+        if (timerPersistence == null) {
+            logger.warn("Timer persistence is not enabled, persistent timers will not survive JVM restarts");
+            return;
+        }
+        final long start = System.nanoTime();
         try {
-            //if timer persistence is disabled
-            if (timerPersistence == null) {
-                logger.warn("Timer persistence is not enabled, persistent timers will not survive JVM restarts");
-                return;
-            }
             if (timerEntity.getTimerState() == TimerState.EXPIRED ||
                     timerEntity.getTimerState() == TimerState.CANCELED) {
                 timerPersistence.removeTimer(timerEntity);
-            } else {
+            } else if (timerEntity.getTimerState() == TimerState.CREATED) {
+                // first write of the timer
                 timerPersistence.persistTimer(timerEntity);
+            } else {
+                // only the state of the timer changes after it has been created
+                timerPersistence.updateTimerState(timerEntity);
             }
 
 
         } catch (Throwable t) {
             this.setRollbackOnly();
             throw new RuntimeException(t);
+        } finally {
+            this.metrics.recordPersistenceWrite(System.nanoTime() - start);
+        }
+    }
+
+    private void removeTimerFromIndex(TimerImpl timer) {
+        if (timer.persistent) {
+            this.persistentTimers.remove(timer.getTimerHandle(), timer);
+        } else {
+            this.nonPersistentTimers.remove(timer.getKey());
+        }
+    }
+
+    /**
+     * Persists the passed newly created <code>timers</code>, like {@link #persistTimer(TimerImpl)} does for
+     * each of them, through a single {@link TimerPersistence#persistTimers(Collection)} call
+     *
+     * @param timers The persistent timers
+     */
+    private void persistTimers(List<TimerImpl> timers) {
+        if (timers.isEmpty()) {
+            return;
+        }
+        final List<TimerEntity> entities = new ArrayList<TimerEntity>(timers.size());
+        for (TimerImpl timer : timers) {
+            this.updateIndex(timer);
+            entities.add(timer.getPersistentState());
+        }
+        if (timerPersistence == null) {
+            logger.warn("Timer persistence is not enabled, persistent timers will not survive JVM restarts");
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            timerPersistence.persistTimers(entities);
+        } catch (Throwable t) {
+            this.setRollbackOnly();
+            throw new RuntimeException(t);
+        } finally {
+            this.metrics.recordPersistenceWrite(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Adds the persistent <code>timer</code> to, or removes it from, the index of live persistent timers,
+     * depending on its state
+     */
+    private void updateIndex(TimerImpl timer) {
+        final TimerHandle handle = timer.getTimerHandle();
+        if (timer.isActive()) {
+            this.persistentTimers.put(handle, timer);
+            // the timer may have been cancelled or expired concurrently, after the state check
+            if (!timer.isActive()) {
+                this.persistentTimers.remove(handle, timer);
+            }
+        } else {
+            this.persistentTimers.remove(handle, timer);
         }
     }
 
@@ -549,66 +1051,110 @@ public class TimerServiceImpl implements TimerService {
      * <p>
      * All such restored timers will be schedule for their next timeouts.
      * </p>
+     * <p>
+     * A persisted timer which can't be restored is logged and skipped.
+     * </p>
      *
      * @param autoTimers
+     * @return The number of restored, failed, removed and created timers and the time taken
      */
-    public void restoreTimers(final List<ScheduleTimer> autoTimers) {
+    public TimerRestoreReport restoreTimers(final List<ScheduleTimer> autoTimers) {
+        final long start = System.currentTimeMillis();
         // get the persisted timers which are considered active
-        List<TimerImpl> restorableTimers = this.getActiveTimers();
-
-        //timers are removed from the list as they are loaded
-        final List<ScheduleTimer> newAutoTimers = new LinkedList<ScheduleTimer>(autoTimers);
+        final List<TimerEntity> unrestorableTimers = new ArrayList<TimerEntity>();
+        List<TimerImpl> restorableTimers = this.getActiveTimers(unrestorableTimers);
+
+        // index the auto timers by their timeout method and schedule, so that each persisted auto timer
+        // is matched with a single lookup. Auto timers are removed from the index as they are matched
+        final Map<AutoTimerKey, LinkedList<ScheduleTimer>> newAutoTimers = new HashMap<AutoTimerKey, LinkedList<ScheduleTimer>>();
+        for (ScheduleTimer timer : autoTimers) {
+            final AutoTimerKey key = new AutoTimerKey(timer.getMethod(), new ScheduleExpressionKey(timer.getScheduleExpression()));
+            LinkedList<ScheduleTimer> timers = newAutoTimers.get(key);
+            if (timers == null) {
+                timers = new LinkedList<ScheduleTimer>();
+                newAutoTimers.put(key, timers);
+            }
+            timers.add(timer);
+        }
+        final Set<ScheduleTimer> matchedAutoTimers = Collections.newSetFromMap(new IdentityHashMap<ScheduleTimer, Boolean>());
 
         logger.debug("Found " + restorableTimers.size() + " active timers for timedObjectId: "
                 + this.invoker.getTimedObjectId());
+        int restored = 0;
+        int removed = 0;
+        int failed = unrestorableTimers.size();
         // now "start" each of the restorable timer. This involves, moving the timer to an ACTIVE state
         // and scheduling the timer task
         for (final TimerImpl activeTimer : restorableTimers) {
-
-            if (activeTimer.isAutoTimer()) {
-                boolean found = false;
-                final CalendarTimerEntity entity = (CalendarTimerEntity) activeTimer.getPersistentState();
-                //so we know we have an auto timer. We need to try and match it up with the auto timers.
-                ListIterator<ScheduleTimer> it = newAutoTimers.listIterator();
-                while (it.hasNext()) {
-                    ScheduleTimer timer = it.next();
-                    final String methodName = timer.getMethod().getName();
-                    final String[] params = new String[timer.getMethod().getParameterTypes().length];
-                    for (int i = 0; i < timer.getMethod().getParameterTypes().length; ++i) {
-                        params[i] = timer.getMethod().getParameterTypes()[i].getName();
-                    }
-                    if (doesTimeoutMethodMatch(entity.getTimeoutMethod(), methodName, params)) {
-
-                        //the timers have the same method.
-                        //now lets make sure the schedule is the same
-                        if (this.doesScheduleMatch(entity.getScheduleExpression(), timer.getScheduleExpression())) {
-                            it.remove();
-                            found = true;
-                            break;
-                        }
-                    }
-                }
-                if (found) {
-                    startTimer(activeTimer);
-                    logger.debug("Started timer: " + activeTimer);
-                    // save any changes to the state (that will have happened on call to startTimer)
-                    this.persistTimer(activeTimer);
+            try {
+                if (this.restoreTimer(activeTimer, newAutoTimers, matchedAutoTimers)) {
+                    restored++;
                 } else {
-                    //the annotation is no longer there
-                    this.removeTimer(activeTimer);
+                    removed++;
                 }
+            } catch (RuntimeException e) {
+                logger.error("Could not restore timer " + activeTimer, e);
+                failed++;
             }
-            //TODO: we need to make sure that these only fire one event after being restored
-            this.startTimer(activeTimer);
-            logger.debug("Started timer: " + activeTimer);
-            // save any changes to the state (that will have happened on call to startTimer)
-            this.persistTimer(activeTimer);
         }
 
-        for (ScheduleTimer timer : newAutoTimers) {
-            this.loadAutoTimer(timer.getScheduleExpression(), timer.getTimerConfig(), timer.getMethod());
+        // create the auto timers which don't have a persisted timer yet
+        int created = 0;
+        for (ScheduleTimer timer : autoTimers) {
+            if (!matchedAutoTimers.contains(timer)) {
+                this.loadAutoTimer(timer.getScheduleExpression(), timer.getTimerConfig(), timer.getMethod());
+                created++;
+            }
         }
 
+        final TimerRestoreReport report = new TimerRestoreReport(this.invoker.getTimedObjectId(), restored, failed, removed,
+                created, System.currentTimeMillis() - start);
+        if (failed > 0) {
+            logger.warn(report);
+        } else {
+            logger.debug(report);
+        }
+        return report;
+    }
+
+    /**
+     * Starts a restored timer. An auto timer is removed instead, if none of the <code>newAutoTimers</code>
+     * has the same timeout method and schedule. Otherwise the first such auto timer is moved from
+     * <code>newAutoTimers</code> to <code>matchedAutoTimers</code>.
+     *
+     * @return False if the timer is an auto timer which was removed. True otherwise
+     */
+    private boolean restoreTimer(final TimerImpl activeTimer, final Map<AutoTimerKey, LinkedList<ScheduleTimer>> newAutoTimers,
+                                 final Set<ScheduleTimer> matchedAutoTimers) {
+        if (activeTimer.isAutoTimer()) {
+            final CalendarTimer calendarTimer = (CalendarTimer) activeTimer;
+            final AutoTimerKey key = new AutoTimerKey(calendarTimer.getTimeoutMethod(),
+                    calendarTimer.getCalendarTimeout().getScheduleKey());
+            final LinkedList<ScheduleTimer> candidates = newAutoTimers.get(key);
+            if (candidates == null || candidates.isEmpty()) {
+                //the annotation is no longer there
+                this.removeTimer(activeTimer);
+                return false;
+            }
+            matchedAutoTimers.add(candidates.removeFirst());
+        }
+        if (activeTimer.isInRetry() && activeTimer.getRetryAttempts() > 0) {
+            // the timer stays in retry, its regular timeouts are skipped until the pending retry completes
+            // like the regular timeouts, the retry is only scheduled once the transaction (if any) commits
+            this.registerTimerWithTx(activeTimer);
+            if (this.getTransaction() == null) {
+                activeTimer.scheduleTimeout();
+                activeTimer.getTimerTask().scheduleRetry();
+            }
+            logger.debug("Started timer: " + activeTimer + " with pending retry at " + activeTimer.getNextRetry());
+        } else {
+            // timeouts missed while the server was down are caught up with according to the catch-up policy
+            this.startTimer(activeTimer);
+            logger.debug("Started timer: " + activeTimer);
+        }
+        // save any changes to the state (that will have happened on call to startTimer)
+        this.persistTimer(activeTimer);
+        return true;
     }
 
     /**
@@ -639,7 +1185,7 @@ public class TimerServiceImpl implements TimerService {
         if (tx != null) {
             try {
                 // register for lifecycle events of transaction
-                tx.registerSynchronization(new TimerCreationTransactionSynchronization(timer));
+                this.getTransactionSynchronization(tx).addCreated(timer);
             } catch (RollbackException e) {
                 // TODO: throw the right exception
                 throw new EJBException(e);
@@ -649,6 +1195,43 @@ public class TimerServiceImpl implements TimerService {
         }
     }
 
+    /**
+     * Registers the cancellation of the passed <code>timers</code> with the transaction. They are removed once it
+     * commits, or go back to {@link TimerState#ACTIVE} if it is rolled back.
+     *
+     * @param tx     The transaction
+     * @param timers The cancelled timers
+     */
+    void registerCancellationWithTx(final Transaction tx, final Collection<TimerImpl> timers) throws RollbackException,
+            SystemException {
+        this.getTransactionSynchronization(tx).addCancelled(timers);
+    }
+
+    /**
+     * Returns the {@link TimerTransactionSynchronization} which completes the timers created and cancelled by this
+     * timer service in the transaction. If a {@link TransactionSynchronizationRegistry} has been set, a single
+     * synchronization is registered with each transaction, and kept as a resource of the transaction. Otherwise,
+     * a new one is registered on each call.
+     *
+     * @param tx The current transaction
+     */
+    private TimerTransactionSynchronization getTransactionSynchronization(final Transaction tx) throws RollbackException,
+            SystemException {
+        final TransactionSynchronizationRegistry registry = this.transactionSynchronizationRegistry;
+        TimerTransactionSynchronization synchronization = null;
+        if (registry != null) {
+            synchronization = (TimerTransactionSynchronization) registry.getResource(this);
+        }
+        if (synchronization == null) {
+            synchronization = new TimerTransactionSynchronization();
+            tx.registerSynchronization(synchronization);
+            if (registry != null) {
+                registry.putResource(this, synchronization);
+            }
+        }
+        return synchronization;
+    }
+
     /**
      * Moves the timer to either {@link TimerState#STARTED_IN_TX} or {@link TimerState#ACTIVE}
      * depending on whether there's any transaction active currently.
@@ -712,51 +1295,184 @@ public class TimerServiceImpl implements TimerService {
     }
 
     /**
-     * Creates and schedules a {@link TimerTask} for the next timeout of the passed <code>timer</code>
+     * Creates and schedules a {@link TimerTask} for the next timeout of the passed <code>timer</code>.
+     * If the next timeout was missed, the timeout is scheduled according to the {@link CatchUpPolicy}.
      */
     protected void scheduleTimeout(TimerImpl timer) {
-        Date nextExpiration = timer.getNextExpiration();
-        if (nextExpiration == null) {
+        long nextExpiration = timer.getNextExpirationMillis();
+        if (nextExpiration == TimerImpl.NO_DATE) {
             logger.info("Next expiration is null. No tasks will be scheduled for timer " + timer);
             return;
         }
+        final long now = System.currentTimeMillis();
+        if (nextExpiration < now - MISSED_TIMEOUT_TOLERANCE) {
+            if (this.catchUp(timer, now)) {
+                return;
+            }
+            // the next timeout has been moved to after the current time
+            nextExpiration = timer.getNextExpirationMillis();
+            if (nextExpiration == TimerImpl.NO_DATE) {
+                return;
+            }
+        } else {
+            timer.catchUpUntil = 0;
+        }
         // create the timer task
         final Runnable timerTask = timer.getTimerTask();
         // find out how long is it away from now
-        long delay = nextExpiration.getTime() - System.currentTimeMillis();
+        long delay = nextExpiration - now;
         // if in past, then trigger immediately
         if (delay < 0) {
             delay = 0;
         }
         long intervalDuration = timer.getInterval();
+        final ScheduledTimeout scheduledTimeout;
+        // the message is only built when it is logged, since it is formatted from the whole timer
+        final boolean debugEnabled = logger.isDebugEnabled();
         if (intervalDuration > 0) {
-            logger.debug("Scheduling timer " + timer + " at fixed rate, starting at " + delay
-                    + " milli seconds from now with repeated interval=" + intervalDuration);
+            if (debugEnabled) {
+                logger.debug("Scheduling timer " + timer + " at fixed rate, starting at " + delay
+                        + " milli seconds from now with repeated interval=" + intervalDuration);
+            }
             // schedule the task
-            final Task task = new Task(timerTask);
-            this.timer.scheduleAtFixedRate(task, delay, intervalDuration);
-            // maintain it in timerservice for future use (like cancellation)
-            this.scheduledTimerFutures.put(timer.getTimerHandle(), task);
+            scheduledTimeout = this.scheduler.scheduleAtFixedRate(new Task(timer.getKey(), timerTask, true), delay, intervalDuration);
         } else {
-            logger.debug("Scheduling a single action timer " + timer + " starting at " + delay + " milli seconds from now");
+            if (debugEnabled) {
+                logger.debug("Scheduling a single action timer " + timer + " starting at " + delay + " milli seconds from now");
+            }
             // schedule the task
-            this.timer.schedule(new Task(timerTask), delay);
-            // maintain it in timerservice for future use (like cancellation)
-            final Task task = new Task(timerTask);
-            this.scheduledTimerFutures.put(timer.getTimerHandle(), task);
+            scheduledTimeout = this.scheduler.schedule(new Task(timer.getKey(), timerTask, false), delay);
+        }
+        // maintain it in the timer for future use (like cancellation)
+        timer.setScheduledTimeout(scheduledTimeout);
+    }
+
+    /**
+     * Applies the {@link CatchUpPolicy} to a timer whose next timeout was missed.
+     * <p>
+     * The missed timeouts are computed from the next expiration of the timer, which for restored
+     * timers is the persisted next date. Timeouts which fire to catch up are scheduled as single actions;
+     * for interval timers, the regular fixed rate schedule is resumed, aligned to the initial
+     * expiration, once the timer has caught up.
+     * </p>
+     *
+     * @return True if this method scheduled the timeout. False if the timeout is yet to be scheduled at the next
+     *         expiration of the timer, which may have been moved to the next timeout after <code>now</code>
+     *         (or to null, if there is none).
+     */
+    private boolean catchUp(final TimerImpl timer, final long now) {
+        final boolean calendarTimer = timer instanceof CalendarTimer;
+        final long intervalDuration = timer.getInterval();
+        if (!calendarTimer && intervalDuration == 0) {
+            // a single action timer always fires, right away
+            return false;
+        }
+        final long nextExpiration = timer.getNextExpirationMillis();
+        CatchUpPolicy policy = this.catchUpPolicy;
+        if (policy == CatchUpPolicy.FIRE_ALL) {
+            long delay = this.catchUpInterval;
+            if (timer.catchUpUntil == 0) {
+                logger.info("Timer " + timer + " missed its timeouts since " + new Date(nextExpiration) + ", firing each of them");
+                timer.catchUpUntil = now;
+                delay = 0;
+            }
+            if (nextExpiration <= timer.catchUpUntil) {
+                // the timeouts being caught up with schedule the next one when they run
+                this.scheduleCatchUpTimeout(timer, delay);
+                return true;
+            }
+            // the timeouts missed while catching up are skipped
+            policy = CatchUpPolicy.SKIP;
+        } else {
+            logger.info("Timer " + timer + " missed its timeouts since " + new Date(nextExpiration) + ", catch-up policy: " + policy);
+        }
+        timer.catchUpUntil = 0;
+
+        if (policy == CatchUpPolicy.FIRE_ONCE) {
+            if (calendarTimer) {
+                // the next timeout is computed from the current time, once this one fires
+                timer.setNextTimeout(new Date(now));
+            } else {
+                // the latest of the missed timeouts, so that the following ones stay aligned
+                timer.setNextTimeout(new Date(now - (now - nextExpiration) % intervalDuration));
+            }
+            this.persistTimer(timer);
+            this.scheduleCatchUpTimeout(timer, 0);
+            return true;
+        }
+
+        final Date next;
+        if (calendarTimer) {
+            final long nextTimeout = ((CalendarTimer) timer).getCalendarTimeout().getNextTimeout(now);
+            next = nextTimeout == CalendarBasedTimeout.NO_MORE_TIMEOUTS ? null : new Date(nextTimeout);
+        } else {
+            next = new Date(now + intervalDuration - (now - nextExpiration) % intervalDuration);
+        }
+        timer.setNextTimeout(next);
+        if (next == null) {
+            logger.info("Timer " + timer + " has no more timeouts after skipping the missed ones");
+            timer.expireTimer();
+        } else {
+            this.persistTimer(timer);
         }
+        return false;
+    }
+
+    /**
+     * Schedules the next timeout of a timer, which fires to catch up with a missed timeout, as a single action
+     */
+    private void scheduleCatchUpTimeout(final TimerImpl timer, final long delay) {
+        Runnable timerTask = timer.getTimerTask();
+        if (timer.getInterval() > 0) {
+            // interval timers are rescheduled once the catch-up timeout completes
+            timerTask = new CatchUpTask(timer, timerTask);
+        }
+        logger.debug("Scheduling catch-up timeout of timer " + timer + " at " + delay + " milli seconds from now");
+        final ScheduledTimeout scheduledTimeout = this.scheduler.schedule(new Task(timer.getKey(), timerTask, false), delay);
+        timer.setScheduledTimeout(scheduledTimeout);
     }
 
     /**
-     * Cancels any scheduled {@link Future} corresponding to the passed <code>timer</code>
+     * Schedules a retry of the failed timeout of a timer. The retry is dispatched like a single action timeout,
+     * so no thread waits for it in the mean time.
+     *
+     * @param timer The timer
+     * @param retry Retries the timeout
+     * @param delay The delay (in milli seconds) before the retry
+     */
+    public void scheduleRetry(final TimerImpl timer, final Runnable retry, final long delay) {
+        final Object timerKey = timer.getKey();
+        final RetryTask retryTask = new RetryTask(timerKey, retry);
+        // registered before it is scheduled, since it may run right away
+        final RetryTask previous = this.pendingRetries.put(timerKey, retryTask);
+        if (previous != null) {
+            previous.cancel();
+        }
+        retryTask.setScheduledTimeout(this.scheduler.schedule(new Task(timerKey, retryTask, false), delay));
+    }
+
+    /**
+     * Returns the number of timers with a scheduled retry
+     *
+     * @return
+     */
+    public int getPendingRetryCount() {
+        return this.pendingRetries.size();
+    }
+
+    /**
+     * Cancels any scheduled {@link ScheduledTimeout} corresponding to the passed <code>timer</code>
      *
      * @param timer
      */
     protected void cancelTimeout(TimerImpl timer) {
-        TimerHandle handle = timer.getTimerHandle();
-        java.util.TimerTask timerTask = this.scheduledTimerFutures.get(handle);
-        if (timerTask != null) {
-            timerTask.cancel();
+        ScheduledTimeout scheduledTimeout = timer.setScheduledTimeout(null);
+        if (scheduledTimeout != null) {
+            scheduledTimeout.cancel();
+        }
+        RetryTask retry = this.pendingRetries.remove(timer.getKey());
+        if (retry != null) {
+            retry.cancel();
         }
 
     }
@@ -775,22 +1491,11 @@ public class TimerServiceImpl implements TimerService {
         }
     }
 
-    private TimerImpl getPersistedTimer(TimerHandleImpl timerHandle) {
-        String id = timerHandle.getId();
-        String timedObjectId = timerHandle.getTimedObjectId();
-        if (timerPersistence == null) {
-            return null;
-        }
-
-        TimerEntity timerEntity = timerPersistence.loadTimer(id, timedObjectId);
-        if (timerEntity.isCalendarTimer()) {
-            return new CalendarTimer((CalendarTimerEntity) timerEntity, this);
-        }
-        return new TimerImpl(timerEntity, this);
-
-    }
-
-    private List<TimerImpl> getActiveTimers() {
+    /**
+     * Loads the active timers from the {@link TimerPersistence}. Persisted timers which can't be
+     * restored are logged and skipped, and added to <code>unrestorableTimers</code>.
+     */
+    private List<TimerImpl> getActiveTimers(final List<TimerEntity> unrestorableTimers) {
         // we need only those timers which correspond to the
         // timed object invoker to which this timer service belongs. So
         // first get hold of the timed object id
@@ -813,14 +1518,20 @@ public class TimerServiceImpl implements TimerService {
                 continue;
             }
             TimerImpl activeTimer = null;
-            if (persistedTimer.isCalendarTimer()) {
-                CalendarTimerEntity calendarTimerEntity = (CalendarTimerEntity) persistedTimer;
+            try {
+                if (persistedTimer.isCalendarTimer()) {
+                    CalendarTimerEntity calendarTimerEntity = (CalendarTimerEntity) persistedTimer;
 
-                // create a timer instance from the persisted calendar timer
-                activeTimer = new CalendarTimer(calendarTimerEntity, this);
-            } else {
-                // create the timer instance from the persisted state
-                activeTimer = new TimerImpl(persistedTimer, this);
+                    // create a timer instance from the persisted calendar timer
+                    activeTimer = new CalendarTimer(calendarTimerEntity, this);
+                } else {
+                    // create the timer instance from the persisted state
+                    activeTimer = new TimerImpl(persistedTimer, this);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Could not restore timer " + persistedTimer.getId() + " for timedObjectId: " + timedObjectId, e);
+                unrestorableTimers.add(persistedTimer);
+                continue;
             }
             // add it to the list of timers which will be restored
             activeTimers.add(activeTimer);
@@ -841,90 +1552,6 @@ public class TimerServiceImpl implements TimerService {
         return (Serializable) clonedInfo;
     }
 
-    private boolean doesTimeoutMethodMatch(TimeoutMethod timeoutMethod, String timeoutMethodName, String[] methodParams) {
-        if (timeoutMethod.getMethodName().equals(timeoutMethodName) == false) {
-            return false;
-        }
-        String[] timeoutMethodParams = timeoutMethod.getMethodParams();
-        if (timeoutMethodParams == null && methodParams == null) {
-            return true;
-        }
-        return this.methodParamsMatch(timeoutMethodParams, methodParams);
-    }
-
-    private boolean doesScheduleMatch(final ScheduleExpression expression1, final ScheduleExpression expression2) {
-        if (!same(expression1.getDayOfMonth(), expression2.getDayOfMonth())) {
-            return false;
-        }
-        if (!same(expression1.getDayOfWeek(), expression2.getDayOfWeek())) {
-            return false;
-        }
-        if (!same(expression1.getEnd(), expression2.getEnd())) {
-            return false;
-        }
-        if (!same(expression1.getHour(), expression2.getHour())) {
-            return false;
-        }
-        if (!same(expression1.getMinute(), expression2.getMinute())) {
-            return false;
-        }
-        if (!same(expression1.getMonth(), expression2.getMonth())) {
-            return false;
-        }
-        if (!same(expression1.getSecond(), expression2.getSecond())) {
-            return false;
-        }
-        if (!same(expression1.getStart(), expression2.getStart())) {
-            return false;
-        }
-        if (!same(expression1.getTimezone(), expression2.getTimezone())) {
-            return false;
-        }
-        if (!same(expression1.getYear(), expression2.getYear())) {
-            return false;
-        }
-        return true;
-    }
-
-    private boolean same(Object i1, Object i2) {
-        if (i1 == null && i2 != null) {
-            return false;
-        }
-        if (i2 == null && i1 != null) {
-            return false;
-        }
-        if (i1 == null && i2 == null) {
-            return true;
-        }
-        return i1.equals(i2);
-    }
-
-    private boolean isEitherParamNull(Object param1, Object param2) {
-        if (param1 != null && param2 == null) {
-            return true;
-        }
-        if (param2 != null && param1 == null) {
-            return true;
-        }
-        return false;
-    }
-
-    private boolean methodParamsMatch(String[] methodParams, String[] otherMethodParams) {
-        if (this.isEitherParamNull(methodParams, otherMethodParams)) {
-            return false;
-        }
-
-        if (methodParams.length != otherMethodParams.length) {
-            return false;
-        }
-        for (int i = 0; i < methodParams.length; i++) {
-            if (!methodParams[i].equals(otherMethodParams[i])) {
-                return false;
-            }
-        }
-        return true;
-    }
-
     /**
      * Marks the transaction for rollback
      * NOTE: This method will soon be removed, once this timer service
@@ -968,76 +1595,248 @@ public class TimerServiceImpl implements TimerService {
         }
     }
 
-    private class TimerCreationTransactionSynchronization implements Synchronization {
-        /**
-         * The timer being managed in the transaction
-         */
-        private TimerImpl timer;
+    /**
+     * The {@link Synchronization} of a transaction, which completes the timers created or cancelled in the
+     * transaction once it completes: the created timers are scheduled, and the cancelled ones removed, in one pass
+     */
+    private class TimerTransactionSynchronization implements Synchronization {
+
+        private final List<TimerImpl> created = new ArrayList<TimerImpl>();
 
-        public TimerCreationTransactionSynchronization(TimerImpl timer) {
-            if (timer == null) {
-                throw new IllegalStateException("Timer cannot be null");
-            }
-            this.timer = timer;
+        private final List<TimerImpl> cancelled = new ArrayList<TimerImpl>();
+
+        synchronized void addCreated(final TimerImpl timer) {
+            this.created.add(timer);
+        }
+
+        synchronized void addCancelled(final Collection<TimerImpl> timers) {
+            this.cancelled.addAll(timers);
+        }
+
+        @Override
+        public void beforeCompletion() {
         }
 
-        /**
-         * {@inheritDoc}
-         */
         @Override
-        public void afterCompletion(int status) {
-            if (this.timer.persistent) {
-                synchronized (TimerServiceImpl.this.persistentWaitingOnTxCompletionTimers) {
-                    TimerServiceImpl.this.persistentWaitingOnTxCompletionTimers.remove(this.timer.getTimerHandle());
+        public void afterCompletion(final int status) {
+            final List<TimerImpl> created;
+            final List<TimerImpl> cancelled;
+            synchronized (this) {
+                created = new ArrayList<TimerImpl>(this.created);
+                cancelled = new ArrayList<TimerImpl>(this.cancelled);
+            }
+            for (TimerImpl timer : created) {
+                try {
+                    this.completeCreation(timer, status);
+                } catch (RuntimeException e) {
+                    logger.error("Error completing the creation of timer " + timer, e);
+                }
+            }
+            if (!cancelled.isEmpty()) {
+                try {
+                    this.completeCancellation(cancelled, status);
+                } catch (RuntimeException e) {
+                    logger.error("Error completing the cancellation of " + cancelled.size() + " timers", e);
                 }
             }
+        }
+
+        private void completeCreation(final TimerImpl timer, final int status) {
             if (status == Status.STATUS_COMMITTED) {
-                logger.debug("commit timer creation: " + this.timer);
+                logger.debug("commit timer creation: " + timer);
 
-                TimerState timerState = this.timer.getState();
+                TimerState timerState = timer.getState();
                 switch (timerState) {
                     case ACTIVE:
                         // the timer was started/activated in a tx.
                         // now it's time to schedule the task
-                        this.timer.scheduleTimeout();
+                        timer.scheduleTimeout();
+                        break;
+                    case RETRY_TIMEOUT:
+                        // the timer was restored with a pending retry in a tx.
+                        // now it's time to schedule the task and the retry
+                        timer.scheduleTimeout();
+                        timer.getTimerTask().scheduleRetry();
                         break;
                 }
             } else if (status == Status.STATUS_ROLLEDBACK) {
-                logger.debug("Rolling back timer creation: " + this.timer);
+                logger.debug("Rolling back timer creation: " + timer);
 
-                TimerState timerState = this.timer.getState();
+                TimerState timerState = timer.getState();
                 switch (timerState) {
                     case ACTIVE:
-                        if (this.timer.isPersistent()) {
-                            timerPersistence.removeTimer(this.timer.getPersistentState());
+                        if (timer.isPersistent()) {
+                            timerPersistence.removeTimer(timer.getPersistentState());
                         }
-                        this.timer.setTimerState(TimerState.CANCELED);
+                        timer.setTimerState(TimerState.CANCELED);
+                        persistentTimers.remove(timer.getTimerHandle(), timer);
                         break;
                 }
+            }
+        }
+
+        private void completeCancellation(final List<TimerImpl> timers, final int status) {
+            if (status == Status.STATUS_COMMITTED) {
+                logger.debug("commit cancellation of " + timers.size() + " timers");
+
+                final List<TimerImpl> cancelled = new ArrayList<TimerImpl>(timers.size());
+                for (TimerImpl timer : timers) {
+                    switch (timer.getState()) {
+                        case CANCELED:
+                            cancelled.add(timer);
+                            break;
+                        case IN_TIMEOUT:
+                        case RETRY_TIMEOUT:
+                            timer.cancelTimeout();
+                            persistTimer(timer);
+                            break;
+                    }
+                }
+                TimerServiceImpl.this.completeCancellation(cancelled);
+            } else if (status == Status.STATUS_ROLLEDBACK) {
+                logger.debug("rollback cancellation of " + timers.size() + " timers");
 
+                for (TimerImpl timer : timers) {
+                    if (timer.getState() == TimerState.CANCELED) {
+                        timer.setTimerState(TimerState.ACTIVE);
+                    }
+                }
             }
+        }
+    }
+
+    private class Task implements Runnable {
+
+        private final Object timerKey;
+
+        private final Runnable delegate;
+
+        private final boolean periodic;
 
+        public Task(final Object timerKey, final Runnable delegate, final boolean periodic) {
+            this.timerKey = timerKey;
+            this.delegate = delegate;
+            this.periodic = periodic;
         }
 
         @Override
-        public void beforeCompletion() {
+        public void run() {
+            final TimeoutBatcher batcher = timeoutBatcher;
+            if (batcher != null && this.delegate instanceof TimerTask && ((TimerTask<?>) this.delegate).isBatchable()) {
+                batcher.add(this.timerKey, (TimerTask<?>) this.delegate, this.periodic);
+            } else {
+                dispatcher.dispatch(invoker.getTimedObjectId(), this.timerKey, this.delegate, this.periodic);
+            }
+        }
+    }
+
+    /**
+     * A pending retry of a failed timeout
+     */
+    private class RetryTask implements Runnable {
+
+        private final Object timerKey;
+
+        private final Runnable delegate;
+
+        private volatile ScheduledTimeout scheduledTimeout;
 
+        private volatile boolean cancelled;
+
+        RetryTask(final Object timerKey, final Runnable delegate) {
+            this.timerKey = timerKey;
+            this.delegate = delegate;
         }
 
+        void setScheduledTimeout(final ScheduledTimeout scheduledTimeout) {
+            this.scheduledTimeout = scheduledTimeout;
+            if (this.cancelled) {
+                scheduledTimeout.cancel();
+            }
+        }
+
+        void cancel() {
+            this.cancelled = true;
+            final ScheduledTimeout scheduledTimeout = this.scheduledTimeout;
+            if (scheduledTimeout != null) {
+                scheduledTimeout.cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            // a failing retry registers the next one
+            if (!pendingRetries.remove(this.timerKey, this) || this.cancelled) {
+                return;
+            }
+            this.delegate.run();
+        }
     }
 
-    private class Task extends java.util.TimerTask {
+    /**
+     * Runs a catch-up timeout of an interval timer, and then schedules the next timeout of the timer
+     */
+    private class CatchUpTask implements Runnable {
+
+        private final TimerImpl timer;
 
         private final Runnable delegate;
 
-        public Task(final Runnable delegate) {
+        CatchUpTask(final TimerImpl timer, final Runnable delegate) {
+            this.timer = timer;
             this.delegate = delegate;
         }
 
         @Override
         public void run() {
-            executorService.submit(delegate);
+            this.delegate.run();
+            if (this.timer.isActive()) {
+                scheduleTimeout(this.timer);
+            }
         }
     }
 
+    /**
+     * Identifies an auto timer by the signature of its timeout method and its normalized schedule
+     */
+    private static final class AutoTimerKey {
+
+        private final String methodSignature;
+
+        private final ScheduleExpressionKey scheduleKey;
+
+        private final int hashCode;
+
+        AutoTimerKey(final Method timeoutMethod, final ScheduleExpressionKey scheduleKey) {
+            final StringBuilder sb = new StringBuilder(timeoutMethod.getName()).append('(');
+            final Class<?>[] paramTypes = timeoutMethod.getParameterTypes();
+            for (int i = 0; i < paramTypes.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(paramTypes[i].getName());
+            }
+            this.methodSignature = sb.append(')').toString();
+            this.scheduleKey = scheduleKey;
+            this.hashCode = 31 * this.methodSignature.hashCode() + scheduleKey.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof AutoTimerKey)) {
+                return false;
+            }
+            final AutoTimerKey other = (AutoTimerKey) obj;
+            return this.hashCode == other.hashCode && this.methodSignature.equals(other.methodSignature)
+                    && this.scheduleKey.equals(other.scheduleKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
 }
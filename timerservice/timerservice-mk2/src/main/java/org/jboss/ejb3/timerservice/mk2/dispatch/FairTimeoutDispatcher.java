@@ -0,0 +1,465 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.dispatch;
+
+import org.jboss.logging.Logger;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link TimeoutDispatcher} which shares the executor fairly between the groups of timers, typically
+ * the timed objects, instead of running the timeouts in the order they fired.
+ * <p>
+ * The timeouts are queued per group, and at most <code>concurrency</code> of them are handed to the
+ * executor at any time. Hence a burst of timeouts of one group doesn't fill the queue of the executor
+ * ahead of the timeouts of the other groups. The queues are drained by deficit round robin, where the
+ * cost of a timeout is the time it took to run: on each round, a group is credited with the quantum times
+ * its weight, and is served until its credit is used up. Groups with slow timeouts thus get the same
+ * share of the executor time as groups with fast ones, rather than the same number of timeouts.
+ * </p>
+ * <p>
+ * The number of timeouts of a group which run at the same time can additionally be limited, so that a
+ * single group can't occupy all the threads of the executor.
+ * </p>
+ * <p>
+ * The guarantees of the {@link TimeoutDispatcher} apply unchanged: at most one timeout per timer is queued
+ * or running, and <code>maxQueued</code> bounds the timeouts waiting across all groups.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class FairTimeoutDispatcher extends TimeoutDispatcher {
+
+    /**
+     * Logger
+     */
+    private static final Logger logger = Logger.getLogger(FairTimeoutDispatcher.class);
+
+    /**
+     * Default execution time (in nano seconds) a group of weight 1 is credited with on each round
+     */
+    public static final long DEFAULT_QUANTUM = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * The group of the timers which are dispatched without one
+     */
+    private static final Object NO_GROUP = new Object();
+
+    private final Executor executor;
+
+    private final int concurrency;
+
+    private final int maxConcurrentPerGroup;
+
+    private final long quantum;
+
+    /**
+     * The weights configured for specific groups. Other groups have weight 1.
+     */
+    private final ConcurrentMap<Object, Integer> weights = new ConcurrentHashMap<Object, Integer>();
+
+    /**
+     * The limits of concurrent timeouts configured for specific groups. Other groups are limited to
+     * <code>maxConcurrentPerGroup</code>.
+     */
+    private final ConcurrentMap<Object, Integer> maxConcurrents = new ConcurrentHashMap<Object, Integer>();
+
+    /**
+     * The groups which have timeouts queued or running. Guarded by this dispatcher's monitor.
+     */
+    private final Map<Object, Group> groups = new HashMap<Object, Group>();
+
+    /**
+     * The round of the groups which have timeouts queued, the group being served first. Guarded by
+     * this dispatcher's monitor.
+     */
+    private final ArrayDeque<Group> round = new ArrayDeque<Group>();
+
+    /**
+     * Number of drainers handed to the executor. Guarded by this dispatcher's monitor.
+     */
+    private int drainers;
+
+    /**
+     * Creates a {@link FairTimeoutDispatcher} which runs as many timeouts at the same time as the executor
+     * has threads, without limiting the groups
+     *
+     * @param executor The executor which runs the timeouts
+     */
+    public FairTimeoutDispatcher(final Executor executor) {
+        this(executor, defaultConcurrency(executor), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a {@link FairTimeoutDispatcher} which coalesces overlapping timeouts, and runs timeouts
+     * in the dispatching thread once {@link #DEFAULT_MAX_QUEUED} timeouts are waiting
+     *
+     * @param executor              The executor which runs the timeouts
+     * @param concurrency           The maximum number of timeouts running at the same time, which should be
+     *                              the number of threads of the executor
+     * @param maxConcurrentPerGroup The maximum number of timeouts of a group running at the same time
+     */
+    public FairTimeoutDispatcher(final Executor executor, final int concurrency, final int maxConcurrentPerGroup) {
+        this(executor, concurrency, maxConcurrentPerGroup, DEFAULT_QUANTUM, DEFAULT_MAX_QUEUED, OverlapPolicy.COALESCE,
+                OverflowPolicy.CALLER_RUNS);
+    }
+
+    /**
+     * Creates a {@link FairTimeoutDispatcher}
+     *
+     * @param executor              The executor which runs the timeouts
+     * @param concurrency           The maximum number of timeouts running at the same time, which should be
+     *                              the number of threads of the executor
+     * @param maxConcurrentPerGroup The maximum number of timeouts of a group running at the same time
+     * @param quantum               The execution time (in nano seconds) a group of weight 1 is credited with on each round
+     * @param maxQueued             The maximum number of timeouts waiting, across all groups
+     * @param overlapPolicy         What to do with a timeout which fires while the previous one of the same timer hasn't completed
+     * @param overflowPolicy        What to do with a timeout once <code>maxQueued</code> timeouts are waiting
+     */
+    public FairTimeoutDispatcher(final Executor executor, final int concurrency, final int maxConcurrentPerGroup, final long quantum,
+                                 final int maxQueued, final OverlapPolicy overlapPolicy, final OverflowPolicy overflowPolicy) {
+        super(executor, maxQueued, overlapPolicy, overflowPolicy);
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Concurrency must be positive: " + concurrency);
+        }
+        if (maxConcurrentPerGroup <= 0) {
+            throw new IllegalArgumentException("Max concurrent per group must be positive: " + maxConcurrentPerGroup);
+        }
+        if (quantum <= 0) {
+            throw new IllegalArgumentException("Quantum must be positive: " + quantum);
+        }
+        this.executor = executor;
+        this.concurrency = concurrency;
+        this.maxConcurrentPerGroup = maxConcurrentPerGroup;
+        this.quantum = quantum;
+    }
+
+    /**
+     * Returns the number of threads the executor runs timeouts with: the core pool size of a
+     * {@link ThreadPoolExecutor} (or its maximum pool size, if it has no core threads), else the
+     * number of processors
+     */
+    private static int defaultConcurrency(final Executor executor) {
+        if (executor instanceof ThreadPoolExecutor) {
+            final ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            return pool.getCorePoolSize() > 0 ? pool.getCorePoolSize() : pool.getMaximumPoolSize();
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Sets the share of the executor time of a group, relative to the other groups
+     *
+     * @param group  The group
+     * @param weight The weight. Groups have weight 1 unless set otherwise.
+     */
+    public void setWeight(final Object group, final int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive: " + weight);
+        }
+        final Object key = key(group);
+        this.weights.put(key, weight);
+        synchronized (this) {
+            final Group g = this.groups.get(key);
+            if (g != null) {
+                g.weight = weight;
+            }
+        }
+    }
+
+    /**
+     * Limits the number of timeouts of a group running at the same time
+     *
+     * @param group         The group
+     * @param maxConcurrent The maximum number of timeouts of the group running at the same time
+     */
+    public void setMaxConcurrent(final Object group, final int maxConcurrent) {
+        if (maxConcurrent <= 0) {
+            throw new IllegalArgumentException("Max concurrent must be positive: " + maxConcurrent);
+        }
+        final Object key = key(group);
+        this.maxConcurrents.put(key, maxConcurrent);
+        synchronized (this) {
+            final Group g = this.groups.get(key);
+            if (g != null) {
+                g.maxConcurrent = maxConcurrent;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of timeouts of a group which wait for their turn
+     *
+     * @param group The group
+     * @return
+     */
+    public synchronized int getQueuedCount(final Object group) {
+        final Group g = this.groups.get(key(group));
+        return g == null ? 0 : g.queue.size();
+    }
+
+    /**
+     * Returns the number of timeouts of a group which are running
+     *
+     * @param group The group
+     * @return
+     */
+    public synchronized int getRunningCount(final Object group) {
+        final Group g = this.groups.get(key(group));
+        return g == null ? 0 : g.running;
+    }
+
+    public int getConcurrency() {
+        return this.concurrency;
+    }
+
+    public int getMaxConcurrentPerGroup() {
+        return this.maxConcurrentPerGroup;
+    }
+
+    public long getQuantum() {
+        return this.quantum;
+    }
+
+    /**
+     * Queues the timeout in its group, and hands a drainer to the executor unless <code>concurrency</code>
+     * of them are running already
+     */
+    @Override
+    protected void submit(final Object group, final Runnable dispatch) {
+        final Object key = key(group);
+        synchronized (this) {
+            Group g = this.groups.get(key);
+            if (g == null) {
+                g = new Group(key);
+                this.groups.put(key, g);
+            }
+            g.queue.addLast(dispatch);
+            if (!g.queued) {
+                g.queued = true;
+                this.round.addLast(g);
+            }
+            if (this.drainers >= this.concurrency) {
+                return;
+            }
+            this.drainers++;
+        }
+        try {
+            this.executor.execute(new Drainer());
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                this.drainers--;
+                // the running drainers will get to the timeout, if there are any
+                if (this.drainers > 0 || !this.remove(key, dispatch)) {
+                    logger.warn("Executor rejected a timeout drainer, the timeouts are left to the running drainers", e);
+                    return;
+                }
+            }
+            throw e;
+        }
+    }
+
+    private static Object key(final Object group) {
+        return group == null ? NO_GROUP : group;
+    }
+
+    /**
+     * Removes a timeout which hasn't been picked by a drainer. Must be called while holding the monitor of this dispatcher.
+     *
+     * @return True if the timeout was still queued
+     */
+    private boolean remove(final Object key, final Runnable dispatch) {
+        final Group g = this.groups.get(key);
+        if (g == null || !g.queue.remove(dispatch)) {
+            return false;
+        }
+        if (g.queue.isEmpty()) {
+            this.leaveRound(g);
+        }
+        return true;
+    }
+
+    /**
+     * Picks the group whose timeout runs next, by deficit round robin. Must be called while holding the
+     * monitor of this dispatcher.
+     *
+     * @return The group, or null if no group has a timeout queued and is below its concurrency limit
+     */
+    private Group next() {
+        if (this.round.isEmpty()) {
+            return null;
+        }
+        Group leastIndebted = null;
+        // one more visit than there are groups, since the first visit may only end the turn of the first group
+        for (int i = this.round.size() + 1; i > 0; i--) {
+            final Group g = this.round.peekFirst();
+            if (g.running < g.maxConcurrent) {
+                if (g.deficit > 0) {
+                    // the group keeps its turn while it has credit left
+                    return g;
+                }
+                if (g.inTurn) {
+                    // the group used up its credit, the next group's turn
+                    g.inTurn = false;
+                } else {
+                    // the group's turn comes round again
+                    g.deficit += this.quantum * g.weight;
+                    if (g.deficit > 0) {
+                        g.inTurn = true;
+                        return g;
+                    }
+                    if (leastIndebted == null || g.deficit > leastIndebted.deficit) {
+                        leastIndebted = g;
+                    }
+                }
+            }
+            this.round.addLast(this.round.pollFirst());
+        }
+        if (leastIndebted == null) {
+            return null;
+        }
+        // all the eligible groups are still in debt after a whole round, so run as many rounds at once
+        // as the least indebted group needs to get credit
+        final long rounds = -leastIndebted.deficit / (this.quantum * leastIndebted.weight) + 1;
+        for (Group g : this.round) {
+            if (g.running < g.maxConcurrent) {
+                g.deficit += rounds * this.quantum * g.weight;
+                g.inTurn = g.deficit > 0;
+            }
+        }
+        return leastIndebted;
+    }
+
+    /**
+     * Takes the group out of the round once it has no timeout queued. Must be called while holding the
+     * monitor of this dispatcher.
+     */
+    private void leaveRound(final Group g) {
+        g.queued = false;
+        g.inTurn = false;
+        final Iterator<Group> it = this.round.iterator();
+        while (it.hasNext()) {
+            if (it.next() == g) {
+                it.remove();
+                break;
+            }
+        }
+        // unused credit is lost, debt is kept
+        g.deficit = Math.min(g.deficit, 0);
+        this.retireIfIdle(g);
+    }
+
+    private void retireIfIdle(final Group g) {
+        if (!g.queued && g.running == 0) {
+            this.groups.remove(g.key);
+        }
+    }
+
+    /**
+     * The timeouts of a group. Guarded by the monitor of the dispatcher.
+     */
+    private final class Group {
+
+        private final Object key;
+
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+
+        /**
+         * True while the group is in the round
+         */
+        private boolean queued;
+
+        /**
+         * True while the group is being served on its turn
+         */
+        private boolean inTurn;
+
+        private int running;
+
+        /**
+         * The execution time (in nano seconds) the group is credited with, or owes if negative
+         */
+        private long deficit;
+
+        private int weight;
+
+        private int maxConcurrent;
+
+        Group(final Object key) {
+            this.key = key;
+            final Integer configuredWeight = weights.get(key);
+            this.weight = configuredWeight == null ? 1 : configuredWeight;
+            final Integer configuredMaxConcurrent = maxConcurrents.get(key);
+            this.maxConcurrent = configuredMaxConcurrent == null ? maxConcurrentPerGroup : configuredMaxConcurrent;
+        }
+    }
+
+    /**
+     * Runs the queued timeouts, picking the group of each by deficit round robin, until there is none
+     * left which may run
+     */
+    private final class Drainer implements Runnable {
+
+        @Override
+        public void run() {
+            Group group = null;
+            long elapsed = 0;
+            for (; ; ) {
+                final Runnable dispatch;
+                synchronized (FairTimeoutDispatcher.this) {
+                    if (group != null) {
+                        group.running--;
+                        group.deficit -= elapsed;
+                        retireIfIdle(group);
+                    }
+                    group = next();
+                    if (group == null) {
+                        drainers--;
+                        return;
+                    }
+                    dispatch = group.queue.pollFirst();
+                    group.running++;
+                    if (group.queue.isEmpty()) {
+                        leaveRound(group);
+                    }
+                }
+                final long start = System.nanoTime();
+                try {
+                    dispatch.run();
+                } catch (Throwable t) {
+                    logger.error("Error running timeout", t);
+                } finally {
+                    elapsed = System.nanoTime() - start;
+                }
+            }
+        }
+    }
+}
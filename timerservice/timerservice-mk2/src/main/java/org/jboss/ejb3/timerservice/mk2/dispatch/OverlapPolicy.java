@@ -0,0 +1,45 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.dispatch;
+
+/**
+ * Decides what happens to a timeout of a timer, which fires while a previous timeout
+ * of the same timer is still queued or running.
+ *
+ * @version $Revision: $
+ * @see TimeoutDispatcher
+ */
+public enum OverlapPolicy {
+
+    /**
+     * The timeout is run once the previous one completes. Any further timeouts which fire in
+     * the mean time are merged into that single pending run.
+     */
+    COALESCE,
+
+    /**
+     * The timeout is dropped. Only applies to fixed rate timeouts, since those keep being
+     * scheduled. Other timeouts are coalesced instead, so that timers whose next timeout is
+     * scheduled by the current one don't stop.
+     */
+    SKIP
+}
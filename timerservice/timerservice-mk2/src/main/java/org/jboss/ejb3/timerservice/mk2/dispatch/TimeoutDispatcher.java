@@ -0,0 +1,373 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.dispatch;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands the timeouts fired by the scheduler to the executor which runs them.
+ * <p>
+ * At most one timeout of a timer is queued or running at any time. A timeout which fires
+ * while the previous one of the same timer hasn't completed, is handled according to the
+ * {@link OverlapPolicy}. Slow timeout methods thus don't pile up executions of the same timer
+ * in the executor.
+ * </p>
+ * <p>
+ * The number of timeouts waiting in the executor is bounded by <code>maxQueued</code>, across all
+ * the timers dispatched through this dispatcher. A timeout which exceeds the bound is handled
+ * according to the {@link OverflowPolicy}.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class TimeoutDispatcher {
+
+    /**
+     * Logger
+     */
+    private static final Logger logger = Logger.getLogger(TimeoutDispatcher.class);
+
+    /**
+     * Default maximum number of timeouts waiting in the executor
+     */
+    public static final int DEFAULT_MAX_QUEUED = 10000;
+
+    private final Executor executor;
+
+    private final int maxQueued;
+
+    private final OverlapPolicy overlapPolicy;
+
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * The timers which have a timeout queued or running, by timer id
+     */
+    private final ConcurrentMap<Object, Slot> slots = new ConcurrentHashMap<Object, Slot>();
+
+    /**
+     * Number of timeouts handed to the executor, which haven't started running yet
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicLong dispatchedCount = new AtomicLong();
+
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private final AtomicLong discardedCount = new AtomicLong();
+
+    /**
+     * Creates a {@link TimeoutDispatcher} which coalesces overlapping timeouts, and runs timeouts
+     * in the dispatching thread once {@link #DEFAULT_MAX_QUEUED} timeouts are waiting in the executor
+     *
+     * @param executor The executor which runs the timeouts
+     */
+    public TimeoutDispatcher(final Executor executor) {
+        this(executor, DEFAULT_MAX_QUEUED, OverlapPolicy.COALESCE, OverflowPolicy.CALLER_RUNS);
+    }
+
+    /**
+     * Creates a {@link TimeoutDispatcher}
+     *
+     * @param executor       The executor which runs the timeouts
+     * @param maxQueued      The maximum number of timeouts waiting in the executor
+     * @param overlapPolicy  What to do with a timeout which fires while the previous one of the same timer hasn't completed
+     * @param overflowPolicy What to do with a timeout once <code>maxQueued</code> timeouts are waiting in the executor
+     */
+    public TimeoutDispatcher(final Executor executor, final int maxQueued, final OverlapPolicy overlapPolicy,
+                             final OverflowPolicy overflowPolicy) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null");
+        }
+        if (maxQueued <= 0) {
+            throw new IllegalArgumentException("Max queued must be positive: " + maxQueued);
+        }
+        if (overlapPolicy == null) {
+            throw new IllegalArgumentException("Overlap policy cannot be null");
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("Overflow policy cannot be null");
+        }
+        this.executor = executor;
+        this.maxQueued = maxQueued;
+        this.overlapPolicy = overlapPolicy;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Dispatches a timeout of a timer which doesn't belong to any group
+     *
+     * @see #dispatch(Object, Object, Runnable, boolean)
+     */
+    public void dispatch(final Object timerId, final Runnable task, final boolean periodic) {
+        this.dispatch(null, timerId, task, periodic);
+    }
+
+    /**
+     * Dispatches a timeout of a timer
+     *
+     * @param group    The group of the timer, like the id of its timed object, or null if it doesn't belong
+     *                 to any group. All the timeouts of a timer must be dispatched with the same group.
+     * @param timerId  Identifies the timer. Timeouts with equal ids belong to the same timer
+     * @param task     The timeout task
+     * @param periodic True if the timeout belongs to a fixed rate schedule, i.e. the scheduler
+     *                 runs the next timeout of the timer irrespective of this one. Only such timeouts
+     *                 are ever dropped.
+     */
+    public void dispatch(final Object group, final Object timerId, final Runnable task, final boolean periodic) {
+        if (timerId == null) {
+            throw new IllegalArgumentException("Timer id cannot be null");
+        }
+        if (task == null) {
+            throw new IllegalArgumentException("Task cannot be null");
+        }
+        for (; ; ) {
+            final Slot slot = this.slots.get(timerId);
+            if (slot == null) {
+                final Slot newSlot = new Slot(group, timerId);
+                if (this.slots.putIfAbsent(timerId, newSlot) == null) {
+                    this.execute(newSlot, task, periodic);
+                    return;
+                }
+                continue;
+            }
+            synchronized (slot) {
+                if (slot.retired) {
+                    // the previous timeout completed in the mean time
+                    continue;
+                }
+                if (periodic && this.overlapPolicy == OverlapPolicy.SKIP) {
+                    this.skippedCount.incrementAndGet();
+                    logger.debug("Skipping timeout of timer " + timerId + " since its previous timeout hasn't completed");
+                } else {
+                    if (slot.pending != null) {
+                        this.coalescedCount.incrementAndGet();
+                    }
+                    slot.pending = task;
+                    slot.pendingPeriodic = periodic;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of timeouts handed to the executor (or run by the dispatching thread)
+     *
+     * @return
+     */
+    public long getDispatchedCount() {
+        return this.dispatchedCount.get();
+    }
+
+    /**
+     * Returns the number of timeouts which were dropped by the {@link OverlapPolicy#SKIP} policy
+     *
+     * @return
+     */
+    public long getSkippedCount() {
+        return this.skippedCount.get();
+    }
+
+    /**
+     * Returns the number of timeouts which were merged into an already pending timeout of the same timer
+     *
+     * @return
+     */
+    public long getCoalescedCount() {
+        return this.coalescedCount.get();
+    }
+
+    /**
+     * Returns the number of periodic timeouts which were dropped by the {@link OverflowPolicy#DISCARD} policy,
+     * because the queue was full or the executor rejected them
+     *
+     * @return
+     */
+    public long getDiscardedCount() {
+        return this.discardedCount.get();
+    }
+
+    /**
+     * Returns the number of timeouts which are waiting in the executor
+     *
+     * @return
+     */
+    public int getQueuedCount() {
+        return this.queued.get();
+    }
+
+    /**
+     * Returns the number of timers which have a timeout queued or running
+     *
+     * @return
+     */
+    public int getActiveTimerCount() {
+        return this.slots.size();
+    }
+
+    public int getMaxQueued() {
+        return this.maxQueued;
+    }
+
+    public OverlapPolicy getOverlapPolicy() {
+        return this.overlapPolicy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+
+    /**
+     * Hands the task to the executor, and then keeps handling the pending tasks of the slot
+     * which can't be handed to the executor
+     */
+    private void execute(final Slot slot, Runnable task, boolean periodic) {
+        while (task != null) {
+            if (this.queued.incrementAndGet() <= this.maxQueued) {
+                try {
+                    this.submit(slot.group, new Dispatch(slot, task));
+                    this.dispatchedCount.incrementAndGet();
+                    return;
+                } catch (RejectedExecutionException e) {
+                    this.queued.decrementAndGet();
+                    logger.warn("Executor rejected timeout of timer " + slot.timerId, e);
+                    this.overflow(slot, task, periodic);
+                }
+            } else {
+                this.queued.decrementAndGet();
+                if (logger.isDebugEnabled()) {
+                    logger.debug(this.maxQueued + " timeouts are already queued, overflowing timeout of timer " + slot.timerId);
+                }
+                this.overflow(slot, task, periodic);
+            }
+            synchronized (slot) {
+                task = this.next(slot);
+                periodic = slot.pendingPeriodic;
+            }
+        }
+    }
+
+    /**
+     * Handles a timeout which can't be handed to the executor. Only periodic timeouts are ever
+     * discarded, the others, like calendar timeouts which schedule the next timeout of their timer,
+     * are run by the dispatching thread.
+     */
+    private void overflow(final Slot slot, final Runnable task, final boolean periodic) {
+        if (periodic && this.overflowPolicy == OverflowPolicy.DISCARD) {
+            this.discardedCount.incrementAndGet();
+            logger.debug("Discarding timeout of timer " + slot.timerId);
+        } else {
+            this.dispatchedCount.incrementAndGet();
+            this.run(slot, task);
+        }
+    }
+
+    /**
+     * Hands a timeout to the executor. The timeout decrements the number of queued timeouts once it starts running.
+     *
+     * @param group    The group of the timer, or null
+     * @param dispatch The timeout
+     * @throws RejectedExecutionException If the timeout can't be accepted
+     */
+    protected void submit(final Object group, final Runnable dispatch) {
+        this.executor.execute(dispatch);
+    }
+
+    private void run(final Slot slot, final Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            logger.error("Error running timeout of timer " + slot.timerId, t);
+        }
+    }
+
+    /**
+     * Takes the pending task of the slot, or retires the slot if there is none.
+     * Must be called while holding the lock of the slot.
+     */
+    private Runnable next(final Slot slot) {
+        final Runnable pending = slot.pending;
+        if (pending == null) {
+            slot.retired = true;
+            this.slots.remove(slot.timerId, slot);
+        }
+        slot.pending = null;
+        return pending;
+    }
+
+    /**
+     * The timeout of a timer, which is queued or running. All fields except for <code>timerId</code>
+     * are guarded by the slot's monitor.
+     */
+    private static final class Slot {
+
+        private final Object group;
+
+        private final Object timerId;
+
+        private Runnable pending;
+
+        private boolean pendingPeriodic;
+
+        private boolean retired;
+
+        Slot(final Object group, final Object timerId) {
+            this.group = group;
+            this.timerId = timerId;
+        }
+    }
+
+    private final class Dispatch implements Runnable {
+
+        private final Slot slot;
+
+        private final Runnable task;
+
+        Dispatch(final Slot slot, final Runnable task) {
+            this.slot = slot;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            TimeoutDispatcher.this.run(this.slot, this.task);
+            final Runnable next;
+            final boolean periodic;
+            synchronized (this.slot) {
+                next = TimeoutDispatcher.this.next(this.slot);
+                periodic = this.slot.pendingPeriodic;
+            }
+            execute(this.slot, next, periodic);
+        }
+    }
+}
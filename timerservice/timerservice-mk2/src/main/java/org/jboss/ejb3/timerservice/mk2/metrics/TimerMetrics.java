@@ -0,0 +1,229 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.metrics;
+
+import org.jboss.ejb3.timerservice.mk2.TimerServiceImpl;
+import org.jboss.ejb3.timerservice.mk2.TimerState;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Instrumentation of the timeouts of the timers of one timed object.
+ * <p>
+ * The timer service records into the metrics as its timers fire, which only costs a few atomic
+ * additions per timeout and per persistence write. Statistics are computed when the metrics are read.
+ * The following is recorded:
+ * <ul>
+ * <li>the lateness of each timeout, that is, how long after the scheduled expiration the timeout started</li>
+ * <li>the duration of each invocation of the timeout method. A batch of timeouts, or a retry, counts as one invocation</li>
+ * <li>the failed invocations of the timeout method, and the retries</li>
+ * <li>the duration of each write to the {@link org.jboss.ejb3.timerservice.mk2.persistence.TimerPersistence}</li>
+ * </ul>
+ * The number of pending timers by state is computed from the timers of the timer service on each read.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class TimerMetrics implements TimerMetricsMBean {
+
+    private final TimerServiceImpl timerService;
+
+    private final Histogram latenessMillis = new Histogram();
+
+    private final Histogram invocationMicros = new Histogram();
+
+    private final Histogram persistenceWriteMicros = new Histogram();
+
+    private final AtomicLong failureCount = new AtomicLong();
+
+    private final AtomicLong retryCount = new AtomicLong();
+
+    /**
+     * @param timerService The timer service whose timeouts are recorded
+     */
+    public TimerMetrics(final TimerServiceImpl timerService) {
+        if (timerService == null) {
+            throw new IllegalArgumentException("Timer service cannot be null");
+        }
+        this.timerService = timerService;
+    }
+
+    /**
+     * Records the start of a timeout
+     *
+     * @param lateness How long (in milli seconds) after its scheduled expiration the timeout started
+     */
+    public void recordLateness(final long lateness) {
+        this.latenessMillis.record(lateness);
+    }
+
+    /**
+     * Records an invocation of the timeout method
+     *
+     * @param durationNanos The duration of the invocation, in nano seconds
+     */
+    public void recordInvocation(final long durationNanos) {
+        this.invocationMicros.record(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+    }
+
+    /**
+     * Records a failed invocation of the timeout method
+     */
+    public void recordFailure() {
+        this.failureCount.incrementAndGet();
+    }
+
+    /**
+     * Records a retry of a timeout
+     */
+    public void recordRetry() {
+        this.retryCount.incrementAndGet();
+    }
+
+    /**
+     * Records a write to the timer persistence
+     *
+     * @param durationNanos The duration of the write, in nano seconds
+     */
+    public void recordPersistenceWrite(final long durationNanos) {
+        this.persistenceWriteMicros.record(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+    }
+
+    /**
+     * Returns how long (in milli seconds) after their scheduled expiration the timeouts started
+     *
+     * @return
+     */
+    public Histogram getLateness() {
+        return this.latenessMillis;
+    }
+
+    /**
+     * Returns the durations (in micro seconds) of the invocations of the timeout method
+     *
+     * @return
+     */
+    public Histogram getInvocationDuration() {
+        return this.invocationMicros;
+    }
+
+    /**
+     * Returns the durations (in micro seconds) of the writes to the timer persistence
+     *
+     * @return
+     */
+    public Histogram getPersistenceWriteDuration() {
+        return this.persistenceWriteMicros;
+    }
+
+    /**
+     * Returns the number of live timers in each state. States without timers are left out.
+     *
+     * @return
+     */
+    public Map<TimerState, Integer> getTimerCounts() {
+        return this.timerService.getTimerCountsByState();
+    }
+
+    public String getTimedObjectId() {
+        return this.timerService.getInvoker().getTimedObjectId();
+    }
+
+    public long getTimeoutCount() {
+        return this.latenessMillis.getCount();
+    }
+
+    public double getMeanLatenessMillis() {
+        return this.latenessMillis.getMean();
+    }
+
+    public long getMaxLatenessMillis() {
+        return this.latenessMillis.getMax();
+    }
+
+    public long getLatenessP99Millis() {
+        return this.latenessMillis.getPercentile(99);
+    }
+
+    public long getInvocationCount() {
+        return this.invocationMicros.getCount();
+    }
+
+    public double getMeanInvocationMicros() {
+        return this.invocationMicros.getMean();
+    }
+
+    public long getMaxInvocationMicros() {
+        return this.invocationMicros.getMax();
+    }
+
+    public long getInvocationP99Micros() {
+        return this.invocationMicros.getPercentile(99);
+    }
+
+    public long getFailureCount() {
+        return this.failureCount.get();
+    }
+
+    public long getRetryCount() {
+        return this.retryCount.get();
+    }
+
+    public long getPersistenceWriteCount() {
+        return this.persistenceWriteMicros.getCount();
+    }
+
+    public double getMeanPersistenceWriteMicros() {
+        return this.persistenceWriteMicros.getMean();
+    }
+
+    public long getMaxPersistenceWriteMicros() {
+        return this.persistenceWriteMicros.getMax();
+    }
+
+    public long getPersistenceWriteP99Micros() {
+        return this.persistenceWriteMicros.getPercentile(99);
+    }
+
+    public int getCreatedTimerCount() {
+        return this.getTimerCount(TimerState.CREATED);
+    }
+
+    public int getActiveTimerCount() {
+        return this.getTimerCount(TimerState.ACTIVE);
+    }
+
+    public int getInTimeoutTimerCount() {
+        return this.getTimerCount(TimerState.IN_TIMEOUT);
+    }
+
+    public int getInRetryTimerCount() {
+        return this.getTimerCount(TimerState.RETRY_TIMEOUT);
+    }
+
+    private int getTimerCount(final TimerState state) {
+        final Integer count = this.getTimerCounts().get(state);
+        return count == null ? 0 : count;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.metrics;
+
+/**
+ * JMX view of the {@link TimerMetrics} of a timed object
+ *
+ * @version $Revision: $
+ */
+public interface TimerMetricsMBean {
+
+    String getTimedObjectId();
+
+    long getTimeoutCount();
+
+    double getMeanLatenessMillis();
+
+    long getMaxLatenessMillis();
+
+    long getLatenessP99Millis();
+
+    long getInvocationCount();
+
+    double getMeanInvocationMicros();
+
+    long getMaxInvocationMicros();
+
+    long getInvocationP99Micros();
+
+    long getFailureCount();
+
+    long getRetryCount();
+
+    long getPersistenceWriteCount();
+
+    double getMeanPersistenceWriteMicros();
+
+    long getMaxPersistenceWriteMicros();
+
+    long getPersistenceWriteP99Micros();
+
+    int getCreatedTimerCount();
+
+    int getActiveTimerCount();
+
+    int getInTimeoutTimerCount();
+
+    int getInRetryTimerCount();
+}
@@ -21,7 +21,6 @@
  */
 package org.jboss.ejb3.timerservice.mk2.persistence;
 
-import org.jboss.ejb3.timer.schedule.CalendarBasedTimeout;
 import org.jboss.ejb3.timerservice.mk2.CalendarTimer;
 
 import javax.ejb.ScheduleExpression;
@@ -36,9 +35,13 @@ import java.util.Date;
  */
 public class CalendarTimerEntity extends TimerEntity {
 
-    private transient ScheduleExpression scheduleExpression;
+    /**
+     * The value computed for this class before it declared one, so that the calendar timers persisted by
+     * earlier versions can still be read
+     */
+    private static final long serialVersionUID = 4371488829533636166L;
 
-    private transient CalendarBasedTimeout calendarTimeout;
+    private transient ScheduleExpression scheduleExpression;
 
     private String scheduleExprSecond;
 
@@ -104,19 +107,13 @@ public class CalendarTimerEntity extends TimerEntity {
         if (this.scheduleExpression == null) {
             this.scheduleExpression = new ScheduleExpression();
             this.scheduleExpression.second(this.scheduleExprSecond).minute(this.scheduleExprMinute).hour(this.scheduleExprHour).dayOfWeek(this.scheduleExprDayOfWeek)
-                    .dayOfMonth(this.scheduleExprDayOfMonth).month(this.scheduleExprMonth).year(this.scheduleExprYear).timezone(this.scheduleExprTimezone);
+                    .dayOfMonth(this.scheduleExprDayOfMonth).month(this.scheduleExprMonth).year(this.scheduleExprYear).timezone(this.scheduleExprTimezone)
+                    .start(this.scheduleExprStartDate).end(this.scheduleExprEndDate);
 
         }
         return scheduleExpression;
     }
 
-    public CalendarBasedTimeout getCalendarTimeout() {
-        if (this.calendarTimeout == null) {
-            this.calendarTimeout = new CalendarBasedTimeout(this.getScheduleExpression());
-        }
-        return this.calendarTimeout;
-    }
-
     public String getSecond() {
         return scheduleExprSecond;
     }
@@ -0,0 +1,203 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.persistence;
+
+import org.jboss.logging.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+
+/**
+ * The info of a timer, held both as an object and in its serialized form, each of which is only
+ * produced when first needed.
+ * <p>
+ * A timer created through the timer service holds the info object, which is serialized the first
+ * time the timer is written, and the bytes are then written as-is on every later write of the timer.
+ * A timer read back from a {@link TimerPersistence} only holds the bytes, which are deserialized,
+ * with the class loader of the timed object, the first time the info is asked for. So restoring
+ * timers whose info is never asked for doesn't deserialize it at all.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public final class MarshalledTimerInfo implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Logger
+     */
+    private static final Logger logger = Logger.getLogger(MarshalledTimerInfo.class);
+
+    /**
+     * The serialized info. Null until the info is first serialized
+     */
+    private volatile byte[] bytes;
+
+    /**
+     * The info. Only meaningful once <code>resolved</code>
+     */
+    private transient volatile Serializable info;
+
+    private transient volatile boolean resolved;
+
+    private MarshalledTimerInfo(final byte[] bytes, final Serializable info, final boolean resolved) {
+        this.bytes = bytes;
+        this.info = info;
+        this.resolved = resolved;
+    }
+
+    /**
+     * @param info The info
+     * @return The info, which is serialized when first written, or null if <code>info</code> is null
+     */
+    public static MarshalledTimerInfo forInfo(final Serializable info) {
+        return info == null ? null : new MarshalledTimerInfo(null, info, true);
+    }
+
+    /**
+     * @param bytes The serialized info, as returned by {@link #getBytes()}
+     * @return The info, which is deserialized when first asked for
+     */
+    public static MarshalledTimerInfo forBytes(final byte[] bytes) {
+        if (bytes == null) {
+            throw new IllegalArgumentException("Bytes cannot be null");
+        }
+        return new MarshalledTimerInfo(bytes, null, false);
+    }
+
+    /**
+     * Returns the info, deserializing it on the first call if this was read back from its serialized form.
+     * Classes are resolved through the passed <code>classLoader</code> first, then through the class loader
+     * of this class.
+     *
+     * @param classLoader The class loader of the timed object
+     * @return
+     * @throws RuntimeException If the info can't be deserialized
+     */
+    public Serializable getInfo(final ClassLoader classLoader) {
+        if (!this.resolved) {
+            synchronized (this) {
+                if (!this.resolved) {
+                    this.info = deserialize(this.bytes, classLoader);
+                    this.resolved = true;
+                }
+            }
+        }
+        return this.info;
+    }
+
+    /**
+     * @return True if the info object is available without deserializing it
+     */
+    public boolean isResolved() {
+        return this.resolved;
+    }
+
+    /**
+     * Returns the serialized info, serializing it on the first call if this was created from the info object.
+     * The returned array must not be modified.
+     *
+     * @return
+     * @throws RuntimeException If the info can't be serialized
+     */
+    public byte[] getBytes() {
+        byte[] serialized = this.bytes;
+        if (serialized == null) {
+            synchronized (this) {
+                serialized = this.bytes;
+                if (serialized == null) {
+                    serialized = serialize(this.info);
+                    this.bytes = serialized;
+                }
+            }
+        }
+        return serialized;
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        // makes sure the bytes are there, so that only they are written
+        this.getBytes();
+        out.defaultWriteObject();
+    }
+
+    private static byte[] serialize(final Serializable info) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(info);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not serialize info in timer", e);
+        }
+    }
+
+    private static Serializable deserialize(final byte[] bytes, final ClassLoader classLoader) {
+        try {
+            final ObjectInputStream in = new ClassLoaderObjectInputStream(new ByteArrayInputStream(bytes), classLoader);
+            return (Serializable) in.readObject();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not deserialize info in timer", e);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("Could not deserialize info in timer", e);
+        }
+    }
+
+    /**
+     * Resolves classes through the class loader of the timed object first. If it cannot resolve a class,
+     * passes on the control to {@link ObjectInputStream} to resolve it
+     */
+    private static final class ClassLoaderObjectInputStream extends ObjectInputStream {
+
+        private final ClassLoader classLoader;
+
+        ClassLoaderObjectInputStream(final InputStream in, final ClassLoader classLoader) throws IOException {
+            super(in);
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            final String className = desc.getName();
+            logger.trace("Attempting to locate class [" + className + "]");
+            if (this.classLoader != null) {
+                try {
+                    return Class.forName(className, false, this.classLoader);
+                } catch (ClassNotFoundException e) {
+                    // fall back to the default resolution
+                }
+            }
+            try {
+                return Class.forName(className, false, MarshalledTimerInfo.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+}
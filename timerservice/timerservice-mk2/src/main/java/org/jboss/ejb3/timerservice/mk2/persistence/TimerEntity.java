@@ -36,6 +36,12 @@ import java.util.Date;
  */
 public class TimerEntity implements Serializable {
 
+    /**
+     * The value computed for this class before it declared one, so that the timers persisted by earlier
+     * versions can still be read
+     */
+    private static final long serialVersionUID = 2618757109397046566L;
+
     protected String id;
 
     protected String timedObjectId;
@@ -48,11 +54,26 @@ public class TimerEntity implements Serializable {
 
     protected Date previousRun;
 
+    /**
+     * The {@link MarshalledTimerInfo}. Declared as {@link Serializable}, since timers written by
+     * earlier versions hold the info object itself
+     */
     protected Serializable info;
 
 
     protected TimerState timerState;
 
+    /**
+     * The number of retries of the failed timeout, if the timer is in retry. Not serialized with the timer,
+     * but kept in its {@link TimerStateRecord}
+     */
+    private transient int retryAttempts;
+
+    /**
+     * The time of the next retry, if the timer is in retry. Kept in the {@link TimerStateRecord}
+     */
+    private transient Date nextRetry;
+
     public TimerEntity() {
 
     }
@@ -65,7 +86,9 @@ public class TimerEntity implements Serializable {
         this.previousRun = timer.getPreviousRun();
         this.timerState = timer.getState();
         this.timedObjectId = timer.getTimedObjectId();
-        this.info = timer.getTimerInfo();
+        this.info = timer.getMarshalledInfo();
+        this.retryAttempts = timer.getRetryAttempts();
+        this.nextRetry = timer.getNextRetry();
     }
 
     public String getId() {
@@ -84,8 +107,27 @@ public class TimerEntity implements Serializable {
         return repeatInterval;
     }
 
+    /**
+     * Returns the info of the timer, deserializing it with the thread context class loader if needed.
+     * Timers should use {@link #getMarshalledInfo()} instead, to deserialize the info with the class loader
+     * of their timed object, and only when it is asked for.
+     *
+     * @return
+     */
     public Serializable getInfo() {
-        return this.info;
+        final MarshalledTimerInfo marshalledInfo = this.getMarshalledInfo();
+        return marshalledInfo == null ? null : marshalledInfo.getInfo(Thread.currentThread().getContextClassLoader());
+    }
+
+    /**
+     * @return The info of the timer, or null if the timer has no info
+     */
+    public MarshalledTimerInfo getMarshalledInfo() {
+        if (this.info == null || this.info instanceof MarshalledTimerInfo) {
+            return (MarshalledTimerInfo) this.info;
+        }
+        // written by an earlier version
+        return MarshalledTimerInfo.forInfo(this.info);
     }
 
     public Date getNextDate() {
@@ -112,6 +154,22 @@ public class TimerEntity implements Serializable {
         this.timerState = timerState;
     }
 
+    public int getRetryAttempts() {
+        return retryAttempts;
+    }
+
+    public void setRetryAttempts(int retryAttempts) {
+        this.retryAttempts = retryAttempts;
+    }
+
+    public Date getNextRetry() {
+        return nextRetry;
+    }
+
+    public void setNextRetry(Date nextRetry) {
+        this.nextRetry = nextRetry;
+    }
+
     public boolean isCalendarTimer() {
         return false;
     }
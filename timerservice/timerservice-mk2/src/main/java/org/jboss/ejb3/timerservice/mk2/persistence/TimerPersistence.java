@@ -21,6 +21,7 @@
  */
 package org.jboss.ejb3.timerservice.mk2.persistence;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -32,10 +33,38 @@ public interface TimerPersistence {
 
     void persistTimer(TimerEntity timerEntity);
 
+    /**
+     * Persists several timers, like {@link #persistTimer(TimerEntity)} does for each of them, but
+     * lets implementations write them in one batch.
+     *
+     * @param timerEntities The timers
+     */
+    void persistTimers(Collection<TimerEntity> timerEntities);
+
+    /**
+     * Persists the state (timer state, next date and previous run) of a timer which has previously
+     * been persisted through {@link #persistTimer(TimerEntity)}. The rest of the timer is not
+     * expected to have changed, so implementations need not write it again.
+     * <p/>
+     * If the timer is not known to the store, the whole timer is persisted.
+     *
+     * @param timerEntity The timer
+     * @see TimerStateRecord
+     */
+    void updateTimerState(TimerEntity timerEntity);
+
     TimerEntity loadTimer(String id, String timedObjectId);
 
     void removeTimer(TimerEntity timerEntity);
 
+    /**
+     * Removes several timers, like {@link #removeTimer(TimerEntity)} does for each of them, but
+     * lets implementations remove them in one batch.
+     *
+     * @param timerEntities The timers
+     */
+    void removeTimers(Collection<TimerEntity> timerEntities);
+
     List<TimerEntity> loadActiveTimers(String timedObjectId);
 
     void start();
@@ -0,0 +1,117 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.persistence;
+
+import org.jboss.ejb3.timerservice.mk2.TimerState;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed size binary form of the part of a {@link TimerEntity} which changes during the
+ * life of a timer: the {@link TimerState}, the next timeout, the previous run and the retry state.
+ * <p>
+ * The rest of a timer (id, timed object id, initial date, interval, info, schedule and timeout method)
+ * never changes once the timer has been created. {@link TimerPersistence} implementations can write
+ * that part once and then only write this record on each state transition, see
+ * {@link TimerPersistence#updateTimerState(TimerEntity)}.
+ * </p>
+ * <p>
+ * Layout: timer state ordinal (byte), next date (long), previous run (long), retry attempts (int),
+ * next retry (long), CRC32 of the preceding bytes (int). Null dates are written as {@link Long#MIN_VALUE}.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public final class TimerStateRecord {
+
+    /**
+     * Size of a record in bytes
+     */
+    public static final int SIZE = 1 + 8 + 8 + 4 + 8 + 4;
+
+    private static final long NULL_DATE = Long.MIN_VALUE;
+
+    private static final TimerState[] STATES = TimerState.values();
+
+    private TimerStateRecord() {
+    }
+
+    /**
+     * Returns the state record of the passed <code>timerEntity</code>
+     *
+     * @param timerEntity The timer
+     * @return
+     */
+    public static byte[] toBytes(final TimerEntity timerEntity) {
+        final ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.put((byte) timerEntity.getTimerState().ordinal());
+        buffer.putLong(toLong(timerEntity.getNextDate()));
+        buffer.putLong(toLong(timerEntity.getPreviousRun()));
+        buffer.putInt(timerEntity.getRetryAttempts());
+        buffer.putLong(toLong(timerEntity.getNextRetry()));
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, SIZE - 4);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    /**
+     * Applies the state record held in <code>bytes</code>, starting at <code>offset</code>, to the passed timer
+     *
+     * @param bytes       The bytes holding the record
+     * @param offset      The offset of the record
+     * @param timerEntity The timer to update
+     * @return Returns false, without changing the timer, if the bytes do not hold a valid record. Else returns true.
+     */
+    public static boolean apply(final byte[] bytes, final int offset, final TimerEntity timerEntity) {
+        if (bytes.length - offset < SIZE) {
+            return false;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, offset, SIZE - 4);
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, SIZE);
+        final int state = buffer.get();
+        final long nextDate = buffer.getLong();
+        final long previousRun = buffer.getLong();
+        final int retryAttempts = buffer.getInt();
+        final long nextRetry = buffer.getLong();
+        if (buffer.getInt() != (int) crc.getValue() || state < 0 || state >= STATES.length || retryAttempts < 0) {
+            return false;
+        }
+        timerEntity.setTimerState(STATES[state]);
+        timerEntity.setNextDate(toDate(nextDate));
+        timerEntity.setPreviousRun(toDate(previousRun));
+        timerEntity.setRetryAttempts(retryAttempts);
+        timerEntity.setNextRetry(toDate(nextRetry));
+        return true;
+    }
+
+    private static long toLong(final Date date) {
+        return date == null ? NULL_DATE : date.getTime();
+    }
+
+    private static Date toDate(final long time) {
+        return time == NULL_DATE ? null : new Date(time);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.persistence;
+
+import org.jboss.logging.Logger;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The timers persisted in a transaction, which are written once the transaction commits.
+ * <p>
+ * A {@link TimerPersistence} keeps one instance per transaction, as a resource of the
+ * {@link TransactionSynchronizationRegistry}, which is registered as the only interposed
+ * synchronization of that persistence in the transaction. A timer which is persisted several times
+ * in the transaction is written once, in its latest state. On commit, the timers are handed to the
+ * {@link Writer} grouped by timed object, so that the writer can write all the timers of a timed
+ * object under one lock and with one sync.
+ * </p>
+ * <p>
+ * Writers whose writes are themselves part of the transaction, such as a database enlisted in it,
+ * are handed the timers in {@link #beforeCompletion()} instead, so that a failed write rolls back the
+ * transaction.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public final class TransactionalTimerWrites implements Synchronization {
+
+    /**
+     * Logger
+     */
+    private static final Logger logger = Logger.getLogger(TransactionalTimerWrites.class);
+
+    /**
+     * Writes the timers of a committed transaction
+     */
+    public interface Writer {
+
+        /**
+         * Writes the timers of a timed object
+         *
+         * @param timedObjectId The timed object id
+         * @param writes        The timers, in the order in which they were first persisted in the transaction
+         */
+        void write(String timedObjectId, Collection<TimerWrite> writes);
+    }
+
+    /**
+     * A timer to be written
+     */
+    public static final class TimerWrite {
+
+        private final TimerEntity entity;
+
+        private final boolean stateOnly;
+
+        public TimerWrite(final TimerEntity entity, final boolean stateOnly) {
+            this.entity = entity;
+            this.stateOnly = stateOnly;
+        }
+
+        public TimerEntity getEntity() {
+            return this.entity;
+        }
+
+        /**
+         * Returns true if only the state of the timer has changed since it was last written
+         *
+         * @return
+         */
+        public boolean isStateOnly() {
+            return this.stateOnly;
+        }
+    }
+
+    private final Writer writer;
+
+    /**
+     * True if the timers are written before the transaction completes, as part of it
+     */
+    private final boolean beforeCompletion;
+
+    /**
+     * map of timed object id : timer id : write
+     */
+    private final Map<String, Map<String, TimerWrite>> writes = new LinkedHashMap<String, Map<String, TimerWrite>>();
+
+    private TransactionalTimerWrites(final Writer writer, final boolean beforeCompletion) {
+        this.writer = writer;
+        this.beforeCompletion = beforeCompletion;
+    }
+
+    /**
+     * Returns true if writes made in a transaction with the passed status have to wait for the transaction
+     * to commit. Else there's no transaction, or it has already completed (for example when the write is
+     * made by the {@link Synchronization#afterCompletion(int)} of another synchronization), and the write
+     * can be made right away.
+     *
+     * @param status The {@link Status} of the current transaction
+     * @return
+     */
+    public static boolean isTransactional(final int status) {
+        switch (status) {
+            case Status.STATUS_NO_TRANSACTION:
+            case Status.STATUS_UNKNOWN:
+            case Status.STATUS_COMMITTED:
+            case Status.STATUS_ROLLEDBACK:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Adds a timer to the writes of the current transaction. The writes are registered with the
+     * transaction on the first call for a given <code>writer</code>.
+     *
+     * @param registry  The registry of the current transaction
+     * @param writer    Writes the timers once the transaction commits. Also the key of the writes in
+     *                  the <code>registry</code>
+     * @param entity    The timer
+     * @param stateOnly True if only the state of the timer has changed
+     */
+    public static void add(final TransactionSynchronizationRegistry registry, final Writer writer, final TimerEntity entity,
+                           final boolean stateOnly) {
+        add(registry, writer, entity, stateOnly, false);
+    }
+
+    /**
+     * Adds a timer to the writes of the current transaction. The writes are registered with the
+     * transaction on the first call for a given <code>writer</code>.
+     *
+     * @param registry         The registry of the current transaction
+     * @param writer           Writes the timers. Also the key of the writes in the <code>registry</code>
+     * @param entity           The timer
+     * @param stateOnly        True if only the state of the timer has changed
+     * @param beforeCompletion True if the timers are written before the transaction completes, as part of
+     *                         the transaction. False if they are written once it has committed
+     */
+    public static void add(final TransactionSynchronizationRegistry registry, final Writer writer, final TimerEntity entity,
+                           final boolean stateOnly, final boolean beforeCompletion) {
+        TransactionalTimerWrites writes = (TransactionalTimerWrites) registry.getResource(writer);
+        if (writes == null) {
+            writes = new TransactionalTimerWrites(writer, beforeCompletion);
+            registry.registerInterposedSynchronization(writes);
+            registry.putResource(writer, writes);
+        }
+        writes.add(entity, stateOnly);
+    }
+
+    private synchronized void add(final TimerEntity entity, final boolean stateOnly) {
+        Map<String, TimerWrite> timers = this.writes.get(entity.getTimedObjectId());
+        if (timers == null) {
+            timers = new LinkedHashMap<String, TimerWrite>();
+            this.writes.put(entity.getTimedObjectId(), timers);
+        }
+        final TimerWrite previous = timers.get(entity.getId());
+        // once a timer has to be written in full, it stays that way
+        timers.put(entity.getId(), new TimerWrite(entity, stateOnly && (previous == null || previous.isStateOnly())));
+    }
+
+    @Override
+    public void beforeCompletion() {
+        if (!this.beforeCompletion) {
+            return;
+        }
+        final List<Map.Entry<String, Map<String, TimerWrite>>> timedObjects;
+        synchronized (this) {
+            timedObjects = new ArrayList<Map.Entry<String, Map<String, TimerWrite>>>(this.writes.entrySet());
+        }
+        // a failure is left to propagate, so that the transaction rolls back
+        for (Map.Entry<String, Map<String, TimerWrite>> timedObject : timedObjects) {
+            this.writer.write(timedObject.getKey(), timedObject.getValue().values());
+        }
+    }
+
+    @Override
+    public void afterCompletion(final int status) {
+        if (this.beforeCompletion || status != Status.STATUS_COMMITTED) {
+            return;
+        }
+        final List<Map.Entry<String, Map<String, TimerWrite>>> timedObjects;
+        synchronized (this) {
+            timedObjects = new ArrayList<Map.Entry<String, Map<String, TimerWrite>>>(this.writes.entrySet());
+        }
+        for (Map.Entry<String, Map<String, TimerWrite>> timedObject : timedObjects) {
+            try {
+                this.writer.write(timedObject.getKey(), timedObject.getValue().values());
+            } catch (RuntimeException e) {
+                logger.error("Could not write " + timedObject.getValue().size() + " timers of timed object "
+                        + timedObject.getKey() + " after commit", e);
+            }
+        }
+    }
+}
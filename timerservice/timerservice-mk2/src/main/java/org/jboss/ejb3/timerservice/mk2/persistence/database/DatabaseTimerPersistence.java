@@ -0,0 +1,619 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.persistence.database;
+
+import org.jboss.ejb3.timerservice.mk2.TimerState;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.persistence.TransactionalTimerWrites;
+import org.jboss.logging.Logger;
+import org.jboss.marshalling.ClassResolver;
+import org.jboss.marshalling.InputStreamByteInput;
+import org.jboss.marshalling.Marshaller;
+import org.jboss.marshalling.MarshallerFactory;
+import org.jboss.marshalling.MarshallingConfiguration;
+import org.jboss.marshalling.ModularClassResolver;
+import org.jboss.marshalling.OutputStreamByteOutput;
+import org.jboss.marshalling.Unmarshaller;
+import org.jboss.marshalling.river.RiverMarshallerFactory;
+import org.jboss.modules.ModuleLoader;
+
+import javax.sql.DataSource;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Database based persistent timer store.
+ * <p>
+ * Each timer is a row of a single table. The part of a timer which changes during its life (the
+ * {@link TimerState}, the next date, the previous run and the retry state) is kept in columns of its own,
+ * so that {@link #updateTimerState(TimerEntity)} only updates those columns. The rest of the timer,
+ * including its info, is serialized into the <code>TIMER_DATA</code> blob, which is written once when the
+ * timer is created:
+ * </p>
+ * <pre>
+ * CREATE TABLE JBOSS_EJB_TIMER (
+ *     TIMED_OBJECT_ID VARCHAR(255) NOT NULL,
+ *     ID VARCHAR(64) NOT NULL,
+ *     TIMER_STATE SMALLINT NOT NULL,
+ *     NEXT_DATE BIGINT,
+ *     PREVIOUS_RUN BIGINT,
+ *     RETRY_ATTEMPTS INTEGER NOT NULL,
+ *     NEXT_RETRY BIGINT,
+ *     TIMER_DATA BLOB NOT NULL,
+ *     PRIMARY KEY (TIMED_OBJECT_ID, ID))
+ * </pre>
+ * <p>
+ * The timer state is stored as its ordinal, and the dates as milli seconds since the epoch. The primary
+ * key leads with the timed object id, so it is the index through which {@link #loadActiveTimers(String)}
+ * finds the timers of a timed object. The state isn't indexed, so that state updates don't have to
+ * maintain a secondary index.
+ * </p>
+ * <p>
+ * Timers persisted in a transaction are collected, and written in JDBC batches before the transaction
+ * completes, through a connection of the {@link DataSource} which is enlisted in the transaction. So the
+ * writes commit or roll back with the transaction, and a failed write rolls it back. Outside of a
+ * transaction, the writes of a call are committed together.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class DatabaseTimerPersistence implements TimerPersistence {
+
+    /**
+     * Logger
+     */
+    private static final Logger logger = Logger.getLogger(DatabaseTimerPersistence.class);
+
+    /**
+     * Default name of the timer table
+     */
+    public static final String DEFAULT_TABLE_NAME = "JBOSS_EJB_TIMER";
+
+    /**
+     * Default maximum number of statements sent to the database in one batch
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * Default number of rows fetched from the database at a time when timers are loaded
+     */
+    public static final int DEFAULT_FETCH_SIZE = 500;
+
+    private static final TimerState[] STATES = TimerState.values();
+
+    private static final String COLUMNS = "TIMER_STATE, NEXT_DATE, PREVIOUS_RUN, RETRY_ATTEMPTS, NEXT_RETRY, TIMER_DATA";
+
+    private final TransactionManager transactionManager;
+    private final TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+    private final DataSource dataSource;
+    private final String tableName;
+    private final boolean createTable;
+    private final int batchSize;
+    private final int fetchSize;
+    private final MarshallerFactory factory;
+    private final MarshallingConfiguration configuration;
+
+    private final String insertSql;
+    private final String updateSql;
+    private final String updateStateSql;
+    private final String deleteSql;
+    private final String selectSql;
+    private final String selectActiveSql;
+
+    /**
+     * Writes the timers persisted in a transaction before it completes. Also the key of those timers
+     * in the {@link TransactionSynchronizationRegistry}.
+     */
+    private final TransactionalTimerWrites.Writer transactionalWriter = new TransactionalWriter();
+
+    private volatile boolean started = false;
+
+    public DatabaseTimerPersistence(final TransactionManager transactionManager, final TransactionSynchronizationRegistry transactionSynchronizationRegistry, final DataSource dataSource, final boolean createTable, final ModuleLoader moduleLoader) {
+        this(transactionManager, transactionSynchronizationRegistry, dataSource, DEFAULT_TABLE_NAME, createTable, ModularClassResolver.getInstance(moduleLoader),
+                DEFAULT_BATCH_SIZE, DEFAULT_FETCH_SIZE);
+    }
+
+    /**
+     * @param tableName   The name of the timer table
+     * @param createTable True if the timer table is to be created on {@link #start()}, if it doesn't exist yet
+     * @param batchSize   The maximum number of statements sent to the database in one batch
+     * @param fetchSize   The number of rows fetched from the database at a time when timers are loaded
+     */
+    public DatabaseTimerPersistence(final TransactionManager transactionManager, final TransactionSynchronizationRegistry transactionSynchronizationRegistry, final DataSource dataSource, final String tableName, final boolean createTable, final ClassResolver classResolver,
+                                    final int batchSize, final int fetchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        if (fetchSize < 0) {
+            throw new IllegalArgumentException("Fetch size cannot be negative: " + fetchSize);
+        }
+        this.transactionManager = transactionManager;
+        this.transactionSynchronizationRegistry = transactionSynchronizationRegistry;
+        this.dataSource = dataSource;
+        this.tableName = tableName;
+        this.createTable = createTable;
+        this.batchSize = batchSize;
+        this.fetchSize = fetchSize;
+        MarshallingConfiguration configuration = new MarshallingConfiguration();
+        configuration.setClassResolver(classResolver);
+        this.configuration = configuration;
+        this.factory = new RiverMarshallerFactory();
+
+        this.insertSql = "INSERT INTO " + tableName + " (" + COLUMNS + ", TIMED_OBJECT_ID, ID) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+        this.updateSql = "UPDATE " + tableName + " SET TIMER_STATE = ?, NEXT_DATE = ?, PREVIOUS_RUN = ?, RETRY_ATTEMPTS = ?, NEXT_RETRY = ?, TIMER_DATA = ? WHERE TIMED_OBJECT_ID = ? AND ID = ?";
+        this.updateStateSql = "UPDATE " + tableName + " SET TIMER_STATE = ?, NEXT_DATE = ?, PREVIOUS_RUN = ?, RETRY_ATTEMPTS = ?, NEXT_RETRY = ? WHERE TIMED_OBJECT_ID = ? AND ID = ?";
+        this.deleteSql = "DELETE FROM " + tableName + " WHERE TIMED_OBJECT_ID = ? AND ID = ?";
+        this.selectSql = "SELECT " + COLUMNS + " FROM " + tableName + " WHERE TIMED_OBJECT_ID = ? AND ID = ?";
+        this.selectActiveSql = "SELECT " + COLUMNS + " FROM " + tableName + " WHERE TIMED_OBJECT_ID = ? AND TIMER_STATE NOT IN ("
+                + TimerState.CANCELED.ordinal() + ", " + TimerState.EXPIRED.ordinal() + ")";
+    }
+
+    @Override
+    public synchronized void start() {
+        if (createTable) {
+            Connection connection = null;
+            try {
+                connection = dataSource.getConnection();
+                if (!tableExists(connection)) {
+                    final Statement statement = connection.createStatement();
+                    try {
+                        statement.executeUpdate("CREATE TABLE " + tableName + " (TIMED_OBJECT_ID VARCHAR(255) NOT NULL, ID VARCHAR(64) NOT NULL, "
+                                + "TIMER_STATE SMALLINT NOT NULL, NEXT_DATE BIGINT, PREVIOUS_RUN BIGINT, RETRY_ATTEMPTS INTEGER NOT NULL, "
+                                + "NEXT_RETRY BIGINT, TIMER_DATA BLOB NOT NULL, PRIMARY KEY (TIMED_OBJECT_ID, ID))");
+                    } finally {
+                        statement.close();
+                    }
+                    logger.debug("Created timer table " + tableName);
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException("Could not create timer table " + tableName, e);
+            } finally {
+                close(connection, false);
+            }
+        }
+        started = true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        started = false;
+    }
+
+    @Override
+    public void persistTimer(final TimerEntity timerEntity) {
+        persist(timerEntity, false);
+    }
+
+    @Override
+    public void updateTimerState(final TimerEntity timerEntity) {
+        persist(timerEntity, true);
+    }
+
+    @Override
+    public void persistTimers(final Collection<TimerEntity> timerEntities) {
+        if (isTransactional()) {
+            for (TimerEntity timerEntity : timerEntities) {
+                TransactionalTimerWrites.add(transactionSynchronizationRegistry, transactionalWriter, timerEntity, false, true);
+            }
+            return;
+        }
+        final List<TransactionalTimerWrites.TimerWrite> writes = new ArrayList<TransactionalTimerWrites.TimerWrite>(timerEntities.size());
+        for (TimerEntity timerEntity : timerEntities) {
+            writes.add(new TransactionalTimerWrites.TimerWrite(timerEntity, false));
+        }
+        write(writes, false);
+    }
+
+    private void persist(final TimerEntity timerEntity, final boolean stateOnly) {
+        if (isTransactional()) {
+            TransactionalTimerWrites.add(transactionSynchronizationRegistry, transactionalWriter, timerEntity, stateOnly, true);
+        } else {
+            write(Collections.singletonList(new TransactionalTimerWrites.TimerWrite(timerEntity, stateOnly)), false);
+        }
+    }
+
+    @Override
+    public TimerEntity loadTimer(final String id, final String timedObjectId) {
+        assertStarted();
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            final PreparedStatement statement = connection.prepareStatement(selectSql);
+            try {
+                statement.setString(1, timedObjectId);
+                statement.setString(2, id);
+                final ResultSet resultSet = statement.executeQuery();
+                try {
+                    return resultSet.next() ? read(factory.createUnmarshaller(configuration), resultSet) : null;
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Could not load timer " + id + " of " + timedObjectId + " from " + tableName, e);
+        } finally {
+            close(connection, false);
+        }
+    }
+
+    @Override
+    public void removeTimer(final TimerEntity timerEntity) {
+        removeTimers(Collections.singletonList(timerEntity));
+    }
+
+    @Override
+    public void removeTimers(final Collection<TimerEntity> timerEntities) {
+        assertStarted();
+        // removals made in a transaction are enlisted in it like any other write
+        final boolean transactional = isTransactional();
+        Connection connection = null;
+        boolean commit = false;
+        try {
+            connection = dataSource.getConnection();
+            commit = begin(connection, transactional);
+            final PreparedStatement statement = connection.prepareStatement(deleteSql);
+            try {
+                int batched = 0;
+                for (TimerEntity timerEntity : timerEntities) {
+                    statement.setString(1, timerEntity.getTimedObjectId());
+                    statement.setString(2, timerEntity.getId());
+                    statement.addBatch();
+                    if (++batched == batchSize) {
+                        statement.executeBatch();
+                        batched = 0;
+                    }
+                }
+                if (batched > 0) {
+                    statement.executeBatch();
+                }
+            } finally {
+                statement.close();
+            }
+            if (commit) {
+                connection.commit();
+            }
+        } catch (SQLException e) {
+            rollback(connection, commit);
+            throw new RuntimeException("Could not remove " + timerEntities.size() + " timers from " + tableName, e);
+        } finally {
+            close(connection, commit);
+        }
+    }
+
+    @Override
+    public List<TimerEntity> loadActiveTimers(final String timedObjectId) {
+        assertStarted();
+        final List<TimerEntity> timers = new ArrayList<TimerEntity>();
+        final long start = System.currentTimeMillis();
+        int failures = 0;
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            final PreparedStatement statement = connection.prepareStatement(selectActiveSql);
+            try {
+                statement.setFetchSize(fetchSize);
+                statement.setString(1, timedObjectId);
+                final ResultSet resultSet = statement.executeQuery();
+                try {
+                    // unmarshallers aren't thread safe, so each call uses its own
+                    final Unmarshaller unmarshaller = factory.createUnmarshaller(configuration);
+                    while (resultSet.next()) {
+                        try {
+                            final TimerEntity entity = read(unmarshaller, resultSet);
+                            if (entity != null) {
+                                timers.add(entity);
+                                continue;
+                            }
+                        } catch (IOException e) {
+                            logger.error("Could not restore a timer of " + timedObjectId + " from " + tableName, e);
+                        } catch (ClassNotFoundException e) {
+                            logger.error("Could not restore a timer of " + timedObjectId + " from " + tableName, e);
+                        }
+                        failures++;
+                    }
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not load timers of " + timedObjectId + " from " + tableName, e);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not load timers of " + timedObjectId + " from " + tableName, e);
+        } finally {
+            close(connection, false);
+        }
+        final String summary = "Loaded " + timers.size() + " timers for " + timedObjectId + " in "
+                + (System.currentTimeMillis() - start) + " ms";
+        if (failures > 0) {
+            logger.warn(summary + ", could not restore " + failures + " timers");
+        } else {
+            logger.debug(summary);
+        }
+        return timers;
+    }
+
+    /**
+     * Writes the timers in batches: the state of those whose state only has changed, and the whole
+     * of the others. Timers which turn out not to be in the table yet are then inserted in full.
+     *
+     * @param writes        The timers
+     * @param transactional True if the writes are part of the current transaction. Else they are committed here
+     */
+    private void write(final Collection<TransactionalTimerWrites.TimerWrite> writes, final boolean transactional) {
+        assertStarted();
+        final List<TimerEntity> full = new ArrayList<TimerEntity>();
+        final List<TimerEntity> stateOnly = new ArrayList<TimerEntity>();
+        for (TransactionalTimerWrites.TimerWrite timerWrite : writes) {
+            (timerWrite.isStateOnly() ? stateOnly : full).add(timerWrite.getEntity());
+        }
+        Connection connection = null;
+        boolean commit = false;
+        try {
+            connection = dataSource.getConnection();
+            commit = begin(connection, transactional);
+            final List<TimerEntity> missing = new ArrayList<TimerEntity>();
+            if (!full.isEmpty()) {
+                update(connection, updateSql, full, true, missing);
+            }
+            if (!stateOnly.isEmpty()) {
+                update(connection, updateStateSql, stateOnly, false, missing);
+            }
+            if (!missing.isEmpty()) {
+                final PreparedStatement statement = connection.prepareStatement(insertSql);
+                try {
+                    int batched = 0;
+                    for (TimerEntity entity : missing) {
+                        bind(statement, entity, true);
+                        statement.addBatch();
+                        if (++batched == batchSize) {
+                            statement.executeBatch();
+                            batched = 0;
+                        }
+                    }
+                    if (batched > 0) {
+                        statement.executeBatch();
+                    }
+                } finally {
+                    statement.close();
+                }
+            }
+            if (commit) {
+                connection.commit();
+            }
+        } catch (SQLException e) {
+            rollback(connection, commit);
+            throw new RuntimeException("Could not write " + writes.size() + " timers to " + tableName, e);
+        } finally {
+            close(connection, commit);
+        }
+    }
+
+    /**
+     * Updates the rows of the timers in batches, and adds the timers which have no row to <code>missing</code>.
+     * <p>
+     * Some drivers don't report the update counts of batched statements, but {@link Statement#SUCCESS_NO_INFO}.
+     * The timers whose count is unknown are updated again one at a time, which is harmless since the update
+     * writes the same values, to find out whether their row exists.
+     * </p>
+     */
+    private void update(final Connection connection, final String sql, final List<TimerEntity> entities, final boolean full,
+                        final List<TimerEntity> missing) throws SQLException {
+        final PreparedStatement statement = connection.prepareStatement(sql);
+        try {
+            int from = 0;
+            while (from < entities.size()) {
+                final int to = Math.min(from + batchSize, entities.size());
+                for (int i = from; i < to; i++) {
+                    bind(statement, entities.get(i), full);
+                    statement.addBatch();
+                }
+                final int[] counts = statement.executeBatch();
+                for (int i = from; i < to; i++) {
+                    // a driver may also return fewer counts than statements
+                    final int count = i - from < counts.length ? counts[i - from] : Statement.SUCCESS_NO_INFO;
+                    if (count == 0) {
+                        missing.add(entities.get(i));
+                    } else if (count == Statement.SUCCESS_NO_INFO) {
+                        bind(statement, entities.get(i), full);
+                        if (statement.executeUpdate() == 0) {
+                            missing.add(entities.get(i));
+                        }
+                    }
+                }
+                from = to;
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Binds the columns of the timer, followed by the timed object id and the id, to the statement
+     *
+     * @param full True to bind the <code>TIMER_DATA</code> column too
+     */
+    private void bind(final PreparedStatement statement, final TimerEntity entity, final boolean full) throws SQLException {
+        int index = 1;
+        statement.setShort(index++, (short) entity.getTimerState().ordinal());
+        setDate(statement, index++, entity.getNextDate());
+        setDate(statement, index++, entity.getPreviousRun());
+        statement.setInt(index++, entity.getRetryAttempts());
+        setDate(statement, index++, entity.getNextRetry());
+        if (full) {
+            statement.setBytes(index++, serialize(entity));
+        }
+        statement.setString(index++, entity.getTimedObjectId());
+        statement.setString(index, entity.getId());
+    }
+
+    /**
+     * Reads the timer at the current row of the result set, with the columns in the order of {@link #COLUMNS}
+     *
+     * @return The timer, or null if the row holds an unknown timer state
+     */
+    private TimerEntity read(final Unmarshaller unmarshaller, final ResultSet resultSet) throws SQLException, IOException, ClassNotFoundException {
+        final int state = resultSet.getInt(1);
+        if (state < 0 || state >= STATES.length) {
+            logger.error("Ignoring timer with unknown state " + state + " in " + tableName);
+            return null;
+        }
+        unmarshaller.start(new InputStreamByteInput(new ByteArrayInputStream(resultSet.getBytes(6))));
+        final TimerEntity entity = unmarshaller.readObject(TimerEntity.class);
+        unmarshaller.finish();
+        // the state columns take precedence over the state the timer was serialized with
+        entity.setTimerState(STATES[state]);
+        entity.setNextDate(getDate(resultSet, 2));
+        entity.setPreviousRun(getDate(resultSet, 3));
+        entity.setRetryAttempts(resultSet.getInt(4));
+        entity.setNextRetry(getDate(resultSet, 5));
+        return entity;
+    }
+
+    private byte[] serialize(final TimerEntity entity) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final Marshaller marshaller = factory.createMarshaller(configuration);
+            marshaller.start(new OutputStreamByteOutput(bytes));
+            marshaller.writeObject(entity);
+            marshaller.finish();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private boolean tableExists(final Connection connection) {
+        try {
+            final Statement statement = connection.createStatement();
+            try {
+                statement.executeQuery("SELECT COUNT(*) FROM " + tableName + " WHERE 1 = 0").close();
+                return true;
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private boolean isTransactional() {
+        try {
+            return TransactionalTimerWrites.isTransactional(transactionManager.getStatus());
+        } catch (SystemException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Prepares a connection for writes. A connection obtained in a transaction is enlisted in it, and left alone.
+     *
+     * @return True if the writes are to be committed on the connection, in which case auto commit has been disabled
+     */
+    private static boolean begin(final Connection connection, final boolean transactional) throws SQLException {
+        if (transactional || !connection.getAutoCommit()) {
+            return false;
+        }
+        connection.setAutoCommit(false);
+        return true;
+    }
+
+    private static void rollback(final Connection connection, final boolean commit) {
+        if (connection != null && commit) {
+            try {
+                connection.rollback();
+            } catch (SQLException e) {
+                logger.error("Could not roll back timer writes", e);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection, turning auto commit back on if it was disabled by {@link #begin(Connection, boolean)}
+     */
+    private static void close(final Connection connection, final boolean commit) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            if (commit) {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            logger.error("Could not restore auto commit of connection", e);
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.error("Could not close connection", e);
+        }
+    }
+
+    private static void setDate(final PreparedStatement statement, final int index, final Date date) throws SQLException {
+        if (date == null) {
+            statement.setNull(index, Types.BIGINT);
+        } else {
+            statement.setLong(index, date.getTime());
+        }
+    }
+
+    private static Date getDate(final ResultSet resultSet, final int index) throws SQLException {
+        final long time = resultSet.getLong(index);
+        return resultSet.wasNull() ? null : new Date(time);
+    }
+
+    private void assertStarted() {
+        if (!started) {
+            throw new IllegalStateException("Database timer persistence for " + tableName + " has not been started");
+        }
+    }
+
+    /**
+     * Writes the timers persisted in a transaction, as part of that transaction
+     */
+    private final class TransactionalWriter implements TransactionalTimerWrites.Writer {
+
+        @Override
+        public void write(final String timedObjectId, final Collection<TransactionalTimerWrites.TimerWrite> writes) {
+            DatabaseTimerPersistence.this.write(writes, true);
+        }
+    }
+}
@@ -23,7 +23,10 @@ package org.jboss.ejb3.timerservice.mk2.persistence.filestore;
 
 import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
 import org.jboss.ejb3.timerservice.mk2.persistence.TimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerStateRecord;
+import org.jboss.ejb3.timerservice.mk2.persistence.TransactionalTimerWrites;
 import org.jboss.logging.Logger;
+import org.jboss.marshalling.ClassResolver;
 import org.jboss.marshalling.InputStreamByteInput;
 import org.jboss.marshalling.Marshaller;
 import org.jboss.marshalling.MarshallerFactory;
@@ -34,8 +37,6 @@ import org.jboss.marshalling.Unmarshaller;
 import org.jboss.marshalling.river.RiverMarshallerFactory;
 import org.jboss.modules.ModuleLoader;
 
-import javax.transaction.Status;
-import javax.transaction.Synchronization;
 import javax.transaction.SystemException;
 import javax.transaction.TransactionManager;
 import javax.transaction.TransactionSynchronizationRegistry;
@@ -44,18 +45,35 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * File based persistent timer store.
  * <p/>
+ * Each timer is written to its own file when it is created. Subsequent state changes are written
+ * as a {@link TimerStateRecord} to a separate <code>.state</code> file, which takes precedence over
+ * the state in the timer file when the timers are loaded.
+ * <p/>
+ * The timer files of a timed object are read when its timers are first needed. Large directories are
+ * read in parallel, by a pool of <code>restoreThreads</code> threads shared by all timed objects.
+ * <p/>
  * TODO: this is fairly hackey at the moment, it should be registered as an XA resource to support proper XA semantics
  *
  * @author Stuart Douglas
@@ -67,6 +85,11 @@ public class FileTimerPersistence implements TimerPersistence {
     private final File baseDir;
     private final boolean createIfNotExists;
     private static final Logger logger = Logger.getLogger(FileTimerPersistence.class);
+    private static final String STATE_FILE_SUFFIX = ".state";
+    /**
+     * Directories with at most this many timer files are read by the calling thread alone
+     */
+    private static final int PARALLEL_LOAD_THRESHOLD = 64;
     private final MarshallerFactory factory;
     private final MarshallingConfiguration configuration;
 
@@ -77,16 +100,40 @@ public class FileTimerPersistence implements TimerPersistence {
     private final ConcurrentMap<String, Lock> locks = new ConcurrentHashMap<String, Lock>();
     private final ConcurrentMap<String, String> directories = new ConcurrentHashMap<String, String>();
 
+    /**
+     * Writes the timers persisted in a transaction once it commits. Also the key of those timers
+     * in the {@link TransactionSynchronizationRegistry}.
+     */
+    private final TransactionalTimerWrites.Writer transactionalWriter = new TransactionalWriter();
+
+    private final int restoreThreads;
+    private volatile ExecutorService restoreExecutor;
+
     private volatile boolean started = false;
 
     public FileTimerPersistence(final TransactionManager transactionManager, final TransactionSynchronizationRegistry transactionSynchronizationRegistry, final File baseDir, final boolean createIfNotExists, final ModuleLoader moduleLoader) {
+        this(transactionManager, transactionSynchronizationRegistry, baseDir, createIfNotExists, ModularClassResolver.getInstance(moduleLoader));
+    }
+
+    public FileTimerPersistence(final TransactionManager transactionManager, final TransactionSynchronizationRegistry transactionSynchronizationRegistry, final File baseDir, final boolean createIfNotExists, final ClassResolver classResolver) {
+        this(transactionManager, transactionSynchronizationRegistry, baseDir, createIfNotExists, classResolver, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param restoreThreads The maximum number of threads reading timer files at the same time
+     */
+    public FileTimerPersistence(final TransactionManager transactionManager, final TransactionSynchronizationRegistry transactionSynchronizationRegistry, final File baseDir, final boolean createIfNotExists, final ClassResolver classResolver, final int restoreThreads) {
+        if (restoreThreads <= 0) {
+            throw new IllegalArgumentException("Restore threads must be positive: " + restoreThreads);
+        }
+        this.restoreThreads = restoreThreads;
         this.transactionManager = transactionManager;
         this.transactionSynchronizationRegistry = transactionSynchronizationRegistry;
         this.baseDir = baseDir;
         this.createIfNotExists = createIfNotExists;
         RiverMarshallerFactory factory = new RiverMarshallerFactory();
         MarshallingConfiguration configuration = new MarshallingConfiguration();
-        configuration.setClassResolver(ModularClassResolver.getInstance(moduleLoader));
+        configuration.setClassResolver(classResolver);
 
         this.configuration = configuration;
         this.factory = factory;
@@ -107,38 +154,91 @@ public class FileTimerPersistence implements TimerPersistence {
         if (!baseDir.isDirectory()) {
             throw new RuntimeException("Timer file store directory " + baseDir + " is not a directory");
         }
+        if (restoreThreads > 1) {
+            restoreExecutor = Executors.newFixedThreadPool(restoreThreads, new RestoreThreadFactory());
+        }
     }
 
     @Override
     public synchronized void stop() {
         timers.clear();
+        if (restoreExecutor != null) {
+            restoreExecutor.shutdownNow();
+            restoreExecutor = null;
+        }
         started = false;
     }
 
 
     @Override
     public void persistTimer(final TimerEntity timerEntity) {
-        final Lock lock = getLock(timerEntity.getTimedObjectId());
+        persist(timerEntity, false);
+    }
+
+    @Override
+    public void updateTimerState(final TimerEntity timerEntity) {
+        persist(timerEntity, true);
+    }
+
+    @Override
+    public void persistTimers(final Collection<TimerEntity> timerEntities) {
+        try {
+            final int status = transactionManager.getStatus();
+            final boolean transactional = TransactionalTimerWrites.isTransactional(status);
+            final Map<String, List<TransactionalTimerWrites.TimerWrite>> writes = new LinkedHashMap<String, List<TransactionalTimerWrites.TimerWrite>>();
+            for (TimerEntity timerEntity : timerEntities) {
+                if (transactional) {
+                    TransactionalTimerWrites.add(transactionSynchronizationRegistry, transactionalWriter, timerEntity, false);
+                    continue;
+                }
+                List<TransactionalTimerWrites.TimerWrite> timedObjectWrites = writes.get(timerEntity.getTimedObjectId());
+                if (timedObjectWrites == null) {
+                    timedObjectWrites = new ArrayList<TransactionalTimerWrites.TimerWrite>();
+                    writes.put(timerEntity.getTimedObjectId(), timedObjectWrites);
+                }
+                timedObjectWrites.add(new TransactionalTimerWrites.TimerWrite(timerEntity, false));
+            }
+            // the timers of each timed object are written under one lock
+            for (Map.Entry<String, List<TransactionalTimerWrites.TimerWrite>> entry : writes.entrySet()) {
+                transactionalWriter.write(entry.getKey(), entry.getValue());
+            }
+        } catch (SystemException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void persist(final TimerEntity timerEntity, final boolean stateOnly) {
         try {
             final int status = transactionManager.getStatus();
-            if (status == Status.STATUS_NO_TRANSACTION ||
-                    status == Status.STATUS_UNKNOWN) {
+            if (TransactionalTimerWrites.isTransactional(status)) {
+                TransactionalTimerWrites.add(transactionSynchronizationRegistry, transactionalWriter, timerEntity, stateOnly);
+            } else {
+                final Lock lock = getLock(timerEntity.getTimedObjectId());
                 try {
                     lock.lock();
-                    Map<String, TimerEntity> map = getTimers(timerEntity.getTimedObjectId());
-                    map.put(timerEntity.getId(), timerEntity);
-                    writeFile(timerEntity);
+                    write(timerEntity, stateOnly);
                 } finally {
                     lock.unlock();
                 }
-            } else {
-                transactionSynchronizationRegistry.registerInterposedSynchronization(new PersistTransactionSynchronization(timerEntity, lock));
             }
         } catch (SystemException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Writes the timer, or only its state if the timer has already been written. Should be called under lock
+     */
+    private void write(final TimerEntity timerEntity, final boolean stateOnly) {
+        Map<String, TimerEntity> map = getTimers(timerEntity.getTimedObjectId());
+        final boolean known = map.put(timerEntity.getId(), timerEntity) != null;
+        if (stateOnly && known) {
+            writeStateFile(timerEntity);
+        } else {
+            writeFile(timerEntity);
+        }
+    }
+
 
     @Override
     public TimerEntity loadTimer(final String id, final String timedObjectId) {
@@ -166,11 +266,25 @@ public class FileTimerPersistence implements TimerPersistence {
                     logger.error("Could not remove persistent timer " + file);
                 }
             }
+            File stateFile = stateFileName(file);
+            if(stateFile.exists()) {
+                if(!stateFile.delete()) {
+                    logger.error("Could not remove persistent timer state " + stateFile);
+                }
+            }
         } finally {
             lock.unlock();
         }
     }
 
+    @Override
+    public void removeTimers(final Collection<TimerEntity> timerEntities) {
+        // there's nothing to sync on removal, so removing the timers one by one costs no more
+        for (TimerEntity timerEntity : timerEntities) {
+            removeTimer(timerEntity);
+        }
+    }
+
     @Override
     public List<TimerEntity> loadActiveTimers(final String timedObjectId) {
         final Lock lock = getLock(timedObjectId);
@@ -221,28 +335,45 @@ public class FileTimerPersistence implements TimerPersistence {
                 logger.error(file + " is not a directory, could not restore timers");
                 return timers;
             }
-            Unmarshaller unmarshaller = factory.createUnmarshaller(configuration);
+            final long start = System.currentTimeMillis();
+            final List<File> timerFiles = new ArrayList<File>();
             for (File timerFile : file.listFiles()) {
-                FileInputStream in = null;
-                try {
-                    in = new FileInputStream(timerFile);
-                    unmarshaller.start(new InputStreamByteInput(in));
-                    final TimerEntity entity = unmarshaller.readObject(TimerEntity.class);
+                if (!timerFile.getName().endsWith(STATE_FILE_SUFFIX)) {
+                    timerFiles.add(timerFile);
+                }
+            }
+            final AtomicInteger failures = new AtomicInteger();
+            final ExecutorService executor = restoreExecutor;
+            if (executor == null || timerFiles.size() <= PARALLEL_LOAD_THRESHOLD) {
+                for (TimerEntity entity : new LoadTask(timerFiles, failures).call()) {
                     timers.put(entity.getId(), entity);
-                    unmarshaller.finish();
-                } catch (Exception e) {
-                    logger.error("Could not restore timer from " + timerFile, e);
-                } finally {
-                    if (in != null) {
-                        try {
-                            in.close();
-                        } catch (IOException e) {
-                            logger.error("error closing file ", e);
-                        }
+                }
+            } else {
+                // each task reads a contiguous part of the files with its own unmarshaller
+                final int tasks = Math.min(restoreThreads * 4, (timerFiles.size() + PARALLEL_LOAD_THRESHOLD - 1) / PARALLEL_LOAD_THRESHOLD);
+                final List<Future<List<TimerEntity>>> futures = new ArrayList<Future<List<TimerEntity>>>(tasks);
+                for (int i = 0; i < tasks; i++) {
+                    final List<File> part = timerFiles.subList(timerFiles.size() * i / tasks, timerFiles.size() * (i + 1) / tasks);
+                    futures.add(executor.submit(new LoadTask(part, failures)));
+                }
+                for (Future<List<TimerEntity>> future : futures) {
+                    for (TimerEntity entity : future.get()) {
+                        timers.put(entity.getId(), entity);
                     }
                 }
-
             }
+            final String summary = "Loaded " + timers.size() + " timers for " + timedObjectId + " in "
+                    + (System.currentTimeMillis() - start) + " ms";
+            if (failures.get() > 0) {
+                logger.warn(summary + ", could not restore " + failures.get() + " timer files");
+            } else {
+                logger.debug(summary);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while restoring timers for " + timedObjectId, e);
+        } catch (ExecutionException e) {
+            logger.error("Could not restore timers for " + timedObjectId, e.getCause());
         } catch (Exception e) {
             logger.error("Could not restore timers for " + timedObjectId, e);
         }
@@ -253,6 +384,10 @@ public class FileTimerPersistence implements TimerPersistence {
         return new File(getDirectory(timedObjectId) + File.separator + timerId.replace(File.separator, "-"));
     }
 
+    private File stateFileName(File timerFile) {
+        return new File(timerFile.getPath() + STATE_FILE_SUFFIX);
+    }
+
     /**
      * Gets the directory for a given timed object, making sure it exists.
      * @param timedObjectId The timed object
@@ -300,37 +435,136 @@ public class FileTimerPersistence implements TimerPersistence {
                 }
             }
         }
+        // a state file left by earlier updates would otherwise override the state we just wrote. It is
+        // rewritten rather than deleted, so that a crash in between can't restore its stale state
+        if (stateFileName(file).exists()) {
+            writeStateFile(entity);
+        }
     }
 
-    private final class PersistTransactionSynchronization implements Synchronization {
-
-        private final TimerEntity timer;
-        private final Lock lock;
-
-        public PersistTransactionSynchronization(final TimerEntity timer, final Lock lock) {
-            this.timer = timer;
-            this.lock = lock;
+    /**
+     * Overwrites the fixed size state record of the timer
+     */
+    private void writeStateFile(TimerEntity entity) {
+        final File file = stateFileName(fileName(entity.getTimedObjectId(), entity.getId()));
+        RandomAccessFile stateFile = null;
+        try {
+            stateFile = new RandomAccessFile(file, "rw");
+            stateFile.write(TimerStateRecord.toBytes(entity));
+            stateFile.getFD().sync();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (stateFile != null) {
+                try {
+                    stateFile.close();
+                } catch (IOException e) {
+                    logger.error("IOException closing file ", e);
+                }
+            }
         }
+    }
 
-        @Override
-        public void beforeCompletion() {
-
+    /**
+     * Applies the state record, if there is a valid one, to the timer
+     */
+    private void readStateFile(File file, TimerEntity entity) {
+        if (!file.exists()) {
+            return;
         }
+        RandomAccessFile stateFile = null;
+        try {
+            stateFile = new RandomAccessFile(file, "r");
+            final byte[] record = new byte[TimerStateRecord.SIZE];
+            stateFile.readFully(record);
+            if (!TimerStateRecord.apply(record, 0, entity)) {
+                logger.error("Ignoring corrupt timer state " + file);
+            }
+        } catch (IOException e) {
+            logger.error("Could not read timer state " + file, e);
+        } finally {
+            if (stateFile != null) {
+                try {
+                    stateFile.close();
+                } catch (IOException e) {
+                    logger.error("IOException closing file ", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the timers persisted in a transaction, taking the lock of their timed object once
+     */
+    private final class TransactionalWriter implements TransactionalTimerWrites.Writer {
 
         @Override
-        public void afterCompletion(final int status) {
+        public void write(final String timedObjectId, final Collection<TransactionalTimerWrites.TimerWrite> writes) {
+            final Lock lock = getLock(timedObjectId);
             try {
-                    lock.lock();
-                if (status == Status.STATUS_COMMITTED) {
-                    Map<String, TimerEntity> map = getTimers(timer.getTimedObjectId());
-                    map.put(timer.getId(), timer);
-                    writeFile(timer);
+                lock.lock();
+                for (TransactionalTimerWrites.TimerWrite timerWrite : writes) {
+                    FileTimerPersistence.this.write(timerWrite.getEntity(), timerWrite.isStateOnly());
                 }
             } finally {
                 lock.unlock();
             }
         }
+    }
+
+    /**
+     * Reads the timers from a list of timer files, logging and skipping the files which can't be read
+     */
+    private final class LoadTask implements Callable<List<TimerEntity>> {
+
+        private final List<File> timerFiles;
+        private final AtomicInteger failures;
+
+        LoadTask(final List<File> timerFiles, final AtomicInteger failures) {
+            this.timerFiles = timerFiles;
+            this.failures = failures;
+        }
+
+        @Override
+        public List<TimerEntity> call() throws IOException {
+            final List<TimerEntity> entities = new ArrayList<TimerEntity>(timerFiles.size());
+            // unmarshallers aren't thread safe, so each task uses its own
+            final Unmarshaller unmarshaller = factory.createUnmarshaller(configuration);
+            for (File timerFile : timerFiles) {
+                FileInputStream in = null;
+                try {
+                    in = new FileInputStream(timerFile);
+                    unmarshaller.start(new InputStreamByteInput(in));
+                    final TimerEntity entity = unmarshaller.readObject(TimerEntity.class);
+                    unmarshaller.finish();
+                    readStateFile(stateFileName(timerFile), entity);
+                    entities.add(entity);
+                } catch (Exception e) {
+                    logger.error("Could not restore timer from " + timerFile, e);
+                    failures.incrementAndGet();
+                } finally {
+                    if (in != null) {
+                        try {
+                            in.close();
+                        } catch (IOException e) {
+                            logger.error("error closing file ", e);
+                        }
+                    }
+                }
+            }
+            return entities;
+        }
+    }
+
+    private static final class RestoreThreadFactory implements ThreadFactory {
 
+        private final AtomicInteger count = new AtomicInteger();
 
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "EJB Timer File Restore Thread " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 }
@@ -0,0 +1,484 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.persistence.journal;
+
+import org.jboss.logging.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A segmented, append-only log of records.
+ * <p>
+ * Records are appended to the current segment file, which is replaced by a new one once it grows
+ * beyond the maximum segment size. Appending a record only writes it to the file, it's made durable
+ * by {@link #sync(long)}. Concurrent callers of {@link #sync(long)} share the fsync: one of them
+ * forces all the data written so far to disk, while the others wait for it to complete (group commit).
+ * </p>
+ * <p>
+ * A snapshot holds all the live records of the segments before a given segment. Those segments
+ * (and older snapshots) are deleted once the next snapshot has been written. The rename which
+ * publishes a snapshot can't be forced to disk, so the files it replaces are kept until the
+ * journal has been synced in between, in case the rename is lost in a crash.
+ * </p>
+ * <p>
+ * Each record is framed as: length of the payload (int), CRC32 of type and payload (int),
+ * type (byte), payload. Reading a segment stops at the first incomplete or corrupt record,
+ * which is what a crash in the middle of a write leaves behind.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+class Journal {
+
+    /**
+     * Logger
+     */
+    private static final Logger logger = Logger.getLogger(Journal.class);
+
+    private static final String SEGMENT_PREFIX = "journal-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int HEADER_SIZE = 9;
+
+    /**
+     * Receives the records read while replaying the journal
+     */
+    interface RecordHandler {
+
+        void handle(byte type, byte[] payload) throws IOException;
+    }
+
+    private final File directory;
+
+    private final long maxSegmentSize;
+
+    /**
+     * Guards the current segment, the retired segments and the write position
+     */
+    private final Object writeLock = new Object();
+
+    private FileChannel current;
+
+    private long currentId;
+
+    private long currentSize;
+
+    /**
+     * Segments which have been replaced by a new one, but haven't yet been forced to disk
+     */
+    private final List<FileChannel> retired = new ArrayList<FileChannel>();
+
+    /**
+     * Number of bytes appended since this journal was opened
+     */
+    private long writePosition;
+
+    /**
+     * Number of bytes in the segments which are not yet covered by a snapshot
+     */
+    private long bytesSinceSnapshot;
+
+    /**
+     * Guards the group commit state
+     */
+    private final Object syncLock = new Object();
+
+    private long syncedPosition;
+
+    private boolean syncing;
+
+    Journal(final File directory, final long maxSegmentSize) {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * Replays the latest snapshot and all the segments written after it, then opens a new
+     * segment for appending.
+     *
+     * @param handler Receives the replayed records, in the order they were written
+     * @throws IOException
+     */
+    void open(final RecordHandler handler) throws IOException {
+        final List<Long> snapshots = this.listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        long firstSegment = 0;
+        if (!snapshots.isEmpty()) {
+            firstSegment = snapshots.get(snapshots.size() - 1);
+            this.read(this.snapshotFile(firstSegment), handler);
+        }
+        long lastSegment = firstSegment - 1;
+        long replayed = 0;
+        for (Long segment : this.listFiles(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (segment < firstSegment) {
+                // covered by the snapshot, deleted along with the next compaction
+                continue;
+            }
+            replayed += this.read(this.segmentFile(segment), handler);
+            lastSegment = segment;
+        }
+        synchronized (this.writeLock) {
+            this.bytesSinceSnapshot = replayed;
+            this.openSegment(lastSegment + 1);
+        }
+    }
+
+    /**
+     * Appends a record to the journal. The record is not durable until {@link #sync(long)}
+     * has been called with the returned position.
+     *
+     * @return The position just after the record
+     * @throws IOException
+     */
+    long append(final byte type, final byte[] payload) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        final CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(type);
+        buffer.put(payload);
+        buffer.flip();
+
+        synchronized (this.writeLock) {
+            if (this.current == null) {
+                throw new IllegalStateException("Journal " + this.directory + " is not open");
+            }
+            if (this.currentSize > 0 && this.currentSize + buffer.remaining() > this.maxSegmentSize) {
+                this.rollSegment();
+            }
+            final int length = buffer.remaining();
+            while (buffer.hasRemaining()) {
+                this.current.write(buffer);
+            }
+            this.currentSize += length;
+            this.bytesSinceSnapshot += length;
+            this.writePosition += length;
+            return this.writePosition;
+        }
+    }
+
+    /**
+     * Makes sure everything up to the passed position is on disk
+     *
+     * @param position A position returned by {@link #append(byte, byte[])}
+     * @throws IOException
+     */
+    void sync(final long position) throws IOException {
+        boolean interrupted = false;
+        try {
+            synchronized (this.syncLock) {
+                while (this.syncedPosition < position && this.syncing) {
+                    try {
+                        this.syncLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (this.syncedPosition >= position) {
+                    return;
+                }
+                this.syncing = true;
+            }
+            // we are the leader, sync everything written so far on behalf of all waiting threads
+            boolean synced = false;
+            long target;
+            final List<FileChannel> toClose;
+            final FileChannel channel;
+            synchronized (this.writeLock) {
+                target = this.writePosition;
+                toClose = new ArrayList<FileChannel>(this.retired);
+                this.retired.clear();
+                channel = this.current;
+            }
+            try {
+                for (FileChannel segment : toClose) {
+                    segment.force(false);
+                    segment.close();
+                }
+                channel.force(false);
+                synced = true;
+            } finally {
+                synchronized (this.syncLock) {
+                    this.syncing = false;
+                    if (synced) {
+                        this.syncedPosition = Math.max(this.syncedPosition, target);
+                    }
+                    this.syncLock.notifyAll();
+                }
+                if (!synced) {
+                    synchronized (this.writeLock) {
+                        for (FileChannel segment : toClose) {
+                            if (segment.isOpen()) {
+                                this.retired.add(0, segment);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment, so that a snapshot can be taken of everything written before it.
+     * The caller has to make sure no records are appended between taking its in memory copy
+     * of the state and this call.
+     *
+     * @return The id of the new segment, to be passed to {@link #writeSnapshot(long, List)}
+     * @throws IOException
+     */
+    long checkpoint() throws IOException {
+        synchronized (this.writeLock) {
+            this.rollSegment();
+            this.bytesSinceSnapshot = 0;
+            return this.currentId;
+        }
+    }
+
+    /**
+     * Atomically writes a snapshot holding all the live records of the segments before
+     * <code>segmentId</code>, then deletes the segments and snapshots replaced by the previous snapshot.
+     *
+     * @param segmentId The id returned by {@link #checkpoint()}
+     * @param records   The records of the snapshot, as (type, payload) pairs
+     * @throws IOException
+     */
+    void writeSnapshot(final long segmentId, final List<Record> records) throws IOException {
+        final File file = this.snapshotFile(segmentId);
+        final File temp = new File(file.getPath() + TEMP_SUFFIX);
+        final FileOutputStream out = new FileOutputStream(temp);
+        try {
+            final FileChannel channel = out.getChannel();
+            for (Record record : records) {
+                final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.payload.length);
+                final CRC32 crc = new CRC32();
+                crc.update(record.type);
+                crc.update(record.payload);
+                buffer.putInt(record.payload.length);
+                buffer.putInt((int) crc.getValue());
+                buffer.put(record.type);
+                buffer.put(record.payload);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            channel.force(false);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+        // the directory can't be forced, so the previous snapshot, and the segments written after it, are
+        // kept in case this rename doesn't survive a crash. Its own rename has been followed by syncs
+        long previous = -1;
+        for (Long snapshot : this.listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (snapshot < segmentId) {
+                previous = snapshot;
+            }
+        }
+        if (previous < 0) {
+            return;
+        }
+        for (Long snapshot : this.listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (snapshot < previous) {
+                this.delete(this.snapshotFile(snapshot));
+            }
+        }
+        for (Long segment : this.listFiles(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (segment < previous) {
+                this.delete(this.segmentFile(segment));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes written to the segments since the last snapshot
+     */
+    long getBytesSinceSnapshot() {
+        synchronized (this.writeLock) {
+            return this.bytesSinceSnapshot;
+        }
+    }
+
+    /**
+     * Returns the position just after the last appended record
+     */
+    long getWritePosition() {
+        synchronized (this.writeLock) {
+            return this.writePosition;
+        }
+    }
+
+    /**
+     * Syncs and closes the journal
+     */
+    void close() throws IOException {
+        this.sync(this.getWritePosition());
+        synchronized (this.writeLock) {
+            if (this.current != null) {
+                this.current.close();
+                this.current = null;
+            }
+        }
+    }
+
+    /**
+     * Replaces the current segment by a new one. Must be called with the write lock held.
+     */
+    private void rollSegment() throws IOException {
+        final FileChannel previous = this.current;
+        this.openSegment(this.currentId + 1);
+        this.retired.add(previous);
+    }
+
+    /**
+     * Opens a new segment. Must be called with the write lock held.
+     */
+    private void openSegment(final long id) throws IOException {
+        final File file = this.segmentFile(id);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        // never append to a segment which might end with a torn record
+        raf.setLength(0);
+        this.current = raf.getChannel();
+        this.currentId = id;
+        this.currentSize = 0;
+    }
+
+    /**
+     * Reads all the valid records of a file
+     *
+     * @return The size of the file
+     */
+    private long read(final File file, final RecordHandler handler) throws IOException {
+        final long length = file.length();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            long position = 0;
+            while (position < length) {
+                if (length - position < HEADER_SIZE) {
+                    logger.warn("Ignoring incomplete record at the end of " + file);
+                    break;
+                }
+                final int size = in.readInt();
+                final int checksum = in.readInt();
+                final byte type = in.readByte();
+                if (size < 0 || size > length - position - HEADER_SIZE) {
+                    logger.warn("Ignoring incomplete record at the end of " + file);
+                    break;
+                }
+                final byte[] payload = new byte[size];
+                in.readFully(payload);
+                final CRC32 crc = new CRC32();
+                crc.update(type);
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    logger.error("Corrupt record at offset " + position + " of " + file + ", ignoring the rest of the file");
+                    break;
+                }
+                handler.handle(type, payload);
+                position += HEADER_SIZE + size;
+            }
+        } catch (EOFException e) {
+            logger.warn("Ignoring incomplete record at the end of " + file);
+        } finally {
+            in.close();
+        }
+        return length;
+    }
+
+    /**
+     * Returns the ids of the files with the passed prefix and suffix, in ascending order
+     */
+    private List<Long> listFiles(final String prefix, final String suffix) {
+        final List<Long> ids = new ArrayList<Long>();
+        final String[] names = this.directory.list();
+        if (names == null) {
+            return ids;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                try {
+                    ids.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unexpected file " + name + " in timer journal " + this.directory);
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private File segmentFile(final long id) {
+        return new File(this.directory, SEGMENT_PREFIX + String.format("%016d", id) + SEGMENT_SUFFIX);
+    }
+
+    private File snapshotFile(final long id) {
+        return new File(this.directory, SNAPSHOT_PREFIX + String.format("%016d", id) + SNAPSHOT_SUFFIX);
+    }
+
+    private void delete(final File file) {
+        if (!file.delete()) {
+            logger.error("Could not delete " + file);
+        }
+    }
+
+    /**
+     * A record to be written to a snapshot
+     */
+    static final class Record {
+
+        final byte type;
+
+        final byte[] payload;
+
+        Record(final byte type, final byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+}
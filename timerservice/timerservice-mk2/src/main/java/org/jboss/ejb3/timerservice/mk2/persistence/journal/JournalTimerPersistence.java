@@ -0,0 +1,544 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.persistence.journal;
+
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerStateRecord;
+import org.jboss.ejb3.timerservice.mk2.persistence.TransactionalTimerWrites;
+import org.jboss.logging.Logger;
+import org.jboss.marshalling.ClassResolver;
+import org.jboss.marshalling.InputStreamByteInput;
+import org.jboss.marshalling.Marshaller;
+import org.jboss.marshalling.MarshallerFactory;
+import org.jboss.marshalling.MarshallingConfiguration;
+import org.jboss.marshalling.ModularClassResolver;
+import org.jboss.marshalling.OutputStreamByteOutput;
+import org.jboss.marshalling.Unmarshaller;
+import org.jboss.marshalling.river.RiverMarshallerFactory;
+import org.jboss.modules.ModuleLoader;
+
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Journal based persistent timer store.
+ * <p>
+ * Instead of writing a file per timer, every change is appended as a record to a segmented
+ * log (see {@link Journal}). Concurrent writers share a single fsync, so the cost of making a
+ * timer transition durable doesn't grow with the number of busy timers. Once enough data has been
+ * appended, a snapshot of the live timers is written and the old segments are deleted.
+ * </p>
+ * <p>
+ * A timer is written in full once. State changes made through {@link #updateTimerState(TimerEntity)}
+ * are appended as small {@link TimerStateRecord}s, without serializing the timer info again.
+ * </p>
+ * <p>
+ * On {@link #start()} the journal is replayed. The timers are kept in their serialized form
+ * until their timed object first asks for them, so that the classes of the timer info only
+ * need to be resolvable once the timed object is deployed.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class JournalTimerPersistence implements TimerPersistence {
+
+    /**
+     * Logger
+     */
+    private static final Logger logger = Logger.getLogger(JournalTimerPersistence.class);
+
+    /**
+     * Default maximum size of a journal segment (in bytes)
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Default number of bytes written to the journal after which a snapshot is taken
+     */
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 64 * 1024 * 1024;
+
+    private static final byte PERSIST = 1;
+
+    private static final byte REMOVE = 2;
+
+    private static final byte STATE = 3;
+
+    private final TransactionManager transactionManager;
+    private final TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+    private final File baseDir;
+    private final boolean createIfNotExists;
+    private final MarshallerFactory factory;
+    private final MarshallingConfiguration configuration;
+    private final long segmentSize;
+    private final long compactionThreshold;
+
+    /**
+     * Guards the timer maps. Records are appended to the journal while holding this lock, so that
+     * the order of the records matches the order in which the maps are updated.
+     */
+    private final Object stateLock = new Object();
+
+    /**
+     * map of timed object id : timer id : timer
+     */
+    private final Map<String, Map<String, TimerEntity>> timers = new HashMap<String, Map<String, TimerEntity>>();
+
+    /**
+     * map of timed object id : timer id : serialized timer, for the timed objects which haven't yet loaded their timers
+     */
+    private final Map<String, Map<String, byte[]>> unloadedTimers = new HashMap<String, Map<String, byte[]>>();
+
+    /**
+     * map of timed object id : timer id : latest state record, for the timers in {@link #unloadedTimers}
+     */
+    private final Map<String, Map<String, byte[]>> unloadedStates = new HashMap<String, Map<String, byte[]>>();
+
+    /**
+     * Writes the timers persisted in a transaction once it commits. Also the key of those timers
+     * in the {@link TransactionSynchronizationRegistry}.
+     */
+    private final TransactionalTimerWrites.Writer transactionalWriter = new TransactionalWriter();
+
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    private volatile Journal journal;
+
+    public JournalTimerPersistence(final TransactionManager transactionManager, final TransactionSynchronizationRegistry transactionSynchronizationRegistry, final File baseDir, final boolean createIfNotExists, final ModuleLoader moduleLoader) {
+        this(transactionManager, transactionSynchronizationRegistry, baseDir, createIfNotExists, ModularClassResolver.getInstance(moduleLoader),
+                DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    public JournalTimerPersistence(final TransactionManager transactionManager, final TransactionSynchronizationRegistry transactionSynchronizationRegistry, final File baseDir, final boolean createIfNotExists, final ClassResolver classResolver,
+                                   final long segmentSize, final long compactionThreshold) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+        }
+        this.transactionManager = transactionManager;
+        this.transactionSynchronizationRegistry = transactionSynchronizationRegistry;
+        this.baseDir = baseDir;
+        this.createIfNotExists = createIfNotExists;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        MarshallingConfiguration configuration = new MarshallingConfiguration();
+        configuration.setClassResolver(classResolver);
+        this.configuration = configuration;
+        this.factory = new RiverMarshallerFactory();
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!baseDir.exists()) {
+            if (createIfNotExists) {
+                if (!baseDir.mkdirs()) {
+                    throw new RuntimeException("Could not create timer journal directory " + baseDir);
+                }
+            } else {
+                throw new RuntimeException("Timer journal directory " + baseDir + " does not exist");
+            }
+        }
+        if (!baseDir.isDirectory()) {
+            throw new RuntimeException("Timer journal directory " + baseDir + " is not a directory");
+        }
+        final Journal journal = new Journal(baseDir, segmentSize);
+        synchronized (stateLock) {
+            try {
+                journal.open(new Journal.RecordHandler() {
+                    @Override
+                    public void handle(final byte type, final byte[] payload) throws IOException {
+                        replay(type, payload);
+                    }
+                });
+            } catch (IOException e) {
+                throw new RuntimeException("Could not open timer journal " + baseDir, e);
+            }
+        }
+        this.journal = journal;
+    }
+
+    @Override
+    public synchronized void stop() {
+        final Journal journal = this.journal;
+        this.journal = null;
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.error("Could not close timer journal " + baseDir, e);
+            }
+        }
+        synchronized (stateLock) {
+            timers.clear();
+            unloadedTimers.clear();
+            unloadedStates.clear();
+        }
+    }
+
+    @Override
+    public void persistTimer(final TimerEntity timerEntity) {
+        persist(timerEntity, false);
+    }
+
+    @Override
+    public void updateTimerState(final TimerEntity timerEntity) {
+        persist(timerEntity, true);
+    }
+
+    @Override
+    public void persistTimers(final Collection<TimerEntity> timerEntities) {
+        try {
+            final int status = transactionManager.getStatus();
+            final boolean transactional = TransactionalTimerWrites.isTransactional(status);
+            final List<TransactionalTimerWrites.TimerWrite> writes = new ArrayList<TransactionalTimerWrites.TimerWrite>(timerEntities.size());
+            for (TimerEntity timerEntity : timerEntities) {
+                if (transactional) {
+                    TransactionalTimerWrites.add(transactionSynchronizationRegistry, transactionalWriter, timerEntity, false);
+                } else {
+                    writes.add(new TransactionalTimerWrites.TimerWrite(timerEntity, false));
+                }
+            }
+            if (!writes.isEmpty()) {
+                write(writes);
+            }
+        } catch (SystemException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void persist(final TimerEntity timerEntity, final boolean stateOnly) {
+        try {
+            final int status = transactionManager.getStatus();
+            if (TransactionalTimerWrites.isTransactional(status)) {
+                TransactionalTimerWrites.add(transactionSynchronizationRegistry, transactionalWriter, timerEntity, stateOnly);
+            } else {
+                write(Collections.singletonList(new TransactionalTimerWrites.TimerWrite(timerEntity, stateOnly)));
+            }
+        } catch (SystemException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public TimerEntity loadTimer(final String id, final String timedObjectId) {
+        synchronized (stateLock) {
+            return getTimers(timedObjectId).get(id);
+        }
+    }
+
+    @Override
+    public void removeTimer(final TimerEntity timerEntity) {
+        //remove is not a transactional operation, as it only happens once the timer has expired
+        final byte[] payload = serializeKey(timerEntity, null);
+        final Journal journal = getJournal();
+        final long position;
+        synchronized (stateLock) {
+            try {
+                position = journal.append(REMOVE, payload);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            getTimers(timerEntity.getTimedObjectId()).remove(timerEntity.getId());
+        }
+        sync(journal, position);
+    }
+
+    @Override
+    public void removeTimers(final Collection<TimerEntity> timerEntities) {
+        final List<byte[]> payloads = new ArrayList<byte[]>(timerEntities.size());
+        for (TimerEntity timerEntity : timerEntities) {
+            payloads.add(serializeKey(timerEntity, null));
+        }
+        final Journal journal = getJournal();
+        long position = -1;
+        synchronized (stateLock) {
+            int i = 0;
+            for (TimerEntity timerEntity : timerEntities) {
+                try {
+                    position = journal.append(REMOVE, payloads.get(i++));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                getTimers(timerEntity.getTimedObjectId()).remove(timerEntity.getId());
+            }
+        }
+        if (position >= 0) {
+            sync(journal, position);
+        }
+    }
+
+    @Override
+    public List<TimerEntity> loadActiveTimers(final String timedObjectId) {
+        synchronized (stateLock) {
+            return new ArrayList<TimerEntity>(getTimers(timedObjectId).values());
+        }
+    }
+
+    /**
+     * Appends the timers to the journal, and makes them durable with a single sync. A timer whose
+     * state only has changed, but which hasn't been written before, is written in full.
+     */
+    private void write(final Collection<TransactionalTimerWrites.TimerWrite> writes) {
+        final List<byte[]> payloads = new ArrayList<byte[]>(writes.size());
+        for (TransactionalTimerWrites.TimerWrite timerWrite : writes) {
+            final TimerEntity entity = timerWrite.getEntity();
+            payloads.add(timerWrite.isStateOnly() ? serializeKey(entity, TimerStateRecord.toBytes(entity)) : serialize(entity));
+        }
+        final Journal journal = getJournal();
+        long position = -1;
+        synchronized (stateLock) {
+            int i = 0;
+            for (TransactionalTimerWrites.TimerWrite timerWrite : writes) {
+                final TimerEntity entity = timerWrite.getEntity();
+                final Map<String, TimerEntity> map = getTimers(entity.getTimedObjectId());
+                byte type = PERSIST;
+                byte[] payload = payloads.get(i++);
+                if (timerWrite.isStateOnly()) {
+                    if (map.containsKey(entity.getId())) {
+                        type = STATE;
+                    } else {
+                        // not written before, so write the whole timer
+                        payload = serialize(entity);
+                    }
+                }
+                try {
+                    position = journal.append(type, payload);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                map.put(entity.getId(), entity);
+            }
+        }
+        if (position >= 0) {
+            sync(journal, position);
+        }
+    }
+
+    private void sync(final Journal journal, final long position) {
+        try {
+            journal.sync(position);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (compactionThreshold > 0 && journal.getBytesSinceSnapshot() > compactionThreshold) {
+            compact(journal);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the live timers and deletes the journal segments it replaces.
+     * Only one thread compacts at a time, other writers carry on appending to the new segment.
+     */
+    private void compact(final Journal journal) {
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final List<Journal.Record> records = new ArrayList<Journal.Record>();
+            final long segment;
+            synchronized (stateLock) {
+                if (journal.getBytesSinceSnapshot() <= compactionThreshold) {
+                    return;
+                }
+                segment = journal.checkpoint();
+                for (Map.Entry<String, Map<String, byte[]>> unloaded : unloadedTimers.entrySet()) {
+                    final Map<String, byte[]> states = unloadedStates.get(unloaded.getKey());
+                    for (Map.Entry<String, byte[]> timer : unloaded.getValue().entrySet()) {
+                        records.add(new Journal.Record(PERSIST, timer.getValue()));
+                        final byte[] state = states == null ? null : states.get(timer.getKey());
+                        if (state != null) {
+                            records.add(new Journal.Record(STATE, state));
+                        }
+                    }
+                }
+                // the timers are the entities of the writers, which may still change them, so they are
+                // serialized while the lock keeps them in line with the checkpoint
+                for (Map<String, TimerEntity> loaded : timers.values()) {
+                    for (TimerEntity entity : loaded.values()) {
+                        records.add(new Journal.Record(PERSIST, serialize(entity)));
+                        if (entity.getRetryAttempts() > 0) {
+                            // the retry state isn't part of the serialized timer
+                            records.add(new Journal.Record(STATE, serializeKey(entity, TimerStateRecord.toBytes(entity))));
+                        }
+                    }
+                }
+            }
+            // make sure the segments to be deleted are not written to any more
+            journal.sync(journal.getWritePosition());
+            journal.writeSnapshot(segment, records);
+            logger.debug("Compacted timer journal " + baseDir + " to " + records.size() + " timers");
+        } catch (Exception e) {
+            logger.error("Could not compact timer journal " + baseDir, e);
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * Applies a record read from the journal. Called with the state lock held.
+     */
+    private void replay(final byte type, final byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final String timedObjectId = in.readUTF();
+        final String id = in.readUTF();
+        Map<String, byte[]> unloaded = unloadedTimers.get(timedObjectId);
+        Map<String, byte[]> states = unloadedStates.get(timedObjectId);
+        if (type == PERSIST) {
+            if (unloaded == null) {
+                unloaded = new LinkedHashMap<String, byte[]>();
+                unloadedTimers.put(timedObjectId, unloaded);
+            }
+            unloaded.put(id, payload);
+            if (states != null) {
+                states.remove(id);
+            }
+        } else if (type == STATE) {
+            if (unloaded != null && unloaded.containsKey(id)) {
+                if (states == null) {
+                    states = new HashMap<String, byte[]>();
+                    unloadedStates.put(timedObjectId, states);
+                }
+                states.put(id, payload);
+            }
+        } else if (type == REMOVE) {
+            if (unloaded != null) {
+                unloaded.remove(id);
+            }
+            if (states != null) {
+                states.remove(id);
+            }
+        } else {
+            logger.error("Ignoring unknown record type " + type + " for timer " + id + " in timer journal " + baseDir);
+        }
+    }
+
+    /**
+     * Gets the timer map, deserializing the replayed timers if necessary. Should be called under the state lock
+     *
+     * @param timedObjectId The timed object id
+     * @return The timers for the object
+     */
+    private Map<String, TimerEntity> getTimers(final String timedObjectId) {
+        Map<String, TimerEntity> map = timers.get(timedObjectId);
+        if (map == null) {
+            map = new HashMap<String, TimerEntity>();
+            final Map<String, byte[]> unloaded = unloadedTimers.remove(timedObjectId);
+            final Map<String, byte[]> states = unloadedStates.remove(timedObjectId);
+            if (unloaded != null) {
+                for (Map.Entry<String, byte[]> timer : unloaded.entrySet()) {
+                    try {
+                        final TimerEntity entity = deserialize(timer.getValue());
+                        final byte[] state = states == null ? null : states.get(timer.getKey());
+                        if (state != null && !TimerStateRecord.apply(state, state.length - TimerStateRecord.SIZE, entity)) {
+                            logger.error("Ignoring corrupt state of timer " + timer.getKey() + " of " + timedObjectId + " in timer journal " + baseDir);
+                        }
+                        map.put(timer.getKey(), entity);
+                    } catch (Exception e) {
+                        logger.error("Could not restore timer " + timer.getKey() + " of " + timedObjectId + " from timer journal " + baseDir, e);
+                    }
+                }
+            }
+            timers.put(timedObjectId, map);
+        }
+        return map;
+    }
+
+    private Journal getJournal() {
+        final Journal journal = this.journal;
+        if (journal == null) {
+            throw new IllegalStateException("Timer journal " + baseDir + " has not been started");
+        }
+        return journal;
+    }
+
+    /**
+     * Returns the timed object id and id of the timer, followed by the passed <code>suffix</code>
+     */
+    private static byte[] serializeKey(final TimerEntity entity, final byte[] suffix) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(entity.getTimedObjectId());
+            out.writeUTF(entity.getId());
+            if (suffix != null) {
+                out.write(suffix);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private byte[] serialize(final TimerEntity entity) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(entity.getTimedObjectId());
+            out.writeUTF(entity.getId());
+            out.flush();
+            final Marshaller marshaller = factory.createMarshaller(configuration);
+            marshaller.start(new OutputStreamByteOutput(bytes));
+            marshaller.writeObject(entity);
+            marshaller.finish();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private TimerEntity deserialize(final byte[] payload) throws IOException, ClassNotFoundException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        in.readUTF();
+        in.readUTF();
+        final Unmarshaller unmarshaller = factory.createUnmarshaller(configuration);
+        unmarshaller.start(new InputStreamByteInput(in));
+        final TimerEntity entity = unmarshaller.readObject(TimerEntity.class);
+        unmarshaller.finish();
+        return entity;
+    }
+
+    /**
+     * Writes the timers persisted in a transaction with one sync per timed object
+     */
+    private final class TransactionalWriter implements TransactionalTimerWrites.Writer {
+
+        @Override
+        public void write(final String timedObjectId, final Collection<TransactionalTimerWrites.TimerWrite> writes) {
+            JournalTimerPersistence.this.write(writes);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.scheduler;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * {@link TimeoutScheduler} backed by a {@link java.util.Timer}.
+ * <p>
+ * All tasks are kept in the single binary heap of the {@link java.util.Timer} and cancelled
+ * tasks stay in there until they would have fired. Prefer the {@link TimingWheelScheduler}
+ * for large number of timers.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class JavaUtilTimerScheduler implements TimeoutScheduler {
+
+    /**
+     * The timer
+     */
+    private final Timer timer;
+
+    /**
+     * Creates a {@link JavaUtilTimerScheduler} backed by a new daemon {@link Timer}
+     *
+     * @param threadName The name of the timer thread
+     */
+    public JavaUtilTimerScheduler(final String threadName) {
+        this(new Timer(threadName, true));
+    }
+
+    /**
+     * Creates a {@link JavaUtilTimerScheduler} backed by the passed <code>timer</code>
+     *
+     * @param timer The timer to use
+     */
+    public JavaUtilTimerScheduler(final Timer timer) {
+        if (timer == null) {
+            throw new IllegalArgumentException("Timer cannot be null");
+        }
+        this.timer = timer;
+    }
+
+    @Override
+    public ScheduledTimeout schedule(final Runnable task, final long delay) {
+        final Task timerTask = new Task(task);
+        this.timer.schedule(timerTask, delay < 0 ? 0 : delay);
+        return timerTask;
+    }
+
+    @Override
+    public ScheduledTimeout scheduleAtFixedRate(final Runnable task, final long delay, final long period) {
+        final Task timerTask = new Task(task);
+        this.timer.scheduleAtFixedRate(timerTask, delay < 0 ? 0 : delay, period);
+        return timerTask;
+    }
+
+    @Override
+    public void shutdown() {
+        this.timer.cancel();
+    }
+
+    private static final class Task extends TimerTask implements ScheduledTimeout {
+
+        private final Runnable delegate;
+
+        Task(final Runnable delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void run() {
+            delegate.run();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.scheduler;
+
+/**
+ * Schedules the timeout tasks of the timers created through a
+ * {@link org.jboss.ejb3.timerservice.mk2.TimerServiceImpl}.
+ * <p>
+ * A single {@link TimeoutScheduler} is usually shared by all the timer services
+ * created by a {@link org.jboss.ejb3.timerservice.mk2.TimerServiceFactoryImpl}.
+ * Implementations are expected to run the passed tasks on their own thread(s) and
+ * the tasks are expected to return quickly (typically they just hand off the actual
+ * timeout invocation to an executor).
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public interface TimeoutScheduler {
+
+    /**
+     * Schedules the <code>task</code> for a single execution after <code>delay</code>
+     * milli seconds.
+     *
+     * @param task  The task to run
+     * @param delay The delay (in milli seconds) after which the task is run. A value of 0 or
+     *              less runs the task as soon as possible
+     * @return Returns a {@link ScheduledTimeout} which can be used to cancel the task
+     */
+    ScheduledTimeout schedule(Runnable task, long delay);
+
+    /**
+     * Schedules the <code>task</code> for repeated fixed-rate execution, starting after
+     * <code>delay</code> milli seconds.
+     *
+     * @param task   The task to run
+     * @param delay  The delay (in milli seconds) before the first execution
+     * @param period The time (in milli seconds) between successive executions. Must be positive
+     * @return Returns a {@link ScheduledTimeout} which can be used to cancel the task
+     */
+    ScheduledTimeout scheduleAtFixedRate(Runnable task, long delay, long period);
+
+    /**
+     * Stops this scheduler. Tasks which haven't yet run, will not be run.
+     */
+    void shutdown();
+}
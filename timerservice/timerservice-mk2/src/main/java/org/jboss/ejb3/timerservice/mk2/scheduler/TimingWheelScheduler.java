@@ -0,0 +1,398 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.scheduler;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel based {@link TimeoutScheduler}.
+ * <p>
+ * The wheel is an array of buckets, each of which covers one tick. A task is placed in the bucket
+ * of the tick in which it's due (modulo the wheel size), so scheduling and cancelling a task
+ * are O(1) operations. Each bucket has its own lock, hence threads creating and cancelling timers
+ * only contend with each other (and with the wheel thread) if they hit the same bucket.
+ * Cancelled tasks are unlinked from their bucket right away.
+ * </p>
+ * <p>
+ * A single worker thread advances the wheel one tick at a time and runs the tasks which are
+ * due. Tasks are never run before their deadline, but may run up to one tick late. The tick
+ * duration thus is the resolution of this scheduler.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class TimingWheelScheduler implements TimeoutScheduler {
+
+    /**
+     * Logger
+     */
+    private static final Logger logger = Logger.getLogger(TimingWheelScheduler.class);
+
+    /**
+     * Default tick duration in milli seconds
+     */
+    public static final long DEFAULT_TICK_DURATION = 10;
+
+    /**
+     * Default number of buckets in the wheel
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * Duration of a tick in nano seconds
+     */
+    private final long tickDuration;
+
+    /**
+     * The buckets
+     */
+    private final Bucket[] wheel;
+
+    /**
+     * Mask to map a tick to its bucket
+     */
+    private final int mask;
+
+    /**
+     * The {@link System#nanoTime()} at which this wheel was started. All deadlines are relative to this.
+     */
+    private final long startTime;
+
+    /**
+     * The last tick which has been processed by the worker thread.
+     * Only ever updated while holding the lock of the bucket belonging to the tick.
+     */
+    private volatile long processedTick = -1;
+
+    private volatile boolean shutdown;
+
+    private final Thread workerThread;
+
+    /**
+     * Creates a {@link TimingWheelScheduler} with the default tick duration and wheel size
+     *
+     * @param threadName The name of the worker thread
+     */
+    public TimingWheelScheduler(final String threadName) {
+        this(threadName, DEFAULT_TICK_DURATION, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Creates a {@link TimingWheelScheduler}
+     *
+     * @param threadName   The name of the worker thread
+     * @param tickDuration The duration of a tick, i.e. the resolution of the scheduler
+     * @param unit         The unit of <code>tickDuration</code>
+     * @param wheelSize    The number of buckets in the wheel. Will be rounded up to a power of 2
+     */
+    public TimingWheelScheduler(final String threadName, final long tickDuration, final TimeUnit unit, final int wheelSize) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive: " + tickDuration);
+        }
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid wheel size: " + wheelSize);
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            this.wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.tickDuration = unit.toNanos(tickDuration);
+        this.startTime = System.nanoTime();
+
+        this.workerThread = new Thread(new Worker(), threadName);
+        this.workerThread.setDaemon(true);
+        this.workerThread.start();
+    }
+
+    @Override
+    public ScheduledTimeout schedule(final Runnable task, final long delay) {
+        return this.schedule(task, delay, 0);
+    }
+
+    @Override
+    public ScheduledTimeout scheduleAtFixedRate(final Runnable task, final long delay, final long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive: " + period);
+        }
+        return this.schedule(task, delay, period);
+    }
+
+    @Override
+    public void shutdown() {
+        this.shutdown = true;
+        this.workerThread.interrupt();
+        for (Bucket bucket : this.wheel) {
+            synchronized (bucket) {
+                bucket.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tasks currently waiting in the wheel
+     *
+     * @return
+     */
+    public int getPendingTimeouts() {
+        int pending = 0;
+        for (Bucket bucket : this.wheel) {
+            synchronized (bucket) {
+                pending += bucket.size;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Returns the tick duration (in milli seconds) of this scheduler
+     *
+     * @return
+     */
+    public long getTickDuration() {
+        return TimeUnit.NANOSECONDS.toMillis(this.tickDuration);
+    }
+
+    private ScheduledTimeout schedule(final Runnable task, final long delay, final long period) {
+        if (task == null) {
+            throw new IllegalArgumentException("Task cannot be null");
+        }
+        if (this.shutdown) {
+            throw new IllegalStateException("Scheduler has been shutdown");
+        }
+        final long now = System.nanoTime() - this.startTime;
+        final Entry entry = new Entry(task, add(now, TimeUnit.MILLISECONDS.toNanos(delay < 0 ? 0 : delay)),
+                TimeUnit.MILLISECONDS.toNanos(period));
+        this.insert(entry);
+        return entry;
+    }
+
+    /**
+     * Adds a (non negative) delay to a deadline, saturating at {@link Long#MAX_VALUE} rather than
+     * wrapping around to a deadline in the past. {@link TimeUnit#toNanos(long)} already saturates
+     * for delays of about 292 years and more.
+     */
+    private static long add(final long deadline, final long delay) {
+        return delay >= Long.MAX_VALUE - deadline ? Long.MAX_VALUE : deadline + delay;
+    }
+
+    /**
+     * Places the entry in the bucket corresponding to its deadline. If the tick of the
+     * deadline has already been processed, the entry goes in the bucket of the next tick.
+     */
+    private void insert(final Entry entry) {
+        synchronized (entry) {
+            if (entry.cancelled) {
+                return;
+            }
+            final long deadlineTick = entry.deadline / this.tickDuration;
+            for (; ; ) {
+                long tick = Math.max(deadlineTick, this.processedTick + 1);
+                final Bucket bucket = this.wheel[(int) (tick & this.mask)];
+                synchronized (bucket) {
+                    // the worker thread may have moved past the chosen tick
+                    // in the mean time, in which case, try again
+                    if (tick <= this.processedTick) {
+                        continue;
+                    }
+                    entry.deadlineTick = deadlineTick;
+                    bucket.add(entry);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Expires the due entries of the bucket for the passed tick and runs them
+     */
+    private void process(final long tick) {
+        final Bucket bucket = this.wheel[(int) (tick & this.mask)];
+        Entry expired = null;
+        synchronized (bucket) {
+            Entry entry = bucket.head;
+            while (entry != null) {
+                final Entry next = entry.next;
+                if (entry.deadlineTick <= tick) {
+                    bucket.remove(entry);
+                    entry.next = expired;
+                    expired = entry;
+                }
+                entry = next;
+            }
+            this.processedTick = tick;
+        }
+        while (expired != null) {
+            final Entry entry = expired;
+            expired = entry.next;
+            entry.next = null;
+            try {
+                entry.task.run();
+            } catch (Throwable t) {
+                logger.error("Error running scheduled task " + entry.task, t);
+            }
+            if (entry.period > 0) {
+                entry.deadline = add(entry.deadline, entry.period);
+                this.insert(entry);
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            long tick = 0;
+            while (!shutdown) {
+                final long sleepTime = (tick + 1) * tickDuration - (System.nanoTime() - startTime);
+                if (sleepTime > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleepTime);
+                    } catch (InterruptedException e) {
+                        if (shutdown) {
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                process(tick);
+                tick++;
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of entries. All access is guarded by the bucket's monitor.
+     */
+    private static final class Bucket {
+
+        private Entry head;
+
+        private Entry tail;
+
+        private int size;
+
+        void add(final Entry entry) {
+            entry.bucket = this;
+            entry.prev = this.tail;
+            entry.next = null;
+            if (this.tail == null) {
+                this.head = entry;
+            } else {
+                this.tail.next = entry;
+            }
+            this.tail = entry;
+            this.size++;
+        }
+
+        void remove(final Entry entry) {
+            if (entry.prev == null) {
+                this.head = entry.next;
+            } else {
+                entry.prev.next = entry.next;
+            }
+            if (entry.next == null) {
+                this.tail = entry.prev;
+            } else {
+                entry.next.prev = entry.prev;
+            }
+            entry.prev = null;
+            entry.next = null;
+            entry.bucket = null;
+            this.size--;
+        }
+
+        void clear() {
+            Entry entry = this.head;
+            while (entry != null) {
+                final Entry next = entry.next;
+                entry.prev = null;
+                entry.next = null;
+                entry.bucket = null;
+                entry = next;
+            }
+            this.head = null;
+            this.tail = null;
+            this.size = 0;
+        }
+    }
+
+    /**
+     * A scheduled task. The list pointers are guarded by the monitor of the bucket the entry
+     * is in; <code>cancelled</code> and <code>bucket</code> changes additionally hold the entry's monitor
+     * when done from outside the worker thread.
+     */
+    private final class Entry implements ScheduledTimeout {
+
+        private final Runnable task;
+
+        private final long period;
+
+        private long deadline;
+
+        private long deadlineTick;
+
+        private volatile Bucket bucket;
+
+        private volatile boolean cancelled;
+
+        private Entry prev;
+
+        private Entry next;
+
+        Entry(final Runnable task, final long deadline, final long period) {
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        @Override
+        public boolean cancel() {
+            synchronized (this) {
+                if (this.cancelled) {
+                    return false;
+                }
+                this.cancelled = true;
+                for (; ; ) {
+                    final Bucket current = this.bucket;
+                    if (current == null) {
+                        // either already run (single action), or currently being run
+                        return this.period > 0;
+                    }
+                    synchronized (current) {
+                        if (this.bucket != current) {
+                            continue;
+                        }
+                        current.remove(this);
+                        return true;
+                    }
+                }
+            }
+        }
+    }
+}
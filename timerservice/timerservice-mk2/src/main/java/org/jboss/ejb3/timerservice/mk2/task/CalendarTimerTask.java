@@ -21,15 +21,14 @@
  */
 package org.jboss.ejb3.timerservice.mk2.task;
 
+import org.jboss.ejb3.timer.schedule.CalendarBasedTimeout;
 import org.jboss.ejb3.timerservice.mk2.CalendarTimer;
 import org.jboss.ejb3.timerservice.mk2.TimerState;
 import org.jboss.ejb3.timerservice.spi.MultiTimeoutMethodTimedObjectInvoker;
 import org.jboss.ejb3.timerservice.spi.TimedObjectInvoker;
 import org.jboss.logging.Logger;
 
-import java.util.Calendar;
 import java.util.Date;
-import java.util.GregorianCalendar;
 
 /**
  * CalendarTimerTask
@@ -52,13 +51,38 @@ public class CalendarTimerTask extends TimerTask<CalendarTimer> {
     }
 
     @Override
-    protected void callTimeout() throws Exception {
+    public boolean isBatchable() {
+        // auto timers need their own timeout method
+        return !this.getTimer().isAutoTimer();
+    }
+
+    @Override
+    protected void scheduleNextTimeout() {
         CalendarTimer calendarTimer = this.getTimer();
 
         // if we have any more schedules remaining, then schedule a new task
         if (calendarTimer.getNextExpiration() != null && !calendarTimer.isInRetry()) {
             calendarTimer.scheduleTimeout();
         }
+    }
+
+    @Override
+    protected void timeoutSkipped() {
+        CalendarTimer calendarTimer = this.getTimer();
+        // the skipped timeout would have scheduled the next one, so move on to it here
+        Date nextTimeout = this.calculateNextTimeout();
+        calendarTimer.setNextTimeout(nextTimeout);
+        timerService.persistTimer(calendarTimer);
+        if (nextTimeout != null) {
+            calendarTimer.scheduleTimeout();
+        }
+    }
+
+    @Override
+    protected void callTimeout() throws Exception {
+        CalendarTimer calendarTimer = this.getTimer();
+
+        this.scheduleNextTimeout();
 
         // finally invoke the timeout method through the invoker
         if (calendarTimer.isAutoTimer()) {
@@ -84,12 +108,10 @@ public class CalendarTimerTask extends TimerTask<CalendarTimer> {
         if (currentTimeout == null) {
             return null;
         }
-        Calendar cal = new GregorianCalendar();
-        cal.setTime(currentTimeout);
         // now compute the next timeout date
-        Calendar nextTimeout = this.getTimer().getCalendarTimeout().getNextTimeout(cal);
-        if (nextTimeout != null) {
-            return nextTimeout.getTime();
+        long nextTimeout = this.getTimer().getCalendarTimeout().getNextTimeout(currentTimeout.getTime());
+        if (nextTimeout != CalendarBasedTimeout.NO_MORE_TIMEOUTS) {
+            return new Date(nextTimeout);
         }
         return null;
     }
@@ -99,6 +121,7 @@ public class CalendarTimerTask extends TimerTask<CalendarTimer> {
         CalendarTimer calendarTimer = this.getTimer();
         TimerState timerState = calendarTimer.getState();
         if (timerState == TimerState.IN_TIMEOUT || timerState == TimerState.RETRY_TIMEOUT) {
+            calendarTimer.setRetry(0, CalendarTimer.NO_DATE);
             if (calendarTimer.getNextExpiration() == null) {
                 calendarTimer.expireTimer();
             } else {
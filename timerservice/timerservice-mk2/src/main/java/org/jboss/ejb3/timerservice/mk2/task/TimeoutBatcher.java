@@ -0,0 +1,380 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.task;
+
+import org.jboss.ejb3.timerservice.mk2.dispatch.OverlapPolicy;
+import org.jboss.ejb3.timerservice.mk2.dispatch.TimeoutDispatcher;
+import org.jboss.ejb3.timerservice.mk2.metrics.TimerMetrics;
+import org.jboss.ejb3.timerservice.mk2.scheduler.ScheduledTimeout;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimeoutScheduler;
+import org.jboss.ejb3.timerservice.spi.BatchTimedObjectInvoker;
+import org.jboss.logging.Logger;
+
+import javax.ejb.Timer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Groups the timeouts of the timers of one timed object which fire within a short window, and delivers
+ * them through a single {@link BatchTimedObjectInvoker#callTimeouts(List)} invocation.
+ * <p>
+ * The first timeout which fires opens a batch. The batch is handed to the {@link TimeoutDispatcher} once
+ * the window has elapsed, or as soon as it holds <code>maxBatchSize</code> timeouts.
+ * </p>
+ * <p>
+ * Like the dispatcher does for single timeouts, a timer has at most one timeout in a batch which is open,
+ * queued or running. A timeout which fires while the previous one of the same timer is queued or running
+ * waits for that batch to complete, replacing any other timeout of the timer which was already waiting
+ * (periodic timeouts are dropped instead, for the {@link OverlapPolicy#SKIP} policy).
+ * </p>
+ * <p>
+ * The timeouts of a batch go through the same timer state transitions as single timeouts. If the batch
+ * invocation fails, each of its timers is retried on its own, like a timer whose single timeout failed.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class TimeoutBatcher {
+
+    /**
+     * Logger
+     */
+    private static final Logger logger = Logger.getLogger(TimeoutBatcher.class);
+
+    /**
+     * Default maximum number of timeouts delivered in one batch
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    private final BatchTimedObjectInvoker invoker;
+
+    private final TimeoutScheduler scheduler;
+
+    private final TimeoutDispatcher dispatcher;
+
+    private final TimerMetrics metrics;
+
+    private final long window;
+
+    private final int maxBatchSize;
+
+    /**
+     * The batch which is collecting timeouts, or null if there is none. Guarded by this batcher's monitor.
+     */
+    private Batch open;
+
+    /**
+     * The timers which have a timeout in a batch which is queued or running. Guarded by this batcher's monitor.
+     */
+    private final Set<Object> inFlight = new HashSet<Object>();
+
+    /**
+     * The timeouts which wait for the batch holding the previous timeout of the same timer to complete,
+     * by timer id. Guarded by this batcher's monitor.
+     */
+    private final Map<Object, TimerTask<?>> deferred = new HashMap<Object, TimerTask<?>>();
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+    private final AtomicLong batchedTimeoutCount = new AtomicLong();
+
+    private final AtomicLong failedBatchCount = new AtomicLong();
+
+    /**
+     * Creates a {@link TimeoutBatcher}
+     *
+     * @param invoker      The invoker of the timed object whose timeouts are batched
+     * @param scheduler    The scheduler which closes the batches once their window has elapsed
+     * @param dispatcher   The dispatcher which hands the batches to the executor
+     * @param metrics      The metrics which record the batch invocations
+     * @param window       How long (in milli seconds) a batch collects timeouts after its first timeout fired
+     * @param maxBatchSize The maximum number of timeouts in a batch
+     */
+    public TimeoutBatcher(final BatchTimedObjectInvoker invoker, final TimeoutScheduler scheduler, final TimeoutDispatcher dispatcher,
+                          final TimerMetrics metrics, final long window, final int maxBatchSize) {
+        if (invoker == null) {
+            throw new IllegalArgumentException("Invoker cannot be null");
+        }
+        if (scheduler == null) {
+            throw new IllegalArgumentException("Scheduler cannot be null");
+        }
+        if (dispatcher == null) {
+            throw new IllegalArgumentException("Dispatcher cannot be null");
+        }
+        if (metrics == null) {
+            throw new IllegalArgumentException("Metrics cannot be null");
+        }
+        if (window <= 0) {
+            throw new IllegalArgumentException("Batch window must be positive: " + window);
+        }
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Max batch size must be positive: " + maxBatchSize);
+        }
+        this.invoker = invoker;
+        this.scheduler = scheduler;
+        this.dispatcher = dispatcher;
+        this.metrics = metrics;
+        this.window = window;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Adds a timeout of a timer to the open batch
+     *
+     * @param timerId  Identifies the timer. Timeouts with equal ids belong to the same timer
+     * @param task     The timeout task, which must be {@link TimerTask#isBatchable() batchable}
+     * @param periodic True if the timeout belongs to a fixed rate schedule
+     */
+    public void add(final Object timerId, final TimerTask<?> task, final boolean periodic) {
+        if (timerId == null) {
+            throw new IllegalArgumentException("Timer id cannot be null");
+        }
+        if (task == null) {
+            throw new IllegalArgumentException("Task cannot be null");
+        }
+        final Batch full;
+        synchronized (this) {
+            if (this.inFlight.contains(timerId)) {
+                if (periodic && this.dispatcher.getOverlapPolicy() == OverlapPolicy.SKIP) {
+                    logger.debug("Skipping timeout of timer " + timerId + " since its previous timeout hasn't completed");
+                } else {
+                    this.deferred.put(timerId, task);
+                }
+                return;
+            }
+            full = this.addToOpenBatch(timerId, task);
+        }
+        if (full != null) {
+            this.dispatch(full);
+        }
+    }
+
+    /**
+     * Returns the number of batches which were delivered
+     *
+     * @return
+     */
+    public long getBatchCount() {
+        return this.batchCount.get();
+    }
+
+    /**
+     * Returns the number of timeouts which were delivered in batches
+     *
+     * @return
+     */
+    public long getBatchedTimeoutCount() {
+        return this.batchedTimeoutCount.get();
+    }
+
+    /**
+     * Returns the number of batches whose invocation failed, and whose timers were retried on their own
+     *
+     * @return
+     */
+    public long getFailedBatchCount() {
+        return this.failedBatchCount.get();
+    }
+
+    public long getWindow() {
+        return this.window;
+    }
+
+    public int getMaxBatchSize() {
+        return this.maxBatchSize;
+    }
+
+    /**
+     * Adds the timeout to the open batch, opening one if needed. Must be called while holding the
+     * monitor of this batcher.
+     *
+     * @return The batch, if it is full and must be dispatched right away. Else null
+     */
+    private Batch addToOpenBatch(final Object timerId, final TimerTask<?> task) {
+        Batch batch = this.open;
+        if (batch == null) {
+            batch = new Batch();
+            this.open = batch;
+            batch.closeTimeout = this.scheduler.schedule(new Close(batch), this.window);
+        }
+        // a timeout of a timer which is already in the open batch replaces it
+        batch.tasks.put(timerId, task);
+        if (batch.tasks.size() < this.maxBatchSize) {
+            return null;
+        }
+        batch.closeTimeout.cancel();
+        this.close(batch);
+        return batch;
+    }
+
+    /**
+     * Stops the open batch from collecting more timeouts. Must be called while holding the
+     * monitor of this batcher.
+     */
+    private void close(final Batch batch) {
+        this.open = null;
+        this.inFlight.addAll(batch.tasks.keySet());
+    }
+
+    private void dispatch(final Batch batch) {
+        // the batch is dispatched under its own id, since this batcher already keeps the timeouts of a
+        // timer from overlapping, and batches must never be coalesced with each other
+        this.dispatcher.dispatch(this.invoker.getTimedObjectId(), batch, batch, false);
+    }
+
+    /**
+     * Releases the timers of a batch which completed, and moves the timeouts which were waiting for it
+     * to the open batch
+     */
+    private void completed(final Batch batch) {
+        List<Batch> full = null;
+        synchronized (this) {
+            for (Object timerId : batch.tasks.keySet()) {
+                this.inFlight.remove(timerId);
+                final TimerTask<?> next = this.deferred.remove(timerId);
+                if (next != null) {
+                    final Batch fullBatch = this.addToOpenBatch(timerId, next);
+                    if (fullBatch != null) {
+                        if (full == null) {
+                            full = new ArrayList<Batch>(1);
+                        }
+                        full.add(fullBatch);
+                    }
+                }
+            }
+        }
+        if (full != null) {
+            for (Batch fullBatch : full) {
+                this.dispatch(fullBatch);
+            }
+        }
+    }
+
+    /**
+     * Delivers the timeouts of a batch
+     */
+    private void deliver(final Batch batch) {
+        final List<TimerTask<?>> started = new ArrayList<TimerTask<?>>(batch.tasks.size());
+        final List<Timer> timers = new ArrayList<Timer>(batch.tasks.size());
+        for (TimerTask<?> task : batch.tasks.values()) {
+            if (!task.getTimer().isActive()) {
+                // cancelled while the batch was open
+                logger.debug("Timer is not active, skipping its batched timeout: " + task.getTimer());
+                continue;
+            }
+            if (task.beginTimeout()) {
+                started.add(task);
+                timers.add(task.getTimer());
+            }
+        }
+        if (started.isEmpty()) {
+            return;
+        }
+        this.batchCount.incrementAndGet();
+        this.batchedTimeoutCount.addAndGet(started.size());
+        // the timeouts being retried are completed by their retry
+        final List<TimerTask<?>> completing = new ArrayList<TimerTask<?>>(started);
+        try {
+            for (TimerTask<?> task : started) {
+                task.scheduleNextTimeout();
+            }
+            final long start = System.nanoTime();
+            try {
+                this.invoker.callTimeouts(timers);
+            } finally {
+                this.metrics.recordInvocation(System.nanoTime() - start);
+            }
+        } catch (Exception e) {
+            this.failedBatchCount.incrementAndGet();
+            logger.error("Error invoking the timeouts of a batch of " + started.size() + " timers of timed object "
+                    + this.invoker.getTimedObjectId() + ", each of them will be retried", e);
+            completing.clear();
+            for (TimerTask<?> task : started) {
+                try {
+                    if (!task.timeoutFailed(e)) {
+                        completing.add(task);
+                    }
+                } catch (RuntimeException retryException) {
+                    logger.error("Error scheduling the retry of timer: " + task.getTimer(), retryException);
+                    completing.add(task);
+                }
+            }
+        } finally {
+            for (TimerTask<?> task : completing) {
+                try {
+                    task.postTimeoutProcessing();
+                } catch (RuntimeException e) {
+                    logger.error("Error completing the timeout of timer: " + task.getTimer(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The timeouts collected within one window, in the order they fired
+     */
+    private final class Batch implements Runnable {
+
+        private final Map<Object, TimerTask<?>> tasks = new LinkedHashMap<Object, TimerTask<?>>();
+
+        private ScheduledTimeout closeTimeout;
+
+        @Override
+        public void run() {
+            try {
+                deliver(this);
+            } finally {
+                completed(this);
+            }
+        }
+    }
+
+    /**
+     * Closes and dispatches a batch once its window has elapsed
+     */
+    private final class Close implements Runnable {
+
+        private final Batch batch;
+
+        Close(final Batch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void run() {
+            synchronized (TimeoutBatcher.this) {
+                if (open != this.batch) {
+                    // already dispatched, since it was full
+                    return;
+                }
+                close(this.batch);
+            }
+            dispatch(this.batch);
+        }
+    }
+}
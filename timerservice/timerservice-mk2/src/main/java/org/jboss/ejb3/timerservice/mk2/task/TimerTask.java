@@ -21,6 +21,7 @@
  */
 package org.jboss.ejb3.timerservice.mk2.task;
 
+import org.jboss.ejb3.timerservice.mk2.RetryPolicy;
 import org.jboss.ejb3.timerservice.mk2.TimerImpl;
 import org.jboss.ejb3.timerservice.mk2.TimerServiceImpl;
 import org.jboss.ejb3.timerservice.mk2.TimerState;
@@ -89,9 +90,42 @@ public class TimerTask<T extends TimerImpl> implements Runnable {
      * Additionally, for calendar timers, this method even schedules the next timeout timer task
      * before calling the timeout method for the current timeout.
      * </p>
+     * <p>
+     * If the timeout method fails, the timeout is retried later, according to the {@link RetryPolicy}
+     * of the timer service. The thread isn't held in the mean time.
+     * </p>
      */
     @Override
     public void run() {
+        if (!this.beginTimeout()) {
+            return;
+        }
+        this.invokeTimeout();
+    }
+
+    /**
+     * Invokes the timeout method, and completes the timeout unless it failed and a retry was scheduled
+     */
+    private void invokeTimeout() {
+        boolean retrying = false;
+        try {
+            // invoke timeout
+            this.timedCallTimeout();
+        } catch (Exception e) {
+            retrying = this.timeoutFailed(e);
+        } finally {
+            if (!retrying) {
+                this.postTimeoutProcessing();
+            }
+        }
+    }
+
+    /**
+     * Sets the previous run and the next timeout of the timer, and marks it as in timeout method.
+     *
+     * @return False if this timeout must be skipped, because the timer is being retried
+     */
+    protected boolean beginTimeout() {
         Date now = new Date();
         logger.debug("Timer task invoked at: " + now + " for timer " + this.timer);
 
@@ -99,12 +133,17 @@ public class TimerTask<T extends TimerImpl> implements Runnable {
         // interval to execute until the retry is complete. See JIRA-1926.
         if (this.timer.isInRetry()) {
             logger.debug("Timer in retry mode, skipping this scheduled execution at: " + now);
-            return;
+            this.timeoutSkipped();
+            return false;
         }
 
         if (this.timer.isActive() == false) {
             logger.debug("Timer is not active, skipping this scheduled execution at: " + now);
         }
+        final long scheduled = this.timer.getNextExpirationMillis();
+        if (scheduled != TimerImpl.NO_DATE) {
+            this.timerService.getMetrics().recordLateness(now.getTime() - scheduled);
+        }
         // set the current date as the "previous run" of the timer.
         this.timer.setPreviousRun(new Date());
         Date nextTimeout = this.calculateNextTimeout();
@@ -114,22 +153,91 @@ public class TimerTask<T extends TimerImpl> implements Runnable {
 
         // persist changes
         this.timerService.persistTimer(this.timer);
+        return true;
+    }
 
-        try {
-            // invoke timeout
-            this.callTimeout();
-        } catch (Exception e) {
-            logger.error("Error invoking timeout for timer: " + this.timer, e);
-            try {
-                logger.info("Timer: " + this.timer + " will be retried");
+    /**
+     * Called instead of the timeout method when a timeout fires while the timer is being retried.
+     * Does nothing, since the timer service schedules the following timeouts of interval timers.
+     */
+    protected void timeoutSkipped() {
+    }
+
+    /**
+     * Handles a failure of the timeout method (or of a retry of it), by scheduling a retry according to
+     * the {@link RetryPolicy} of the timer service. The timer stays in {@link TimerState#RETRY_TIMEOUT}
+     * until a retry succeeds or the retries are used up.
+     *
+     * @param e The failure
+     * @return True if a retry was scheduled, in which case the timeout must not be completed yet. False if
+     *         the timeout won't be retried.
+     */
+    protected boolean timeoutFailed(Exception e) {
+        this.timerService.getMetrics().recordFailure();
+        logger.error("Error invoking timeout for timer: " + this.timer, e);
+        if (!this.timer.isActive()) {
+            logger.info("Timer is not active, skipping retry of timer: " + this.timer);
+            return false;
+        }
+        final RetryPolicy retryPolicy = this.timerService.getRetryPolicy();
+        final int attempt = this.timer.getRetryAttempts() + 1;
+        if (attempt > retryPolicy.getMaxAttempts()) {
+            if (retryPolicy.getMaxAttempts() > 0) {
+                // that's it, we can't do anything more
+                logger.error("Giving up on the timeout of timer: " + this.timer + " after " + retryPolicy.getMaxAttempts() + " retries");
+            }
+            return false;
+        }
+        final long delay = retryPolicy.getDelay(attempt);
+        logger.info("Timer: " + this.timer + " will be retried in " + delay + " milli seconds");
+        this.timer.setRetry(attempt, System.currentTimeMillis() + delay);
+        this.timer.setTimerState(TimerState.RETRY_TIMEOUT);
+        // persist changes, so that the retry survives a restart
+        this.timerService.persistTimer(this.timer);
+        this.scheduleRetry();
+        return true;
+    }
+
+    /**
+     * Schedules the pending retry of the timer, at the time of its next retry
+     */
+    public void scheduleRetry() {
+        final long nextRetry = this.timer.getNextRetryMillis();
+        final long delay = nextRetry == TimerImpl.NO_DATE ? 0 : Math.max(0, nextRetry - System.currentTimeMillis());
+        this.timerService.scheduleRetry(this.timer, new Runnable() {
+            @Override
+            public void run() {
                 retryTimeout();
-            } catch (Exception retryException) {
-                // that's it, we can't do anything more. Let's just log the exception
-                // and return
-                logger.error("Error during retyring timeout for timer: " + timer, e);
             }
+        }, delay);
+    }
+
+    /**
+     * Returns true if the timeout method of the timer can be invoked along with the ones of
+     * other timers, through {@link org.jboss.ejb3.timerservice.spi.BatchTimedObjectInvoker#callTimeouts(java.util.List)}
+     *
+     * @return
+     */
+    public boolean isBatchable() {
+        return true;
+    }
+
+    /**
+     * Schedules the next timeout of the timer, if the timer service doesn't schedule it. Called
+     * right before the timeout method is invoked.
+     */
+    protected void scheduleNextTimeout() {
+    }
+
+    /**
+     * Invokes {@link #callTimeout()}, and records the duration of the invocation in the metrics of the timer service
+     */
+    private void timedCallTimeout() throws Exception {
+        final long start = System.nanoTime();
+        try {
+            this.callTimeout();
         } finally {
-            this.postTimeoutProcessing();
+            this.timerService.getMetrics().recordInvocation(System.nanoTime() - start);
         }
     }
 
@@ -153,21 +261,20 @@ public class TimerTask<T extends TimerImpl> implements Runnable {
         return this.timer;
     }
 
-    protected void retryTimeout() throws Exception {
-        if (this.timer.isActive()) {
-            logger.info("Retrying timeout for timer: " + this.timer);
-            this.timer.setTimerState(TimerState.RETRY_TIMEOUT);
-            this.timerService.persistTimer(this.timer);
-
-            this.callTimeout();
-        } else {
-            logger.info("Timer is not active, skipping retry of timer: " + this.timer);
+    protected void retryTimeout() {
+        if (!this.timer.isInRetry()) {
+            logger.info("Timer is no longer in retry, skipping retry of timer: " + this.timer);
+            return;
         }
+        logger.info("Retrying timeout for timer: " + this.timer + ", attempt " + this.timer.getRetryAttempts());
+        this.timerService.getMetrics().recordRetry();
+        this.invokeTimeout();
     }
 
     protected void postTimeoutProcessing() {
         TimerState timerState = this.timer.getState();
         if (timerState == TimerState.IN_TIMEOUT || timerState == TimerState.RETRY_TIMEOUT) {
+            this.timer.setRetry(0, TimerImpl.NO_DATE);
             if (this.timer.getInterval() == 0) {
                 this.timer.expireTimer();
             } else {
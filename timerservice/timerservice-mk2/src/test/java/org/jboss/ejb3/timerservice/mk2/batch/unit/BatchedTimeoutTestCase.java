@@ -0,0 +1,219 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.batch.unit;
+
+import org.jboss.ejb3.timerservice.mk2.TimerServiceImpl;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
+import org.jboss.ejb3.timerservice.mk2.task.TimeoutBatcher;
+import org.jboss.ejb3.timerservice.spi.BatchTimedObjectInvoker;
+import org.jboss.ejb3.timerservice.spi.TimedObjectInvoker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.transaction.TransactionManager;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the batched delivery of the timeouts of a {@link TimerServiceImpl}
+ *
+ * @version $Revision: $
+ */
+public class BatchedTimeoutTestCase {
+
+    private TimingWheelScheduler scheduler;
+
+    private ExecutorService executor;
+
+    private TransactionManager transactionManager;
+
+    private Invoker invoker;
+
+    private TimerServiceImpl timerService;
+
+    @Before
+    public void before() throws Exception {
+        this.scheduler = new TimingWheelScheduler("test-wheel");
+        this.executor = Executors.newFixedThreadPool(4);
+        this.transactionManager = new TestTransactionManager();
+        this.invoker = new Invoker();
+        this.timerService = new TimerServiceImpl(this.scheduler, this.invoker, null, this.transactionManager, this.executor);
+    }
+
+    @After
+    public void after() {
+        this.scheduler.shutdown();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Tests that timers expiring together are delivered in a single batch, and then expire
+     */
+    @Test
+    public void testBatchedDelivery() throws Exception {
+        this.timerService.enableBatchedDelivery(200, TimeoutBatcher.DEFAULT_MAX_BATCH_SIZE);
+        this.createTimers(10);
+
+        Thread.sleep(800);
+        assertEquals("Timeouts weren't delivered in one batch", 1, this.invoker.getBatches().size());
+        assertEquals(10, this.invoker.getBatches().get(0).size());
+        assertEquals(this.expectedInfos(10), this.invoker.getDeliveredInfos());
+        assertEquals("Timeouts were delivered on their own", 0, this.invoker.getSingleTimeouts());
+        assertTrue("Timers didn't expire", this.timerService.getTimers().isEmpty());
+        assertEquals(10, this.timerService.getTimeoutBatcher().getBatchedTimeoutCount());
+    }
+
+    /**
+     * Tests that a batch is delivered as soon as it is full
+     */
+    @Test
+    public void testMaxBatchSize() throws Exception {
+        this.timerService.enableBatchedDelivery(200, 4);
+        this.createTimers(10);
+
+        Thread.sleep(800);
+        final List<List<Serializable>> batches = this.invoker.getBatches();
+        assertEquals(3, batches.size());
+        for (List<Serializable> batch : batches) {
+            assertTrue("Batch of " + batch.size() + " timeouts", batch.size() <= 4);
+        }
+        assertEquals(this.expectedInfos(10), this.invoker.getDeliveredInfos());
+    }
+
+    /**
+     * Tests that each timer of a failed batch is retried on its own
+     */
+    @Test
+    public void testFailedBatch() throws Exception {
+        this.invoker.failBatches = true;
+        this.timerService.enableBatchedDelivery(200, TimeoutBatcher.DEFAULT_MAX_BATCH_SIZE);
+        this.createTimers(5);
+
+        Thread.sleep(800);
+        assertEquals(1, this.timerService.getTimeoutBatcher().getFailedBatchCount());
+        assertEquals("Timers weren't retried on their own", 5, this.invoker.getSingleTimeouts());
+        assertEquals(this.expectedInfos(5), this.invoker.getDeliveredInfos());
+        assertTrue("Timers didn't expire", this.timerService.getTimers().isEmpty());
+    }
+
+    /**
+     * Tests that batched delivery can't be enabled for an invoker which doesn't support it
+     */
+    @Test
+    public void testInvokerWithoutBatchSupport() throws Exception {
+        final TimedObjectInvoker singleInvoker = mock(TimedObjectInvoker.class);
+        when(singleInvoker.getTimedObjectId()).thenReturn("bean");
+        final TimerServiceImpl service = new TimerServiceImpl(this.scheduler, singleInvoker, null, this.transactionManager, this.executor);
+        try {
+            service.enableBatchedDelivery(200, TimeoutBatcher.DEFAULT_MAX_BATCH_SIZE);
+            fail("Batched delivery was enabled for an invoker without batch support");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+    }
+
+    private void createTimers(final int count) {
+        final Date expiration = new Date(System.currentTimeMillis() + 100);
+        for (int i = 0; i < count; i++) {
+            this.timerService.createSingleActionTimer(expiration, new TimerConfig(i, false));
+        }
+    }
+
+    private Set<Serializable> expectedInfos(final int count) {
+        final Set<Serializable> infos = new HashSet<Serializable>();
+        for (int i = 0; i < count; i++) {
+            infos.add(i);
+        }
+        return infos;
+    }
+
+    /**
+     * Records the infos of the timers whose timeouts were delivered
+     */
+    private static class Invoker implements BatchTimedObjectInvoker {
+
+        private volatile boolean failBatches;
+
+        private final List<List<Serializable>> batches = new ArrayList<List<Serializable>>();
+
+        private final Set<Serializable> deliveredInfos = new HashSet<Serializable>();
+
+        private int singleTimeouts;
+
+        public synchronized List<List<Serializable>> getBatches() {
+            return new ArrayList<List<Serializable>>(this.batches);
+        }
+
+        public synchronized Set<Serializable> getDeliveredInfos() {
+            return new HashSet<Serializable>(this.deliveredInfos);
+        }
+
+        public synchronized int getSingleTimeouts() {
+            return this.singleTimeouts;
+        }
+
+        @Override
+        public synchronized void callTimeouts(final List<Timer> timers) throws Exception {
+            if (this.failBatches) {
+                throw new Exception("Batch failed");
+            }
+            final List<Serializable> batch = new ArrayList<Serializable>();
+            for (Timer timer : timers) {
+                batch.add(timer.getInfo());
+            }
+            this.batches.add(batch);
+            this.deliveredInfos.addAll(batch);
+        }
+
+        @Override
+        public synchronized void callTimeout(final Timer timer) throws Exception {
+            this.singleTimeouts++;
+            this.deliveredInfos.add(timer.getInfo());
+        }
+
+        @Override
+        public String getTimedObjectId() {
+            return "bean";
+        }
+
+        @Override
+        public ClassLoader getClassLoader() {
+            return BatchedTimeoutTestCase.class.getClassLoader();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.bulk.benchmark;
+
+import org.jboss.ejb3.timerservice.api.TimerDefinition;
+import org.jboss.ejb3.timerservice.mk2.TimerServiceImpl;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.persistence.journal.JournalTimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
+import org.jboss.ejb3.timerservice.spi.ScheduleTimer;
+import org.jboss.ejb3.timerservice.spi.TimedObjectInvoker;
+import org.jboss.marshalling.ContextClassResolver;
+
+import javax.ejb.TimerConfig;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares creating and cancelling persistent timers one by one, through
+ * {@link TimerServiceImpl#createSingleActionTimer(Date, TimerConfig)} and {@link javax.ejb.Timer#cancel()},
+ * with doing it in bulk, through {@link TimerServiceImpl#createTimers(List)} and {@link TimerServiceImpl#cancelTimers()},
+ * on a {@link JournalTimerPersistence}.
+ * <p>
+ * Not run as part of the build. Run the <code>main</code> method, optionally passing the number
+ * of timers per run and the directory to write to.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class BulkTimerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int timers = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final File dir = args.length > 1 ? new File(args[1]) : new File(System.getProperty("java.io.tmpdir"), "bulk-timer-benchmark");
+
+        final TransactionManager transactionManager = new TestTransactionManager();
+        final TransactionSynchronizationRegistry registry = mock(TransactionSynchronizationRegistry.class);
+        final TimedObjectInvoker invoker = mock(TimedObjectInvoker.class);
+        when(invoker.getTimedObjectId()).thenReturn("bean");
+        when(invoker.getClassLoader()).thenReturn(BulkTimerBenchmark.class.getClassLoader());
+
+        delete(dir);
+        final TimerPersistence persistence = new JournalTimerPersistence(transactionManager, registry, dir, true,
+                new ContextClassResolver(), JournalTimerPersistence.DEFAULT_SEGMENT_SIZE,
+                JournalTimerPersistence.DEFAULT_COMPACTION_THRESHOLD);
+        persistence.start();
+        final TimingWheelScheduler scheduler = new TimingWheelScheduler("benchmark-wheel");
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final TimerServiceImpl timerService = new TimerServiceImpl(scheduler, invoker, persistence, transactionManager, executor);
+            timerService.restoreTimers(Collections.<ScheduleTimer>emptyList());
+
+            System.out.println(timers + " timers per run, writing to " + dir);
+            for (int round = 0; round < 3; round++) {
+                System.out.println("Round " + round);
+                runOneByOne(timerService, timers);
+                runBulk(timerService, timers);
+            }
+        } finally {
+            scheduler.shutdown();
+            executor.shutdownNow();
+            persistence.stop();
+        }
+    }
+
+    private static void runOneByOne(final TimerServiceImpl timerService, final int timers) {
+        // timers far enough in the future to never fire during the benchmark
+        final Date expiration = new Date(System.currentTimeMillis() + 3600000);
+        final List<javax.ejb.Timer> created = new ArrayList<javax.ejb.Timer>(timers);
+        final long begin = System.nanoTime();
+        for (int i = 0; i < timers; i++) {
+            created.add(timerService.createSingleActionTimer(expiration, new TimerConfig("timer " + i, true)));
+        }
+        final long createdAt = System.nanoTime();
+        for (javax.ejb.Timer timer : created) {
+            timer.cancel();
+        }
+        print("one by one", timers, createdAt - begin, System.nanoTime() - createdAt);
+    }
+
+    private static void runBulk(final TimerServiceImpl timerService, final int timers) {
+        final Date expiration = new Date(System.currentTimeMillis() + 3600000);
+        final List<TimerDefinition> definitions = new ArrayList<TimerDefinition>(timers);
+        for (int i = 0; i < timers; i++) {
+            definitions.add(TimerDefinition.singleAction(expiration, new TimerConfig("timer " + i, true)));
+        }
+        final long begin = System.nanoTime();
+        timerService.createTimers(definitions);
+        final long createdAt = System.nanoTime();
+        timerService.cancelTimers();
+        print("bulk", timers, createdAt - begin, System.nanoTime() - createdAt);
+    }
+
+    private static void print(final String name, final int timers, final long createNanos, final long cancelNanos) {
+        System.out.println(String.format("  %-12s create %8d ms (%10.0f timers/s), cancel %8d ms (%10.0f timers/s)", name,
+                TimeUnit.NANOSECONDS.toMillis(createNanos), timers / (createNanos / 1e9),
+                TimeUnit.NANOSECONDS.toMillis(cancelNanos), timers / (cancelNanos / 1e9)));
+    }
+
+    private static void delete(final File file) throws IOException {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+}
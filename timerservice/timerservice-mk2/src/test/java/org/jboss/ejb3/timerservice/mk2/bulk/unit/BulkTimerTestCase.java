@@ -0,0 +1,263 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.bulk.unit;
+
+import org.jboss.ejb3.timerservice.api.TimerDefinition;
+import org.jboss.ejb3.timerservice.api.TimerInfoFilter;
+import org.jboss.ejb3.timerservice.mk2.TimerImpl;
+import org.jboss.ejb3.timerservice.mk2.TimerServiceImpl;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionSynchronizationRegistry;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
+import org.jboss.ejb3.timerservice.spi.ScheduleTimer;
+import org.jboss.ejb3.timerservice.spi.TimedObjectInvoker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.ejb.ScheduleExpression;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests {@link TimerServiceImpl#createTimers(List)} and {@link TimerServiceImpl#cancelTimers(TimerInfoFilter)}
+ *
+ * @version $Revision: $
+ */
+public class BulkTimerTestCase {
+
+    private TimingWheelScheduler scheduler;
+
+    private ExecutorService executor;
+
+    private TimerPersistence persistence;
+
+    private TestTransactionManager transactionManager;
+
+    private TimerServiceImpl timerService;
+
+    @Before
+    public void before() throws Exception {
+        this.scheduler = new TimingWheelScheduler("test-wheel");
+        this.executor = Executors.newSingleThreadExecutor();
+        this.persistence = mock(TimerPersistence.class);
+        when(this.persistence.loadActiveTimers(anyString())).thenReturn(Collections.<TimerEntity>emptyList());
+        this.transactionManager = new TestTransactionManager();
+        final TimedObjectInvoker invoker = mock(TimedObjectInvoker.class);
+        when(invoker.getTimedObjectId()).thenReturn("bean");
+        when(invoker.getClassLoader()).thenReturn(this.getClass().getClassLoader());
+        this.timerService = new TimerServiceImpl(this.scheduler, invoker, this.persistence, this.transactionManager, this.executor);
+        this.timerService.restoreTimers(Collections.<ScheduleTimer>emptyList());
+    }
+
+    @After
+    public void after() {
+        this.scheduler.shutdown();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Tests that the timers are created as by the single timer methods, and that the persistent ones
+     * are written in one batch
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCreateTimers() throws Exception {
+        final Date expiration = new Date(System.currentTimeMillis() + 60000);
+        final List<org.jboss.ejb3.timerservice.api.Timer> timers = this.timerService.createTimers(Arrays.asList(
+                TimerDefinition.singleAction(expiration, new TimerConfig("single", true)),
+                TimerDefinition.interval(expiration, 1000, new TimerConfig("interval", false)),
+                TimerDefinition.calendar(new ScheduleExpression().year("2100"), null)));
+
+        assertEquals(3, timers.size());
+        assertEquals("single", timers.get(0).getInfo());
+        assertEquals(expiration, timers.get(0).getNextTimeout());
+        assertTrue(timers.get(0).isPersistent());
+        assertEquals("interval", timers.get(1).getInfo());
+        assertFalse(timers.get(1).isPersistent());
+        assertTrue(timers.get(2).isCalendarTimer());
+        assertTrue(timers.get(2).isPersistent());
+        final Set<String> ids = new HashSet<String>();
+        for (org.jboss.ejb3.timerservice.api.Timer timer : timers) {
+            assertTrue(timer.isActive());
+            ids.add(((TimerImpl) timer).getId());
+        }
+        assertEquals("Timer ids are not unique", 3, ids.size());
+        assertEquals(3, this.timerService.getTimers().size());
+
+        final ArgumentCaptor<Collection> entities = ArgumentCaptor.forClass(Collection.class);
+        verify(this.persistence).persistTimers(entities.capture());
+        assertEquals(2, entities.getValue().size());
+        verify(this.persistence, never()).persistTimer(any(TimerEntity.class));
+        verify(this.persistence, never()).updateTimerState(any(TimerEntity.class));
+    }
+
+    /**
+     * Tests that no timer is created if one of the definitions is invalid
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCreateTimersInvalid() throws Exception {
+        try {
+            this.timerService.createTimers(Arrays.asList(
+                    TimerDefinition.singleAction(new Date(System.currentTimeMillis() + 60000), null), null));
+            fail("Null timer definition was accepted");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        assertTrue(this.timerService.getTimers().isEmpty());
+        verify(this.persistence, never()).persistTimers(anyCollection());
+    }
+
+    /**
+     * Tests that only the timers accepted by the filter are cancelled, and that the persistent ones are removed
+     * in one batch
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCancelTimersByInfo() throws Exception {
+        final Date expiration = new Date(System.currentTimeMillis() + 60000);
+        this.timerService.createTimers(Arrays.asList(
+                TimerDefinition.singleAction(expiration, new TimerConfig("a", true)),
+                TimerDefinition.singleAction(expiration, new TimerConfig("b", true)),
+                TimerDefinition.singleAction(expiration, new TimerConfig("a", false)),
+                TimerDefinition.singleAction(expiration, new TimerConfig("a", true)),
+                TimerDefinition.singleAction(expiration, null)));
+
+        final int cancelled = this.timerService.cancelTimers(new TimerInfoFilter() {
+            public boolean accept(Serializable info) {
+                return "a".equals(info);
+            }
+        });
+
+        assertEquals(3, cancelled);
+        final Collection<Timer> timers = this.timerService.getTimers();
+        assertEquals(2, timers.size());
+        for (Timer timer : timers) {
+            assertFalse("a".equals(timer.getInfo()));
+        }
+        final ArgumentCaptor<Collection> entities = ArgumentCaptor.forClass(Collection.class);
+        verify(this.persistence).removeTimers(entities.capture());
+        assertEquals(2, entities.getValue().size());
+        verify(this.persistence, never()).removeTimer(any(TimerEntity.class));
+    }
+
+    /**
+     * Tests that timers cancelled in a transaction are restored if it is rolled back, and removed once it commits
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCancelTimersInTx() throws Exception {
+        final Date expiration = new Date(System.currentTimeMillis() + 60000);
+        this.timerService.createTimers(Arrays.asList(
+                TimerDefinition.singleAction(expiration, null),
+                TimerDefinition.singleAction(expiration, null)));
+
+        Transaction tx = mock(Transaction.class);
+        this.transactionManager.setTransaction(tx);
+        assertEquals(2, this.timerService.cancelTimers());
+        assertTrue(this.timerService.getTimers().isEmpty());
+        ArgumentCaptor<Synchronization> synchronization = ArgumentCaptor.forClass(Synchronization.class);
+        verify(tx).registerSynchronization(synchronization.capture());
+        synchronization.getValue().afterCompletion(Status.STATUS_ROLLEDBACK);
+        assertEquals(2, this.timerService.getTimers().size());
+        verify(this.persistence, never()).removeTimers(anyCollection());
+
+        tx = mock(Transaction.class);
+        this.transactionManager.setTransaction(tx);
+        assertEquals(2, this.timerService.cancelTimers());
+        synchronization = ArgumentCaptor.forClass(Synchronization.class);
+        verify(tx).registerSynchronization(synchronization.capture());
+        synchronization.getValue().afterCompletion(Status.STATUS_COMMITTED);
+        assertTrue(this.timerService.getTimers().isEmpty());
+        final ArgumentCaptor<Collection> entities = ArgumentCaptor.forClass(Collection.class);
+        verify(this.persistence).removeTimers(entities.capture());
+        assertEquals(2, entities.getValue().size());
+    }
+
+    /**
+     * Tests that the timers created and cancelled in a transaction are completed by a single synchronization,
+     * which removes the cancelled persistent timers in one batch
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSingleSynchronizationPerTx() throws Exception {
+        final Date expiration = new Date(System.currentTimeMillis() + 60000);
+        final List<org.jboss.ejb3.timerservice.api.Timer> existing = this.timerService.createTimers(Arrays.asList(
+                TimerDefinition.singleAction(expiration, new TimerConfig("a", true)),
+                TimerDefinition.singleAction(expiration, new TimerConfig("b", true))));
+
+        this.timerService.setTransactionSynchronizationRegistry(new TestTransactionSynchronizationRegistry());
+        final Transaction tx = mock(Transaction.class);
+        this.transactionManager.setTransaction(tx);
+        this.timerService.createSingleActionTimer(expiration, new TimerConfig("c", true));
+        this.timerService.createTimers(Arrays.asList(TimerDefinition.singleAction(expiration, new TimerConfig("d", true))));
+        existing.get(0).cancel();
+        assertEquals(1, this.timerService.cancelTimers(new TimerInfoFilter() {
+            public boolean accept(Serializable info) {
+                return "b".equals(info);
+            }
+        }));
+
+        final ArgumentCaptor<Synchronization> synchronization = ArgumentCaptor.forClass(Synchronization.class);
+        verify(tx).registerSynchronization(synchronization.capture());
+        synchronization.getValue().afterCompletion(Status.STATUS_COMMITTED);
+        this.transactionManager.setTransaction(null);
+        final Set<Serializable> infos = new HashSet<Serializable>();
+        for (Timer timer : this.timerService.getTimers()) {
+            infos.add(timer.getInfo());
+        }
+        assertEquals(new HashSet<Serializable>(Arrays.asList("c", "d")), infos);
+        final ArgumentCaptor<Collection> entities = ArgumentCaptor.forClass(Collection.class);
+        verify(this.persistence).removeTimers(entities.capture());
+        assertEquals(2, entities.getValue().size());
+        verify(this.persistence, never()).removeTimer(any(TimerEntity.class));
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.catchup.unit;
+
+import org.jboss.ejb3.timerservice.mk2.CatchUpPolicy;
+import org.jboss.ejb3.timerservice.mk2.TimerServiceImpl;
+import org.jboss.ejb3.timerservice.mk2.common.InMemoryTimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.common.RecordingInvoker;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
+import org.jboss.ejb3.timerservice.spi.ScheduleTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ejb.ScheduleExpression;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests how the {@link CatchUpPolicy} of a {@link TimerServiceImpl} applies to interval and calendar
+ * timers whose timeouts were missed
+ *
+ * @version $Revision: $
+ */
+public class CatchUpPolicyTestCase {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private TimingWheelScheduler scheduler;
+
+    private ExecutorService executor;
+
+    private InMemoryTimerPersistence persistence;
+
+    private RecordingInvoker invoker;
+
+    private TimerServiceImpl timerService;
+
+    @Before
+    public void before() throws Exception {
+        this.scheduler = new TimingWheelScheduler("test-wheel");
+        this.executor = Executors.newSingleThreadExecutor();
+        this.persistence = new InMemoryTimerPersistence();
+        this.invoker = new RecordingInvoker("bean");
+        this.timerService = this.createTimerService(this.invoker);
+    }
+
+    @After
+    public void after() {
+        this.scheduler.shutdown();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Tests that the missed timeouts fire once, and that the timer then continues on its schedule
+     */
+    @Test
+    public void testFireOnce() throws Exception {
+        this.timerService.setCatchUpPolicy(CatchUpPolicy.FIRE_ONCE);
+        final long start = System.currentTimeMillis() - 10000;
+        final Timer timer = this.timerService.createIntervalTimer(new Date(start), 1000, new TimerConfig(null, false));
+
+        Thread.sleep(300);
+        assertEquals("Missed timeouts didn't fire exactly once", 1, this.invoker.getTimeouts().size());
+        assertAligned(start, 1000, timer.getNextTimeout());
+    }
+
+    /**
+     * Tests that the missed timeouts don't fire, and that the timer continues on its schedule
+     */
+    @Test
+    public void testSkip() throws Exception {
+        this.timerService.setCatchUpPolicy(CatchUpPolicy.SKIP);
+        // the next timeout is 300 ms away
+        final long start = System.currentTimeMillis() - 5700;
+        final Timer timer = this.timerService.createIntervalTimer(new Date(start), 1000, new TimerConfig(null, false));
+        assertAligned(start, 1000, timer.getNextTimeout());
+
+        Thread.sleep(100);
+        assertEquals("Missed timeouts fired", 0, this.invoker.getTimeouts().size());
+        Thread.sleep(500);
+        assertEquals("Next timeout didn't fire", 1, this.invoker.getTimeouts().size());
+    }
+
+    /**
+     * Tests that each of the missed timeouts fires, no more often than the catch-up interval
+     */
+    @Test
+    public void testFireAll() throws Exception {
+        this.timerService.setCatchUpPolicy(CatchUpPolicy.FIRE_ALL);
+        this.timerService.setCatchUpInterval(100);
+        // 4 missed timeouts, the next one is 5 seconds away
+        final long start = System.currentTimeMillis() - 35000;
+        final Timer timer = this.timerService.createIntervalTimer(new Date(start), 10000, new TimerConfig(null, false));
+
+        Thread.sleep(1000);
+        final List<Long> timeouts = this.invoker.getTimeouts();
+        assertEquals("Not all missed timeouts fired", 4, timeouts.size());
+        for (int i = 1; i < timeouts.size(); i++) {
+            final long gap = timeouts.get(i) - timeouts.get(i - 1);
+            assertTrue("Catch-up timeouts fired " + gap + " ms apart", gap >= 100);
+        }
+        assertEquals(start + 40000, timer.getNextTimeout().getTime());
+    }
+
+    /**
+     * Tests that the missed timeouts of a calendar timer fire once, right away, and that the timer then
+     * continues on its schedule from the time of that timeout
+     */
+    @Test
+    public void testCalendarFireOnce() throws Exception {
+        this.timerService.setCatchUpPolicy(CatchUpPolicy.FIRE_ONCE);
+        final long restored = System.currentTimeMillis();
+        final Timer timer = this.restoreHourlyTimer(restored - 3 * HOUR);
+
+        Thread.sleep(300);
+        final List<Long> timeouts = this.invoker.getTimeouts();
+        assertEquals("Missed timeouts didn't fire exactly once", 1, timeouts.size());
+        assertTrue("Missed timeouts fired " + (timeouts.get(0) - restored) + " ms after the timer was restored",
+                timeouts.get(0) - restored < 250);
+        assertEquals(new Date(nextHour(timeouts.get(0))), timer.getNextTimeout());
+    }
+
+    /**
+     * Tests that the missed timeouts of a calendar timer don't fire, and that its next timeout is the first
+     * one of its schedule after the current time
+     */
+    @Test
+    public void testCalendarSkip() throws Exception {
+        this.timerService.setCatchUpPolicy(CatchUpPolicy.SKIP);
+        final long restored = System.currentTimeMillis();
+        final Timer timer = this.restoreHourlyTimer(restored - 3 * HOUR);
+        assertEquals(new Date(nextHour(restored)), timer.getNextTimeout());
+
+        Thread.sleep(300);
+        assertEquals("Missed timeouts fired", 0, this.invoker.getTimeouts().size());
+    }
+
+    private TimerServiceImpl createTimerService(final RecordingInvoker invoker) {
+        return new TimerServiceImpl(this.scheduler, invoker, this.persistence, new TestTransactionManager(), this.executor);
+    }
+
+    /**
+     * Persists a calendar timer which fires at the start of each hour, and restores it with the given next
+     * timeout, as if the server had been down since then
+     */
+    private Timer restoreHourlyTimer(final long nextTimeout) {
+        final TimerServiceImpl previous = this.createTimerService(new RecordingInvoker("bean"));
+        previous.createCalendarTimer(new ScheduleExpression().hour("*"), new TimerConfig(null, true));
+        previous.suspendTimers();
+        final List<TimerEntity> entities = this.persistence.loadActiveTimers("bean");
+        assertEquals(1, entities.size());
+        entities.get(0).setNextDate(new Date(nextTimeout));
+
+        this.timerService.restoreTimers(Collections.<ScheduleTimer>emptyList());
+        return this.timerService.getTimers().iterator().next();
+    }
+
+    /**
+     * @return The start of the first hour after the given time
+     */
+    private static long nextHour(final long time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.HOUR_OF_DAY, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private static void assertAligned(final long start, final long interval, final Date nextTimeout) {
+        assertTrue("Next timeout " + nextTimeout + " is in the past", nextTimeout.getTime() >= System.currentTimeMillis());
+        assertEquals("Next timeout " + nextTimeout + " isn't aligned to the schedule", 0, (nextTimeout.getTime() - start) % interval);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.common;
+
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerPersistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link TimerPersistence} which keeps the timer entities in memory
+ *
+ * @version $Revision: $
+ */
+public class InMemoryTimerPersistence implements TimerPersistence {
+
+    private final Map<String, TimerEntity> timers = new ConcurrentHashMap<String, TimerEntity>();
+
+    @Override
+    public void persistTimer(TimerEntity timerEntity) {
+        this.timers.put(timerEntity.getId(), timerEntity);
+    }
+
+    @Override
+    public void persistTimers(Collection<TimerEntity> timerEntities) {
+        for (TimerEntity timerEntity : timerEntities) {
+            this.persistTimer(timerEntity);
+        }
+    }
+
+    @Override
+    public void updateTimerState(TimerEntity timerEntity) {
+        this.timers.put(timerEntity.getId(), timerEntity);
+    }
+
+    @Override
+    public TimerEntity loadTimer(String id, String timedObjectId) {
+        return this.timers.get(id);
+    }
+
+    @Override
+    public void removeTimer(TimerEntity timerEntity) {
+        this.timers.remove(timerEntity.getId());
+    }
+
+    @Override
+    public void removeTimers(Collection<TimerEntity> timerEntities) {
+        for (TimerEntity timerEntity : timerEntities) {
+            this.removeTimer(timerEntity);
+        }
+    }
+
+    @Override
+    public List<TimerEntity> loadActiveTimers(String timedObjectId) {
+        final List<TimerEntity> active = new ArrayList<TimerEntity>();
+        for (TimerEntity entity : this.timers.values()) {
+            if (entity.getTimedObjectId().equals(timedObjectId)) {
+                active.add(entity);
+            }
+        }
+        return active;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+}
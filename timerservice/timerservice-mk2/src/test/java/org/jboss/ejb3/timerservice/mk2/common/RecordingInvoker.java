@@ -0,0 +1,94 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.common;
+
+import org.jboss.ejb3.timerservice.spi.TimedObjectInvoker;
+
+import javax.ejb.Timer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link TimedObjectInvoker} which records the info of the timer and the time of each timeout.
+ * Subclasses can make a timeout fail, or take time, by overriding {@link #timeout(Timer)}.
+ *
+ * @version $Revision: $
+ */
+public class RecordingInvoker implements TimedObjectInvoker {
+
+    private final String timedObjectId;
+
+    private final List<Object[]> timeouts = new ArrayList<Object[]>();
+
+    public RecordingInvoker(final String timedObjectId) {
+        this.timedObjectId = timedObjectId;
+    }
+
+    /**
+     * @return The times of all the timeouts, in the order they were invoked
+     */
+    public synchronized List<Long> getTimeouts() {
+        final List<Long> times = new ArrayList<Long>(this.timeouts.size());
+        for (Object[] timeout : this.timeouts) {
+            times.add((Long) timeout[1]);
+        }
+        return times;
+    }
+
+    /**
+     * @return The times of the timeouts of the timers with the given info
+     */
+    public synchronized List<Long> getTimeouts(final Object info) {
+        final List<Long> times = new ArrayList<Long>();
+        for (Object[] timeout : this.timeouts) {
+            if (info.equals(timeout[0])) {
+                times.add((Long) timeout[1]);
+            }
+        }
+        return times;
+    }
+
+    @Override
+    public void callTimeout(final Timer timer) throws Exception {
+        final Object info = timer.getInfo();
+        synchronized (this) {
+            this.timeouts.add(new Object[]{info, System.currentTimeMillis()});
+        }
+        this.timeout(timer);
+    }
+
+    /**
+     * Called after the timeout has been recorded. Does nothing by default.
+     */
+    protected void timeout(final Timer timer) throws Exception {
+    }
+
+    @Override
+    public String getTimedObjectId() {
+        return this.timedObjectId;
+    }
+
+    @Override
+    public ClassLoader getClassLoader() {
+        return RecordingInvoker.class.getClassLoader();
+    }
+}
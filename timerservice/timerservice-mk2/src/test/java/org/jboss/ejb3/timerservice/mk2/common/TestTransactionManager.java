@@ -0,0 +1,91 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.common;
+
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+/**
+ * A {@link TransactionManager} which only reports the status and the transaction it has been given,
+ * without a transaction by default. Not a mock, since mocks record every invocation.
+ *
+ * @version $Revision: $
+ */
+public class TestTransactionManager implements TransactionManager {
+
+    private volatile int status = Status.STATUS_NO_TRANSACTION;
+
+    private volatile Transaction transaction;
+
+    public void setStatus(final int status) {
+        this.status = status;
+    }
+
+    public void setTransaction(final Transaction transaction) {
+        this.transaction = transaction;
+    }
+
+    @Override
+    public int getStatus() {
+        return this.status;
+    }
+
+    @Override
+    public Transaction getTransaction() {
+        return this.transaction;
+    }
+
+    @Override
+    public void begin() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void commit() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void resume(Transaction tobj) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void rollback() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setRollbackOnly() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setTransactionTimeout(int seconds) {
+    }
+
+    @Override
+    public Transaction suspend() {
+        return null;
+    }
+}
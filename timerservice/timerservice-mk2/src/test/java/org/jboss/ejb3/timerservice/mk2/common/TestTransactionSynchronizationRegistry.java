@@ -0,0 +1,82 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.common;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link TransactionSynchronizationRegistry} of a single, active transaction, which keeps the registered
+ * synchronizations for the test to complete the transaction with
+ *
+ * @version $Revision: $
+ */
+public class TestTransactionSynchronizationRegistry implements TransactionSynchronizationRegistry {
+
+    private final Map<Object, Object> resources = new HashMap<Object, Object>();
+
+    private final List<Synchronization> synchronizations = new ArrayList<Synchronization>();
+
+    public List<Synchronization> getSynchronizations() {
+        return this.synchronizations;
+    }
+
+    /**
+     * Forgets the resources and synchronizations, as if a new transaction had begun
+     */
+    public void clear() {
+        this.resources.clear();
+        this.synchronizations.clear();
+    }
+
+    public Object getTransactionKey() {
+        return this;
+    }
+
+    public void putResource(final Object key, final Object value) {
+        this.resources.put(key, value);
+    }
+
+    public Object getResource(final Object key) {
+        return this.resources.get(key);
+    }
+
+    public void registerInterposedSynchronization(final Synchronization sync) {
+        this.synchronizations.add(sync);
+    }
+
+    public int getTransactionStatus() {
+        return Status.STATUS_ACTIVE;
+    }
+
+    public void setRollbackOnly() {
+    }
+
+    public boolean getRollbackOnly() {
+        return false;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.common;
+
+import org.jboss.ejb3.timerservice.mk2.TimerImpl;
+import org.jboss.ejb3.timerservice.mk2.TimerState;
+import org.jboss.ejb3.timerservice.mk2.persistence.MarshalledTimerInfo;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Creates the {@link TimerEntity}s the persistence tests store
+ *
+ * @version $Revision: $
+ */
+public final class TimerEntities {
+
+    private TimerEntities() {
+    }
+
+    /**
+     * @return The entity of an interval timer, with an initial expiration at 1000 and the next one at 2000
+     */
+    public static TimerEntity entity(final String id, final String timedObjectId, final TimerState state,
+                                     final Serializable info) {
+        final TimerImpl timer = mock(TimerImpl.class);
+        when(timer.getId()).thenReturn(id);
+        when(timer.getTimedObjectId()).thenReturn(timedObjectId);
+        when(timer.getInitialExpiration()).thenReturn(new Date(1000));
+        when(timer.getInterval()).thenReturn(1000L);
+        when(timer.getNextExpiration()).thenReturn(new Date(2000));
+        when(timer.getState()).thenReturn(state);
+        when(timer.getMarshalledInfo()).thenReturn(MarshalledTimerInfo.forInfo(info));
+        return new TimerEntity(timer);
+    }
+}
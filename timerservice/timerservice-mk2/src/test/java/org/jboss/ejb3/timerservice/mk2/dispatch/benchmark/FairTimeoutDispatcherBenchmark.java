@@ -0,0 +1,114 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.dispatch.benchmark;
+
+import org.jboss.ejb3.timer.schedule.CalendarBasedTimeoutCache;
+import org.jboss.ejb3.timerservice.mk2.TimerServiceImpl;
+import org.jboss.ejb3.timerservice.mk2.common.RecordingInvoker;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.dispatch.FairTimeoutDispatcher;
+import org.jboss.ejb3.timerservice.mk2.dispatch.TimeoutDispatcher;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
+
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how late the timeouts of a quiet bean fire while a noisy bean sharing the executor fires
+ * a burst of slow timeouts, with and without the {@link FairTimeoutDispatcher}.
+ * <p>
+ * Not run as part of the build. Run the <code>main</code> method, optionally passing the number
+ * of executor threads and the number of timeouts of the burst.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class FairTimeoutDispatcherBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int burst = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        for (int round = 0; round < 3; round++) {
+            System.out.println("Round " + round + ", " + threads + " threads, burst of " + burst + " timeouts");
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            run("in order", new TimeoutDispatcher(executor), burst);
+            executor.shutdownNow();
+            executor = Executors.newFixedThreadPool(threads);
+            run("fair", new FairTimeoutDispatcher(executor), burst);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Lets a noisy bean fire a burst of timeouts of 5 ms each, while a quiet bean has a timeout every 50 ms
+     */
+    private static void run(final String name, final TimeoutDispatcher dispatcher, final int burst) throws Exception {
+        final TimingWheelScheduler scheduler = new TimingWheelScheduler("benchmark-wheel");
+        final SlowInvoker noisyInvoker = new SlowInvoker("noisy", 5, burst);
+        final SlowInvoker quietInvoker = new SlowInvoker("quiet", 0, 10);
+        final TimerServiceImpl noisy = new TimerServiceImpl(scheduler, noisyInvoker, null, new TestTransactionManager(),
+                dispatcher, new CalendarBasedTimeoutCache());
+        final TimerServiceImpl quiet = new TimerServiceImpl(scheduler, quietInvoker, null, new TestTransactionManager(),
+                dispatcher, new CalendarBasedTimeoutCache());
+
+        for (int i = 0; i < burst; i++) {
+            noisy.createSingleActionTimer(50, new TimerConfig(null, false));
+        }
+        for (int i = 0; i < 10; i++) {
+            quiet.createSingleActionTimer(100 + i * 50, new TimerConfig(null, false));
+        }
+        quietInvoker.done.await();
+        System.out.println(String.format("  %-10s quiet bean max lateness %6d ms", name,
+                quiet.getMetrics().getMaxLatenessMillis()));
+        noisyInvoker.done.await(1, TimeUnit.MINUTES);
+        scheduler.shutdown();
+    }
+
+    /**
+     * Takes the given time for each timeout
+     */
+    private static class SlowInvoker extends RecordingInvoker {
+
+        private final long sleep;
+
+        private final CountDownLatch done;
+
+        SlowInvoker(final String timedObjectId, final long sleep, final int timeouts) {
+            super(timedObjectId);
+            this.sleep = sleep;
+            this.done = new CountDownLatch(timeouts);
+        }
+
+        @Override
+        protected void timeout(final Timer timer) throws Exception {
+            if (this.sleep > 0) {
+                Thread.sleep(this.sleep);
+            }
+            this.done.countDown();
+        }
+    }
+}
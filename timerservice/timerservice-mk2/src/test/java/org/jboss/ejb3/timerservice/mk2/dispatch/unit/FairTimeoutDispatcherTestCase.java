@@ -0,0 +1,208 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.dispatch.unit;
+
+import org.jboss.ejb3.timerservice.mk2.dispatch.FairTimeoutDispatcher;
+import org.jboss.ejb3.timerservice.mk2.dispatch.TimeoutDispatcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link FairTimeoutDispatcher}
+ *
+ * @version $Revision: $
+ */
+public class FairTimeoutDispatcherTestCase {
+
+    private static final int THREADS = 4;
+
+    private static final int NOISY_TIMEOUTS = 20;
+
+    private static final int QUIET_TIMEOUTS = 10;
+
+    private ExecutorService executor;
+
+    @Before
+    public void before() {
+        this.executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void after() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Tests that a burst of slow timeouts of one group runs ahead of the timeouts of another group when the
+     * timeouts run in the order they fired, while the fair dispatcher runs the other group's timeouts after
+     * the first timeout of the burst
+     */
+    @Test
+    public void testNoisyBeanIsolation() {
+        final ManualExecutor unfairExecutor = new ManualExecutor();
+        final List<String> unfairOrder = runNoisyNeighbour(new TimeoutDispatcher(unfairExecutor), unfairExecutor);
+        assertEquals("The quiet timeouts didn't wait for the burst", NOISY_TIMEOUTS, unfairOrder.indexOf("quiet"));
+
+        final ManualExecutor fairExecutor = new ManualExecutor();
+        final List<String> fairOrder = runNoisyNeighbour(new FairTimeoutDispatcher(fairExecutor, 1, Integer.MAX_VALUE),
+                fairExecutor);
+        assertEquals(NOISY_TIMEOUTS + QUIET_TIMEOUTS, fairOrder.size());
+        assertEquals("noisy", fairOrder.get(0));
+        assertEquals("The quiet timeouts waited for the burst: " + fairOrder, QUIET_TIMEOUTS, fairOrder.lastIndexOf("quiet"));
+    }
+
+    /**
+     * Tests that no more timeouts of a group run at the same time than its limit allows, while other
+     * groups use the remaining threads
+     */
+    @Test
+    public void testMaxConcurrent() throws Exception {
+        final FairTimeoutDispatcher dispatcher = new FairTimeoutDispatcher(this.executor);
+        dispatcher.setMaxConcurrent("limited", 1);
+        final ConcurrencyProbe limited = new ConcurrencyProbe(20);
+        final ConcurrencyProbe unlimited = new ConcurrencyProbe(20);
+        for (int i = 0; i < 20; i++) {
+            dispatcher.dispatch("limited", "limited-" + i, limited, false);
+            dispatcher.dispatch("unlimited", "unlimited-" + i, unlimited, false);
+        }
+
+        assertTrue("Timeouts did not complete", limited.done.await(5, TimeUnit.SECONDS));
+        assertTrue("Timeouts did not complete", unlimited.done.await(5, TimeUnit.SECONDS));
+        assertEquals("Limited group ran concurrently", 1, limited.peak.get());
+        assertTrue("Unlimited group didn't use the remaining threads", unlimited.peak.get() > 1);
+    }
+
+    /**
+     * Dispatches a burst of timeouts of a noisy group which take 5 quanta each, and then the timeouts of
+     * a quiet group, before running any of them
+     *
+     * @return The groups of the timeouts, in the order they ran
+     */
+    private static List<String> runNoisyNeighbour(final TimeoutDispatcher dispatcher, final ManualExecutor executor) {
+        final List<String> order = new ArrayList<String>();
+        final long sleep = TimeUnit.NANOSECONDS.toMillis(5 * FairTimeoutDispatcher.DEFAULT_QUANTUM);
+        for (int i = 0; i < NOISY_TIMEOUTS; i++) {
+            dispatcher.dispatch("noisy", "noisy-" + i, new Recorder(order, "noisy", sleep), false);
+        }
+        for (int i = 0; i < QUIET_TIMEOUTS; i++) {
+            dispatcher.dispatch("quiet", "quiet-" + i, new Recorder(order, "quiet", 0), false);
+        }
+        executor.runAll();
+        return order;
+    }
+
+    /**
+     * An executor which queues the tasks until the test runs them, in the calling thread
+     */
+    private static class ManualExecutor implements Executor {
+
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+        @Override
+        public void execute(final Runnable task) {
+            this.tasks.addLast(task);
+        }
+
+        void runAll() {
+            while (!this.tasks.isEmpty()) {
+                this.tasks.pollFirst().run();
+            }
+        }
+    }
+
+    /**
+     * Records its group once it has taken the given time
+     */
+    private static class Recorder implements Runnable {
+
+        private final List<String> order;
+
+        private final String group;
+
+        private final long sleep;
+
+        Recorder(final List<String> order, final String group, final long sleep) {
+            this.order = order;
+            this.group = group;
+            this.sleep = sleep;
+        }
+
+        @Override
+        public void run() {
+            if (this.sleep > 0) {
+                try {
+                    Thread.sleep(this.sleep);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            this.order.add(this.group);
+        }
+    }
+
+    /**
+     * Records the largest number of its runs which were in progress at the same time
+     */
+    private static class ConcurrencyProbe implements Runnable {
+
+        private final AtomicInteger running = new AtomicInteger();
+
+        private final AtomicInteger peak = new AtomicInteger();
+
+        private final CountDownLatch done;
+
+        ConcurrencyProbe(final int runs) {
+            this.done = new CountDownLatch(runs);
+        }
+
+        @Override
+        public void run() {
+            final int current = this.running.incrementAndGet();
+            int max = this.peak.get();
+            while (current > max && !this.peak.compareAndSet(max, current)) {
+                max = this.peak.get();
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                this.running.decrementAndGet();
+                this.done.countDown();
+            }
+        }
+    }
+}
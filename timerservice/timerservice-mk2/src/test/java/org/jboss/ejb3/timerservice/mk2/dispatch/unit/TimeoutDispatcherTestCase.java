@@ -0,0 +1,278 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.dispatch.unit;
+
+import org.jboss.ejb3.timerservice.mk2.dispatch.OverflowPolicy;
+import org.jboss.ejb3.timerservice.mk2.dispatch.OverlapPolicy;
+import org.jboss.ejb3.timerservice.mk2.dispatch.TimeoutDispatcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link TimeoutDispatcher}
+ *
+ * @version $Revision: $
+ */
+public class TimeoutDispatcherTestCase {
+
+    private ExecutorService executor;
+
+    @Before
+    public void before() {
+        this.executor = Executors.newFixedThreadPool(1);
+    }
+
+    @After
+    public void after() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Tests that timeouts which fire while the previous one is running are merged into a single run
+     */
+    @Test
+    public void testCoalesce() throws Exception {
+        final TimeoutDispatcher dispatcher = new TimeoutDispatcher(this.executor, 10, OverlapPolicy.COALESCE,
+                OverflowPolicy.CALLER_RUNS);
+        final BlockingTask task = new BlockingTask(2);
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dispatch("timer", task, true);
+            task.awaitStarted();
+        }
+        task.release();
+
+        assertTrue("Timeouts did not complete", task.awaitCompleted());
+        awaitIdle(dispatcher);
+        assertEquals("Overlapping timeouts were not coalesced", 2, task.runs.get());
+        assertEquals(2, dispatcher.getDispatchedCount());
+        assertEquals(3, dispatcher.getCoalescedCount());
+        assertEquals(0, dispatcher.getSkippedCount());
+    }
+
+    /**
+     * Tests that periodic timeouts which fire while the previous one is running are dropped,
+     * while the non periodic ones still run
+     */
+    @Test
+    public void testSkip() throws Exception {
+        final TimeoutDispatcher dispatcher = new TimeoutDispatcher(this.executor, 10, OverlapPolicy.SKIP,
+                OverflowPolicy.CALLER_RUNS);
+        final BlockingTask task = new BlockingTask(2);
+        dispatcher.dispatch("timer", task, true);
+        task.awaitStarted();
+        for (int i = 0; i < 4; i++) {
+            dispatcher.dispatch("timer", task, true);
+        }
+        // the next timeout of a calendar timer is scheduled by the running one, so it must not be lost
+        dispatcher.dispatch("timer", task, false);
+        task.release();
+
+        assertTrue("Timeouts did not complete", task.awaitCompleted());
+        awaitIdle(dispatcher);
+        assertEquals(2, task.runs.get());
+        assertEquals(4, dispatcher.getSkippedCount());
+        assertEquals(0, dispatcher.getCoalescedCount());
+    }
+
+    /**
+     * Tests that timeouts of different timers run concurrently
+     */
+    @Test
+    public void testDifferentTimers() throws Exception {
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            final TimeoutDispatcher dispatcher = new TimeoutDispatcher(pool);
+            final BlockingTask first = new BlockingTask(1);
+            final BlockingTask second = new BlockingTask(1);
+            dispatcher.dispatch("first", first, true);
+            dispatcher.dispatch("second", second, true);
+            first.awaitStarted();
+            second.awaitStarted();
+            assertEquals(2, dispatcher.getActiveTimerCount());
+            first.release();
+            second.release();
+            assertTrue(first.awaitCompleted());
+            assertTrue(second.awaitCompleted());
+            awaitIdle(dispatcher);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Tests that periodic timeouts beyond the queue bound are discarded
+     */
+    @Test
+    public void testOverflowDiscard() throws Exception {
+        final TimeoutDispatcher dispatcher = new TimeoutDispatcher(this.executor, 1, OverlapPolicy.COALESCE,
+                OverflowPolicy.DISCARD);
+        final BlockingTask running = new BlockingTask(1);
+        dispatcher.dispatch("running", running, true);
+        running.awaitStarted();
+        final BlockingTask queued = new BlockingTask(1);
+        dispatcher.dispatch("queued", queued, true);
+        assertEquals(1, dispatcher.getQueuedCount());
+        final BlockingTask discarded = new BlockingTask(1);
+        dispatcher.dispatch("discarded", discarded, true);
+
+        assertEquals(1, dispatcher.getDiscardedCount());
+        running.release();
+        queued.release();
+        assertTrue(queued.awaitCompleted());
+        awaitIdle(dispatcher);
+        assertEquals(0, discarded.runs.get());
+        assertEquals(0, dispatcher.getQueuedCount());
+    }
+
+    /**
+     * Tests that timeouts beyond the queue bound are run by the dispatching thread
+     */
+    @Test
+    public void testOverflowCallerRuns() throws Exception {
+        final TimeoutDispatcher dispatcher = new TimeoutDispatcher(this.executor, 1, OverlapPolicy.COALESCE,
+                OverflowPolicy.CALLER_RUNS);
+        final BlockingTask running = new BlockingTask(1);
+        dispatcher.dispatch("running", running, true);
+        running.awaitStarted();
+        final BlockingTask queued = new BlockingTask(1);
+        dispatcher.dispatch("queued", queued, true);
+
+        final AtomicReference<Thread> runBy = new AtomicReference<Thread>();
+        dispatcher.dispatch("overflow", new Runnable() {
+            public void run() {
+                runBy.set(Thread.currentThread());
+            }
+        }, true);
+
+        assertSame("Timeout was not run by the dispatching thread", Thread.currentThread(), runBy.get());
+        assertEquals(0, dispatcher.getDiscardedCount());
+        running.release();
+        queued.release();
+        assertTrue(queued.awaitCompleted());
+        awaitIdle(dispatcher);
+    }
+
+    /**
+     * Tests that a rejecting executor only drops periodic timeouts under the {@link OverflowPolicy#DISCARD} policy,
+     * and that the other timeouts, like the ones of calendar timers, are run by the dispatching thread
+     */
+    @Test
+    public void testRejected() throws Exception {
+        final Executor rejecting = new Executor() {
+            public void execute(final Runnable command) {
+                throw new RejectedExecutionException("shut down");
+            }
+        };
+        final TimeoutDispatcher discarding = new TimeoutDispatcher(rejecting, 10, OverlapPolicy.COALESCE,
+                OverflowPolicy.DISCARD);
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicReference<Thread> runBy = new AtomicReference<Thread>();
+        final Runnable task = new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+                runBy.set(Thread.currentThread());
+            }
+        };
+
+        discarding.dispatch("periodic", task, true);
+        assertEquals(0, runs.get());
+        assertEquals(1, discarding.getDiscardedCount());
+
+        discarding.dispatch("calendar", task, false);
+        assertEquals("Non periodic timeout was lost", 1, runs.get());
+        assertSame(Thread.currentThread(), runBy.get());
+        assertEquals(1, discarding.getDiscardedCount());
+        assertEquals(1, discarding.getDispatchedCount());
+
+        final TimeoutDispatcher callerRuns = new TimeoutDispatcher(rejecting, 10, OverlapPolicy.COALESCE,
+                OverflowPolicy.CALLER_RUNS);
+        callerRuns.dispatch("periodic", task, true);
+        callerRuns.dispatch("single", task, false);
+        assertEquals(3, runs.get());
+        assertEquals(0, callerRuns.getDiscardedCount());
+        assertEquals(0, callerRuns.getQueuedCount());
+        assertEquals(0, callerRuns.getActiveTimerCount());
+    }
+
+    private static void awaitIdle(final TimeoutDispatcher dispatcher) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getActiveTimerCount() > 0) {
+            assertTrue("Dispatcher did not become idle", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * A task which blocks until released
+     */
+    private static class BlockingTask implements Runnable {
+
+        private final AtomicInteger runs = new AtomicInteger();
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        private final CountDownLatch completed;
+
+        BlockingTask(final int expectedRuns) {
+            this.completed = new CountDownLatch(expectedRuns);
+        }
+
+        public void run() {
+            this.runs.incrementAndGet();
+            this.started.countDown();
+            try {
+                this.released.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.completed.countDown();
+        }
+
+        void awaitStarted() throws InterruptedException {
+            assertTrue("Task did not start", this.started.await(5, TimeUnit.SECONDS));
+        }
+
+        void release() {
+            this.released.countDown();
+        }
+
+        boolean awaitCompleted() throws InterruptedException {
+            return this.completed.await(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.footprint.benchmark;
+
+import org.jboss.ejb3.timerservice.mk2.TimerServiceImpl;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
+import org.jboss.ejb3.timerservice.spi.TimedObjectInvoker;
+
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.transaction.Status;
+import javax.transaction.TransactionManager;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures the heap retained by live non-persistent timers, including their scheduled timeouts.
+ * <p>
+ * Not run as part of the build. Run the <code>main</code> method, optionally passing the number
+ * of timers, with a heap large enough to hold them (e.g. <code>-Xmx2g</code> for a million timers).
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class TimerFootprintBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int timers = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        // not mocks, since mocks record every invocation
+        final TimedObjectInvoker invoker = new TimedObjectInvoker() {
+            public String getTimedObjectId() {
+                return "bean";
+            }
+
+            public void callTimeout(Timer timer) {
+            }
+
+            public ClassLoader getClassLoader() {
+                return TimerFootprintBenchmark.class.getClassLoader();
+            }
+        };
+        final TransactionManager transactionManager = (TransactionManager) Proxy.newProxyInstance(
+                TimerFootprintBenchmark.class.getClassLoader(), new Class<?>[]{TransactionManager.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] methodArgs) {
+                        // no transaction
+                        return method.getName().equals("getStatus") ? Status.STATUS_NO_TRANSACTION : null;
+                    }
+                });
+        final TimingWheelScheduler scheduler = new TimingWheelScheduler("benchmark-wheel");
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final TimerServiceImpl timerService = new TimerServiceImpl(scheduler, invoker, null, transactionManager, executor);
+            final TimerConfig timerConfig = new TimerConfig(null, false);
+            // timers far enough in the future to never fire during the benchmark
+            final Date expiration = new Date(System.currentTimeMillis() + 3600000);
+
+            final long before = usedHeap();
+            final long begin = System.nanoTime();
+            for (int i = 0; i < timers; i++) {
+                timerService.createSingleActionTimer(expiration, timerConfig);
+            }
+            final long elapsed = System.nanoTime() - begin;
+            final long after = usedHeap();
+
+            System.out.println(String.format("%d non-persistent timers: %d ms to create, %d MB retained, %d bytes per timer",
+                    timers, elapsed / 1000000, (after - before) / (1024 * 1024), (after - before) / timers));
+            // keeps the timers reachable until they have been measured
+            System.out.println(timerService.getTimers().size() + " live timers");
+        } finally {
+            scheduler.shutdown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
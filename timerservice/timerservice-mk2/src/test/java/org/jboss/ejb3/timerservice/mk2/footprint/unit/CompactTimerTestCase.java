@@ -0,0 +1,114 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.footprint.unit;
+
+import org.jboss.ejb3.timerservice.mk2.TimerImpl;
+import org.jboss.ejb3.timerservice.mk2.TimerServiceImpl;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
+import org.jboss.ejb3.timerservice.spi.TimedObjectInvoker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.transaction.TransactionManager;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests that non-persistent timers, which hold their id and dates in a compact form, behave like
+ * the persistent ones
+ *
+ * @version $Revision: $
+ */
+public class CompactTimerTestCase {
+
+    private TimingWheelScheduler scheduler;
+
+    private ExecutorService executor;
+
+    private TimerServiceImpl timerService;
+
+    @Before
+    public void before() throws Exception {
+        this.scheduler = new TimingWheelScheduler("test-wheel");
+        this.executor = Executors.newSingleThreadExecutor();
+        final TransactionManager transactionManager = new TestTransactionManager();
+        final TimedObjectInvoker invoker = mock(TimedObjectInvoker.class);
+        when(invoker.getTimedObjectId()).thenReturn("bean");
+        when(invoker.getClassLoader()).thenReturn(this.getClass().getClassLoader());
+        this.timerService = new TimerServiceImpl(this.scheduler, invoker, null, transactionManager, this.executor);
+    }
+
+    @After
+    public void after() {
+        this.scheduler.shutdown();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Tests the id, handle, equality and dates of a non-persistent timer
+     */
+    @Test
+    public void testNonPersistentTimer() throws Exception {
+        final Date expiration = new Date(System.currentTimeMillis() + 60000);
+        final TimerImpl timer = (TimerImpl) this.timerService.createSingleActionTimer(expiration, new TimerConfig("info", false));
+
+        final String id = timer.getId();
+        assertEquals(id, UUID.fromString(id).toString());
+        assertEquals(timer.getTimerHandle(), timer.getTimerHandle());
+        assertSame(timer, this.timerService.getTimer(timer.getTimerHandle()));
+        assertEquals(timer, this.timerService.getTimers().iterator().next());
+
+        assertEquals(expiration, timer.getNextTimeout());
+        assertEquals(expiration, timer.getInitialExpiration());
+        assertNull(timer.getPreviousRun());
+        timer.getNextTimeout().setTime(0);
+        assertEquals("Next timeout was changed through the returned date", expiration, timer.getNextTimeout());
+    }
+
+    /**
+     * Tests that cancelling a non-persistent timer cancels its scheduled timeout
+     */
+    @Test
+    public void testCancel() throws Exception {
+        final Timer timer = this.timerService.createSingleActionTimer(60000, new TimerConfig(null, false));
+        assertEquals(1, this.scheduler.getPendingTimeouts());
+
+        timer.cancel();
+        assertEquals(0, this.scheduler.getPendingTimeouts());
+        assertFalse(((TimerImpl) timer).isActive());
+        assertTrue(this.timerService.getTimers().isEmpty());
+    }
+}
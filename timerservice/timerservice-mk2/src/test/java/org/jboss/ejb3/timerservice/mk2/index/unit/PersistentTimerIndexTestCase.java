@@ -0,0 +1,158 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.index.unit;
+
+import org.jboss.ejb3.timerservice.mk2.TimerServiceImpl;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionSynchronizationRegistry;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
+import org.jboss.ejb3.timerservice.spi.ScheduleTimer;
+import org.jboss.ejb3.timerservice.spi.TimedObjectInvoker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.ejb.NoSuchObjectLocalException;
+import javax.ejb.ScheduleExpression;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests that {@link TimerServiceImpl#getTimers()} and {@link TimerServiceImpl#getTimer(javax.ejb.TimerHandle)}
+ * are served from the index of live persistent timers, without reading the {@link TimerPersistence}
+ *
+ * @version $Revision: $
+ */
+public class PersistentTimerIndexTestCase {
+
+    private TimingWheelScheduler scheduler;
+
+    private ExecutorService executor;
+
+    private TimerPersistence persistence;
+
+    private TestTransactionManager transactionManager;
+
+    private TimerServiceImpl timerService;
+
+    @Before
+    public void before() throws Exception {
+        this.scheduler = new TimingWheelScheduler("test-wheel");
+        this.executor = Executors.newSingleThreadExecutor();
+        this.persistence = mock(TimerPersistence.class);
+        when(this.persistence.loadActiveTimers(anyString())).thenReturn(Collections.<TimerEntity>emptyList());
+        this.transactionManager = new TestTransactionManager();
+        final TimedObjectInvoker invoker = mock(TimedObjectInvoker.class);
+        when(invoker.getTimedObjectId()).thenReturn("bean");
+        when(invoker.getClassLoader()).thenReturn(this.getClass().getClassLoader());
+        this.timerService = new TimerServiceImpl(this.scheduler, invoker, this.persistence, this.transactionManager, this.executor);
+        this.timerService.restoreTimers(Collections.<ScheduleTimer>emptyList());
+    }
+
+    @After
+    public void after() {
+        this.scheduler.shutdown();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Tests that created timers are returned by getTimers and getTimer until they are cancelled
+     */
+    @Test
+    public void testCreateAndCancel() throws Exception {
+        final Timer single = this.timerService.createTimer(new Date(System.currentTimeMillis() + 60000), "single");
+        final Timer calendar = this.timerService.createCalendarTimer(new ScheduleExpression().year("2100"),
+                new TimerConfig("calendar", true));
+        final Timer nonPersistent = this.timerService.createSingleActionTimer(60000, new TimerConfig("transient", false));
+
+        Collection<Timer> timers = this.timerService.getTimers();
+        assertEquals(3, timers.size());
+        assertTrue(timers.contains(single));
+        assertTrue(timers.contains(calendar));
+        assertTrue(timers.contains(nonPersistent));
+        assertSame("Handle didn't resolve to the live timer", calendar, calendar.getHandle().getTimer());
+
+        single.cancel();
+        timers = this.timerService.getTimers();
+        assertEquals(2, timers.size());
+        assertTrue(timers.contains(calendar));
+        try {
+            single.getHandle().getTimer();
+            fail("Handle of a cancelled timer resolved to a timer");
+        } catch (NoSuchObjectLocalException expected) {
+            // expected
+        }
+
+        verify(this.persistence, never()).loadTimer(anyString(), anyString());
+        // only the restore reads the active timers
+        verify(this.persistence).loadActiveTimers("bean");
+    }
+
+    /**
+     * Tests that timers are visible while their creating transaction is in progress, and are removed
+     * from the index if the transaction is rolled back
+     */
+    @Test
+    public void testCreationRolledBack() throws Exception {
+        this.timerService.setTransactionSynchronizationRegistry(new TestTransactionSynchronizationRegistry());
+        final Transaction tx = mock(Transaction.class);
+        this.transactionManager.setTransaction(tx);
+        this.transactionManager.setStatus(Status.STATUS_ACTIVE);
+        final Timer timer = this.timerService.createTimer(60000, "rolled back");
+        final Timer other = this.timerService.createTimer(60000, "also rolled back");
+        assertTrue(this.timerService.getTimers().contains(timer));
+        assertTrue(this.timerService.getTimers().contains(other));
+
+        // a single synchronization for all the timers created in the transaction
+        final ArgumentCaptor<Synchronization> synchronization = ArgumentCaptor.forClass(Synchronization.class);
+        verify(tx).registerSynchronization(synchronization.capture());
+        this.transactionManager.setTransaction(null);
+        this.transactionManager.setStatus(Status.STATUS_NO_TRANSACTION);
+        synchronization.getValue().afterCompletion(Status.STATUS_ROLLEDBACK);
+
+        assertTrue(this.timerService.getTimers().isEmpty());
+        verify(this.persistence, times(2)).removeTimer(any(TimerEntity.class));
+    }
+}
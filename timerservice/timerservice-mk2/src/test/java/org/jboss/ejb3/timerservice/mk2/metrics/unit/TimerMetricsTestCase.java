@@ -0,0 +1,170 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.metrics.unit;
+
+import org.jboss.ejb3.timer.schedule.CalendarBasedTimeoutCache;
+import org.jboss.ejb3.timerservice.mk2.TimerServiceFactoryImpl;
+import org.jboss.ejb3.timerservice.mk2.TimerServiceImpl;
+import org.jboss.ejb3.timerservice.mk2.common.RecordingInvoker;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.dispatch.TimeoutDispatcher;
+import org.jboss.ejb3.timerservice.mk2.metrics.Histogram;
+import org.jboss.ejb3.timerservice.mk2.metrics.TimerMetrics;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.transaction.TransactionManager;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests the {@link TimerMetrics} of a {@link TimerServiceImpl}
+ *
+ * @version $Revision: $
+ */
+public class TimerMetricsTestCase {
+
+    private TimingWheelScheduler scheduler;
+
+    private ExecutorService executor;
+
+    private TransactionManager transactionManager;
+
+    private FailingInvoker invoker;
+
+    @Before
+    public void before() throws Exception {
+        this.scheduler = new TimingWheelScheduler("test-wheel");
+        this.executor = Executors.newSingleThreadExecutor();
+        this.transactionManager = new TestTransactionManager();
+        this.invoker = new FailingInvoker();
+    }
+
+    @After
+    public void after() {
+        this.scheduler.shutdown();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Tests the statistics of a {@link Histogram}
+     */
+    @Test
+    public void testHistogram() {
+        final Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(99));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-5);
+        assertEquals(101, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(100, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0));
+        // 50 falls in the bucket of 32 to 63
+        assertEquals(63, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(100));
+    }
+
+    /**
+     * Tests that the lateness, invocations, failures, retries and persistence writes are recorded
+     */
+    @Test
+    public void testTimeoutMetrics() throws Exception {
+        final TimerServiceImpl timerService = new TimerServiceImpl(this.scheduler, this.invoker, mock(TimerPersistence.class),
+                this.transactionManager, this.executor);
+        this.invoker.failures = 1;
+        for (int i = 0; i < 3; i++) {
+            timerService.createSingleActionTimer(50, new TimerConfig(i, true));
+        }
+        final Timer pending = timerService.createSingleActionTimer(60000, new TimerConfig(null, true));
+
+        Thread.sleep(500);
+        final TimerMetrics metrics = timerService.getMetrics();
+        assertEquals(3, metrics.getTimeoutCount());
+        assertEquals("The retry wasn't counted as an invocation", 4, metrics.getInvocationCount());
+        assertEquals(1, metrics.getFailureCount());
+        assertEquals(1, metrics.getRetryCount());
+        assertTrue("Persistence writes weren't recorded", metrics.getPersistenceWriteCount() >= 4);
+        assertEquals(1, metrics.getActiveTimerCount());
+        assertEquals(0, metrics.getInTimeoutTimerCount());
+
+        pending.cancel();
+        assertEquals(0, metrics.getActiveTimerCount());
+    }
+
+    /**
+     * Tests that the metrics of a timer service are registered as an MBean while the timer service is registered
+     */
+    @Test
+    public void testMBean() throws Exception {
+        final MBeanServer server = MBeanServerFactory.newMBeanServer();
+        final TimerServiceFactoryImpl factory = new TimerServiceFactoryImpl(null, this.transactionManager,
+                new TimeoutDispatcher(this.executor), this.scheduler, new CalendarBasedTimeoutCache());
+        factory.setMBeanServer(server);
+        final TimerServiceImpl timerService = (TimerServiceImpl) factory.createTimerService(this.invoker);
+        final ObjectName name = TimerServiceFactoryImpl.getMetricsObjectName(this.invoker.getTimedObjectId());
+        try {
+            timerService.createSingleActionTimer(10, new TimerConfig(null, false));
+            Thread.sleep(300);
+            assertEquals(1L, server.getAttribute(name, "TimeoutCount"));
+            assertEquals(this.invoker.getTimedObjectId(), server.getAttribute(name, "TimedObjectId"));
+            assertEquals(timerService.getMetrics(), factory.getTimerMetrics(this.invoker.getTimedObjectId()));
+        } finally {
+            factory.suspendTimerService(timerService);
+        }
+        assertFalse("Metrics weren't unregistered", server.isRegistered(name));
+    }
+
+    /**
+     * Fails the given number of timeouts
+     */
+    private static class FailingInvoker extends RecordingInvoker {
+
+        private volatile int failures;
+
+        FailingInvoker() {
+            super("metrics:bean");
+        }
+
+        @Override
+        protected synchronized void timeout(final Timer timer) throws Exception {
+            if (this.failures > 0) {
+                this.failures--;
+                throw new Exception("Timeout failed");
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.persistence.benchmark;
+
+import org.jboss.ejb3.timerservice.mk2.TimerState;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.persistence.filestore.FileTimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.persistence.journal.JournalTimerPersistence;
+import org.jboss.marshalling.ContextClassResolver;
+
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.jboss.ejb3.timerservice.mk2.common.TimerEntities.entity;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures how many timer transitions per second the {@link FileTimerPersistence} and the
+ * {@link JournalTimerPersistence} can make durable, with several threads each persisting the
+ * IN_TIMEOUT / ACTIVE transitions of its own timers, the way {@link org.jboss.ejb3.timerservice.mk2.task.TimerTask}
+ * does on every timeout.
+ * <p>
+ * Not run as part of the build. Run the <code>main</code> method, optionally passing the number
+ * of threads, the duration of a run in seconds and the directory to write to.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class TimerPersistenceBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final File baseDir = args.length > 2 ? new File(args[2]) : new File(System.getProperty("java.io.tmpdir"), "timer-persistence-benchmark");
+
+        final TransactionManager transactionManager = new TestTransactionManager();
+        final TransactionSynchronizationRegistry registry = mock(TransactionSynchronizationRegistry.class);
+
+        final File fileStoreDir = new File(baseDir, "filestore");
+        final File journalDir = new File(baseDir, "journal");
+        delete(fileStoreDir);
+        delete(journalDir);
+
+        System.out.println(threads + " threads, " + seconds + " seconds per run, writing to " + baseDir);
+        run("file store", new FileTimerPersistence(transactionManager, registry, fileStoreDir, true, new ContextClassResolver()), threads, seconds);
+        run("journal", new JournalTimerPersistence(transactionManager, registry, journalDir, true, new ContextClassResolver(),
+                JournalTimerPersistence.DEFAULT_SEGMENT_SIZE, JournalTimerPersistence.DEFAULT_COMPACTION_THRESHOLD), threads, seconds);
+    }
+
+    private static void run(final String name, final TimerPersistence persistence, final int threads, final int seconds) throws InterruptedException {
+        persistence.start();
+        final AtomicLong transitions = new AtomicLong();
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final TimerEntity timer = entity("timer-" + i, "bean-" + (i % 4), TimerState.ACTIVE, "benchmark timer " + i);
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        persistence.persistTimer(timer);
+                        long count = 0;
+                        while (System.nanoTime() < end) {
+                            timer.setTimerState(TimerState.IN_TIMEOUT);
+                            persistence.updateTimerState(timer);
+                            timer.setTimerState(TimerState.ACTIVE);
+                            timer.setPreviousRun(new Date());
+                            persistence.updateTimerState(timer);
+                            count += 2;
+                        }
+                        transitions.addAndGet(count);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        persistence.stop();
+        System.out.println(String.format("  %-12s %10.0f transitions/s", name, transitions.get() / (double) seconds));
+    }
+
+    private static void delete(final File file) throws IOException {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+}
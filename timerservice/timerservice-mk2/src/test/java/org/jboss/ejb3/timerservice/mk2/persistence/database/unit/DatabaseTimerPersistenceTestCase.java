@@ -0,0 +1,406 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.persistence.database.unit;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.jboss.ejb3.timerservice.mk2.TimerState;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionSynchronizationRegistry;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
+import org.jboss.ejb3.timerservice.mk2.persistence.database.DatabaseTimerPersistence;
+import org.jboss.marshalling.ContextClassResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import javax.transaction.Status;
+import javax.transaction.TransactionSynchronizationRegistry;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.jboss.ejb3.timerservice.mk2.common.TimerEntities.entity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests the {@link DatabaseTimerPersistence} against an embedded H2 database
+ *
+ * @version $Revision: $
+ */
+public class DatabaseTimerPersistenceTestCase {
+
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    private TestTransactionManager transactionManager;
+
+    private TransactionSynchronizationRegistry registry;
+
+    private JdbcDataSource dataSource;
+
+    private Connection keepAlive;
+
+    @Before
+    public void before() throws Exception {
+        this.transactionManager = new TestTransactionManager();
+        this.registry = mock(TransactionSynchronizationRegistry.class);
+        this.dataSource = new JdbcDataSource();
+        // multi version concurrency, so that the rows written in a transaction aren't visible, nor locked, before it commits
+        this.dataSource.setURL("jdbc:h2:mem:timers-" + databases.incrementAndGet() + ";MVCC=TRUE");
+        // the in-memory database lives as long as a connection to it is open
+        this.keepAlive = this.dataSource.getConnection();
+    }
+
+    @After
+    public void after() throws Exception {
+        this.keepAlive.close();
+    }
+
+    /**
+     * Tests that timers, their state changes and their removal survive a restart
+     */
+    @Test
+    public void testRestore() throws Exception {
+        DatabaseTimerPersistence persistence = this.start(this.registry, 100);
+        final TimerEntity first = entity("1", "bean-a", TimerState.ACTIVE, "info-1");
+        persistence.persistTimer(first);
+        persistence.persistTimer(entity("2", "bean-a", TimerState.ACTIVE, "info-2"));
+        persistence.persistTimer(entity("3", "bean-b", TimerState.ACTIVE, null));
+        persistence.persistTimer(entity("1", "bean-a", TimerState.IN_TIMEOUT, "info-1"));
+        persistence.removeTimer(entity("2", "bean-a", TimerState.EXPIRED, "info-2"));
+        persistence.stop();
+
+        persistence = this.start(this.registry, 100);
+        final List<TimerEntity> beanA = persistence.loadActiveTimers("bean-a");
+        assertEquals(1, beanA.size());
+        assertEquals("1", beanA.get(0).getId());
+        assertEquals(TimerState.IN_TIMEOUT, beanA.get(0).getTimerState());
+        assertEquals("info-1", beanA.get(0).getInfo());
+        assertEquals(first.getNextDate(), beanA.get(0).getNextDate());
+        assertNull(persistence.loadTimer("2", "bean-a"));
+        assertNotNull(persistence.loadTimer("3", "bean-b"));
+        assertNull(persistence.loadTimer("3", "bean-b").getInfo());
+    }
+
+    /**
+     * Tests that state updates only write the state columns, and that they take precedence over the
+     * state the timer was serialized with
+     */
+    @Test
+    public void testStateUpdates() throws Exception {
+        final DatabaseTimerPersistence persistence = this.start(this.registry, 100);
+        final TimerEntity timer = entity("1", "bean", TimerState.CREATED, "info");
+        persistence.persistTimer(timer);
+        final byte[] data = this.timerData("1");
+
+        timer.setTimerState(TimerState.RETRY_TIMEOUT);
+        timer.setPreviousRun(new Date(5000));
+        timer.setNextDate(null);
+        timer.setRetryAttempts(2);
+        timer.setNextRetry(new Date(7000));
+        persistence.updateTimerState(timer);
+        assertTrue("Timer data was rewritten by a state update", Arrays.equals(data, this.timerData("1")));
+        // a timer which was never persisted is written in full
+        persistence.updateTimerState(entity("2", "bean", TimerState.ACTIVE, "other"));
+
+        final TimerEntity restored = persistence.loadTimer("1", "bean");
+        assertEquals(TimerState.RETRY_TIMEOUT, restored.getTimerState());
+        assertEquals(new Date(5000), restored.getPreviousRun());
+        assertNull(restored.getNextDate());
+        assertEquals(2, restored.getRetryAttempts());
+        assertEquals(new Date(7000), restored.getNextRetry());
+        assertEquals("info", restored.getInfo());
+        assertEquals("other", persistence.loadTimer("2", "bean").getInfo());
+    }
+
+    /**
+     * Tests that bulk writes and removals span several batches, and that only active timers are loaded
+     */
+    @Test
+    public void testBatches() throws Exception {
+        final DatabaseTimerPersistence persistence = this.start(this.registry, 7);
+        final List<TimerEntity> timers = new ArrayList<TimerEntity>();
+        for (int i = 0; i < 50; i++) {
+            final TimerState state = i % 10 == 0 ? TimerState.CANCELED : i % 10 == 1 ? TimerState.EXPIRED : TimerState.ACTIVE;
+            timers.add(entity(String.valueOf(i), "bean", state, i));
+        }
+        persistence.persistTimers(timers);
+        assertEquals(50, this.count());
+        assertEquals(40, persistence.loadActiveTimers("bean").size());
+
+        // a second bulk write updates the rows
+        for (TimerEntity timer : timers) {
+            timer.setTimerState(TimerState.ACTIVE);
+        }
+        persistence.persistTimers(timers);
+        assertEquals(50, this.count());
+        assertEquals(50, persistence.loadActiveTimers("bean").size());
+
+        persistence.removeTimers(timers.subList(0, 20));
+        assertEquals(30, this.count());
+        assertTrue(persistence.loadActiveTimers("other-bean").isEmpty());
+    }
+
+    /**
+     * Tests that the timers persisted in a transaction are registered through a single synchronization,
+     * and are written before the transaction completes, as part of it
+     */
+    @Test
+    public void testTransactionalWrites() throws Exception {
+        final TestTransactionSynchronizationRegistry registry = new TestTransactionSynchronizationRegistry();
+        final DatabaseTimerPersistence persistence = this.start(registry, 10);
+        this.transactionManager.setStatus(Status.STATUS_ACTIVE);
+
+        for (int i = 0; i < 100; i++) {
+            final TimerEntity timer = entity(String.valueOf(i), i % 2 == 0 ? "bean-a" : "bean-b", TimerState.CREATED, "info-" + i);
+            persistence.persistTimer(timer);
+            timer.setTimerState(TimerState.ACTIVE);
+            persistence.updateTimerState(timer);
+        }
+        assertEquals("Expected a single synchronization for the transaction", 1, registry.getSynchronizations().size());
+        assertEquals("Timers were written before completion", 0, this.count());
+
+        registry.getSynchronizations().get(0).beforeCompletion();
+        assertEquals(100, this.count());
+        registry.getSynchronizations().get(0).afterCompletion(Status.STATUS_COMMITTED);
+
+        this.transactionManager.setStatus(Status.STATUS_NO_TRANSACTION);
+        assertEquals(50, persistence.loadActiveTimers("bean-b").size());
+        assertEquals(TimerState.ACTIVE, persistence.loadTimer("99", "bean-b").getTimerState());
+        assertEquals("info-99", persistence.loadTimer("99", "bean-b").getInfo());
+    }
+
+    /**
+     * Tests that timers are created on drivers which report {@link Statement#SUCCESS_NO_INFO} for every
+     * batched statement, instead of their update counts
+     */
+    @Test
+    public void testUnknownBatchCounts() throws Exception {
+        final EnlistingDataSource noInfo = new EnlistingDataSource(true);
+        final DatabaseTimerPersistence persistence = this.start(this.registry, noInfo.proxy(), 2);
+        final List<TimerEntity> timers = new ArrayList<TimerEntity>();
+        for (int i = 0; i < 5; i++) {
+            timers.add(entity(String.valueOf(i), "bean", TimerState.ACTIVE, "info-" + i));
+        }
+        persistence.persistTimers(timers.subList(0, 3));
+        assertEquals(3, this.count());
+
+        // existing rows are updated, new ones inserted
+        timers.get(0).setTimerState(TimerState.IN_TIMEOUT);
+        persistence.persistTimers(timers);
+        assertEquals(5, this.count());
+        final TimerEntity state = entity("5", "bean", TimerState.ACTIVE, "info-5");
+        persistence.updateTimerState(state);
+        assertEquals(6, this.count());
+        assertEquals(TimerState.IN_TIMEOUT, persistence.loadTimer("0", "bean").getTimerState());
+        assertEquals("info-4", persistence.loadTimer("4", "bean").getInfo());
+    }
+
+    /**
+     * Tests that the writes made in a transaction go through the connection enlisted in it, and are only
+     * visible once it commits
+     */
+    @Test
+    public void testTransactionEnlistment() throws Exception {
+        final TestTransactionSynchronizationRegistry registry = new TestTransactionSynchronizationRegistry();
+        final EnlistingDataSource enlisting = new EnlistingDataSource(false);
+        final DatabaseTimerPersistence persistence = this.start(registry, enlisting.proxy(), 10);
+        this.transactionManager.setStatus(Status.STATUS_ACTIVE);
+
+        enlisting.begin();
+        persistence.persistTimer(entity("1", "bean", TimerState.ACTIVE, "info"));
+        registry.getSynchronizations().get(0).beforeCompletion();
+        assertEquals("Timer was committed before the transaction", 0, this.count());
+        enlisting.rollback();
+        registry.getSynchronizations().get(0).afterCompletion(Status.STATUS_ROLLEDBACK);
+        assertEquals("Timer outlived the rolled back transaction", 0, this.count());
+
+        registry.clear();
+        enlisting.begin();
+        persistence.persistTimer(entity("2", "bean", TimerState.ACTIVE, "info"));
+        registry.getSynchronizations().get(0).beforeCompletion();
+        enlisting.commit();
+        registry.getSynchronizations().get(0).afterCompletion(Status.STATUS_COMMITTED);
+        assertEquals(1, this.count());
+    }
+
+    /**
+     * Tests that a write which fails before completion fails the completion, so that the transaction
+     * rolls back, along with the timers already written in it
+     */
+    @Test
+    public void testFailedWriteRollsBack() throws Exception {
+        final TestTransactionSynchronizationRegistry registry = new TestTransactionSynchronizationRegistry();
+        final EnlistingDataSource enlisting = new EnlistingDataSource(false);
+        final DatabaseTimerPersistence persistence = this.start(registry, enlisting.proxy(), 10);
+        this.transactionManager.setStatus(Status.STATUS_ACTIVE);
+
+        enlisting.begin();
+        persistence.persistTimer(entity("1", "bean", TimerState.ACTIVE, "info"));
+        // the timed object id doesn't fit its column
+        final char[] tooLong = new char[300];
+        Arrays.fill(tooLong, 'x');
+        persistence.persistTimer(entity("2", new String(tooLong), TimerState.ACTIVE, "info"));
+        try {
+            registry.getSynchronizations().get(0).beforeCompletion();
+            fail("Failed write did not propagate");
+        } catch (RuntimeException expected) {
+            // the transaction manager rolls the transaction back
+        }
+        enlisting.rollback();
+        registry.getSynchronizations().get(0).afterCompletion(Status.STATUS_ROLLEDBACK);
+        assertEquals(0, this.count());
+    }
+
+    private DatabaseTimerPersistence start(final TransactionSynchronizationRegistry registry, final int batchSize) {
+        return this.start(registry, this.dataSource, batchSize);
+    }
+
+    private DatabaseTimerPersistence start(final TransactionSynchronizationRegistry registry, final DataSource dataSource,
+                                           final int batchSize) {
+        final DatabaseTimerPersistence persistence = new DatabaseTimerPersistence(this.transactionManager, registry, dataSource,
+                DatabaseTimerPersistence.DEFAULT_TABLE_NAME, true, new ContextClassResolver(), batchSize, 16);
+        persistence.start();
+        return persistence;
+    }
+
+    private int count() throws Exception {
+        final Statement statement = this.keepAlive.createStatement();
+        try {
+            final ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + DatabaseTimerPersistence.DEFAULT_TABLE_NAME);
+            resultSet.next();
+            return resultSet.getInt(1);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private byte[] timerData(final String id) throws Exception {
+        final Statement statement = this.keepAlive.createStatement();
+        try {
+            final ResultSet resultSet = statement.executeQuery("SELECT TIMER_DATA FROM " + DatabaseTimerPersistence.DEFAULT_TABLE_NAME
+                    + " WHERE ID = '" + id + "'");
+            resultSet.next();
+            return resultSet.getBytes(1);
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Hands out the connection of the current transaction while there is one, like a data source whose
+     * connections are enlisted in the transaction, which can't be committed nor closed by their users.
+     * Optionally, its batches report {@link Statement#SUCCESS_NO_INFO} instead of update counts.
+     */
+    private final class EnlistingDataSource implements InvocationHandler {
+
+        private final boolean noBatchCounts;
+
+        private Connection transaction;
+
+        EnlistingDataSource(final boolean noBatchCounts) {
+            this.noBatchCounts = noBatchCounts;
+        }
+
+        DataSource proxy() {
+            return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[]{DataSource.class}, this);
+        }
+
+        void begin() throws Exception {
+            this.transaction = dataSource.getConnection();
+            this.transaction.setAutoCommit(false);
+        }
+
+        void commit() throws Exception {
+            this.transaction.commit();
+            this.transaction.close();
+            this.transaction = null;
+        }
+
+        void rollback() throws Exception {
+            this.transaction.rollback();
+            this.transaction.close();
+            this.transaction = null;
+        }
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            if (method.getName().equals("getConnection")) {
+                if (this.transaction != null) {
+                    return this.wrap(Connection.class, this.transaction, true);
+                }
+                return this.wrap(Connection.class, dataSource.getConnection(), false);
+            }
+            return invokeOn(dataSource, method, args);
+        }
+
+        private <T> T wrap(final Class<T> type, final T target, final boolean enlisted) {
+            return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+                public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                    final String name = method.getName();
+                    if (enlisted) {
+                        if (name.equals("close")) {
+                            // stays open until the transaction completes
+                            return null;
+                        }
+                        if (name.equals("commit") || name.equals("rollback") || name.equals("setAutoCommit")) {
+                            throw new SQLException(name + " is not allowed on a connection enlisted in a transaction");
+                        }
+                    }
+                    if (name.equals("executeBatch") && noBatchCounts) {
+                        final int[] counts = (int[]) invokeOn(target, method, args);
+                        Arrays.fill(counts, Statement.SUCCESS_NO_INFO);
+                        return counts;
+                    }
+                    final Object result = invokeOn(target, method, args);
+                    if (name.equals("prepareStatement")) {
+                        return wrap(PreparedStatement.class, (PreparedStatement) result, false);
+                    }
+                    return result;
+                }
+            }));
+        }
+    }
+
+    private static Object invokeOn(final Object target, final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
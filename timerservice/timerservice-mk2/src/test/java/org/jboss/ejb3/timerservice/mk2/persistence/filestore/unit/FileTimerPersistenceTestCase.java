@@ -0,0 +1,195 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.persistence.filestore.unit;
+
+import org.jboss.ejb3.timerservice.mk2.TimerState;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerStateRecord;
+import org.jboss.ejb3.timerservice.mk2.persistence.filestore.FileTimerPersistence;
+import org.jboss.marshalling.ContextClassResolver;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.jboss.ejb3.timerservice.mk2.common.TimerEntities.entity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests the {@link FileTimerPersistence}
+ *
+ * @version $Revision: $
+ */
+public class FileTimerPersistenceTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TransactionManager transactionManager;
+
+    private TransactionSynchronizationRegistry registry;
+
+    @Before
+    public void before() throws Exception {
+        this.transactionManager = new TestTransactionManager();
+        this.registry = mock(TransactionSynchronizationRegistry.class);
+    }
+
+    /**
+     * Tests that state updates only write the fixed size state record, and are restored on top of the timer
+     */
+    @Test
+    public void testStateUpdates() throws Exception {
+        final File dir = this.folder.newFolder("timers");
+        FileTimerPersistence persistence = this.start(dir);
+        final TimerEntity timer = entity("1", "bean", TimerState.ACTIVE, "info");
+        persistence.persistTimer(timer);
+        final File timerFile = new File(new File(dir, "bean"), "1");
+        final long timerFileModified = timerFile.lastModified();
+        final long timerFileLength = timerFile.length();
+        final File stateFile = new File(new File(dir, "bean"), "1.state");
+        assertFalse("Creating a timer wrote a state file", stateFile.exists());
+
+        timer.setTimerState(TimerState.IN_TIMEOUT);
+        timer.setPreviousRun(new Date(5000));
+        timer.setNextDate(new Date(6000));
+        persistence.updateTimerState(timer);
+
+        assertTrue(stateFile.exists());
+        assertEquals(TimerStateRecord.SIZE, stateFile.length());
+        assertEquals(timerFileModified, timerFile.lastModified());
+        assertEquals(timerFileLength, timerFile.length());
+        persistence.stop();
+
+        persistence = this.start(dir);
+        final TimerEntity restored = persistence.loadTimer("1", "bean");
+        assertEquals(TimerState.IN_TIMEOUT, restored.getTimerState());
+        assertEquals(new Date(5000), restored.getPreviousRun());
+        assertEquals(new Date(6000), restored.getNextDate());
+        assertEquals("info", restored.getInfo());
+        assertEquals(1, persistence.loadActiveTimers("bean").size());
+
+        persistence.removeTimer(restored);
+        assertFalse(timerFile.exists());
+        assertFalse(stateFile.exists());
+        persistence.stop();
+
+        persistence = this.start(dir);
+        assertNull(persistence.loadTimer("1", "bean"));
+    }
+
+    /**
+     * Tests that a state update of a timer which hasn't been persisted yet persists the whole timer
+     */
+    @Test
+    public void testStateUpdateOfUnknownTimer() throws Exception {
+        final File dir = this.folder.newFolder("unknown");
+        FileTimerPersistence persistence = this.start(dir);
+        persistence.updateTimerState(entity("1", "bean", TimerState.ACTIVE, "info"));
+        persistence.stop();
+
+        persistence = this.start(dir);
+        assertEquals("info", persistence.loadTimer("1", "bean").getInfo());
+    }
+
+    /**
+     * Tests that a full write of a timer whose state has been updated isn't overridden by the earlier state
+     */
+    @Test
+    public void testFullWriteAfterStateUpdate() throws Exception {
+        final File dir = this.folder.newFolder("full");
+        FileTimerPersistence persistence = this.start(dir);
+        final TimerEntity timer = entity("1", "bean", TimerState.ACTIVE, "info");
+        persistence.persistTimer(timer);
+        timer.setTimerState(TimerState.IN_TIMEOUT);
+        persistence.updateTimerState(timer);
+
+        timer.setTimerState(TimerState.ACTIVE);
+        timer.setNextDate(new Date(7000));
+        persistence.persistTimer(timer);
+        persistence.stop();
+
+        persistence = this.start(dir);
+        final TimerEntity restored = persistence.loadTimer("1", "bean");
+        assertEquals(TimerState.ACTIVE, restored.getTimerState());
+        assertEquals(new Date(7000), restored.getNextDate());
+    }
+
+    /**
+     * Tests that the timer files of a large directory are read in parallel, and that corrupt
+     * files are skipped without affecting the other timers
+     */
+    @Test
+    public void testParallelLoadSkipsCorruptFiles() throws Exception {
+        final File dir = this.folder.newFolder("parallel");
+        final int timers = 300;
+        FileTimerPersistence persistence = new FileTimerPersistence(this.transactionManager, this.registry, dir, true,
+                new ContextClassResolver(), 4);
+        persistence.start();
+        for (int i = 0; i < timers; i++) {
+            persistence.persistTimer(entity(String.valueOf(i), "bean", TimerState.ACTIVE, "info" + i));
+        }
+        persistence.stop();
+
+        final int[] corrupt = {0, 150, 299};
+        for (int i : corrupt) {
+            final FileOutputStream out = new FileOutputStream(new File(new File(dir, "bean"), String.valueOf(i)));
+            try {
+                out.write(new byte[]{1, 2, 3, 4});
+            } finally {
+                out.close();
+            }
+        }
+
+        persistence.start();
+        final Set<String> ids = new HashSet<String>();
+        for (TimerEntity entity : persistence.loadActiveTimers("bean")) {
+            assertEquals("info" + entity.getId(), entity.getInfo());
+            ids.add(entity.getId());
+        }
+        assertEquals(timers - corrupt.length, ids.size());
+        for (int i : corrupt) {
+            assertFalse("Corrupt timer " + i + " was restored", ids.contains(String.valueOf(i)));
+        }
+        persistence.stop();
+    }
+
+    private FileTimerPersistence start(final File dir) {
+        final FileTimerPersistence persistence = new FileTimerPersistence(this.transactionManager, this.registry, dir, true,
+                new ContextClassResolver());
+        persistence.start();
+        return persistence;
+    }
+}
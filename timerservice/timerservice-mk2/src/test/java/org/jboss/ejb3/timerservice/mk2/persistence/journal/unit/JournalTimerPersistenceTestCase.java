@@ -0,0 +1,292 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.persistence.journal.unit;
+
+import org.jboss.ejb3.timerservice.mk2.TimerState;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionSynchronizationRegistry;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
+import org.jboss.ejb3.timerservice.mk2.persistence.journal.JournalTimerPersistence;
+import org.jboss.marshalling.ContextClassResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.transaction.Status;
+import javax.transaction.TransactionSynchronizationRegistry;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.jboss.ejb3.timerservice.mk2.common.TimerEntities.entity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests the {@link JournalTimerPersistence}
+ *
+ * @version $Revision: $
+ */
+public class JournalTimerPersistenceTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestTransactionManager transactionManager;
+
+    private TransactionSynchronizationRegistry registry;
+
+    private List<JournalTimerPersistence> started = new ArrayList<JournalTimerPersistence>();
+
+    @Before
+    public void before() throws Exception {
+        this.transactionManager = new TestTransactionManager();
+        this.registry = mock(TransactionSynchronizationRegistry.class);
+    }
+
+    @After
+    public void after() {
+        for (JournalTimerPersistence persistence : this.started) {
+            persistence.stop();
+        }
+    }
+
+    /**
+     * Tests that timers, their state changes and their removal survive a restart
+     */
+    @Test
+    public void testRestore() throws Exception {
+        final File dir = this.folder.newFolder("restore");
+        JournalTimerPersistence persistence = this.start(dir, 1024 * 1024, 0);
+        final TimerEntity first = entity("1", "bean-a", TimerState.ACTIVE, "info-1");
+        persistence.persistTimer(first);
+        persistence.persistTimer(entity("2", "bean-a", TimerState.ACTIVE, "info-2"));
+        persistence.persistTimer(entity("3", "bean-b", TimerState.ACTIVE, null));
+        persistence.persistTimer(entity("1", "bean-a", TimerState.IN_TIMEOUT, "info-1"));
+        persistence.removeTimer(entity("2", "bean-a", TimerState.EXPIRED, "info-2"));
+        persistence.stop();
+
+        persistence = this.start(dir, 1024 * 1024, 0);
+        final List<TimerEntity> beanA = persistence.loadActiveTimers("bean-a");
+        assertEquals(1, beanA.size());
+        assertEquals("1", beanA.get(0).getId());
+        assertEquals(TimerState.IN_TIMEOUT, beanA.get(0).getTimerState());
+        assertEquals("info-1", beanA.get(0).getInfo());
+        assertEquals(first.getNextDate(), beanA.get(0).getNextDate());
+        assertNull(persistence.loadTimer("2", "bean-a"));
+        assertNotNull(persistence.loadTimer("3", "bean-b"));
+    }
+
+    /**
+     * Tests that state updates are restored on top of the timer they belong to, including after compaction
+     */
+    @Test
+    public void testStateUpdates() throws Exception {
+        final File dir = this.folder.newFolder("state");
+        JournalTimerPersistence persistence = this.start(dir, 1024 * 1024, 0);
+        final TimerEntity timer = entity("1", "bean", TimerState.CREATED, "info");
+        persistence.persistTimer(timer);
+        timer.setTimerState(TimerState.IN_TIMEOUT);
+        timer.setPreviousRun(new Date(5000));
+        timer.setNextDate(new Date(6000));
+        persistence.updateTimerState(timer);
+        // a timer which was never persisted is written in full
+        persistence.updateTimerState(entity("2", "bean", TimerState.ACTIVE, "other"));
+        persistence.stop();
+
+        persistence = this.start(dir, 1024, 1);
+        TimerEntity restored = persistence.loadTimer("1", "bean");
+        assertEquals(TimerState.IN_TIMEOUT, restored.getTimerState());
+        assertEquals(new Date(5000), restored.getPreviousRun());
+        assertEquals(new Date(6000), restored.getNextDate());
+        assertEquals("info", restored.getInfo());
+        assertEquals("other", persistence.loadTimer("2", "bean").getInfo());
+
+        // the next write compacts the journal
+        restored.setTimerState(TimerState.ACTIVE);
+        persistence.updateTimerState(restored);
+        persistence.stop();
+
+        persistence = this.start(dir, 1024, 0);
+        restored = persistence.loadTimer("1", "bean");
+        assertEquals(TimerState.ACTIVE, restored.getTimerState());
+        assertEquals(new Date(5000), restored.getPreviousRun());
+        assertEquals(2, persistence.loadActiveTimers("bean").size());
+    }
+
+    /**
+     * Tests that the timers persisted in a transaction are registered through a single synchronization,
+     * and are only written once the transaction commits
+     */
+    @Test
+    public void testTransactionalWrites() throws Exception {
+        final File dir = this.folder.newFolder("tx");
+        final TestTransactionSynchronizationRegistry registry = new TestTransactionSynchronizationRegistry();
+        JournalTimerPersistence persistence = new JournalTimerPersistence(this.transactionManager, registry, dir, true,
+                new ContextClassResolver(), 1024 * 1024, 0);
+        persistence.start();
+        this.started.add(persistence);
+        this.transactionManager.setStatus(Status.STATUS_ACTIVE);
+
+        for (int i = 0; i < 100; i++) {
+            final TimerEntity timer = entity(String.valueOf(i), i % 2 == 0 ? "bean-a" : "bean-b", TimerState.CREATED, "info-" + i);
+            persistence.persistTimer(timer);
+            timer.setTimerState(TimerState.ACTIVE);
+            persistence.updateTimerState(timer);
+        }
+        assertEquals("Expected a single synchronization for the transaction", 1, registry.getSynchronizations().size());
+        assertTrue("Timers were written before commit", persistence.loadActiveTimers("bean-a").isEmpty());
+
+        registry.getSynchronizations().get(0).afterCompletion(Status.STATUS_COMMITTED);
+        assertEquals(50, persistence.loadActiveTimers("bean-a").size());
+        assertEquals(50, persistence.loadActiveTimers("bean-b").size());
+
+        // a rolled back transaction writes nothing
+        registry.clear();
+        persistence.persistTimer(entity("rolled-back", "bean-a", TimerState.ACTIVE, null));
+        registry.getSynchronizations().get(0).afterCompletion(Status.STATUS_ROLLEDBACK);
+        assertNull(persistence.loadTimer("rolled-back", "bean-a"));
+        persistence.stop();
+
+        this.transactionManager.setStatus(Status.STATUS_NO_TRANSACTION);
+        persistence = this.start(dir, 1024 * 1024, 0);
+        assertEquals(50, persistence.loadActiveTimers("bean-b").size());
+        assertEquals(TimerState.ACTIVE, persistence.loadTimer("99", "bean-b").getTimerState());
+        assertEquals("info-99", persistence.loadTimer("99", "bean-b").getInfo());
+    }
+
+    /**
+     * Tests that old segments are replaced by a snapshot once the compaction threshold is reached
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        final File dir = this.folder.newFolder("compaction");
+        JournalTimerPersistence persistence = this.start(dir, 2 * 1024, 8 * 1024);
+        for (int i = 0; i < 500; i++) {
+            final TimerState state = i % 2 == 0 ? TimerState.IN_TIMEOUT : TimerState.ACTIVE;
+            persistence.persistTimer(entity(String.valueOf(i % 10), "bean", state, i));
+        }
+        final String[] files = dir.list();
+        boolean snapshot = false;
+        int segments = 0;
+        for (String file : files) {
+            if (file.startsWith("snapshot-")) {
+                snapshot = true;
+            } else if (file.startsWith("journal-")) {
+                segments++;
+            }
+        }
+        assertTrue("No snapshot in " + Arrays.asList(files), snapshot);
+        // the segments replaced by the latest snapshot are kept until the next one
+        assertTrue("Too many segments left in " + Arrays.asList(files), segments < 15);
+        persistence.stop();
+
+        persistence = this.start(dir, 2 * 1024, 8 * 1024);
+        final List<TimerEntity> timers = persistence.loadActiveTimers("bean");
+        assertEquals(10, timers.size());
+        for (TimerEntity timer : timers) {
+            // the last persisted state of timer n was written in iteration 490 + n
+            final int n = Integer.parseInt(timer.getId());
+            assertEquals(490 + n, timer.getInfo());
+            assertEquals(n % 2 == 0 ? TimerState.IN_TIMEOUT : TimerState.ACTIVE, timer.getTimerState());
+        }
+    }
+
+    /**
+     * Tests that the timers are restored from the previous snapshot and the segments written after it,
+     * if the rename of the latest snapshot was lost in a crash
+     */
+    @Test
+    public void testLostSnapshot() throws Exception {
+        final File dir = this.folder.newFolder("lost-snapshot");
+        JournalTimerPersistence persistence = this.start(dir, 2 * 1024, 8 * 1024);
+        for (int i = 0; i < 500; i++) {
+            persistence.persistTimer(entity(String.valueOf(i % 10), "bean", TimerState.ACTIVE, i));
+        }
+        persistence.stop();
+
+        File latest = null;
+        int snapshots = 0;
+        for (File file : dir.listFiles()) {
+            if (file.getName().startsWith("snapshot-")) {
+                snapshots++;
+                if (latest == null || file.getName().compareTo(latest.getName()) > 0) {
+                    latest = file;
+                }
+            }
+        }
+        assertEquals("Expected the latest two snapshots in " + Arrays.asList(dir.list()), 2, snapshots);
+        assertTrue(latest.delete());
+
+        persistence = this.start(dir, 2 * 1024, 8 * 1024);
+        final List<TimerEntity> timers = persistence.loadActiveTimers("bean");
+        assertEquals(10, timers.size());
+        for (TimerEntity timer : timers) {
+            assertEquals(490 + Integer.parseInt(timer.getId()), timer.getInfo());
+        }
+    }
+
+    /**
+     * Tests that a partially written record at the end of the journal is ignored on restore
+     */
+    @Test
+    public void testTornWrite() throws Exception {
+        final File dir = this.folder.newFolder("torn");
+        JournalTimerPersistence persistence = this.start(dir, 1024 * 1024, 0);
+        persistence.persistTimer(entity("1", "bean", TimerState.ACTIVE, "info"));
+        persistence.stop();
+
+        File last = null;
+        for (File file : dir.listFiles()) {
+            if (file.getName().startsWith("journal-") && (last == null || file.getName().compareTo(last.getName()) > 0)) {
+                last = file;
+            }
+        }
+        final FileOutputStream out = new FileOutputStream(last, true);
+        out.write(new byte[]{0, 0, 1, 0, 1, 2, 3, 4, 1, 42});
+        out.close();
+
+        persistence = this.start(dir, 1024 * 1024, 0);
+        assertEquals(1, persistence.loadActiveTimers("bean").size());
+        persistence.persistTimer(entity("2", "bean", TimerState.ACTIVE, "info"));
+        persistence.stop();
+
+        persistence = this.start(dir, 1024 * 1024, 0);
+        assertEquals(2, persistence.loadActiveTimers("bean").size());
+    }
+
+    private JournalTimerPersistence start(final File dir, final long segmentSize, final long compactionThreshold) {
+        final JournalTimerPersistence persistence = new JournalTimerPersistence(this.transactionManager, this.registry, dir, true,
+                new ContextClassResolver(), segmentSize, compactionThreshold);
+        persistence.start();
+        this.started.add(persistence);
+        return persistence;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.persistence.unit;
+
+import org.jboss.ejb3.timerservice.mk2.persistence.MarshalledTimerInfo;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link MarshalledTimerInfo}
+ *
+ * @version $Revision: $
+ */
+public class MarshalledTimerInfoTestCase {
+
+    /**
+     * Tests that the info read back from its serialized form is only deserialized when it is asked for
+     */
+    @Test
+    public void testLazyDeserialization() throws Exception {
+        final ArrayList<String> info = new ArrayList<String>(Arrays.asList("a", "b"));
+        final MarshalledTimerInfo restored = roundTrip(MarshalledTimerInfo.forInfo(info));
+
+        assertFalse("Info was deserialized with its holder", restored.isResolved());
+        assertEquals(info, restored.getInfo(this.getClass().getClassLoader()));
+        assertTrue(restored.isResolved());
+        assertSame(restored.getInfo(null), restored.getInfo(null));
+    }
+
+    /**
+     * Tests that the info is serialized once, and that its bytes are written as-is on every later write
+     */
+    @Test
+    public void testBytesReused() throws Exception {
+        final MarshalledTimerInfo marshalledInfo = MarshalledTimerInfo.forInfo("info");
+        final byte[] bytes = marshalledInfo.getBytes();
+        roundTrip(marshalledInfo);
+        assertSame("Info was serialized again", bytes, marshalledInfo.getBytes());
+
+        final MarshalledTimerInfo restored = roundTrip(marshalledInfo);
+        final MarshalledTimerInfo rewritten = roundTrip(restored);
+        assertFalse("Info was deserialized to be written again", restored.isResolved());
+        assertArrayEquals(bytes, rewritten.getBytes());
+        assertEquals("info", rewritten.getInfo(null));
+    }
+
+    /**
+     * Tests that the classes of the info are resolved through the passed class loader
+     */
+    @Test
+    public void testClassLoader() throws Exception {
+        final MarshalledTimerInfo restored = roundTrip(MarshalledTimerInfo.forInfo(new Payload("payload")));
+        final RecordingClassLoader classLoader = new RecordingClassLoader(this.getClass().getClassLoader());
+
+        final Payload payload = (Payload) restored.getInfo(classLoader);
+        assertEquals("payload", payload.value);
+        assertTrue("Class was not resolved through the class loader", classLoader.loaded.contains(Payload.class.getName()));
+    }
+
+    private static MarshalledTimerInfo roundTrip(final MarshalledTimerInfo marshalledInfo) throws IOException, ClassNotFoundException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(marshalledInfo);
+        out.close();
+        return (MarshalledTimerInfo) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+
+    private static class Payload implements Serializable {
+
+        private final String value;
+
+        Payload(final String value) {
+            this.value = value;
+        }
+    }
+
+    private static class RecordingClassLoader extends ClassLoader {
+
+        private final List<String> loaded = new ArrayList<String>();
+
+        RecordingClassLoader(final ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+            this.loaded.add(name);
+            return super.loadClass(name, resolve);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.restore.benchmark;
+
+import org.jboss.ejb3.timer.schedule.CalendarBasedTimeoutCache;
+import org.jboss.ejb3.timerservice.mk2.TimerRestoreReport;
+import org.jboss.ejb3.timerservice.mk2.TimerServiceImpl;
+import org.jboss.ejb3.timerservice.mk2.common.InMemoryTimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.common.RecordingInvoker;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
+import org.jboss.ejb3.timerservice.spi.ScheduleTimer;
+
+import javax.ejb.ScheduleExpression;
+import javax.ejb.TimerConfig;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time {@link TimerServiceImpl#restoreTimers(List)} takes to reconcile the persisted auto timers
+ * with the declared ones, for growing numbers of auto timers.
+ * <p>
+ * Not run as part of the build. Run the <code>main</code> method, optionally passing the largest number
+ * of auto timers.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class AutoTimerRestoreBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int maxTimers = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+
+        final TimingWheelScheduler scheduler = new TimingWheelScheduler("benchmark-wheel");
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CalendarBasedTimeoutCache calendarTimeoutCache = new CalendarBasedTimeoutCache(maxTimers * 2);
+        try {
+            for (int round = 0; round < 3; round++) {
+                System.out.println("Round " + round);
+                for (int timers = maxTimers / 100; timers <= maxTimers; timers *= 10) {
+                    run(scheduler, executor, calendarTimeoutCache, Math.max(timers, 1));
+                }
+            }
+        } finally {
+            scheduler.shutdown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static void run(final TimingWheelScheduler scheduler, final ExecutorService executor,
+                            final CalendarBasedTimeoutCache calendarTimeoutCache, final int timers) throws Exception {
+        final TimerPersistence persistence = new InMemoryTimerPersistence();
+        final Method method = AutoTimerRestoreBenchmark.class.getMethod("timeout");
+        final List<ScheduleTimer> declared = new ArrayList<ScheduleTimer>(timers);
+        final TimerServiceImpl previous = new TimerServiceImpl(scheduler, new RecordingInvoker("bean"), persistence,
+                new TestTransactionManager(), executor, calendarTimeoutCache);
+        for (int i = 0; i < timers; i++) {
+            final ScheduleExpression schedule = new ScheduleExpression().second(String.valueOf(i % 60))
+                    .minute(String.valueOf(i / 60 % 60)).hour(String.valueOf(i / 3600 % 24)).year("2100");
+            previous.loadAutoTimer(schedule, new TimerConfig(null, true), method);
+            declared.add(new ScheduleTimer(method, schedule, new TimerConfig(null, true)));
+        }
+        previous.suspendTimers();
+        // declare them in a different order than they were persisted
+        Collections.reverse(declared);
+
+        final TimerServiceImpl timerService = new TimerServiceImpl(scheduler, new RecordingInvoker("bean"), persistence,
+                new TestTransactionManager(), executor, calendarTimeoutCache);
+        final long start = System.nanoTime();
+        final TimerRestoreReport report = timerService.restoreTimers(declared);
+        final long elapsed = System.nanoTime() - start;
+        timerService.suspendTimers();
+
+        System.out.println(String.format("  %8d auto timers %8d ms, %10.0f timers/s, %d restored", timers,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), timers / (elapsed / 1e9), report.getRestoredTimers()));
+    }
+
+    public void timeout() {
+    }
+}
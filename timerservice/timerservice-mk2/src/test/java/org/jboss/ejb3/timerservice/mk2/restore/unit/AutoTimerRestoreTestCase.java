@@ -0,0 +1,234 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.restore.unit;
+
+import org.jboss.ejb3.timer.schedule.CalendarBasedTimeoutCache;
+import org.jboss.ejb3.timerservice.mk2.TimerRestoreReport;
+import org.jboss.ejb3.timerservice.mk2.TimerServiceImpl;
+import org.jboss.ejb3.timerservice.mk2.common.InMemoryTimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.common.RecordingInvoker;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.persistence.CalendarTimerEntity;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
+import org.jboss.ejb3.timerservice.spi.ScheduleTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ejb.ScheduleExpression;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests how {@link TimerServiceImpl#restoreTimers(List)} reconciles the persisted auto timers with the
+ * auto timers declared by the timed object
+ *
+ * @version $Revision: $
+ */
+public class AutoTimerRestoreTestCase {
+
+    private TimingWheelScheduler scheduler;
+
+    private ExecutorService executor;
+
+    private InMemoryTimerPersistence persistence;
+
+    private CalendarBasedTimeoutCache calendarTimeoutCache;
+
+    @Before
+    public void before() {
+        this.scheduler = new TimingWheelScheduler("test-wheel");
+        this.executor = Executors.newSingleThreadExecutor();
+        this.persistence = new InMemoryTimerPersistence();
+        this.calendarTimeoutCache = new CalendarBasedTimeoutCache(100000);
+    }
+
+    @After
+    public void after() {
+        this.scheduler.shutdown();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Tests that matching auto timers are restored, persisted auto timers which are no longer declared
+     * are removed, and declared auto timers without a persisted timer are created
+     */
+    @Test
+    public void testReconcile() throws Exception {
+        final Method timeout = Bean.class.getMethod("timeout");
+        final Method timeoutWithTimer = Bean.class.getMethod("timeout", Timer.class);
+        // persist the auto timers declared by the previous version of the bean
+        final TimerServiceImpl previous = this.createTimerService();
+        previous.loadAutoTimer(schedule("0", "0"), new TimerConfig("a", true), timeout);
+        previous.loadAutoTimer(schedule("0", "30"), new TimerConfig("b", true), timeout);
+        previous.loadAutoTimer(schedule("0", "45"), new TimerConfig("c", true), timeoutWithTimer);
+        previous.loadAutoTimer(schedule("0", "45"), new TimerConfig("d", true), timeoutWithTimer);
+        assertEquals(4, this.persistence.loadActiveTimers("bean").size());
+
+        final List<ScheduleTimer> declared = new ArrayList<ScheduleTimer>();
+        // same as "a", written differently
+        declared.add(new ScheduleTimer(timeout, schedule(" 0", "0 ").dayOfWeek("*"), new TimerConfig("a", true)));
+        // "b" moved to another method, so "b" is removed and this one created
+        declared.add(new ScheduleTimer(timeoutWithTimer, schedule("0", "30"), new TimerConfig("e", true)));
+        // only one of "c" and "d" is still declared
+        declared.add(new ScheduleTimer(timeoutWithTimer, schedule("0", "45"), new TimerConfig("c", true)));
+        // new one
+        declared.add(new ScheduleTimer(timeout, schedule("0", "15"), new TimerConfig("f", true)));
+
+        final TimerRestoreReport report = this.createTimerService().restoreTimers(declared);
+        assertEquals(2, report.getRestoredTimers());
+        assertEquals(2, report.getRemovedAutoTimers());
+        assertEquals(2, report.getCreatedAutoTimers());
+        assertEquals(0, report.getFailedTimers());
+
+        final Map<String, Integer> timersPerMinute = new HashMap<String, Integer>();
+        for (TimerEntity entity : this.persistence.loadActiveTimers("bean")) {
+            final String minute = ((CalendarTimerEntity) entity).getMinute().trim();
+            final String key = ((CalendarTimerEntity) entity).getTimeoutMethod().getMethodName()
+                    + ((CalendarTimerEntity) entity).getTimeoutMethod().getMethodParams().length + "@" + minute;
+            timersPerMinute.put(key, timersPerMinute.containsKey(key) ? timersPerMinute.get(key) + 1 : 1);
+        }
+        final Map<String, Integer> expected = new HashMap<String, Integer>();
+        expected.put("timeout0@0", 1);
+        expected.put("timeout1@30", 1);
+        expected.put("timeout1@45", 1);
+        expected.put("timeout0@15", 1);
+        assertEquals(expected, timersPerMinute);
+    }
+
+    /**
+     * Tests that reconciling the auto timers takes a number of steps linear in the number of timers, by counting
+     * how often the declared auto timers are looked at while reconciling 20k of them, and a tenth of them.
+     * A reconciliation which compares each persisted auto timer with each declared one would look at them
+     * about 100 times as often.
+     */
+    @Test
+    public void testReconcileIsLinear() throws Exception {
+        final int timers = 20000;
+        final long fewAccesses = this.restore("few", this.persistAutoTimers("few", timers / 10));
+        final long accesses = this.restore("bean", this.persistAutoTimers("bean", timers));
+        assertTrue("The declared auto timers weren't looked at", fewAccesses > 0);
+        assertTrue("Reconciling " + timers + " auto timers looked at them " + accesses + " times, while reconciling "
+                + timers / 10 + " looked at them " + fewAccesses + " times", accesses <= 20 * fewAccesses);
+    }
+
+    private List<CountingScheduleTimer> persistAutoTimers(final String timedObjectId, final int count) throws Exception {
+        final Method[] methods = {Bean.class.getMethod("timeout"), Bean.class.getMethod("timeout", Timer.class)};
+        final TimerServiceImpl timerService = this.createTimerService(timedObjectId);
+        final List<CountingScheduleTimer> declared = new ArrayList<CountingScheduleTimer>(count);
+        for (int i = 0; i < count; i++) {
+            final ScheduleExpression schedule = new ScheduleExpression().second(String.valueOf(i % 60))
+                    .minute(String.valueOf(i / 60 % 60)).hour(String.valueOf(i / 3600 % 24)).year("2100");
+            final Method method = methods[i % methods.length];
+            timerService.loadAutoTimer(schedule, new TimerConfig(null, true), method);
+            declared.add(new CountingScheduleTimer(method, schedule, new TimerConfig(null, true)));
+        }
+        // declare them in a different order than they were persisted
+        for (int i = 0; i < count / 2; i += 2) {
+            final CountingScheduleTimer first = declared.get(i);
+            declared.set(i, declared.get(count - 1 - i));
+            declared.set(count - 1 - i, first);
+        }
+        return declared;
+    }
+
+    /**
+     * Restores the auto timers
+     *
+     * @return The number of times the declared auto timers were looked at
+     */
+    private long restore(final String timedObjectId, final List<CountingScheduleTimer> declared) {
+        final TimerServiceImpl timerService = this.createTimerService(timedObjectId);
+        final TimerRestoreReport report = timerService.restoreTimers(new ArrayList<ScheduleTimer>(declared));
+        assertEquals(declared.size(), report.getRestoredTimers());
+        assertEquals(0, report.getRemovedAutoTimers());
+        assertEquals(0, report.getCreatedAutoTimers());
+        timerService.suspendTimers();
+        long accesses = 0;
+        for (CountingScheduleTimer timer : declared) {
+            accesses += timer.accesses;
+        }
+        return accesses;
+    }
+
+    private TimerServiceImpl createTimerService() {
+        return this.createTimerService("bean");
+    }
+
+    private TimerServiceImpl createTimerService(final String timedObjectId) {
+        return new TimerServiceImpl(this.scheduler, new RecordingInvoker(timedObjectId), this.persistence, new TestTransactionManager(),
+                this.executor, this.calendarTimeoutCache);
+    }
+
+    private static ScheduleExpression schedule(final String second, final String minute) {
+        return new ScheduleExpression().second(second).minute(minute).hour("*").year("2100");
+    }
+
+    public static class Bean {
+        public void timeout() {
+        }
+
+        public void timeout(Timer timer) {
+        }
+    }
+
+    /**
+     * Counts the calls of its getters
+     */
+    private static class CountingScheduleTimer extends ScheduleTimer {
+
+        private int accesses;
+
+        CountingScheduleTimer(final Method method, final ScheduleExpression scheduleExpression, final TimerConfig timerConfig) {
+            super(method, scheduleExpression, timerConfig);
+        }
+
+        @Override
+        public Method getMethod() {
+            this.accesses++;
+            return super.getMethod();
+        }
+
+        @Override
+        public ScheduleExpression getScheduleExpression() {
+            this.accesses++;
+            return super.getScheduleExpression();
+        }
+
+        @Override
+        public TimerConfig getTimerConfig() {
+            this.accesses++;
+            return super.getTimerConfig();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.restore.unit;
+
+import org.jboss.ejb3.timer.schedule.CalendarBasedTimeoutCache;
+import org.jboss.ejb3.timerservice.mk2.TimerRestoreReport;
+import org.jboss.ejb3.timerservice.mk2.TimerServiceFactoryImpl;
+import org.jboss.ejb3.timerservice.mk2.TimerServiceImpl;
+import org.jboss.ejb3.timerservice.mk2.common.InMemoryTimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.common.RecordingInvoker;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.dispatch.TimeoutDispatcher;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
+import org.jboss.ejb3.timerservice.spi.ScheduleTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ejb.ScheduleExpression;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link TimerServiceFactoryImpl#restoreTimerServices(Map, int)}
+ *
+ * @version $Revision: $
+ */
+public class TimerServiceRestoreTestCase {
+
+    private static final int TIMER_SERVICES = 8;
+
+    private TimingWheelScheduler scheduler;
+
+    private ExecutorService executor;
+
+    private TimerServiceFactoryImpl factory;
+
+    private final List<TimerService> timerServices = new ArrayList<TimerService>();
+
+    @Before
+    public void before() {
+        this.scheduler = new TimingWheelScheduler("test-wheel");
+        this.executor = Executors.newSingleThreadExecutor();
+        this.factory = new TimerServiceFactoryImpl(new InMemoryTimerPersistence(), new TestTransactionManager(),
+                new TimeoutDispatcher(this.executor), this.scheduler, new CalendarBasedTimeoutCache());
+    }
+
+    @After
+    public void after() {
+        for (TimerService timerService : this.timerServices) {
+            this.factory.suspendTimerService(timerService);
+        }
+        this.scheduler.shutdown();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Tests that timer services restored on fewer threads than there are timer services each restore their
+     * own timers, reconcile their own auto timers, and report them in the order they were passed
+     */
+    @Test
+    public void testRestoreTimerServices() throws Exception {
+        final Method timeout = Bean.class.getMethod("timeout");
+        final ScheduleExpression removed = new ScheduleExpression().hour("1").year("2100");
+        final ScheduleExpression created = new ScheduleExpression().hour("2").year("2100");
+        // timer service i has i + 1 timers, and an auto timer which is no longer declared
+        for (int i = 0; i < TIMER_SERVICES; i++) {
+            final TimerServiceImpl previous = (TimerServiceImpl) this.factory.createTimerService(new RecordingInvoker("bean-" + i));
+            for (int j = 0; j <= i; j++) {
+                previous.createSingleActionTimer(60000, new TimerConfig(j, true));
+            }
+            previous.loadAutoTimer(removed, new TimerConfig(null, true), timeout);
+            this.factory.suspendTimerService(previous);
+        }
+
+        final Map<TimerService, List<ScheduleTimer>> restored = new LinkedHashMap<TimerService, List<ScheduleTimer>>();
+        // restore them in reverse order, so that the reports aren't in the order the timers were persisted
+        for (int i = TIMER_SERVICES - 1; i >= 0; i--) {
+            final TimerService timerService = this.factory.createTimerService(new RecordingInvoker("bean-" + i));
+            this.timerServices.add(timerService);
+            restored.put(timerService, Collections.singletonList(new ScheduleTimer(timeout, created, new TimerConfig(null, true))));
+        }
+        final List<TimerRestoreReport> reports = this.factory.restoreTimerServices(restored, 3);
+
+        assertEquals(TIMER_SERVICES, reports.size());
+        for (int i = 0; i < TIMER_SERVICES; i++) {
+            final int bean = TIMER_SERVICES - 1 - i;
+            final TimerRestoreReport report = reports.get(i);
+            assertEquals("bean-" + bean, report.getTimedObjectId());
+            assertEquals(bean + 1, report.getRestoredTimers());
+            assertEquals(0, report.getFailedTimers());
+            assertEquals(1, report.getRemovedAutoTimers());
+            assertEquals(1, report.getCreatedAutoTimers());
+            assertEquals(bean + 2, this.timerServices.get(i).getTimers().size());
+        }
+    }
+
+    public static class Bean {
+        public void timeout() {
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.retry.unit;
+
+import org.jboss.ejb3.timerservice.mk2.RetryPolicy;
+import org.jboss.ejb3.timerservice.mk2.TimerServiceImpl;
+import org.jboss.ejb3.timerservice.mk2.TimerState;
+import org.jboss.ejb3.timerservice.mk2.common.InMemoryTimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.common.RecordingInvoker;
+import org.jboss.ejb3.timerservice.mk2.common.TestTransactionManager;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerEntity;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerPersistence;
+import org.jboss.ejb3.timerservice.mk2.persistence.TimerStateRecord;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
+import org.jboss.ejb3.timerservice.spi.ScheduleTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.ejb.NoSuchObjectLocalException;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests the {@link RetryPolicy} of a {@link TimerServiceImpl}
+ *
+ * @version $Revision: $
+ */
+public class RetryPolicyTestCase {
+
+    private TimingWheelScheduler scheduler;
+
+    private ExecutorService executor;
+
+    private RecordingInvoker invoker;
+
+    private TimerServiceImpl timerService;
+
+    @Before
+    public void before() throws Exception {
+        this.scheduler = new TimingWheelScheduler("test-wheel");
+        this.executor = Executors.newSingleThreadExecutor();
+        this.invoker = new RecordingInvoker("retry:bean") {
+            @Override
+            protected void timeout(final Timer timer) throws Exception {
+                if ("fail".equals(timer.getInfo())) {
+                    throw new Exception("Timeout failed");
+                }
+            }
+        };
+        this.timerService = new TimerServiceImpl(this.scheduler, this.invoker, mock(TimerPersistence.class),
+                new TestTransactionManager(), this.executor);
+    }
+
+    @After
+    public void after() {
+        this.scheduler.shutdown();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Tests that the delays grow exponentially up to the max delay, and that jitter only shortens them
+     */
+    @Test
+    public void testDelays() {
+        final RetryPolicy policy = new RetryPolicy(5, 100, 2, 500, 0);
+        assertEquals(100, policy.getDelay(1));
+        assertEquals(200, policy.getDelay(2));
+        assertEquals(400, policy.getDelay(3));
+        assertEquals(500, policy.getDelay(4));
+
+        final RetryPolicy jittered = RetryPolicy.exponentialBackoff(5, 1000, 10000);
+        for (int i = 0; i < 100; i++) {
+            final long delay = jittered.getDelay(2);
+            assertTrue("Delay " + delay + " out of range", delay >= 1600 && delay <= 2000);
+        }
+    }
+
+    /**
+     * Tests that a failed timeout is retried with growing delays, without holding the only executor
+     * thread between the retries, and that the timer expires once the retries are used up
+     */
+    @Test
+    public void testBackoff() throws Exception {
+        this.timerService.setRetryPolicy(new RetryPolicy(3, 150, 2, 1000, 0));
+        final Timer failing = this.timerService.createSingleActionTimer(10, new TimerConfig("fail", false));
+        // fires while the failing timer waits for its retries
+        this.timerService.createSingleActionTimer(100, new TimerConfig("ok", false));
+
+        Thread.sleep(1500);
+        final List<Long> failures = this.invoker.getTimeouts("fail");
+        assertEquals("Timeout wasn't invoked once and retried 3 times", 4, failures.size());
+        assertEquals("Executor thread was held by the retries", 1, this.invoker.getTimeouts("ok").size());
+        final long[] expected = {150, 300, 600};
+        for (int i = 0; i < expected.length; i++) {
+            final long gap = failures.get(i + 1) - failures.get(i);
+            assertTrue("Retry " + (i + 1) + " came after " + gap + " ms", gap >= expected[i] - 20);
+        }
+        assertEquals(0, this.timerService.getPendingRetryCount());
+        try {
+            failing.getInfo();
+            fail("Timer didn't expire after its retries were used up");
+        } catch (NoSuchObjectLocalException expectedException) {
+            // expected
+        }
+    }
+
+    /**
+     * Tests that cancelling a timer in retry cancels its pending retry
+     */
+    @Test
+    public void testCancelPendingRetry() throws Exception {
+        this.timerService.setRetryPolicy(new RetryPolicy(3, 300, 1, 300, 0));
+        final Timer failing = this.timerService.createSingleActionTimer(10, new TimerConfig("fail", false));
+
+        Thread.sleep(150);
+        assertEquals(1, this.timerService.getPendingRetryCount());
+        failing.cancel();
+        assertEquals(0, this.timerService.getPendingRetryCount());
+        Thread.sleep(400);
+        assertEquals("Cancelled timer was retried", 1, this.invoker.getTimeouts("fail").size());
+    }
+
+    /**
+     * Tests that a timer restored with a pending retry within a transaction is only retried once the
+     * transaction commits, at the time of its persisted next retry
+     */
+    @Test
+    public void testRestorePendingRetry() throws Exception {
+        final TimerPersistence persistence = new InMemoryTimerPersistence();
+        final TimerServiceImpl previous = new TimerServiceImpl(this.scheduler, new RecordingInvoker("retry:bean"),
+                persistence, new TestTransactionManager(), this.executor);
+        previous.createSingleActionTimer(60000, new TimerConfig("retried", true));
+        previous.suspendTimers();
+        // the timeout failed, and was to be retried once more before the server went down
+        final TimerEntity entity = persistence.loadActiveTimers("retry:bean").get(0);
+        final long nextRetry = System.currentTimeMillis() + 300;
+        entity.setTimerState(TimerState.RETRY_TIMEOUT);
+        entity.setRetryAttempts(1);
+        entity.setNextRetry(new Date(nextRetry));
+
+        final Transaction tx = mock(Transaction.class);
+        final TestTransactionManager transactionManager = new TestTransactionManager();
+        transactionManager.setTransaction(tx);
+        transactionManager.setStatus(Status.STATUS_ACTIVE);
+        final TimerServiceImpl restored = new TimerServiceImpl(this.scheduler, this.invoker, persistence,
+                transactionManager, this.executor);
+        assertEquals(1, restored.restoreTimers(Collections.<ScheduleTimer>emptyList()).getRestoredTimers());
+        assertEquals("Retry was scheduled before the transaction committed", 0, restored.getPendingRetryCount());
+
+        final ArgumentCaptor<Synchronization> synchronization = ArgumentCaptor.forClass(Synchronization.class);
+        verify(tx).registerSynchronization(synchronization.capture());
+        transactionManager.setTransaction(null);
+        transactionManager.setStatus(Status.STATUS_NO_TRANSACTION);
+        synchronization.getValue().afterCompletion(Status.STATUS_COMMITTED);
+        assertEquals(1, restored.getPendingRetryCount());
+
+        Thread.sleep(600);
+        final List<Long> retries = this.invoker.getTimeouts("retried");
+        assertEquals("Restored timer wasn't retried once", 1, retries.size());
+        assertTrue("Retry came " + (nextRetry - retries.get(0)) + " ms early", retries.get(0) >= nextRetry - 20);
+        assertEquals(0, restored.getPendingRetryCount());
+    }
+
+    /**
+     * Tests that the retry state survives in the state record
+     */
+    @Test
+    public void testRetryStateRecord() {
+        final TimerEntity entity = new TimerEntity();
+        entity.setTimerState(TimerState.RETRY_TIMEOUT);
+        entity.setNextDate(new Date(6000));
+        entity.setRetryAttempts(2);
+        entity.setNextRetry(new Date(7000));
+        final byte[] record = TimerStateRecord.toBytes(entity);
+        assertEquals(TimerStateRecord.SIZE, record.length);
+
+        final TimerEntity restored = new TimerEntity();
+        assertTrue(TimerStateRecord.apply(record, 0, restored));
+        assertEquals(TimerState.RETRY_TIMEOUT, restored.getTimerState());
+        assertEquals(2, restored.getRetryAttempts());
+        assertEquals(new Date(7000), restored.getNextRetry());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.scheduler.benchmark;
+
+import org.jboss.ejb3.timerservice.mk2.scheduler.JavaUtilTimerScheduler;
+import org.jboss.ejb3.timerservice.mk2.scheduler.ScheduledTimeout;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimeoutScheduler;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the schedule/cancel throughput of the {@link TimingWheelScheduler} and the
+ * {@link JavaUtilTimerScheduler} with many threads creating and cancelling timers concurrently.
+ * <p>
+ * Not run as part of the build. Run the <code>main</code> method, optionally passing the number
+ * of threads and the number of timers per thread.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class TimeoutSchedulerBenchmark {
+
+    private static final Runnable NO_OP = new Runnable() {
+        public void run() {
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        final int timersPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        for (int round = 0; round < 3; round++) {
+            System.out.println("Round " + round + ", " + threads + " threads, " + timersPerThread + " timers per thread");
+            run("java.util.Timer", new JavaUtilTimerScheduler("benchmark-timer"), threads, timersPerThread);
+            run("timing wheel", new TimingWheelScheduler("benchmark-wheel"), threads, timersPerThread);
+        }
+    }
+
+    private static void run(final String name, final TimeoutScheduler scheduler, final int threads, final int timersPerThread)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        final ScheduledTimeout[] timeouts = new ScheduledTimeout[timersPerThread];
+                        for (int j = 0; j < timersPerThread; j++) {
+                            // timers far enough in the future to never fire during the benchmark
+                            timeouts[j] = scheduler.schedule(NO_OP, 60000 + j);
+                        }
+                        for (int j = 0; j < timersPerThread; j++) {
+                            timeouts[j].cancel();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        final long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long elapsed = System.nanoTime() - begin;
+        scheduler.shutdown();
+
+        final long operations = 2L * threads * timersPerThread;
+        System.out.println(String.format("  %-16s %8d ms, %12.0f schedule+cancel ops/s", name,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), operations / (elapsed / 1e9)));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2010, Red Hat Inc., and individual contributors as indicated
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.timerservice.mk2.scheduler.unit;
+
+import org.jboss.ejb3.timerservice.mk2.scheduler.ScheduledTimeout;
+import org.jboss.ejb3.timerservice.mk2.scheduler.TimingWheelScheduler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link TimingWheelScheduler}
+ *
+ * @version $Revision: $
+ */
+public class TimingWheelSchedulerTestCase {
+
+    private TimingWheelScheduler scheduler;
+
+    @Before
+    public void before() {
+        // a small wheel, so that the tests also cover deadlines spanning more than one rotation
+        this.scheduler = new TimingWheelScheduler("test-wheel", 5, TimeUnit.MILLISECONDS, 8);
+    }
+
+    @After
+    public void after() {
+        this.scheduler.shutdown();
+    }
+
+    /**
+     * Tests that a single action task runs once, and not before its deadline
+     */
+    @Test
+    public void testSingleAction() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicLong firedAt = new AtomicLong();
+        final long start = System.currentTimeMillis();
+        this.scheduler.schedule(new Runnable() {
+            public void run() {
+                firedAt.set(System.currentTimeMillis());
+                latch.countDown();
+            }
+        }, 100);
+
+        assertTrue("Task did not run", latch.await(5, TimeUnit.SECONDS));
+        assertTrue("Task ran early", firedAt.get() - start >= 100);
+        assertEquals(0, this.scheduler.getPendingTimeouts());
+    }
+
+    /**
+     * Tests that tasks with deadlines too far away to be represented in nano seconds don't run
+     * right away, but wait in the wheel
+     */
+    @Test
+    public void testFarFutureDeadline() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final Runnable task = new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        final long years = 365L * 24 * 3600 * 1000;
+        final ScheduledTimeout farFuture = this.scheduler.schedule(task, 300 * years);
+        final ScheduledTimeout maxDelay = this.scheduler.schedule(task, Long.MAX_VALUE);
+        final ScheduledTimeout farFuturePeriod = this.scheduler.scheduleAtFixedRate(task, 300 * years, 300 * years);
+
+        Thread.sleep(200);
+        assertEquals("Far future task was run", 0, runs.get());
+        assertEquals(3, this.scheduler.getPendingTimeouts());
+        assertTrue(farFuture.cancel());
+        assertTrue(maxDelay.cancel());
+        assertTrue(farFuturePeriod.cancel());
+        assertEquals(0, this.scheduler.getPendingTimeouts());
+    }
+
+    /**
+     * Tests that a cancelled task doesn't run and is removed from the wheel immediately
+     */
+    @Test
+    public void testCancel() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final Runnable task = new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        ScheduledTimeout[] timeouts = new ScheduledTimeout[1000];
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = this.scheduler.schedule(task, 200 + i);
+        }
+        assertEquals(timeouts.length, this.scheduler.getPendingTimeouts());
+        for (ScheduledTimeout timeout : timeouts) {
+            assertTrue(timeout.cancel());
+        }
+        assertEquals("Cancelled tasks were not removed", 0, this.scheduler.getPendingTimeouts());
+        assertFalse("Cancel of a cancelled task returned true", timeouts[0].cancel());
+
+        Thread.sleep(1500);
+        assertEquals("Cancelled task was run", 0, runs.get());
+    }
+
+    /**
+     * Tests that a fixed rate task keeps running until cancelled
+     */
+    @Test
+    public void testFixedRate() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(5);
+        final AtomicInteger runs = new AtomicInteger();
+        ScheduledTimeout timeout = this.scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+                latch.countDown();
+            }
+        }, 0, 20);
+
+        assertTrue("Task did not run 5 times", latch.await(5, TimeUnit.SECONDS));
+        assertTrue(timeout.cancel());
+        // allow for an execution which was in progress during the cancel
+        Thread.sleep(50);
+        int runsAfterCancel = runs.get();
+        Thread.sleep(200);
+        assertEquals("Task ran after cancel", runsAfterCancel, runs.get());
+        assertEquals(0, this.scheduler.getPendingTimeouts());
+    }
+}